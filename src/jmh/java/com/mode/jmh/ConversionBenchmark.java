@@ -0,0 +1,109 @@
+package com.mode.jmh;
+
+import com.mode.ColumnType;
+import com.mode.RowBatch;
+import com.mode.RowConverter;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-batch ingest conversion of parsed CSV cells into typed values: the compiled RowConverter against
+ * the boxed JDK/Joda parsing it replaced. Scores are per batch; divide by batchRows for per-row cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+    private static final DateTimeFormatter dtFormat = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+
+    /// Mirrors a trips row; empty cells arrive from the parser as null: ids and codes, money, a flag and two timestamps
+    private static final ColumnType[] columnTypes = {
+            ColumnType.INTEGER, ColumnType.INTEGER, ColumnType.TIMESTAMP, ColumnType.TIMESTAMP,
+            ColumnType.INTEGER, ColumnType.DOUBLE, ColumnType.DOUBLE, ColumnType.STRING,
+            ColumnType.DOUBLE, ColumnType.DOUBLE, ColumnType.DOUBLE
+    };
+
+    /// IngestPipeline.Config's default parse batch
+    @Param({"1024"})
+    public int batchRows;
+
+    private List<String[]> csvRows;
+    private RowBatch.Pool pool;
+    private RowConverter converter;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        csvRows = new ArrayList<>(batchRows);
+
+        for (int row = 0; row < batchRows; row++) {
+            String pickup = String.format("2015-01-%02d %02d:%02d:%02d", 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+            String dropoff = pickup.substring(0, 14) + String.format("%02d:%02d", random.nextInt(60), random.nextInt(60));
+
+            csvRows.add(new String[]{
+                    Integer.toString(1 + random.nextInt(2)),
+                    Integer.toString(1 + random.nextInt(6)),
+                    pickup,
+                    dropoff,
+                    Integer.toString(1 + random.nextInt(6)),
+                    String.format("%.2f", random.nextDouble() * 20),
+                    String.format("%.6f", -73.9 - random.nextDouble() / 10),
+                    random.nextInt(100) < 99 ? "N" : "Y",
+                    String.format("%.2f", 2.5 + random.nextDouble() * 50),
+                    String.format("%.2f", random.nextDouble() * 10),
+                    random.nextInt(50) == 0 ? null : String.format("%.2f", 3 + random.nextDouble() * 60)
+            });
+        }
+
+        pool = new RowBatch.Pool(columnTypes, batchRows, 1);
+        converter = new RowConverter(columnTypes, pool);
+    }
+
+    @Benchmark
+    public long compiled() {
+        RowBatch batch = converter.convert(csvRows);
+        long checksum = batch.getLong(batch.size() - 1, 2);
+        pool.release(batch);
+        return checksum;
+    }
+
+    @Benchmark
+    public void boxed(Blackhole blackhole) {
+        for (String[] csvRow : csvRows) {
+            Object[] values = new Object[columnTypes.length];
+
+            for (int column = 0; column < columnTypes.length; column++) {
+                String value = csvRow[column];
+                if (value == null) {
+                    continue;
+                }
+
+                switch (columnTypes[column]) {
+                    case INTEGER:
+                        values[column] = Math.round(Float.parseFloat(value));
+                        break;
+                    case DOUBLE:
+                        values[column] = Double.parseDouble(value);
+                        break;
+                    case TIMESTAMP:
+                        values[column] = dtFormat.parseDateTime(value).getMillis();
+                        break;
+                    default:
+                        values[column] = value;
+                }
+            }
+
+            blackhole.consume(values);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.mode.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The OFFSET page and pivot queries from Benchmark, against an in-memory HSQLDB table of synthetic
+ * orders, plus ordered OFFSET against keyset pages at the same depth. Every result set is read to
+ * the end so the score includes fetching.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4G"})
+public class HsqldbQueryBenchmark {
+    private static final String[] regionNames = {"Midwest", "Northeast", "Southeast", "West"};
+
+    @Param({"320000"})
+    public int rows;
+
+    @Param({"0", "32000", "160000", "319900"})
+    public int offset;
+
+    private Connection connection;
+    private PreparedStatement pageStatement;
+    private PreparedStatement orderedPageStatement;
+    private PreparedStatement keysetStatement;
+    private PreparedStatement pivotStatement;
+
+    @Setup
+    public void setup() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:hsqldb:mem:jmh" + System.nanoTime(), "SA", "");
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE orders(order_id INTEGER, order_total_qty INTEGER, order_total_amt_usd DOUBLE, " +
+                    "order_created_date TIMESTAMP, sales_rep_name VARCHAR(1024), region_name VARCHAR(1024))");
+            statement.execute("CREATE INDEX orders_order_id ON orders(order_id)");
+        }
+
+        Random random = new Random(42);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO orders VALUES(?,?,?,?,?,?)")) {
+            for (int row = 0; row < rows; row++) {
+                int region = random.nextInt(regionNames.length);
+
+                insert.setInt(1, row);
+                insert.setInt(2, random.nextInt(1000));
+                insert.setDouble(3, random.nextDouble() * 10000);
+                insert.setTimestamp(4, new Timestamp(1420070400000L + random.nextInt(1000 * 24 * 3600) * 1000L));
+                insert.setString(5, regionNames[region] + " rep " + random.nextInt(12));
+                insert.setString(6, regionNames[region]);
+                insert.addBatch();
+
+                if (row % 10000 == 9999) {
+                    insert.executeBatch();
+                }
+            }
+
+            if (rows % 10000 != 0) {
+                insert.executeBatch();
+            }
+        }
+
+        pageStatement = connection.prepareStatement("SELECT * FROM orders LIMIT 100 OFFSET ?");
+        orderedPageStatement = connection.prepareStatement("SELECT * FROM orders ORDER BY order_id LIMIT 100 OFFSET ?");
+        // order_id is the row number, so the page at offset starts after order_id offset - 1
+        keysetStatement = connection.prepareStatement("SELECT * FROM orders WHERE order_id > ? ORDER BY order_id LIMIT 100");
+        pivotStatement = connection.prepareStatement(
+                "SELECT region_name, sales_rep_name, COUNT(1) " +
+                        "FROM orders " +
+                        "GROUP BY region_name, sales_rep_name " +
+                        "ORDER BY region_name, sales_rep_name");
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        connection.close();
+    }
+
+    @Benchmark
+    public void offsetPage(Blackhole blackhole) throws SQLException {
+        pageStatement.setInt(1, offset);
+        drain(pageStatement, blackhole);
+    }
+
+    @Benchmark
+    public void orderedOffsetPage(Blackhole blackhole) throws SQLException {
+        orderedPageStatement.setInt(1, offset);
+        drain(orderedPageStatement, blackhole);
+    }
+
+    @Benchmark
+    public void keysetPage(Blackhole blackhole) throws SQLException {
+        keysetStatement.setInt(1, offset - 1);
+        drain(keysetStatement, blackhole);
+    }
+
+    @Benchmark
+    public void pivot(Blackhole blackhole) throws SQLException {
+        drain(pivotStatement, blackhole);
+    }
+
+    private static void drain(PreparedStatement statement, Blackhole blackhole) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            int columnCount = resultSet.getMetaData().getColumnCount();
+
+            while (resultSet.next()) {
+                for (int column = 1; column <= columnCount; column++) {
+                    blackhole.consume(resultSet.getObject(column));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.mode.jmh;
+
+import com.mode.ColumnType;
+import com.mode.MutablePagingIndex;
+import com.mode.PagingIndex;
+import com.mode.SortColumn;
+import com.mode.SortDirection;
+import com.mode.SortKey;
+import org.openjdk.jmh.annotations.*;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client side of an index build: folding (id, key) pairs into bitmaps and freezing them into a
+ * PagingIndex. The VoltDB scan itself is left to the end-to-end driver.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4G"})
+public class IndexBuildBenchmark {
+    @Param({"1000000", "10000000"})
+    public int rows;
+
+    @Param({"7", "1000"})
+    public int distinctKeys;
+
+    private List<SortColumn> sortColumns;
+    private SortKey[] keys;
+    private int[] keyOfRow;
+    private TreeMap<SortKey, RoaringBitmap> folded;
+
+    @Setup
+    public void setup() {
+        sortColumns = Collections.singletonList(new SortColumn("rate_code_id", ColumnType.INTEGER, SortDirection.DESC));
+
+        keys = new SortKey[distinctKeys];
+        for (int key = 0; key < distinctKeys; key++) {
+            keys[key] = new SortKey(sortColumns.get(0).encode((long) key));
+        }
+
+        Random random = new Random(42);
+        keyOfRow = new int[rows];
+        folded = new TreeMap<>();
+        for (int id = 0; id < rows; id++) {
+            keyOfRow[id] = random.nextInt(distinctKeys);
+            folded.computeIfAbsent(keys[keyOfRow[id]], key -> new RoaringBitmap()).add(id);
+        }
+    }
+
+    @Benchmark
+    public PagingIndex foldAndSnapshot() {
+        MutablePagingIndex index = new MutablePagingIndex(sortColumns);
+
+        for (int id = 0; id < rows; id++) {
+            index.add(id, keys[keyOfRow[id]]);
+        }
+
+        return index.snapshot();
+    }
+
+    @Benchmark
+    public PagingIndex freeze() {
+        return new PagingIndex(sortColumns, folded);
+    }
+}
@@ -0,0 +1,67 @@
+package com.mode.jmh;
+
+import com.mode.ColumnType;
+import com.mode.PagingIndex;
+import com.mode.SortColumn;
+import com.mode.SortDirection;
+import com.mode.SortKey;
+import org.openjdk.jmh.annotations.*;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PagingIndex.lookup at increasing offsets, over a synthetic index shaped like trips.rate_code_id:
+ * a handful of keys with one dominant bucket, so deep pages land mid-bucket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4G"})
+public class PagingIndexBenchmark {
+    @Param({"10000000"})
+    public int rows;
+
+    @Param({"100", "10000"})
+    public int limit;
+
+    @Param({"0", "1000000", "5000000", "9990000"})
+    public long offset;
+
+    @Param({"ASC", "DESC"})
+    public SortDirection direction;
+
+    private PagingIndex index;
+
+    @Setup
+    public void setup() {
+        List<SortColumn> sortColumns = Collections.singletonList(new SortColumn("rate_code_id", ColumnType.INTEGER, SortDirection.DESC));
+        index = new PagingIndex(sortColumns, Synthetic.rateCodeIndex(sortColumns.get(0), rows, new Random(42)));
+    }
+
+    @Benchmark
+    public long[] lookup() {
+        return index.lookup(limit, offset, direction);
+    }
+
+    static class Synthetic {
+        /// rate_code_id is ~97% standard rate; the rest spread over five codes
+        static TreeMap<SortKey, RoaringBitmap> rateCodeIndex(SortColumn column, int rows, Random random) {
+            TreeMap<SortKey, RoaringBitmap> buckets = new TreeMap<>();
+
+            for (int id = 0; id < rows; id++) {
+                long rateCode = random.nextInt(100) < 97 ? 1 : 2 + random.nextInt(5);
+                buckets.computeIfAbsent(new SortKey(column.encode(rateCode)), key -> new RoaringBitmap()).add(id);
+            }
+
+            buckets.values().forEach(RoaringBitmap::runOptimize);
+            return buckets;
+        }
+    }
+}
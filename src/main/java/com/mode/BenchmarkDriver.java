@@ -0,0 +1,502 @@
+package com.mode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Runs a Workload against a StorageEngine and reports every phase as one comparable metric line,
+ * "engine workload phase ms rows bytes first_row_ms last_row_ms", with a summary of them all at the
+ * end. Only queries have bytes and row times, timed by the engine from issuing the query.
+ */
+public class BenchmarkDriver {
+    /// The paging walk: pages read, half from the indexed offset and half from the top, with a pause on each
+    private static final Integer WALK_PAGES = 20;
+    private static final Long WALK_THINK_MILLIS = 20L;
+    private static final Integer READ_AHEAD_DEPTH = 4;
+    /// Sketch answers are far below a millisecond, so they are timed over many rounds
+    private static final Integer SKETCH_ROUNDS = 1000;
+    private static final double HEAVY_HITTER_FRACTION = 0.05;
+
+    private final StorageEngine engine;
+    private final Workload workload;
+    private final List<String> metrics = new ArrayList<>();
+    private final List<String> loadMetrics = new ArrayList<>();
+    private LoadGenerator.Config loadConfig = null;
+    private List<Integer> loadClients = Collections.emptyList();
+    private boolean snapshots = false;
+
+    private interface Phase {
+        Long run() throws Exception;
+    }
+
+    private interface Query {
+        ResultStats run() throws Exception;
+    }
+
+    public BenchmarkDriver(StorageEngine engine, Workload workload) {
+        this.engine = engine;
+        this.workload = workload;
+    }
+
+    /// After the single-client phases, run the query mix once at each client count
+    public BenchmarkDriver load(LoadGenerator.Config config, List<Integer> clientCounts) {
+        this.loadConfig = config;
+        this.loadClients = clientCounts;
+        return this;
+    }
+
+    /// Load from columnar snapshots of the csv files, converting any that are missing or stale first
+    public BenchmarkDriver snapshots() {
+        this.snapshots = true;
+        return this;
+    }
+
+    /// BenchmarkDriver (hsqldb | columnar | voltdb [--partitions n]) (orders | trips) [--skip-load] [--snapshots] [--cache mb] [--clients 1,4,16 [--rate qps] [--duration s]]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Usage: BenchmarkDriver (hsqldb | columnar | voltdb [--partitions n]) (orders | trips) [--skip-load] [--snapshots] " +
+                    "[--cache mb] [--clients 1,4,16 [--rate qps] [--duration s]]");
+        }
+
+        List<String> options = Arrays.asList(args);
+
+        StorageEngine engine;
+        switch (args[0]) {
+            case "hsqldb":
+                engine = new HsqldbEngine("jdbc:hsqldb:mem:mymemdb");
+                break;
+            case "columnar":
+                engine = new ColumnarEngine();
+                break;
+            case "voltdb":
+                // Should be the cluster's partition count: sites per host times hosts over k-factor + 1
+                int partitionsOption = options.indexOf("--partitions");
+                engine = new VoltEngine(Collections.singletonList("localhost"), partitionsOption >= 0 ? Integer.valueOf(args[partitionsOption + 1]) : 8);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine " + args[0]);
+        }
+
+        Workload workload;
+        switch (args[1]) {
+            case "orders":
+                workload = Workload.orders();
+                break;
+            case "trips":
+                workload = Workload.trips();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown workload " + args[1]);
+        }
+
+        int cacheOption = options.indexOf("--cache");
+        if (cacheOption >= 0) {
+            engine = new CachingEngine(engine, new ResultCache(Long.valueOf(args[cacheOption + 1]) << 20));
+        }
+
+        BenchmarkDriver driver = new BenchmarkDriver(engine, workload);
+
+        int clientsOption = options.indexOf("--clients");
+        if (clientsOption >= 0) {
+            List<Integer> clientCounts = new ArrayList<>();
+            for (String clients : args[clientsOption + 1].split(",")) {
+                clientCounts.add(Integer.valueOf(clients));
+            }
+
+            LoadGenerator.Config config = new LoadGenerator.Config();
+            int rateOption = options.indexOf("--rate");
+            if (rateOption >= 0) {
+                config.openLoop(Double.valueOf(args[rateOption + 1]));
+            }
+            int durationOption = options.indexOf("--duration");
+            if (durationOption >= 0) {
+                config.duration(5, Integer.valueOf(args[durationOption + 1]));
+            }
+            driver.load(config, clientCounts);
+        }
+
+        if (options.contains("--snapshots")) {
+            driver.snapshots();
+        }
+
+        driver.run(!options.contains("--skip-load"));
+    }
+
+    public void run(boolean load) throws Exception {
+        String tableName = workload.getTableName();
+
+        try {
+            measure("open", () -> {
+                engine.open();
+                return 0L;
+            });
+
+            PagingIndex index = null;
+            TableSketches sketches = null;
+
+            if (load) {
+                MutablePagingIndex liveIndex = new MutablePagingIndex(workload.getIndexSort());
+                TableSketches liveSketches = workload.getSketchSpecs().isEmpty() ? null :
+                        new TableSketches(workload.getSchema(), workload.getSketchSpecs());
+
+                measure("create", () -> {
+                    engine.createTable(tableName, workload.getSchema());
+                    engine.clearTable(tableName);
+                    if (workload.getIndexPath() != null) {
+                        Files.deleteIfExists(workload.getIndexPath());
+                    }
+                    return 0L;
+                });
+
+                List<String> loadPaths = new ArrayList<>(workload.getCsvPaths());
+                if (snapshots) {
+                    measure("snapshot convert", () -> {
+                        long rows = 0;
+                        for (int i = 0; i < loadPaths.size(); i++) {
+                            Path snapshotPath = ColumnarSnapshot.convert(loadPaths.get(i), workload.getSchema());
+                            loadPaths.set(i, snapshotPath.toString());
+                            rows += ColumnarSnapshot.open(snapshotPath).getRowCount();
+                        }
+                        return rows;
+                    });
+                }
+
+                measure("ingest", () -> engine.ingest(tableName, workload.getSchema(), loadPaths, liveIndex, liveSketches));
+                sketches = liveSketches;
+
+                if (!workload.getPageOrder().isEmpty()) {
+                    measure("keyset index create", () -> {
+                        engine.createIndex(tableName, keysetColumns());
+                        return 0L;
+                    });
+                }
+
+                // The index was maintained during the load, so persist it instead of rebuilding
+                index = liveIndex.snapshot();
+                if (workload.getIndexPath() != null) {
+                    index.save(workload.getIndexPath(), tableName);
+                }
+            }
+
+            measureQuery("offset page (warmup)", this::selectPage);
+            measureQuery("offset page (warmed)", this::selectPage);
+
+            comparePagination();
+
+            if (index == null) {
+                PagingIndex[] opened = new PagingIndex[1];
+                measure("index open", () -> {
+                    opened[0] = openOrBuildIndex();
+                    return opened[0].getCardinality();
+                });
+                index = opened[0];
+            }
+
+            System.out.println("Index contains " + index.getCardinality() + " entries in " + index.getSizeInBytes() + " bytes ...");
+
+            PagingIndex pagingIndex = index;
+            measureQuery("indexed page", () -> engine.selectIds(tableName, workload.getIndexSort(),
+                    pagingIndex.lookup(workload.getPageLimit(), workload.getIndexedOffset(), SortDirection.ASC)));
+
+            ShardedPagingIndex[] sharded = new ShardedPagingIndex[1];
+            measure("sharded index build", () -> {
+                sharded[0] = engine.buildShardedIndex(tableName, workload.getIndexSort());
+                return sharded[0].getCardinality();
+            });
+            System.out.println("Sharded index has " + sharded[0].getShardCount() + " shards in " + sharded[0].getSizeInBytes() + " bytes ...");
+            measureQuery("sharded indexed page", () -> engine.selectIds(tableName, workload.getIndexSort(),
+                    sharded[0].lookup(workload.getPageLimit(), workload.getIndexedOffset(), SortDirection.ASC)));
+
+            for (Integer depth : Arrays.asList(0, READ_AHEAD_DEPTH)) {
+                measure("indexed walk (read-ahead " + depth + ")", () -> walkPages(pagingIndex, depth));
+            }
+
+            if (workload.getHistogramColumn() != null) {
+                compareHistograms();
+            }
+
+            Map<String, FilterIndex> filterIndexes = new HashMap<>();
+            measure("filter index build", () -> {
+                for (String columnName : workload.getFilterColumns()) {
+                    filterIndexes.put(columnName, engine.buildFilterIndex(tableName, columnName, workload.getSchema().get(columnName)));
+                }
+                return (long) filterIndexes.size();
+            });
+
+            BitmapFilter filter = null;
+            for (Map.Entry<String, Object[]> predicate : workload.getFilter().entrySet()) {
+                FilterIndex filterIndex = filterIndexes.get(predicate.getKey());
+                filter = filter == null ? BitmapFilter.where(filterIndex, predicate.getValue()) : filter.and(filterIndex, predicate.getValue());
+            }
+
+            if (filter != null) {
+                BitmapFilter pageFilter = filter;
+                System.out.println("Filter matches " + pagingIndex.getCardinality(pageFilter) + " rows");
+                measureQuery("filtered indexed page", () -> engine.selectIds(tableName, workload.getIndexSort(),
+                        pagingIndex.lookup(workload.getPageLimit(), workload.getFilteredOffset(), SortDirection.ASC, pageFilter)));
+            }
+
+            measureQuery("pivot (warmup)", () -> engine.pivot(tableName, workload.getPivotDimensions()));
+            measureQuery("pivot (warmed)", () -> engine.pivot(tableName, workload.getPivotDimensions()));
+            if (!workload.getFilter().isEmpty() || workload.getPivotSum() != null) {
+                measureQuery("filtered pivot", () -> engine.pivot(tableName, workload.getPivotDimensions(),
+                        workload.getFilter(), workload.getPivotSum(), null));
+            }
+
+            List<FilterIndex> dimensions = new ArrayList<>();
+            for (String dimension : workload.getPivotDimensions()) {
+                dimensions.add(filterIndexes.get(dimension));
+            }
+
+            measure("bitmap pivot (warmup)", () -> (long) BitmapPivot.count(dimensions).size());
+            measure("bitmap pivot (warmed)", () -> (long) BitmapPivot.count(dimensions).size());
+
+            if (filter != null) {
+                BitmapFilter pivotFilter = filter;
+                measure("filtered bitmap pivot", () -> (long) BitmapPivot.count(dimensions, pivotFilter).size());
+            }
+
+            if (sketches != null) {
+                answerSketches(sketches);
+            }
+
+            for (Integer clients : loadClients) {
+                runLoad(pagingIndex, clients);
+            }
+        } finally {
+            engine.close();
+        }
+
+        System.out.println("engine\tworkload\tphase\tms\trows\tbytes\tfirst_row_ms\tlast_row_ms");
+        for (String metric : metrics) {
+            System.out.println(metric);
+        }
+
+        if (!loadMetrics.isEmpty()) {
+            System.out.println();
+            System.out.println("engine\tworkload\tclients\tloop\tquery\tcount\terrors\tqps\tp50_ms\tp99_ms\tp99.9_ms\tmax_ms");
+            for (String metric : loadMetrics) {
+                System.out.println(metric);
+            }
+        }
+    }
+
+    private void runLoad(PagingIndex index, Integer clients) throws Exception {
+        System.out.println("Running " + clients + " clients for " + loadConfig.getDurationSeconds() + "s ...");
+        loadConfig.clients(clients);
+
+        for (LoadGenerator.Report report : new LoadGenerator(engine, workload, index, loadConfig).run()) {
+            String metric = engine.getName() + "\t" + workload.getTableName() + "\t" + clients + "\t" +
+                    (loadConfig.isOpenLoop() ? "open" : "closed") + "\t" + report.getQueryType() + "\t" +
+                    report.getCount() + "\t" + report.getErrors() + "\t" +
+                    String.format("%.1f\t%.3f\t%.3f\t%.3f\t%.3f", report.getThroughput(), report.getPercentileMillis(50),
+                            report.getPercentileMillis(99), report.getPercentileMillis(99.9), report.getMaxMillis());
+            System.out.println(metric);
+            loadMetrics.add(metric);
+        }
+    }
+
+    /**
+     * The same deep page through a HistogramIndex at each bucket count. The cold page loads the buckets
+     * it lands in, the warm one reads them back, and the sizes before and after show what that costs.
+     */
+    private void compareHistograms() throws Exception {
+        String tableName = workload.getTableName();
+        List<SortColumn> orderBy = Collections.singletonList(workload.getHistogramColumn());
+
+        for (Integer bucketCount : workload.getHistogramBucketCounts()) {
+            HistogramIndex[] histogram = new HistogramIndex[1];
+            measure("histogram build (" + bucketCount + " buckets)", () -> {
+                histogram[0] = engine.buildHistogramIndex(tableName, workload.getHistogramColumn(), bucketCount);
+                return histogram[0].getCardinality();
+            });
+            long builtBytes = histogram[0].getSizeInBytes();
+
+            for (String pass : Arrays.asList("cold", "warm")) {
+                measureQuery("histogram page (" + bucketCount + " buckets, " + pass + ")", () -> engine.selectIds(tableName, orderBy,
+                        histogram[0].lookup(workload.getPageLimit(), workload.getIndexedOffset(), SortDirection.ASC)));
+            }
+
+            System.out.println("Histogram index has " + histogram[0].getBucketCount() + " buckets in " + builtBytes + " bytes, " +
+                    histogram[0].getSizeInBytes() + " with " + histogram[0].getLoadedBucketCount() + " loaded ...");
+        }
+    }
+
+    /**
+     * Every answer the sketches kept during the load can give: the first round merges the converters'
+     * partial sketches and prints the answers, the rest time them.
+     */
+    private void answerSketches(TableSketches sketches) throws Exception {
+        measure("sketch merge", () -> askSketches(sketches, true));
+
+        long startNanos = System.nanoTime();
+        long answers = 0;
+        for (int i = 0; i < SKETCH_ROUNDS; i++) {
+            answers += askSketches(sketches, false);
+        }
+        long nanos = System.nanoTime() - startNanos;
+
+        record("sketch answers\t" + nanos / 1000000 + "\t" + answers + "\t-\t-\t-");
+        System.out.println(String.format("Sketches hold %d bytes and answer in %.3f ms a round", sketches.getSizeInBytes(),
+                nanos / 1e6 / SKETCH_ROUNDS));
+    }
+
+    private long askSketches(TableSketches sketches, boolean print) {
+        List<Map<List<Object>, ?>> answers = new ArrayList<>();
+        List<String> questions = new ArrayList<>();
+
+        for (TableSketches.Spec spec : workload.getSketchSpecs()) {
+            List<String> groupBy = spec.getGroupBy();
+            String by = " by " + String.join(", ", groupBy);
+
+            questions.add("rows" + by);
+            answers.add(sketches.count(groupBy));
+            for (String column : spec.getDistinct()) {
+                questions.add("distinct " + column + by);
+                answers.add(sketches.distinct(groupBy, column));
+            }
+            for (String column : spec.getQuantiles()) {
+                for (double q : new double[]{0.5, 0.99}) {
+                    questions.add("p" + Math.round(q * 100) + " " + column + by);
+                    answers.add(sketches.quantile(groupBy, column, q));
+                }
+            }
+            for (String column : spec.getHeavyHitters()) {
+                questions.add(column + " with " + Math.round(HEAVY_HITTER_FRACTION * 100) + "% of rows" + by);
+                answers.add(sketches.heavyHitters(groupBy, column, HEAVY_HITTER_FRACTION));
+            }
+        }
+
+        long count = 0;
+        for (int i = 0; i < answers.size(); i++) {
+            count += answers.get(i).size();
+            if (print) {
+                System.out.println(questions.get(i) + ": " + answers.get(i));
+            }
+        }
+        return count;
+    }
+
+    private List<String> keysetColumns() {
+        List<String> columnNames = new ArrayList<>();
+        for (SortColumn sortColumn : workload.getPageOrder()) {
+            columnNames.add(sortColumn.getName());
+        }
+        columnNames.add("id");
+        return columnNames;
+    }
+
+    /**
+     * OFFSET against keyset pages at 0, 1%, 10% and 100% of the workload's page offset. OFFSET pages
+     * are run cold at each depth; keyset pages are timed on one sequential walk down to the deepest.
+     */
+    private void comparePagination() throws Exception {
+        String tableName = workload.getTableName();
+        List<SortColumn> order = workload.getPageOrder();
+        long limit = workload.getPageLimit();
+
+        List<Long> depths = new ArrayList<>();
+        for (long divisor : new long[]{0, 100, 10, 1}) {
+            long depth = divisor == 0 ? 0 : workload.getPageOffset() / divisor / limit * limit;
+            if (!depths.contains(depth)) {
+                depths.add(depth);
+            }
+        }
+
+        for (Long depth : depths) {
+            measureQuery("offset page @" + depth, () -> engine.selectPage(tableName, workload.getPageColumns(), order, limit, depth));
+        }
+
+        long deepest = depths.get(depths.size() - 1);
+        KeysetPage[] page = {null};
+
+        measure("keyset walk to " + deepest, () -> {
+            long rows = 0;
+            for (long depth = 0; depth <= deepest; depth += limit) {
+                PageToken after = page[0] == null ? null : page[0].getNext();
+                if (depth > 0 && after == null) {
+                    break;
+                }
+
+                if (depths.contains(depth)) {
+                    measureQuery("keyset page @" + depth, () -> {
+                        page[0] = engine.selectPageAfter(tableName, order, limit, after);
+                        return page[0].getStats();
+                    });
+                } else {
+                    page[0] = engine.selectPageAfter(tableName, order, limit, after);
+                }
+                rows += page[0].getRows();
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * A user paging forward from the indexed offset, pausing on each page, then jumping back to the
+     * top and paging on from there. Prints how many pages read-ahead served and the mean page time.
+     */
+    private Long walkPages(PagingIndex index, Integer depth) throws Exception {
+        long limit = workload.getPageLimit();
+        long rows = 0;
+
+        try (PageSession session = new PageSession(engine, workload.getTableName(), index, SortDirection.ASC, null, limit, depth)) {
+            for (int i = 0; i < WALK_PAGES; i++) {
+                long offset = i < WALK_PAGES / 2 ? workload.getIndexedOffset() + i * limit : (i - WALK_PAGES / 2) * limit;
+                rows += session.page(offset).getRows();
+                Thread.sleep(WALK_THINK_MILLIS);
+            }
+
+            System.out.println("Read-ahead " + depth + ": " + session);
+        }
+        return rows;
+    }
+
+    private ResultStats selectPage() throws Exception {
+        return engine.selectPage(workload.getTableName(), workload.getPageColumns(), workload.getPageOrder(),
+                workload.getPageLimit(), workload.getPageOffset());
+    }
+
+    private PagingIndex openOrBuildIndex() throws Exception {
+        String tableName = workload.getTableName();
+
+        if (workload.getIndexPath() != null && Files.exists(workload.getIndexPath())) {
+            try {
+                return PagingIndex.open(workload.getIndexPath(), tableName, workload.getIndexSort(), engine.countRows(tableName));
+            } catch (IOException openException) {
+                System.out.println("Rebuilding index: " + openException.getMessage());
+            }
+        }
+
+        PagingIndex index = engine.buildIndex(tableName, workload.getIndexSort());
+        if (workload.getIndexPath() != null) {
+            index.save(workload.getIndexPath(), tableName);
+        }
+        return index;
+    }
+
+    private void measure(String phase, Phase body) throws Exception {
+        long startTime = System.currentTimeMillis();
+        Long rows = body.run();
+        long endTime = System.currentTimeMillis();
+
+        record(phase + "\t" + (endTime - startTime) + "\t" + rows + "\t-\t-\t-");
+    }
+
+    private void measureQuery(String phase, Query body) throws Exception {
+        long startTime = System.currentTimeMillis();
+        ResultStats stats = body.run();
+        long endTime = System.currentTimeMillis();
+
+        record(phase + "\t" + (endTime - startTime) + "\t" + stats.getRows() + "\t" + stats.getBytes() + "\t" +
+                String.format("%.3f\t%.3f", stats.getFirstRowNanos() / 1e6, stats.getLastRowNanos() / 1e6));
+    }
+
+    private void record(String measurement) {
+        String metric = engine.getName() + "\t" + workload.getTableName() + "\t" + measurement;
+        System.out.println(metric);
+        metrics.add(metric);
+    }
+}
@@ -0,0 +1,76 @@
+package com.mode;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.ImmutableBitmapDataProvider;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A conjunction of equality/IN predicates over FilterIndexes, e.g.
+ * where(vendorId, 2).and(paymentType, 1, 2) for vendor_id = 2 AND payment_type IN (1, 2).
+ */
+public class BitmapFilter {
+    private final List<RoaringBitmap> predicates = new ArrayList<>();
+
+    public static BitmapFilter where(FilterIndex index, Object... values) {
+        return new BitmapFilter().and(index, values);
+    }
+
+    public BitmapFilter and(FilterIndex index, Object... values) {
+        List<RoaringBitmap> matches = new ArrayList<>();
+        for (Object value : values) {
+            matches.add(index.get(value));
+        }
+
+        predicates.add(FastAggregation.or(matches.iterator()));
+        return this;
+    }
+
+    /// The ids matching every predicate
+    public RoaringBitmap resolve() {
+        if (predicates.isEmpty()) {
+            throw new IllegalStateException("Filter has no predicates");
+        }
+
+        return predicates.size() == 1 ? predicates.get(0) : FastAggregation.and(predicates.iterator());
+    }
+
+    Matches matches() {
+        return new Matches(resolve());
+    }
+
+    /// The resolved ids, converted once for index buckets that are buffer bitmaps mapped from disk
+    static class Matches {
+        private final RoaringBitmap heap;
+        private MutableRoaringBitmap buffer;
+
+        Matches(RoaringBitmap heap) {
+            this.heap = heap;
+        }
+
+        private synchronized MutableRoaringBitmap buffer() {
+            if (buffer == null) {
+                buffer = heap.toMutableRoaringBitmap();
+            }
+            return buffer;
+        }
+
+        long andCardinality(ImmutableBitmapDataProvider bucket) {
+            if (bucket instanceof RoaringBitmap) {
+                return RoaringBitmap.andCardinality((RoaringBitmap) bucket, heap);
+            }
+            return ImmutableRoaringBitmap.andCardinality((ImmutableRoaringBitmap) bucket, buffer());
+        }
+
+        ImmutableBitmapDataProvider and(ImmutableBitmapDataProvider bucket) {
+            if (bucket instanceof RoaringBitmap) {
+                return RoaringBitmap.and((RoaringBitmap) bucket, heap);
+            }
+            return ImmutableRoaringBitmap.and((ImmutableRoaringBitmap) bucket, buffer());
+        }
+    }
+}
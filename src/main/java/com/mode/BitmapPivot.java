@@ -0,0 +1,154 @@
+package com.mode;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Answers SELECT d1, ..., dn, COUNT(1) ... GROUP BY d1, ..., dn ORDER BY d1, ..., dn from the
+ * per-value bitmaps of FilterIndexes. Each cell is the AND-cardinality of the last dimension's
+ * bitmap with the intersection of the earlier ones, so for two unfiltered dimensions nothing is
+ * ever intersected into a new bitmap. Cells are counted in parallel on the common fork/join pool.
+ */
+public class BitmapPivot {
+    /// SQL orders nulls first
+    private static final Comparator<Object> VALUE_ORDER = Comparator.nullsFirst(BitmapPivot::compareValues);
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object left, Object right) {
+        return ((Comparable<Object>) left).compareTo(right);
+    }
+
+    public static class Cell {
+        private final List<Object> values;
+        private final Long count;
+
+        Cell(List<Object> values, Long count) {
+            this.values = values;
+            this.count = count;
+        }
+
+        public List<Object> getValues() {
+            return values;
+        }
+
+        public Long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return values + "=" + count;
+        }
+    }
+
+    public static List<Cell> count(List<FilterIndex> dimensions) {
+        return count(dimensions, null);
+    }
+
+    /**
+     * Returns the non-empty cells in SQL order. A null filter counts every row.
+     */
+    public static List<Cell> count(List<FilterIndex> dimensions, BitmapFilter filter) {
+        if (dimensions.isEmpty()) {
+            throw new IllegalArgumentException("Pivot needs at least one dimension");
+        }
+
+        List<List<Object>> dimensionValues = new ArrayList<>();
+        for (FilterIndex dimension : dimensions) {
+            List<Object> values = new ArrayList<>(dimension.values());
+            values.sort(VALUE_ORDER);
+            dimensionValues.add(values);
+        }
+
+        RoaringBitmap matches = filter == null ? null : filter.resolve();
+        return ForkJoinPool.commonPool().invoke(
+                new PrefixTask(dimensions, dimensionValues, 0, Collections.emptyList(), matches));
+    }
+
+    /// Expands one dimension under a fixed prefix; prefixIds is null while the prefix is unrestricted
+    private static class PrefixTask extends RecursiveTask<List<Cell>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<FilterIndex> dimensions;
+        private final List<List<Object>> dimensionValues;
+        private final int level;
+        private final List<Object> prefix;
+        private final RoaringBitmap prefixIds;
+
+        PrefixTask(List<FilterIndex> dimensions, List<List<Object>> dimensionValues, int level,
+                   List<Object> prefix, RoaringBitmap prefixIds) {
+            this.dimensions = dimensions;
+            this.dimensionValues = dimensionValues;
+            this.level = level;
+            this.prefix = prefix;
+            this.prefixIds = prefixIds;
+        }
+
+        @Override
+        protected List<Cell> compute() {
+            FilterIndex dimension = dimensions.get(level);
+            List<Object> values = dimensionValues.get(level);
+            boolean last = level == dimensions.size() - 1;
+
+            List<ForkJoinTask<Long>> counts = new ArrayList<>();
+            List<PrefixTask> expansions = new ArrayList<>();
+
+            for (Object value : values) {
+                RoaringBitmap ids = dimension.get(value);
+
+                if (last) {
+                    counts.add(new CellTask(prefixIds, ids).fork());
+                } else {
+                    RoaringBitmap next = prefixIds == null ? ids : RoaringBitmap.and(prefixIds, ids);
+                    PrefixTask expansion = next.isEmpty() ? null : new PrefixTask(
+                            dimensions, dimensionValues, level + 1, append(prefix, value), next);
+                    if (expansion != null) {
+                        expansion.fork();
+                    }
+                    expansions.add(expansion);
+                }
+            }
+
+            List<Cell> cells = new ArrayList<>();
+            for (int i = 0; i < values.size(); i++) {
+                if (last) {
+                    Long count = counts.get(i).join();
+                    if (count > 0) {
+                        cells.add(new Cell(append(prefix, values.get(i)), count));
+                    }
+                } else if (expansions.get(i) != null) {
+                    cells.addAll(expansions.get(i).join());
+                }
+            }
+
+            return cells;
+        }
+
+        private static List<Object> append(List<Object> prefix, Object value) {
+            List<Object> values = new ArrayList<>(prefix);
+            values.add(value);
+            return values;
+        }
+    }
+
+    private static class CellTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final RoaringBitmap prefixIds;
+        private final RoaringBitmap ids;
+
+        CellTask(RoaringBitmap prefixIds, RoaringBitmap ids) {
+            this.prefixIds = prefixIds;
+            this.ids = ids;
+        }
+
+        @Override
+        protected Long compute() {
+            return prefixIds == null ? ids.getLongCardinality() : RoaringBitmap.andCardinality(prefixIds, ids);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.mode;
+
+import org.voltdb.client.ProcCallException;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Another engine behind a ResultCache. OFFSET pages, indexed pages and pivots are served from the
+ * cache when the same query has run since the table last changed; loads and clears through this
+ * engine invalidate the table. Keyset pages, index builds and the rest go straight through.
+ */
+public class CachingEngine implements StorageEngine {
+    private final StorageEngine engine;
+    private final ResultCache cache;
+
+    public CachingEngine(StorageEngine engine, ResultCache cache) {
+        this.engine = engine;
+        this.cache = cache;
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public String getName() {
+        return engine.getName() + "-cached";
+    }
+
+    @Override
+    public void open() throws SQLException, IOException {
+        engine.open();
+    }
+
+    @Override
+    public void close() throws IOException {
+        System.out.println("Result cache: " + cache);
+        engine.close();
+    }
+
+    /**
+     * Setup
+     */
+
+    @Override
+    public void createTable(String tableName, Map<String, ColumnType> schema) throws SQLException, IOException, ProcCallException {
+        cache.beginChange(tableName);
+        try {
+            engine.createTable(tableName, schema);
+        } finally {
+            cache.endChange(tableName);
+        }
+    }
+
+    @Override
+    public void clearTable(String tableName) throws SQLException, IOException, ProcCallException {
+        cache.beginChange(tableName);
+        try {
+            engine.clearTable(tableName);
+        } finally {
+            cache.endChange(tableName);
+        }
+    }
+
+    @Override
+    public void createIndex(String tableName, List<String> columnNames) throws SQLException, IOException, ProcCallException {
+        engine.createIndex(tableName, columnNames);
+    }
+
+    @Override
+    public Long ingest(String tableName, Map<String, ColumnType> schema, List<String> csvPaths, MutablePagingIndex index,
+                       TableSketches sketches) throws SQLException, IOException, InterruptedException, ExecutionException {
+        cache.beginChange(tableName);
+        try {
+            return engine.ingest(tableName, schema, csvPaths, index, sketches);
+        } finally {
+            cache.endChange(tableName);
+        }
+    }
+
+    @Override
+    public Long countRows(String tableName) throws SQLException, IOException, ProcCallException {
+        return engine.countRows(tableName);
+    }
+
+    @Override
+    public PagingIndex buildIndex(String tableName, List<SortColumn> sortColumns) throws SQLException, InterruptedException, ExecutionException {
+        return engine.buildIndex(tableName, sortColumns);
+    }
+
+    @Override
+    public ShardedPagingIndex buildShardedIndex(String tableName, List<SortColumn> sortColumns) throws SQLException, InterruptedException {
+        return engine.buildShardedIndex(tableName, sortColumns);
+    }
+
+    @Override
+    public FilterIndex buildFilterIndex(String tableName, String columnName, ColumnType columnType) throws SQLException, InterruptedException {
+        return engine.buildFilterIndex(tableName, columnName, columnType);
+    }
+
+    @Override
+    public HistogramIndex buildHistogramIndex(String tableName, SortColumn sortColumn, Integer bucketCount)
+            throws SQLException, IOException, ProcCallException, InterruptedException {
+        return engine.buildHistogramIndex(tableName, sortColumn, bucketCount);
+    }
+
+    /**
+     * Selection
+     */
+
+    @Override
+    public ResultStats selectPage(String tableName, List<String> columns, List<SortColumn> orderBy, long limit, long offset,
+                                  ResultDecoder.BatchConsumer consumer) throws SQLException, IOException, ProcCallException {
+        String query = "page " + (columns.isEmpty() ? "*" : String.join(", ", columns).toUpperCase()) + orderByClause(orderBy);
+        ResultCache.Key key = ResultCache.key(tableName, query, limit, offset);
+
+        ResultStats cached = cache.replay(key, consumer);
+        if (cached != null) {
+            return cached;
+        }
+        ResultCache.Recording recording = cache.record(key, consumer);
+        return recording.finish(engine.selectPage(tableName, columns, orderBy, limit, offset, recording));
+    }
+
+    @Override
+    public KeysetPage selectPageAfter(String tableName, List<SortColumn> orderBy, long limit, PageToken after)
+            throws SQLException, IOException, ProcCallException {
+        return engine.selectPageAfter(tableName, orderBy, limit, after);
+    }
+
+    @Override
+    public ResultStats selectIds(String tableName, List<SortColumn> orderBy, long[] ids, ResultDecoder.BatchConsumer consumer)
+            throws SQLException, IOException, ProcCallException, InterruptedException, ExecutionException {
+        ResultCache.Key key = ResultCache.key(tableName, "ids" + orderByClause(orderBy), ids);
+
+        ResultStats cached = cache.replay(key, consumer);
+        if (cached != null) {
+            return cached;
+        }
+        ResultCache.Recording recording = cache.record(key, consumer);
+        return recording.finish(engine.selectIds(tableName, orderBy, ids, recording));
+    }
+
+    @Override
+    public ResultStats pivot(String tableName, List<String> dimensions, Map<String, Object[]> filter, String sumColumn,
+                             ResultDecoder.BatchConsumer consumer) throws SQLException, IOException, ProcCallException {
+        StringBuilder query = new StringBuilder("pivot ").append(String.join(", ", dimensions).toUpperCase());
+        for (Map.Entry<String, Object[]> predicate : filter.entrySet()) {
+            query.append(" WHERE ").append(predicate.getKey().toUpperCase()).append(" IN ").append(Arrays.toString(predicate.getValue()));
+        }
+        if (sumColumn != null) {
+            query.append(" SUM ").append(sumColumn.toUpperCase());
+        }
+
+        ResultCache.Key key = ResultCache.key(tableName, query.toString());
+
+        ResultStats cached = cache.replay(key, consumer);
+        if (cached != null) {
+            return cached;
+        }
+        ResultCache.Recording recording = cache.record(key, consumer);
+        return recording.finish(engine.pivot(tableName, dimensions, filter, sumColumn, recording));
+    }
+
+    private static String orderByClause(List<SortColumn> orderBy) {
+        return orderBy.isEmpty() ? "" : " ORDER BY " + SortColumn.describe(orderBy).toUpperCase();
+    }
+}
@@ -0,0 +1,224 @@
+package com.mode;
+
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Converts one CSV cell into a RowBatch column without boxing. One instance per column and per
+ * converter thread, since timestamp converters keep a cache of the last hour they resolved.
+ */
+public abstract class ColumnConverter {
+    private static final DateTimeFormatter dtFormat = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /// Mantissas up to 2^53 and scales up to 10^22 are exact doubles, so one division rounds correctly
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    public abstract void convert(String value, RowBatch batch, int row, int column);
+
+    public static ColumnConverter forType(ColumnType type) {
+        switch (type) {
+            case INTEGER:
+                return new IntegerConverter();
+            case DOUBLE:
+                return new DoubleConverter();
+            case TIMESTAMP:
+                return new TimestampConverter();
+            default:
+                return new StringConverter();
+        }
+    }
+
+    public static ColumnConverter[] compile(ColumnType[] columnTypes) {
+        ColumnConverter[] converters = new ColumnConverter[columnTypes.length];
+        for (int column = 0; column < columnTypes.length; column++) {
+            converters[column] = forType(columnTypes[column]);
+        }
+        return converters;
+    }
+
+    private static class StringConverter extends ColumnConverter {
+        @Override
+        public void convert(String value, RowBatch batch, int row, int column) {
+            batch.setNull(row, column, value == null);
+            batch.setString(row, column, value);
+        }
+    }
+
+    private static class IntegerConverter extends ColumnConverter {
+        @Override
+        public void convert(String value, RowBatch batch, int row, int column) {
+            batch.setNull(row, column, value == null);
+            if (value != null) {
+                batch.setLong(row, column, parseInteger(value));
+            }
+        }
+    }
+
+    private static class DoubleConverter extends ColumnConverter {
+        @Override
+        public void convert(String value, RowBatch batch, int row, int column) {
+            batch.setNull(row, column, value == null);
+            if (value != null) {
+                batch.setDouble(row, column, parseDouble(value));
+            }
+        }
+    }
+
+    private static class TimestampConverter extends ColumnConverter {
+        private final char[] cachedHour = new char[13];
+        private long cachedHourMillis = 0L;
+        private boolean cached = false;
+
+        @Override
+        public void convert(String value, RowBatch batch, int row, int column) {
+            batch.setNull(row, column, value == null);
+            if (value != null) {
+                batch.setLong(row, column, parseTimestamp(value));
+            }
+        }
+
+        /// yyyy-MM-dd HH:mm:ss in the default zone; the zone offset is resolved once per distinct hour
+        private long parseTimestamp(String value) {
+            if (value.length() != 19 || value.charAt(13) != ':' || value.charAt(16) != ':'
+                    || !isDigits(value, 14, 16) || !isDigits(value, 17, 19)) {
+                return dtFormat.parseDateTime(value).getMillis();
+            }
+
+            if (!cached || !sameHour(value)) {
+                cachedHourMillis = dtFormat.parseDateTime(value.substring(0, 13) + ":00:00").getMillis();
+                value.getChars(0, 13, cachedHour, 0);
+                cached = true;
+            }
+
+            int minutes = (value.charAt(14) - '0') * 10 + (value.charAt(15) - '0');
+            int seconds = (value.charAt(17) - '0') * 10 + (value.charAt(18) - '0');
+            return cachedHourMillis + minutes * 60_000L + seconds * 1000L;
+        }
+
+        private boolean sameHour(String value) {
+            for (int i = 12; i >= 0; i--) {
+                if (value.charAt(i) != cachedHour[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static boolean isDigits(String value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses an integer, rounding any fraction half up like the Math.round(Float.parseFloat(...))
+     * it replaces. Anything unusual falls back to the JDK parser.
+     */
+    static long parseInteger(String value) {
+        int length = value.length();
+        int position = 0;
+        boolean negative = false;
+
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            position = 1;
+        }
+
+        if (position == length || length - position > 18) {
+            return Math.round(Double.parseDouble(value));
+        }
+
+        long result = 0;
+        for (; position < length; position++) {
+            char c = value.charAt(position);
+            if (c >= '0' && c <= '9') {
+                result = result * 10 + (c - '0');
+            } else if (c == '.') {
+                break;
+            } else {
+                return Math.round(Double.parseDouble(value));
+            }
+        }
+
+        if (position < length) {
+            // Round on the first fraction digit, the rest only matter for negative halves
+            if (!isDigits(value, position + 1, length)) {
+                return Math.round(Double.parseDouble(value));
+            }
+            if (position + 1 < length) {
+                int firstFraction = value.charAt(position + 1) - '0';
+                if (!negative && firstFraction >= 5) {
+                    result += 1;
+                } else if (negative && (firstFraction > 5 || (firstFraction == 5 && hasNonZero(value, position + 2, length)))) {
+                    result += 1;
+                }
+            }
+        }
+
+        return negative ? -result : result;
+    }
+
+    private static boolean hasNonZero(String value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (value.charAt(i) != '0') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses plain decimal notation exactly when the digits fit the fast path, otherwise defers to
+     * Double.parseDouble.
+     */
+    static double parseDouble(String value) {
+        int length = value.length();
+        int position = 0;
+        boolean negative = false;
+
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            position = 1;
+        }
+
+        long mantissa = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean fraction = false;
+
+        for (; position < length; position++) {
+            char c = value.charAt(position);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fraction) {
+                    scale++;
+                }
+                if (mantissa >= MAX_EXACT_MANTISSA) {
+                    return Double.parseDouble(value);
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return Double.parseDouble(value);
+            }
+        }
+
+        if (digits == 0 || scale >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(value);
+        }
+
+        double result = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -result : result;
+    }
+}
@@ -0,0 +1,259 @@
+package com.mode;
+
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The in-process ColumnarTable behind the StorageEngine interface. Tables live only as long as the
+ * engine; ingest converts in parallel and appends each batch straight into the column arrays.
+ */
+public class ColumnarEngine implements StorageEngine {
+    private final static Logger LOGGER = LoggerFactory.getLogger(ColumnarEngine.class);
+
+    private final Map<String, ColumnarTable> tables = new ConcurrentHashMap<>();
+    private final ThreadLocal<ResultDecoder> decoders = ThreadLocal.withInitial(ResultDecoder::new);
+
+    @Override
+    public String getName() {
+        return "columnar";
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+        tables.clear();
+    }
+
+    private ColumnarTable table(String tableName) {
+        ColumnarTable table = tables.get(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("No table " + tableName);
+        }
+        return table;
+    }
+
+    /**
+     * Setup
+     */
+
+    @Override
+    public void createTable(String tableName, Map<String, ColumnType> schema) {
+        tables.putIfAbsent(tableName, new ColumnarTable(schema));
+    }
+
+    @Override
+    public void clearTable(String tableName) {
+        table(tableName).clear();
+    }
+
+    /// Keyset orders are indexed on first use instead
+    @Override
+    public void createIndex(String tableName, List<String> columnNames) {
+    }
+
+    /**
+     * Ingestion
+     */
+
+    @Override
+    public Long ingest(String tableName, Map<String, ColumnType> schema, List<String> csvPaths, MutablePagingIndex index,
+                       TableSketches sketches) throws IOException, InterruptedException {
+        ColumnarTable table = table(tableName);
+
+        List<String> columnNames = new ArrayList<>(schema.keySet());
+        List<SortColumn> sortColumns = index.getSortColumns();
+        int[] indexColumns = new int[sortColumns.size()];
+        for (int i = 0; i < indexColumns.length; i++) {
+            indexColumns[i] = columnNames.indexOf(sortColumns.get(i).getName());
+        }
+
+        final ColumnType[] columnTypes = schema.values().toArray(new ColumnType[0]);
+
+        // Appends are array copies under the table lock, so one writer keeps up with the converters
+        IngestPipeline.Config config = new IngestPipeline.Config().write(1);
+        RowBatch.Pool pool = new RowBatch.Pool(columnTypes, config.getParseBatchRows(), config.getBatchesInFlight());
+
+        Long rowCount = 0L;
+        try (IngestMetrics metrics = IngestMetrics.start(tableName)) {
+            for (String csvPath : csvPaths) {
+                try (IngestMetrics fileMetrics = metrics.file(csvPath)) {
+                    IngestPipeline<RowBatch> pipeline = new IngestPipeline<>(
+                            config,
+                            () -> new RowConverter(columnTypes, pool, sketches),
+                            () -> new IngestPipeline.Writer<RowBatch>() {
+                                @Override
+                                public void write(RowBatch batch) {
+                                    fileMetrics.submitted(batch.size());
+                                    long startNanos = System.nanoTime();
+                                    int first = table.append(batch);
+                                    fileMetrics.blocked(IngestMetrics.Stage.WRITE, System.nanoTime() - startNanos);
+                                    fileMetrics.acknowledged(batch.size());
+
+                                    for (int row = 0; row < batch.size(); row++) {
+                                        index.add(first + row + 1L, SortColumn.encode(sortColumns, batch, row, indexColumns));
+                                    }
+                                    pool.release(batch);
+                                }
+
+                                @Override
+                                public void close() {
+                                }
+                            });
+
+                    LOGGER.info("Loading " + csvPath + " ...");
+                    rowCount += pipeline.run(csvPath, fileMetrics);
+                }
+            }
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Indexing
+     */
+
+    @Override
+    public Long countRows(String tableName) {
+        return (long) table(tableName).size();
+    }
+
+    @Override
+    public PagingIndex buildIndex(String tableName, List<SortColumn> sortColumns) {
+        return table(tableName).pagingIndex(sortColumns);
+    }
+
+    /// One table has no partitions, so the index is split a part per core to exercise the scatter-gather
+    @Override
+    public ShardedPagingIndex buildShardedIndex(String tableName, List<SortColumn> sortColumns) {
+        return ShardedPagingIndex.split(buildIndex(tableName, sortColumns), Partitioner.hash(Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Override
+    public FilterIndex buildFilterIndex(String tableName, String columnName, ColumnType columnType) {
+        return table(tableName).filterIndex(columnName);
+    }
+
+    @Override
+    public HistogramIndex buildHistogramIndex(String tableName, SortColumn sortColumn, Integer bucketCount) {
+        return table(tableName).histogramIndex(sortColumn, bucketCount);
+    }
+
+    /**
+     * Selection
+     */
+
+    /// An ordered OFFSET page has no index to lean on, so it sorts the whole table into a throwaway one
+    @Override
+    public ResultStats selectPage(String tableName, List<String> columns, List<SortColumn> orderBy, long limit, long offset,
+                                  ResultDecoder.BatchConsumer consumer) {
+        ColumnarTable table = table(tableName);
+        int[] positions = table.columnPositions(columns);
+
+        long startNanos = System.nanoTime();
+        int[] rows = orderBy.isEmpty() ? table.page(limit, offset) : rows(table, table.pagingIndex(orderBy).lookup(limit, offset));
+        return decoders.get().drain(table, positions, rows, startNanos, consumer);
+    }
+
+    @Override
+    public KeysetPage selectPageAfter(String tableName, List<SortColumn> orderBy, long limit, PageToken after) {
+        ColumnarTable table = table(tableName);
+
+        long startNanos = System.nanoTime();
+        int[] rows = table.pageAfter(orderBy, after, (int) limit);
+        ResultStats stats = decoders.get().drain(table, rows, startNanos, null);
+
+        PageToken next = rows.length < limit ? null : table.tokenAt(orderBy, rows[rows.length - 1]);
+        return new KeysetPage(stats, next);
+    }
+
+    @Override
+    public ResultStats selectIds(String tableName, List<SortColumn> orderBy, long[] ids, ResultDecoder.BatchConsumer consumer) {
+        ColumnarTable table = table(tableName);
+
+        long startNanos = System.nanoTime();
+        return decoders.get().drain(table, rows(table, ids), startNanos, consumer);
+    }
+
+    /// The row number of each id the table holds, in the ids' order
+    private static int[] rows(ColumnarTable table, long[] ids) {
+        int rowCount = table.size();
+        int[] rows = new int[ids.length];
+        int found = 0;
+        for (long id : ids) {
+            if (id >= 1 && id <= rowCount) {
+                rows[found++] = (int) (id - 1);
+            }
+        }
+        return found == rows.length ? rows : Arrays.copyOf(rows, found);
+    }
+
+    /// The groups are built whole, so the first row comes no sooner than the last
+    @Override
+    public ResultStats pivot(String tableName, List<String> dimensions, Map<String, Object[]> filter, String sumColumn,
+                             ResultDecoder.BatchConsumer consumer) {
+        ColumnarTable table = table(tableName);
+
+        long startNanos = System.nanoTime();
+        RoaringBitmap selection = filter.isEmpty() ? null : table.filter(filter);
+        List<ColumnarTable.Group> groups = table.groupBy(dimensions, sumColumn, selection);
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        if (consumer != null) {
+            consumer.accept(toBatch(table, dimensions, sumColumn != null, groups));
+        }
+
+        long bytes = 0;
+        for (ColumnarTable.Group group : groups) {
+            for (Object value : group.getValues()) {
+                bytes += value == null ? 0 : value instanceof String ? ((String) value).length() : 8;
+            }
+            bytes += sumColumn == null ? 8 : 16;
+        }
+        return new ResultStats((long) groups.size(), bytes, elapsedNanos, elapsedNanos);
+    }
+
+    private static RowBatch toBatch(ColumnarTable table, List<String> dimensions, boolean summing, List<ColumnarTable.Group> groups) {
+        ColumnType[] columnTypes = new ColumnType[dimensions.size() + (summing ? 2 : 1)];
+        for (int column = 0; column < dimensions.size(); column++) {
+            columnTypes[column] = table.getColumnType(dimensions.get(column));
+        }
+        columnTypes[dimensions.size()] = ColumnType.INTEGER;
+        if (summing) {
+            columnTypes[dimensions.size() + 1] = ColumnType.DOUBLE;
+        }
+
+        RowBatch batch = new RowBatch(columnTypes, Math.max(1, groups.size()));
+        for (int row = 0; row < groups.size(); row++) {
+            List<Object> values = groups.get(row).getValues();
+
+            for (int column = 0; column < values.size(); column++) {
+                Object value = values.get(column);
+                batch.setNull(row, column, value == null);
+
+                if (value instanceof String) {
+                    batch.setString(row, column, (String) value);
+                } else if (value instanceof Double) {
+                    batch.setDouble(row, column, (Double) value);
+                } else if (value != null) {
+                    batch.setLong(row, column, (Long) value);
+                }
+            }
+            batch.setLong(row, dimensions.size(), groups.get(row).getCount());
+            if (summing) {
+                batch.setNull(row, dimensions.size() + 1, false);
+                batch.setDouble(row, dimensions.size() + 1, groups.get(row).getSum());
+            }
+        }
+        batch.setSize(groups.size());
+        return batch;
+    }
+}
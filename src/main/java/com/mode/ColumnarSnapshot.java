@@ -0,0 +1,610 @@
+package com.mode;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A CSV file converted once, by its ColumnType schema, into blocks of typed columns that load
+ * without any text parsing. Each block holds up to a parse batch of rows. Within a block, each
+ * column is a null bitmap followed by fixed-width little-endian longs or doubles. STRING columns
+ * are a block-local dictionary followed by byte, short or int codes. Every column of every block
+ * is deflated on its own and kept raw when that doesn't shrink it.
+ *
+ * Layout: header (magic, version, column names and types), the blocks, then a directory of each
+ * block's row count and column offsets and lengths, and a trailer pointing at the directory.
+ * Readers memory-map the blocks, at most a gigabyte of whole blocks per mapping, and decode them
+ * straight into RowBatches.
+ */
+public class ColumnarSnapshot {
+    private static final int FILE_MAGIC = 0x43534E50; // "CSNP"
+    private static final int FILE_VERSION = 1;
+    private static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    public static final String EXTENSION = ".colsnap";
+
+    private final Path path;
+    private final List<String> columnNames;
+    private final ColumnType[] columnTypes;
+    private final int[] blockRows;
+    private final long[][] offsets;
+    private final int[][] storedLengths;
+    private final int[][] rawLengths;
+    private final long rowCount;
+
+    /// Each block's mapping and where that mapping starts in the file
+    private final MappedByteBuffer[] blockSegments;
+    private final long[] blockSegmentStarts;
+
+    private ColumnarSnapshot(Path path, List<String> columnNames, ColumnType[] columnTypes, int[] blockRows, long[][] offsets,
+                             int[][] storedLengths, int[][] rawLengths, MappedByteBuffer[] blockSegments, long[] blockSegmentStarts) {
+        this.path = path;
+        this.columnNames = columnNames;
+        this.columnTypes = columnTypes;
+        this.blockRows = blockRows;
+        this.offsets = offsets;
+        this.storedLengths = storedLengths;
+        this.rawLengths = rawLengths;
+        this.blockSegments = blockSegments;
+        this.blockSegmentStarts = blockSegmentStarts;
+
+        long rows = 0;
+        for (int rowsInBlock : blockRows) {
+            rows += rowsInBlock;
+        }
+        this.rowCount = rows;
+    }
+
+    public static boolean isSnapshot(String path) {
+        return path.endsWith(EXTENSION);
+    }
+
+    /// data/orders.csv.gz snapshots to data/orders.colsnap
+    public static Path snapshotPath(String csvPath) {
+        String base = csvPath.endsWith(".gz") ? csvPath.substring(0, csvPath.length() - 3) : csvPath;
+        base = base.endsWith(".csv") ? base.substring(0, base.length() - 4) : base;
+        return Paths.get(base + EXTENSION);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public ColumnType[] getColumnTypes() {
+        return columnTypes;
+    }
+
+    public int getBlockCount() {
+        return blockRows.length;
+    }
+
+    public int getBlockRows(int block) {
+        return blockRows[block];
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /// Bytes the block's columns take once inflated
+    public long getBlockBytes(int block) {
+        long bytes = 0;
+        for (int rawLength : rawLengths[block]) {
+            bytes += rawLength;
+        }
+        return bytes;
+    }
+
+    /**
+     * Conversion
+     */
+
+    /**
+     * Converts the gzipped CSV unless a snapshot newer than it, with the schema's column names and
+     * types, is already beside it, and returns the snapshot's path. The CSV goes through the usual
+     * decompress, parse and convert stages. The converters also encode and deflate the blocks, and
+     * one writer appends them in file order, so the same CSV always gives the same snapshot and row
+     * ids. The file is written under a temporary name, moved into place once complete and deleted
+     * if the conversion fails.
+     */
+    public static Path convert(String csvPath, Map<String, ColumnType> schema) throws IOException, InterruptedException {
+        Path snapshotPath = snapshotPath(csvPath);
+        Path sourcePath = Paths.get(csvPath);
+        List<String> columnNames = new ArrayList<>(schema.keySet());
+        ColumnType[] columnTypes = schema.values().toArray(new ColumnType[0]);
+
+        if (Files.exists(snapshotPath) && Files.getLastModifiedTime(snapshotPath).compareTo(Files.getLastModifiedTime(sourcePath)) > 0 &&
+                hasColumns(snapshotPath, columnNames, columnTypes)) {
+            return snapshotPath;
+        }
+
+        Path partialPath = Paths.get(snapshotPath + ".partial");
+        try {
+            write(csvPath, snapshotPath, partialPath, columnNames, columnTypes);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            Files.deleteIfExists(partialPath);
+            throw e;
+        }
+
+        Files.move(partialPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return snapshotPath;
+    }
+
+    /// Whether the snapshot's header has these columns, so one written for an older schema is converted again
+    private static boolean hasColumns(Path path, List<String> columnNames, ColumnType[] columnTypes) throws IOException {
+        try (DataInputStream header = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            List<String> headerNames = new ArrayList<>();
+            ColumnType[] headerTypes = readHeader(header, path, headerNames);
+            return headerNames.equals(columnNames) && Arrays.equals(headerTypes, columnTypes);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void write(String csvPath, Path snapshotPath, Path partialPath, List<String> columnNames, ColumnType[] columnTypes)
+            throws IOException, InterruptedException {
+
+        IngestPipeline.Config config = new IngestPipeline.Config().write(1).inOrder();
+        RowBatch.Pool pool = new RowBatch.Pool(columnTypes, config.getParseBatchRows(), config.getBatchesInFlight());
+
+        try (FileChannel channel = FileChannel.open(partialPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             BlockWriter writer = new BlockWriter(channel, columnNames, columnTypes);
+             IngestMetrics metrics = IngestMetrics.start(snapshotPath.getFileName().toString())) {
+
+            IngestPipeline<EncodedBlock> pipeline = new IngestPipeline<>(
+                    config,
+                    () -> new BlockEncoder(columnTypes, pool),
+                    () -> new IngestPipeline.Writer<EncodedBlock>() {
+                        @Override
+                        public void write(EncodedBlock block) throws IOException {
+                            writer.append(block);
+                            metrics.submitted(block.rows);
+                            metrics.acknowledged(block.rows);
+                        }
+
+                        @Override
+                        public void close() {
+                        }
+                    });
+
+            pipeline.run(csvPath, metrics);
+        }
+    }
+
+    /// One block's columns, each deflated unless that didn't help
+    private static final class EncodedBlock {
+        private final int rows;
+        private final byte[][] stored;
+        private final int[] rawLengths;
+
+        EncodedBlock(int rows, byte[][] stored, int[] rawLengths) {
+            this.rows = rows;
+            this.stored = stored;
+            this.rawLengths = rawLengths;
+        }
+    }
+
+    /// Converts rows as ingest does, then encodes and deflates them; the deflater is released on close
+    private static final class BlockEncoder implements IngestPipeline.Converter<EncodedBlock> {
+        private final RowConverter converter;
+        private final RowBatch.Pool pool;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+        BlockEncoder(ColumnType[] columnTypes, RowBatch.Pool pool) {
+            this.converter = new RowConverter(columnTypes, pool);
+            this.pool = pool;
+        }
+
+        @Override
+        public EncodedBlock convert(List<String[]> csvRows) {
+            return encode(converter.convert(csvRows));
+        }
+
+        /// Re-encodes a block of another snapshot
+        @Override
+        public EncodedBlock convert(ColumnarSnapshot snapshot, int block) throws IOException {
+            return encode(converter.convert(snapshot, block));
+        }
+
+        private EncodedBlock encode(RowBatch batch) {
+            try {
+                return ColumnarSnapshot.encode(batch, deflater);
+            } finally {
+                pool.release(batch);
+            }
+        }
+
+        @Override
+        public void close() {
+            converter.close();
+            deflater.end();
+        }
+    }
+
+    private static EncodedBlock encode(RowBatch batch, Deflater deflater) {
+        ColumnType[] columnTypes = batch.getColumnTypes();
+        byte[][] stored = new byte[columnTypes.length][];
+        int[] rawLengths = new int[columnTypes.length];
+
+        for (int column = 0; column < columnTypes.length; column++) {
+            byte[] raw = encodeColumn(batch, column);
+            rawLengths[column] = raw.length;
+            stored[column] = deflate(raw, deflater);
+        }
+
+        return new EncodedBlock(batch.size(), stored, rawLengths);
+    }
+
+    private static byte[] encodeColumn(RowBatch batch, int column) {
+        int rows = batch.size();
+        byte[] nulls = new byte[(rows + 7) / 8];
+        for (int row = 0; row < rows; row++) {
+            if (batch.isNull(row, column)) {
+                nulls[row >>> 3] |= 1 << (row & 7);
+            }
+        }
+
+        ColumnType columnType = batch.getColumnTypes()[column];
+        if (columnType != ColumnType.STRING) {
+            ByteBuffer buffer = ByteBuffer.allocate(nulls.length + rows * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(nulls);
+            for (int row = 0; row < rows; row++) {
+                boolean isNull = batch.isNull(row, column);
+                if (columnType == ColumnType.DOUBLE) {
+                    buffer.putDouble(isNull ? 0.0 : batch.getDouble(row, column));
+                } else {
+                    buffer.putLong(isNull ? 0L : batch.getLong(row, column));
+                }
+            }
+            return buffer.array();
+        }
+
+        Map<String, Integer> codes = new LinkedHashMap<>();
+        int[] rowCodes = new int[rows];
+        int dictionaryBytes = 0;
+        for (int row = 0; row < rows; row++) {
+            String value = batch.getString(row, column);
+            if (value == null) {
+                continue;
+            }
+
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = codes.size();
+                codes.put(value, code);
+                dictionaryBytes += Integer.BYTES + value.length() * 3;
+            }
+            rowCodes[row] = code;
+        }
+
+        int codeWidth = codeWidth(codes.size());
+        ByteBuffer buffer = ByteBuffer.allocate(nulls.length + Integer.BYTES + dictionaryBytes + rows * codeWidth).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(nulls);
+        buffer.putInt(codes.size());
+        for (String value : codes.keySet()) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        for (int row = 0; row < rows; row++) {
+            if (codeWidth == Byte.BYTES) {
+                buffer.put((byte) rowCodes[row]);
+            } else if (codeWidth == Short.BYTES) {
+                buffer.putShort((short) rowCodes[row]);
+            } else {
+                buffer.putInt(rowCodes[row]);
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static int codeWidth(int dictionarySize) {
+        return dictionarySize <= 1 << 8 ? Byte.BYTES : dictionarySize <= 1 << 16 ? Short.BYTES : Integer.BYTES;
+    }
+
+    private static byte[] deflate(byte[] raw, Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+
+        byte[] output = new byte[raw.length];
+        int length = 0;
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+
+        // Stored raw when deflating doesn't save anything; readers tell by the lengths matching
+        return deflater.finished() && length < raw.length ? Arrays.copyOf(output, length) : raw;
+    }
+
+    /// Appends blocks after the header and writes the directory and trailer on close
+    private static final class BlockWriter implements Closeable {
+        private final DataOutputStream output;
+        private final int columnCount;
+        private final List<Integer> blockRows = new ArrayList<>();
+        private final List<long[]> offsets = new ArrayList<>();
+        private final List<int[]> storedLengths = new ArrayList<>();
+        private final List<int[]> rawLengths = new ArrayList<>();
+        private long position = 0;
+
+        BlockWriter(FileChannel channel, List<String> columnNames, ColumnType[] columnTypes) throws IOException {
+            this.output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            this.columnCount = columnTypes.length;
+
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(FILE_MAGIC);
+            header.writeInt(FILE_VERSION);
+            header.writeInt(columnTypes.length);
+            for (int column = 0; column < columnTypes.length; column++) {
+                header.writeUTF(columnNames.get(column));
+                header.writeByte(columnTypes[column].ordinal());
+            }
+            header.flush();
+
+            output.write(headerBytes.toByteArray());
+            position = headerBytes.size();
+        }
+
+        void append(EncodedBlock block) throws IOException {
+            long[] blockOffsets = new long[columnCount];
+            int[] blockStoredLengths = new int[columnCount];
+
+            for (int column = 0; column < columnCount; column++) {
+                blockOffsets[column] = position;
+                blockStoredLengths[column] = block.stored[column].length;
+                output.write(block.stored[column]);
+                position += block.stored[column].length;
+            }
+
+            blockRows.add(block.rows);
+            offsets.add(blockOffsets);
+            storedLengths.add(blockStoredLengths);
+            rawLengths.add(block.rawLengths);
+        }
+
+        @Override
+        public void close() throws IOException {
+            long directoryOffset = position;
+
+            output.writeInt(blockRows.size());
+            for (int block = 0; block < blockRows.size(); block++) {
+                output.writeInt(blockRows.get(block));
+                for (int column = 0; column < columnCount; column++) {
+                    output.writeLong(offsets.get(block)[column]);
+                    output.writeInt(storedLengths.get(block)[column]);
+                    output.writeInt(rawLengths.get(block)[column]);
+                }
+            }
+
+            output.writeLong(directoryOffset);
+            output.writeInt(FILE_MAGIC);
+            output.close();
+        }
+    }
+
+    /**
+     * Reading
+     */
+
+    /// Reads the header and directory and maps the blocks; nothing else is read until a block is decoded
+    public static ColumnarSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < TRAILER_SIZE) {
+                throw new IOException("Snapshot " + path + " is truncated");
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(channel, trailer, size - TRAILER_SIZE);
+            long directoryOffset = trailer.getLong(0);
+            if (trailer.getInt(Long.BYTES) != FILE_MAGIC || directoryOffset < 0 || directoryOffset > size - TRAILER_SIZE) {
+                throw new IOException("Snapshot " + path + " is not a columnar snapshot or was not finished");
+            }
+
+            DataInputStream header = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+            List<String> columnNames = new ArrayList<>();
+            ColumnType[] columnTypes = readHeader(header, path, columnNames);
+            int columnCount = columnTypes.length;
+
+            DataInputStream directory = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(directoryOffset))));
+            int blockCount = directory.readInt();
+            int[] blockRows = new int[blockCount];
+            long[][] offsets = new long[blockCount][columnCount];
+            int[][] storedLengths = new int[blockCount][columnCount];
+            int[][] rawLengths = new int[blockCount][columnCount];
+            for (int block = 0; block < blockCount; block++) {
+                blockRows[block] = directory.readInt();
+                for (int column = 0; column < columnCount; column++) {
+                    offsets[block][column] = directory.readLong();
+                    storedLengths[block][column] = directory.readInt();
+                    rawLengths[block][column] = directory.readInt();
+                }
+            }
+
+            // Whole blocks per mapping, so no column ever straddles two
+            MappedByteBuffer[] blockSegments = new MappedByteBuffer[blockCount];
+            long[] blockSegmentStarts = new long[blockCount];
+            int first = 0;
+            while (first < blockCount) {
+                long start = blockStart(offsets, first, columnCount);
+                int last = first;
+                while (last + 1 < blockCount && blockEnd(offsets, storedLengths, last + 1, columnCount) - start <= MAX_SEGMENT_BYTES) {
+                    last++;
+                }
+
+                long length = blockEnd(offsets, storedLengths, last, columnCount) - start;
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot " + path + " has a block too large to map");
+                }
+
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                for (int block = first; block <= last; block++) {
+                    blockSegments[block] = segment;
+                    blockSegmentStarts[block] = start;
+                }
+                first = last + 1;
+            }
+
+            return new ColumnarSnapshot(path, columnNames, columnTypes, blockRows, offsets, storedLengths, rawLengths,
+                    blockSegments, blockSegmentStarts);
+        }
+    }
+
+    /// The magic, version, and column names and types at the start of the file; the names are added to columnNames
+    private static ColumnType[] readHeader(DataInputStream header, Path path, List<String> columnNames) throws IOException {
+        if (header.readInt() != FILE_MAGIC || header.readInt() != FILE_VERSION) {
+            throw new IOException("Snapshot " + path + " is not a columnar snapshot");
+        }
+
+        int columnCount = header.readInt();
+        ColumnType[] columnTypes = new ColumnType[columnCount];
+        for (int column = 0; column < columnCount; column++) {
+            columnNames.add(header.readUTF());
+            int type = header.readByte();
+            if (type < 0 || type >= ColumnType.values().length) {
+                throw new IOException("Snapshot " + path + " has an unknown column type " + type);
+            }
+            columnTypes[column] = ColumnType.values()[type];
+        }
+        return columnTypes;
+    }
+
+    private static long blockStart(long[][] offsets, int block, int columnCount) {
+        return columnCount == 0 ? 0 : offsets[block][0];
+    }
+
+    private static long blockEnd(long[][] offsets, int[][] storedLengths, int block, int columnCount) {
+        return columnCount == 0 ? 0 : offsets[block][columnCount - 1] + storedLengths[block][columnCount - 1];
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /// Decodes every column of the block into the batch, which needs the snapshot's column types and room for the rows
+    public void read(int block, RowBatch batch, BlockDecoder decoder) throws IOException {
+        if (batch.capacity() < blockRows[block]) {
+            throw new IllegalArgumentException("Block of " + blockRows[block] + " rows exceeds batch capacity " + batch.capacity());
+        }
+
+        for (int column = 0; column < columnTypes.length; column++) {
+            ByteBuffer raw = decoder.inflate(columnBuffer(block, column), rawLengths[block][column]);
+            decodeColumn(raw, blockRows[block], columnTypes[column], batch, column);
+        }
+        batch.setSize(blockRows[block]);
+    }
+
+    private ByteBuffer columnBuffer(int block, int column) {
+        ByteBuffer buffer = blockSegments[block].duplicate();
+        int position = (int) (offsets[block][column] - blockSegmentStarts[block]);
+        buffer.limit(position + storedLengths[block][column]);
+        buffer.position(position);
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void decodeColumn(ByteBuffer raw, int rows, ColumnType columnType, RowBatch batch, int column) {
+        byte[] nulls = new byte[(rows + 7) / 8];
+        raw.get(nulls);
+
+        if (columnType != ColumnType.STRING) {
+            for (int row = 0; row < rows; row++) {
+                batch.setNull(row, column, (nulls[row >>> 3] & (1 << (row & 7))) != 0);
+                if (columnType == ColumnType.DOUBLE) {
+                    batch.setDouble(row, column, raw.getDouble());
+                } else {
+                    batch.setLong(row, column, raw.getLong());
+                }
+            }
+            return;
+        }
+
+        String[] dictionary = new String[raw.getInt()];
+        for (int code = 0; code < dictionary.length; code++) {
+            byte[] bytes = new byte[raw.getInt()];
+            raw.get(bytes);
+            dictionary[code] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int codeWidth = codeWidth(dictionary.length);
+        for (int row = 0; row < rows; row++) {
+            int code = codeWidth == Byte.BYTES ? raw.get() & 0xFF : codeWidth == Short.BYTES ? raw.getShort() & 0xFFFF : raw.getInt();
+            boolean isNull = (nulls[row >>> 3] & (1 << (row & 7))) != 0;
+            batch.setNull(row, column, isNull);
+            batch.setString(row, column, isNull ? null : dictionary[code]);
+        }
+    }
+
+    /// An inflater and buffers for one thread's reads, since blocks are decoded by several converters at once
+    public static final class BlockDecoder implements Closeable {
+        private final Inflater inflater = new Inflater(true);
+        private byte[] stored = new byte[0];
+        private byte[] raw = new byte[0];
+
+        /// Frees the inflater's native memory; the decoder can't be used after
+        @Override
+        public void close() {
+            inflater.end();
+        }
+
+        ByteBuffer inflate(ByteBuffer column, int rawLength) throws IOException {
+            if (column.remaining() == rawLength) {
+                return column;
+            }
+
+            if (stored.length < column.remaining()) {
+                stored = new byte[column.remaining()];
+            }
+            if (raw.length < rawLength) {
+                raw = new byte[rawLength];
+            }
+
+            int storedLength = column.remaining();
+            column.get(stored, 0, storedLength);
+
+            inflater.reset();
+            inflater.setInput(stored, 0, storedLength);
+            try {
+                int length = 0;
+                while (length < rawLength && !inflater.finished()) {
+                    int count = inflater.inflate(raw, length, rawLength - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += count;
+                }
+
+                if (length != rawLength) {
+                    throw new IOException("Snapshot column inflated to " + length + " bytes, expected " + rawLength);
+                }
+            } catch (DataFormatException formatException) {
+                throw new IOException("Snapshot column is corrupt", formatException);
+            }
+
+            return ByteBuffer.wrap(raw, 0, rawLength).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
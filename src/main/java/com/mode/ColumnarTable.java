@@ -0,0 +1,932 @@
+package com.mode;
+
+import org.roaringbitmap.ImmutableBitmapDataProvider;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * An in-process column store: one primitive array per column, INTEGER as int[], DOUBLE as double[],
+ * TIMESTAMP as long[] epoch milliseconds and STRING as int[] codes into a per-column dictionary.
+ * Rows are appended from converted RowBatches and numbered from zero, row r carrying the id r + 1
+ * the other engines would give it. Operators run a column at a time over selection vectors, on row
+ * ranges split across the common fork/join pool.
+ */
+public class ColumnarTable {
+    private static final int MIN_RANGE_ROWS = 1 << 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    /// Group-bys use flat accumulator arrays up to this many groups, hash maps past it
+    private static final int MAX_DENSE_GROUPS = 1 << 20;
+    private static final long MAX_DENSE_RANGE = 1 << 16;
+    /// SQL orders nulls first
+    private static final Comparator<Object> VALUE_ORDER = Comparator.nullsFirst(ColumnarTable::compareValues);
+
+    private final Map<String, Integer> columnPositions = new LinkedHashMap<>();
+    private final ColumnType[] columnTypes;
+    private Column[] columns;
+    private volatile int rowCount = 0;
+    /// Keyset orders by SortColumn.describe, dropped whenever rows change
+    private final Map<String, PagingIndex> keysetIndexes = new ConcurrentHashMap<>();
+
+    public ColumnarTable(Map<String, ColumnType> schema) {
+        this.columnTypes = schema.values().toArray(new ColumnType[0]);
+        for (String columnName : schema.keySet()) {
+            columnPositions.put(columnName, columnPositions.size());
+        }
+        this.columns = newColumns(INITIAL_CAPACITY);
+    }
+
+    private Column[] newColumns(int capacity) {
+        Column[] columns = new Column[columnTypes.length];
+        for (int column = 0; column < columns.length; column++) {
+            columns[column] = new Column(columnTypes[column], capacity);
+        }
+        return columns;
+    }
+
+    public int size() {
+        return rowCount;
+    }
+
+    public ColumnType[] getColumnTypes() {
+        return columnTypes;
+    }
+
+    public ColumnType getColumnType(String columnName) {
+        return column(columnName).type;
+    }
+
+    public synchronized void clear() {
+        columns = newColumns(INITIAL_CAPACITY);
+        rowCount = 0;
+        keysetIndexes.clear();
+    }
+
+    /**
+     * Appends a batch converted with this table's column types and returns the row number of its first row.
+     */
+    public synchronized int append(RowBatch batch) {
+        int first = rowCount;
+        int size = batch.size();
+
+        if ((long) first + size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Columnar table is full at " + first + " rows");
+        }
+
+        // Checked up front so a rejected batch leaves no column half written
+        for (int column = 0; column < columns.length; column++) {
+            columns[column].checkFits(batch, column, size);
+        }
+        for (int column = 0; column < columns.length; column++) {
+            columns[column].append(batch, column, first, size);
+        }
+
+        // Publishes the appended values to readers
+        rowCount = first + size;
+        keysetIndexes.clear();
+        return first;
+    }
+
+    /// The value as its natural Java type: Long, Double, String, or a Long of epoch milliseconds
+    public Object getValue(int row, int column) {
+        return columns[column].getValue(row);
+    }
+
+    /// Positions of the named columns for copyRow, -1 standing for the id; every column when there are none
+    public int[] columnPositions(List<String> columnNames) {
+        if (columnNames.isEmpty()) {
+            int[] positions = new int[columnTypes.length];
+            for (int column = 0; column < positions.length; column++) {
+                positions[column] = column;
+            }
+            return positions;
+        }
+
+        int[] positions = new int[columnNames.size()];
+        for (int i = 0; i < positions.length; i++) {
+            String columnName = columnNames.get(i);
+            if (columnName.equalsIgnoreCase("id")) {
+                positions[i] = -1;
+            } else if (columnPositions.containsKey(columnName)) {
+                positions[i] = columnPositions.get(columnName);
+            } else {
+                throw new IllegalArgumentException("No column " + columnName);
+            }
+        }
+        return positions;
+    }
+
+    /// The ids are INTEGER
+    public ColumnType[] getColumnTypes(int[] positions) {
+        ColumnType[] types = new ColumnType[positions.length];
+        for (int column = 0; column < types.length; column++) {
+            types[column] = positions[column] < 0 ? ColumnType.INTEGER : columnTypes[positions[column]];
+        }
+        return types;
+    }
+
+    /// Copies the columns at the positions of the row into one row of the batch without boxing
+    void copyRow(int row, int[] positions, RowBatch batch, int batchRow) {
+        Column[] columns = this.columns;
+        for (int column = 0; column < positions.length; column++) {
+            if (positions[column] < 0) {
+                batch.setNull(batchRow, column, false);
+                batch.setLong(batchRow, column, row + 1L);
+            } else {
+                columns[positions[column]].copyTo(row, batch, batchRow, column);
+            }
+        }
+    }
+
+    private Column column(String columnName) {
+        Integer position = columnPositions.get(columnName);
+        if (position == null) {
+            throw new IllegalArgumentException("No column " + columnName);
+        }
+        return columns[position];
+    }
+
+    /**
+     * Operators
+     */
+
+    /**
+     * Ids of the rows matching every predicate, each one column IN (values). A null value matches SQL
+     * nulls and timestamps are given in microseconds, as FilterIndex keys them.
+     */
+    public RoaringBitmap filter(Map<String, Object[]> predicates) {
+        List<Column> predicateColumns = new ArrayList<>();
+        for (String columnName : predicates.keySet()) {
+            predicateColumns.add(column(columnName));
+        }
+        List<Object[]> predicateValues = new ArrayList<>(predicates.values());
+
+        return parallelRows(rowCount, (from, to) -> {
+            int[] selection = new int[to - from];
+            for (int i = 0; i < selection.length; i++) {
+                selection[i] = from + i;
+            }
+
+            int selected = selection.length;
+            for (int i = 0; i < predicateColumns.size() && selected > 0; i++) {
+                selected = predicateColumns.get(i).select(selection, selected, predicateValues.get(i));
+            }
+
+            for (int i = 0; i < selected; i++) {
+                selection[i] = PagingIndex.toBitmapId(selection[i] + 1L);
+            }
+
+            RoaringBitmap ids = new RoaringBitmap();
+            ids.addN(selection, 0, selected);
+            return ids;
+        }, (left, right) -> {
+            left.or(right);
+            return left;
+        });
+    }
+
+    public static class Group {
+        private final List<Object> values;
+        private final Long count;
+        private final Double sum;
+
+        Group(List<Object> values, Long count, Double sum) {
+            this.values = values;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public List<Object> getValues() {
+            return values;
+        }
+
+        public Long getCount() {
+            return count;
+        }
+
+        /// Null when the group-by had no sum column
+        public Double getSum() {
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            return values + "=" + count + (sum == null ? "" : "/" + sum);
+        }
+    }
+
+    /**
+     * SELECT dimensions, COUNT(1), SUM(sumColumn) GROUP BY dimensions ORDER BY dimensions over the rows
+     * in selection, or every row when it is null. sumColumn may be null; SUM skips nulls as in SQL.
+     */
+    public List<Group> groupBy(List<String> dimensions, String sumColumn, RoaringBitmap selection) {
+        if (dimensions.isEmpty()) {
+            throw new IllegalArgumentException("Group-by needs at least one dimension");
+        }
+
+        Column[] keyColumns = new Column[dimensions.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = column(dimensions.get(i));
+        }
+
+        Column sum = sumColumn == null ? null : column(sumColumn);
+        if (sum != null && sum.type == ColumnType.STRING) {
+            throw new IllegalArgumentException("Cannot sum STRING column " + sumColumn);
+        }
+
+        // Key ranges and dictionaries are read after the row count, so they cover every row below it
+        int rows = rowCount;
+        DenseKey[] denseKeys = new DenseKey[keyColumns.length];
+        long groups = 1;
+        for (int i = 0; i < keyColumns.length && groups <= MAX_DENSE_GROUPS; i++) {
+            denseKeys[i] = keyColumns[i].denseKey();
+            groups = denseKeys[i] == null ? Long.MAX_VALUE : groups * denseKeys[i].radix;
+        }
+
+        List<Group> result = groups <= MAX_DENSE_GROUPS
+                ? denseGroupBy(rows, keyColumns, denseKeys, (int) groups, sum, selection)
+                : hashGroupBy(rows, keyColumns, sum, selection);
+
+        result.sort((left, right) -> {
+            for (int i = 0; i < left.values.size(); i++) {
+                int compare = VALUE_ORDER.compare(left.values.get(i), right.values.get(i));
+                if (compare != 0) {
+                    return compare;
+                }
+            }
+            return 0;
+        });
+        return result;
+    }
+
+    /// Every key is a small-range INTEGER or a dictionary code, so groups index flat arrays by mixed radix
+    private List<Group> denseGroupBy(int rowCount, Column[] keyColumns, DenseKey[] denseKeys, int groups, Column sum, RoaringBitmap selection) {
+        Accumulators totals = parallelRows(rowCount, (from, to) -> {
+            int[] rows = selectedRows(selection, from, to);
+            int[] slots = new int[rows.length];
+
+            for (int i = 0; i < keyColumns.length; i++) {
+                keyColumns[i].accumulateSlots(rows, slots, denseKeys[i]);
+            }
+
+            Accumulators accumulators = new Accumulators(groups, sum != null);
+            for (int i = 0; i < rows.length; i++) {
+                accumulators.counts[slots[i]]++;
+            }
+            if (sum != null) {
+                sum.accumulateSums(rows, slots, accumulators.sums);
+            }
+            return accumulators;
+        }, Accumulators::add);
+
+        List<Group> result = new ArrayList<>();
+        for (int slot = 0; slot < groups; slot++) {
+            if (totals.counts[slot] == 0) {
+                continue;
+            }
+
+            Object[] values = new Object[keyColumns.length];
+            int remainder = slot;
+            for (int i = keyColumns.length - 1; i >= 0; i--) {
+                values[i] = keyColumns[i].slotValue(remainder % denseKeys[i].radix, denseKeys[i]);
+                remainder /= denseKeys[i].radix;
+            }
+
+            result.add(new Group(Arrays.asList(values), totals.counts[slot], sum == null ? null : totals.sums[slot]));
+        }
+        return result;
+    }
+
+    private List<Group> hashGroupBy(int rowCount, Column[] keyColumns, Column sum, RoaringBitmap selection) {
+        Map<List<Object>, Accumulators> totals = parallelRows(rowCount, (from, to) -> {
+            Map<List<Object>, Accumulators> groups = new HashMap<>();
+
+            for (int row : selectedRows(selection, from, to)) {
+                Object[] values = new Object[keyColumns.length];
+                for (int i = 0; i < keyColumns.length; i++) {
+                    values[i] = keyColumns[i].getValue(row);
+                }
+
+                Accumulators accumulators = groups.computeIfAbsent(Arrays.asList(values), absentKey -> new Accumulators(1, sum != null));
+                accumulators.counts[0]++;
+                if (sum != null && !sum.isNull(row)) {
+                    accumulators.sums[0] += sum.getNumber(row);
+                }
+            }
+            return groups;
+        }, (left, right) -> {
+            right.forEach((values, accumulators) -> left.merge(values, accumulators, Accumulators::add));
+            return left;
+        });
+
+        List<Group> result = new ArrayList<>();
+        totals.forEach((values, accumulators) ->
+                result.add(new Group(values, accumulators.counts[0], sum == null ? null : accumulators.sums[0])));
+        return result;
+    }
+
+    private static class Accumulators {
+        private final long[] counts;
+        private final double[] sums;
+
+        Accumulators(int groups, boolean summing) {
+            this.counts = new long[groups];
+            this.sums = summing ? new double[groups] : null;
+        }
+
+        Accumulators add(Accumulators other) {
+            for (int slot = 0; slot < counts.length; slot++) {
+                counts[slot] += other.counts[slot];
+            }
+            if (sums != null) {
+                for (int slot = 0; slot < sums.length; slot++) {
+                    sums[slot] += other.sums[slot];
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Row numbers [offset, offset + limit) in insertion order.
+     */
+    public int[] page(long limit, long offset) {
+        int rowCount = this.rowCount;
+        int from = (int) Math.min(offset, rowCount);
+
+        int[] rows = new int[(int) Math.min(limit, rowCount - from)];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = from + i;
+        }
+        return rows;
+    }
+
+    /**
+     * Rows of the keyset page after the token, from the top when it is null, in KeysetQuery's order:
+     * sort key, then id in the last column's direction. Pages are read off a PagingIndex of the order,
+     * built on first use, by seeking the token's bucket and its id's rank within it.
+     */
+    public int[] pageAfter(List<SortColumn> sortColumns, PageToken after, int limit) {
+        PagingIndex index = keysetIndexes.computeIfAbsent(SortColumn.describe(sortColumns), order -> pagingIndex(sortColumns));
+        List<SortKey> keys = index.keys();
+        boolean descendingIds = KeysetQuery.idDirection(sortColumns) == SortDirection.DESC;
+
+        int bucket = 0;
+        Long afterId = null;
+        if (after != null) {
+            bucket = Collections.binarySearch(keys, after.encode(sortColumns));
+            if (bucket >= 0) {
+                afterId = after.getId();
+            } else {
+                bucket = -bucket - 1;
+            }
+        }
+
+        int[] rows = new int[limit];
+        int filled = 0;
+
+        for (; bucket < keys.size() && filled < limit; bucket++, afterId = null) {
+            ImmutableBitmapDataProvider ids = index.get(keys.get(bucket));
+
+            if (descendingIds) {
+                // Ranks count from the smallest id, so walk them down from below the token
+                long rank = afterId == null ? ids.getLongCardinality() : ids.rankLong(PagingIndex.toBitmapId(afterId - 1));
+                for (; rank > 0 && filled < limit; rank--) {
+                    rows[filled++] = (int) PagingIndex.fromBitmapId(ids.select((int) rank - 1)) - 1;
+                }
+            } else {
+                PeekableIntIterator iterator = ids.getIntIterator();
+                if (afterId != null) {
+                    iterator.advanceIfNeeded(PagingIndex.toBitmapId(afterId + 1));
+                }
+                while (iterator.hasNext() && filled < limit) {
+                    rows[filled++] = (int) PagingIndex.fromBitmapId(iterator.next()) - 1;
+                }
+            }
+        }
+
+        return Arrays.copyOf(rows, filled);
+    }
+
+    /// The token continuing after the row, timestamps in microseconds
+    public PageToken tokenAt(List<SortColumn> sortColumns, int row) {
+        Object[] values = new Object[sortColumns.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = column(sortColumns.get(i).getName()).getIndexValue(row);
+        }
+        return new PageToken(values, row + 1L);
+    }
+
+    /**
+     * Indexing
+     */
+
+    /// Timestamps are keyed in microseconds to match keys built at ingest and by the other engines
+    public PagingIndex pagingIndex(List<SortColumn> sortColumns) {
+        Column[] keyColumns = new Column[sortColumns.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = column(sortColumns.get(i).getName());
+        }
+
+        Map<SortKey, RoaringBitmap> merged = parallelRows(rowCount, (from, to) -> {
+            Map<SortKey, RoaringBitmap> index = new HashMap<>();
+
+            for (int row = from; row < to; row++) {
+                long[] values = new long[keyColumns.length];
+                for (int i = 0; i < keyColumns.length; i++) {
+                    values[i] = sortColumns.get(i).encode(keyColumns[i].getIndexValue(row));
+                }
+
+                index.computeIfAbsent(new SortKey(values), absentKey -> new RoaringBitmap())
+                        .add(PagingIndex.toBitmapId(row + 1L));
+            }
+            return index;
+        }, ColumnarTable::mergeBitmaps);
+
+        TreeMap<SortKey, RoaringBitmap> index = new TreeMap<>(merged);
+        index.values().forEach(RoaringBitmap::runOptimize);
+        return new PagingIndex(sortColumns, index);
+    }
+
+    public FilterIndex filterIndex(String columnName) {
+        Column column = column(columnName);
+
+        Map<Object, RoaringBitmap> merged = parallelRows(rowCount, (from, to) -> {
+            Map<Object, RoaringBitmap> index = new HashMap<>();
+
+            for (int row = from; row < to; row++) {
+                index.computeIfAbsent(column.getIndexValue(row), absentKey -> new RoaringBitmap())
+                        .add(PagingIndex.toBitmapId(row + 1L));
+            }
+            return index;
+        }, ColumnarTable::mergeBitmaps);
+
+        merged.values().forEach(RoaringBitmap::runOptimize);
+        return new FilterIndex(columnName, column.type, merged);
+    }
+
+    /// Rows are read by position, so a bucket loads by walking its own ids and not a range scan
+    public HistogramIndex histogramIndex(SortColumn sortColumn, Integer bucketCount) {
+        Column column = column(sortColumn.getName());
+        int rows = rowCount;
+        int stride = (int) HistogramIndex.sampleStride(rows);
+
+        long[] sampleKeys = new long[(rows + stride - 1) / stride];
+        for (int i = 0; i < sampleKeys.length; i++) {
+            sampleKeys[i] = sortColumn.encode(column.getIndexValue(i * stride));
+        }
+        long[] splits = HistogramIndex.splits(sortColumn, sampleKeys, bucketCount);
+
+        Map<Integer, RoaringBitmap> buckets = parallelRows(rows, (from, to) -> {
+            Map<Integer, RoaringBitmap> index = new HashMap<>();
+
+            for (int row = from; row < to; row++) {
+                index.computeIfAbsent(HistogramIndex.bucket(splits, sortColumn.encode(column.getIndexValue(row))), absentKey -> new RoaringBitmap())
+                        .add(PagingIndex.toBitmapId(row + 1L));
+            }
+            return index;
+        }, ColumnarTable::mergeBitmaps);
+
+        return new HistogramIndex(sortColumn, splits, buckets, (low, high, ids, consumer) -> ids.forEach((int bitmapId) -> {
+            long id = PagingIndex.fromBitmapId(bitmapId);
+            consumer.accept(id, sortColumn.encode(column.getIndexValue((int) (id - 1))));
+        }));
+    }
+
+    private static <K> Map<K, RoaringBitmap> mergeBitmaps(Map<K, RoaringBitmap> left, Map<K, RoaringBitmap> right) {
+        right.forEach((key, bitmap) -> left.merge(key, bitmap, (leftBitmap, rightBitmap) -> {
+            leftBitmap.or(rightBitmap);
+            return leftBitmap;
+        }));
+        return left;
+    }
+
+    /**
+     * Parallelism
+     */
+
+    private interface RangeFunction<R> {
+        R apply(int from, int to);
+    }
+
+    /**
+     * Runs the leaf over ranges of the first rows, at least MIN_RANGE_ROWS each and about four per
+     * core, and folds the results in row order. Callers read rowCount once and pass it in, before
+     * reading anything else the query depends on.
+     */
+    private static <R> R parallelRows(int rows, RangeFunction<R> leaf, BinaryOperator<R> combine) {
+        int rangeRows = Math.max(MIN_RANGE_ROWS, rows / (ForkJoinPool.getCommonPoolParallelism() * 4) + 1);
+        return ForkJoinPool.commonPool().invoke(new RangeTask<>(leaf, combine, 0, rows, rangeRows));
+    }
+
+    private static class RangeTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeFunction<R> leaf;
+        private final BinaryOperator<R> combine;
+        private final int from;
+        private final int to;
+        private final int rangeRows;
+
+        RangeTask(RangeFunction<R> leaf, BinaryOperator<R> combine, int from, int to, int rangeRows) {
+            this.leaf = leaf;
+            this.combine = combine;
+            this.from = from;
+            this.to = to;
+            this.rangeRows = rangeRows;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from <= rangeRows) {
+                return leaf.apply(from, to);
+            }
+
+            int middle = from + (to - from) / 2;
+            RangeTask<R> left = new RangeTask<>(leaf, combine, from, middle, rangeRows);
+            left.fork();
+            R right = new RangeTask<>(leaf, combine, middle, to, rangeRows).compute();
+            return combine.apply(left.join(), right);
+        }
+    }
+
+    /// The rows of [from, to) in the selection, every one of them when it is null
+    private static int[] selectedRows(RoaringBitmap selection, int from, int to) {
+        if (selection == null) {
+            int[] rows = new int[to - from];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = from + i;
+            }
+            return rows;
+        }
+
+        int first = PagingIndex.toBitmapId(from + 1L);
+        int[] rows = new int[(int) selection.rangeCardinality(Integer.toUnsignedLong(first), to + 1L)];
+        PeekableIntIterator ids = selection.getIntIterator();
+        ids.advanceIfNeeded(first);
+
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = (int) PagingIndex.fromBitmapId(ids.next()) - 1;
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object left, Object right) {
+        return ((Comparable<Object>) left).compareTo(right);
+    }
+
+    /// Slots per value of one key column, slot 0 holding nulls and a value sitting at value - base
+    private static class DenseKey {
+        private final long base;
+        private final int radix;
+
+        DenseKey(long base, int radix) {
+            this.base = base;
+            this.radix = radix;
+        }
+    }
+
+    /**
+     * Storage
+     */
+
+    /// Only the array for the column's type is allocated; STRING nulls are code -1, other nulls sit in the bitmaps
+    private static class Column {
+        private static final int NULL_CHUNK_BITS = 16;
+
+        private final ColumnType type;
+        private final StringDictionary dictionary;
+        /// Null rows in bitmaps of 2^NULL_CHUNK_BITS rows each, copied on write so readers need no lock
+        private volatile RoaringBitmap[] nulls = new RoaringBitmap[0];
+        private int[] ints;
+        private double[] doubles;
+        private long[] longs;
+        /// Written once per batch, before the row count that publishes it
+        private volatile long min = Long.MAX_VALUE;
+        private volatile long max = Long.MIN_VALUE;
+
+        Column(ColumnType type, int capacity) {
+            this.type = type;
+            this.dictionary = type == ColumnType.STRING ? new StringDictionary() : null;
+
+            switch (type) {
+                case INTEGER:
+                case STRING:
+                    ints = new int[capacity];
+                    break;
+                case DOUBLE:
+                    doubles = new double[capacity];
+                    break;
+                case TIMESTAMP:
+                    longs = new long[capacity];
+                    break;
+            }
+        }
+
+        private int capacity() {
+            return ints != null ? ints.length : doubles != null ? doubles.length : longs.length;
+        }
+
+        private void ensureCapacity(int rows) {
+            if (rows <= capacity()) {
+                return;
+            }
+
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) capacity() * 2, rows));
+            if (ints != null) {
+                ints = Arrays.copyOf(ints, capacity);
+            } else if (doubles != null) {
+                doubles = Arrays.copyOf(doubles, capacity);
+            } else {
+                longs = Arrays.copyOf(longs, capacity);
+            }
+        }
+
+        /// INTEGER values are stored as ints, so one outside the int range is rejected rather than truncated
+        void checkFits(RowBatch batch, int column, int size) {
+            if (type != ColumnType.INTEGER) {
+                return;
+            }
+
+            for (int row = 0; row < size; row++) {
+                long value = batch.getLong(row, column);
+                if (value != (int) value && !batch.isNull(row, column)) {
+                    throw new IllegalArgumentException("INTEGER value " + value + " does not fit a columnar int");
+                }
+            }
+        }
+
+        void append(RowBatch batch, int column, int first, int size) {
+            ensureCapacity(first + size);
+            int[] nullRows = new int[type == ColumnType.STRING ? 0 : size];
+            int nullCount = 0;
+
+            switch (type) {
+                case INTEGER: {
+                    long batchMin = min;
+                    long batchMax = max;
+                    for (int row = 0; row < size; row++) {
+                        if (batch.isNull(row, column)) {
+                            nullRows[nullCount++] = first + row;
+                            ints[first + row] = 0;
+                            continue;
+                        }
+
+                        int value = (int) batch.getLong(row, column);
+                        ints[first + row] = value;
+                        batchMin = Math.min(batchMin, value);
+                        batchMax = Math.max(batchMax, value);
+                    }
+                    min = batchMin;
+                    max = batchMax;
+                    break;
+                }
+                case DOUBLE:
+                    for (int row = 0; row < size; row++) {
+                        boolean isNull = batch.isNull(row, column);
+                        if (isNull) {
+                            nullRows[nullCount++] = first + row;
+                        }
+                        doubles[first + row] = isNull ? 0.0 : batch.getDouble(row, column);
+                    }
+                    break;
+                case TIMESTAMP:
+                    for (int row = 0; row < size; row++) {
+                        boolean isNull = batch.isNull(row, column);
+                        if (isNull) {
+                            nullRows[nullCount++] = first + row;
+                        }
+                        longs[first + row] = isNull ? 0L : batch.getLong(row, column);
+                    }
+                    break;
+                case STRING:
+                    for (int row = 0; row < size; row++) {
+                        ints[first + row] = batch.isNull(row, column) ? -1 : dictionary.encode(batch.getString(row, column));
+                    }
+                    break;
+            }
+
+            if (nullCount > 0) {
+                publishNulls(nullRows, nullCount);
+            }
+        }
+
+        /// Replaces the chunks the ascending rows fall in with copies that include them
+        private void publishNulls(int[] rows, int count) {
+            int lastChunk = rows[count - 1] >>> NULL_CHUNK_BITS;
+            RoaringBitmap[] chunks = Arrays.copyOf(nulls, Math.max(nulls.length, lastChunk + 1));
+
+            int chunk = -1;
+            RoaringBitmap updated = null;
+            for (int i = 0; i < count; i++) {
+                if (rows[i] >>> NULL_CHUNK_BITS != chunk) {
+                    chunk = rows[i] >>> NULL_CHUNK_BITS;
+                    updated = chunks[chunk] == null ? new RoaringBitmap() : chunks[chunk].clone();
+                    chunks[chunk] = updated;
+                }
+                updated.add(rows[i]);
+            }
+
+            nulls = chunks;
+        }
+
+        private static boolean isNull(RoaringBitmap[] nulls, int row) {
+            int chunk = row >>> NULL_CHUNK_BITS;
+            return chunk < nulls.length && nulls[chunk] != null && nulls[chunk].contains(row);
+        }
+
+        boolean isNull(int row) {
+            return type == ColumnType.STRING ? ints[row] < 0 : isNull(nulls, row);
+        }
+
+        Object getValue(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+
+            switch (type) {
+                case INTEGER:
+                    return (long) ints[row];
+                case DOUBLE:
+                    return doubles[row];
+                case TIMESTAMP:
+                    return longs[row];
+                default:
+                    return dictionary.decode(ints[row]);
+            }
+        }
+
+        void copyTo(int row, RowBatch batch, int batchRow, int column) {
+            boolean isNull = isNull(row);
+            batch.setNull(batchRow, column, isNull);
+
+            switch (type) {
+                case INTEGER:
+                    batch.setLong(batchRow, column, ints[row]);
+                    break;
+                case DOUBLE:
+                    batch.setDouble(batchRow, column, doubles[row]);
+                    break;
+                case TIMESTAMP:
+                    batch.setLong(batchRow, column, longs[row]);
+                    break;
+                default:
+                    batch.setString(batchRow, column, isNull ? null : dictionary.decode(ints[row]));
+                    break;
+            }
+        }
+
+        /// The value as FilterIndex and SortColumn take it, timestamps in microseconds
+        Object getIndexValue(int row) {
+            Object value = getValue(row);
+            return type == ColumnType.TIMESTAMP && value != null ? (Long) value * 1000L : value;
+        }
+
+        /// Keeps the selected rows whose value is one of the values, compacting them to the front
+        int select(int[] selection, int selected, Object[] values) {
+            boolean acceptNull = false;
+            List<Object> wanted = new ArrayList<>();
+            for (Object value : values) {
+                if (value == null) {
+                    acceptNull = true;
+                } else {
+                    wanted.add(value);
+                }
+            }
+
+            int kept = 0;
+            switch (type) {
+                case STRING: {
+                    // Codes encoded after this are past the caller's rows, or unknown to the values
+                    boolean[] accept = new boolean[dictionary.size()];
+                    for (Object value : wanted) {
+                        int code = dictionary.find(value.toString());
+                        if (code >= 0) {
+                            accept[code] = true;
+                        }
+                    }
+
+                    for (int i = 0; i < selected; i++) {
+                        int code = ints[selection[i]];
+                        if (code < 0 ? acceptNull : code < accept.length && accept[code]) {
+                            selection[kept++] = selection[i];
+                        }
+                    }
+                    break;
+                }
+                case DOUBLE: {
+                    double[] accept = new double[wanted.size()];
+                    for (int i = 0; i < accept.length; i++) {
+                        accept[i] = ((Number) wanted.get(i)).doubleValue();
+                    }
+
+                    for (int i = 0; i < selected; i++) {
+                        int row = selection[i];
+                        if (isNull(row) ? acceptNull : contains(accept, doubles[row])) {
+                            selection[kept++] = selection[i];
+                        }
+                    }
+                    break;
+                }
+                default: {
+                    long[] accept = new long[wanted.size()];
+                    for (int i = 0; i < accept.length; i++) {
+                        accept[i] = ((Number) wanted.get(i)).longValue();
+                    }
+
+                    long[] values64 = longs;
+                    for (int i = 0; i < selected; i++) {
+                        int row = selection[i];
+                        if (isNull(row) ? acceptNull : contains(accept, values64 == null ? ints[row] : values64[row] * 1000L)) {
+                            selection[kept++] = selection[i];
+                        }
+                    }
+                    break;
+                }
+            }
+            return kept;
+        }
+
+        private static boolean contains(long[] accept, long value) {
+            for (long candidate : accept) {
+                if (candidate == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean contains(double[] accept, double value) {
+            for (double candidate : accept) {
+                if (candidate == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /// The column's dense slots as of now, or null when it can't be grouped densely
+        DenseKey denseKey() {
+            switch (type) {
+                case STRING:
+                    return new DenseKey(-1, dictionary.size() + 1);
+                case INTEGER:
+                    long min = this.min;
+                    long max = this.max;
+                    if (min > max) {
+                        return new DenseKey(0, 1);
+                    }
+                    return max - min + 1 <= MAX_DENSE_RANGE ? new DenseKey(min - 1, (int) (max - min + 2)) : null;
+                default:
+                    return null;
+            }
+        }
+
+        void accumulateSlots(int[] rows, int[] slots, DenseKey key) {
+            RoaringBitmap[] nulls = this.nulls;
+            boolean hasNulls = type != ColumnType.STRING && nulls.length > 0;
+
+            for (int i = 0; i < rows.length; i++) {
+                int row = rows[i];
+                int slot = hasNulls && isNull(nulls, row) ? 0 : (int) (ints[row] - key.base);
+                slots[i] = slots[i] * key.radix + slot;
+            }
+        }
+
+        Object slotValue(int slot, DenseKey key) {
+            if (slot == 0) {
+                return null;
+            }
+            return type == ColumnType.STRING ? dictionary.decode(slot - 1) : (Object) (key.base + slot);
+        }
+
+        double getNumber(int row) {
+            switch (type) {
+                case INTEGER:
+                    return ints[row];
+                case DOUBLE:
+                    return doubles[row];
+                default:
+                    return longs[row];
+            }
+        }
+
+        void accumulateSums(int[] rows, int[] slots, double[] sums) {
+            RoaringBitmap[] nulls = this.nulls;
+            boolean hasNulls = nulls.length > 0;
+
+            for (int i = 0; i < rows.length; i++) {
+                int row = rows[i];
+                if (!hasNulls || !isNull(nulls, row)) {
+                    sums[slots[i]] += getNumber(row);
+                }
+            }
+        }
+    }
+}
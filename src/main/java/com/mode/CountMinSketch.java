@@ -0,0 +1,153 @@
+package com.mode;
+
+import java.util.*;
+
+/**
+ * Frequency estimates for the values of a column in depth rows of width counters. An estimate never
+ * undercounts, and with probability 1 - delta it overcounts by at most epsilon times the total,
+ * for width = e / epsilon and depth = ln(1 / delta). The sketch also keeps the candidates with the
+ * highest estimates seen, so the heavy hitters can be listed and not just looked up. Sketches of
+ * the same shape merge by adding their counters and re-estimating both sides' candidates.
+ */
+public class CountMinSketch {
+    public static final Double DEFAULT_EPSILON = 0.001;
+    public static final Double DEFAULT_DELTA = 0.01;
+    public static final Integer DEFAULT_CANDIDATES = 64;
+
+    private final double epsilon;
+    private final double delta;
+    private final int width;
+    private final int depth;
+    private final long[] counters;
+    private long total = 0;
+
+    private final int candidateCount;
+    private final Map<Object, Long> candidates = new HashMap<>();
+    /// The lowest candidate estimate once the candidates are full, which a new value has to beat
+    private long floor = 0;
+
+    public CountMinSketch() {
+        this(DEFAULT_EPSILON, DEFAULT_DELTA, DEFAULT_CANDIDATES);
+    }
+
+    public CountMinSketch(Double epsilon, Double delta, Integer candidateCount) {
+        this.epsilon = epsilon;
+        this.delta = delta;
+        this.width = (int) Math.ceil(Math.E / epsilon);
+        this.depth = (int) Math.ceil(Math.log(1.0 / delta));
+        this.counters = new long[width * depth];
+        this.candidateCount = candidateCount;
+    }
+
+    /// The hash must be well mixed in all 64 bits, see TableSketches.hash
+    public void add(Object value, long hash) {
+        total++;
+
+        // Row hashes are derived from the two halves of the one hash
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int counter = row * width + ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+            estimate = Math.min(estimate, ++counters[counter]);
+        }
+
+        offer(value, estimate);
+    }
+
+    public long estimate(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[row * width + ((h1 + row * h2) & Integer.MAX_VALUE) % width]);
+        }
+        return estimate;
+    }
+
+    private void offer(Object value, long estimate) {
+        if (candidates.containsKey(value) || candidates.size() < candidateCount) {
+            candidates.put(value, estimate);
+            return;
+        }
+        if (estimate <= floor) {
+            return;
+        }
+
+        candidates.put(value, estimate);
+        evictLowest();
+    }
+
+    private void evictLowest() {
+        while (candidates.size() > candidateCount) {
+            Object lowest = null;
+            for (Map.Entry<Object, Long> candidate : candidates.entrySet()) {
+                if (lowest == null || candidate.getValue() < candidates.get(lowest)) {
+                    lowest = candidate.getKey();
+                }
+            }
+            candidates.remove(lowest);
+        }
+
+        floor = Long.MAX_VALUE;
+        for (Long estimate : candidates.values()) {
+            floor = Math.min(floor, estimate);
+        }
+    }
+
+    public void merge(CountMinSketch other) {
+        if (other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Can't merge a " + other.depth + "x" + other.width + " sketch into " + depth + "x" + width);
+        }
+
+        for (int counter = 0; counter < counters.length; counter++) {
+            counters[counter] += other.counters[counter];
+        }
+        total += other.total;
+
+        Set<Object> values = new HashSet<>(candidates.keySet());
+        values.addAll(other.candidates.keySet());
+        candidates.clear();
+        for (Object value : values) {
+            candidates.put(value, estimate(TableSketches.hash(value)));
+        }
+        evictLowest();
+    }
+
+    /// The candidates estimated at fraction of the total or more and their estimates, most frequent first
+    public Map<Object, Long> heavyHitters(double fraction) {
+        List<Map.Entry<Object, Long>> heavyHitters = new ArrayList<>();
+        for (Object value : candidates.keySet()) {
+            // Estimates kept for the candidates miss later collisions, so look them up again
+            long estimate = estimate(TableSketches.hash(value));
+            if (estimate >= fraction * total) {
+                heavyHitters.add(new AbstractMap.SimpleImmutableEntry<>(value, estimate));
+            }
+        }
+
+        heavyHitters.sort((left, right) -> Long.compare(right.getValue(), left.getValue()));
+
+        Map<Object, Long> ordered = new LinkedHashMap<>();
+        for (Map.Entry<Object, Long> heavyHitter : heavyHitters) {
+            ordered.put(heavyHitter.getKey(), heavyHitter.getValue());
+        }
+        return ordered;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /// How far any estimate may overcount, with probability getConfidence()
+    public long getErrorBound() {
+        return (long) Math.ceil(epsilon * total);
+    }
+
+    public double getConfidence() {
+        return 1.0 - delta;
+    }
+
+    public int getSizeInBytes() {
+        return 8 * counters.length;
+    }
+}
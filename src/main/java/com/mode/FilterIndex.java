@@ -0,0 +1,96 @@
+package com.mode;
+
+import org.roaringbitmap.RoaringBitmap;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+
+import java.util.*;
+
+/**
+ * Equality bitmap index over a low-cardinality column: one bitmap of row ids per distinct value.
+ * Values are Long for INTEGER and TIMESTAMP columns, Double for DOUBLE and String for STRING, with
+ * SQL nulls under the null key.
+ */
+public class FilterIndex {
+    private final String columnName;
+    private final ColumnType columnType;
+    private final Map<Object, RoaringBitmap> index;
+
+    public FilterIndex(String columnName, ColumnType columnType, Map<Object, RoaringBitmap> index) {
+        this.columnName = columnName;
+        this.columnType = columnType;
+        this.index = index;
+    }
+
+    public String getColumnName() {
+        return columnName;
+    }
+
+    public ColumnType getColumnType() {
+        return columnType;
+    }
+
+    public Set<Object> values() {
+        return index.keySet();
+    }
+
+    public RoaringBitmap get(Object value) {
+        RoaringBitmap bitmap = index.get(normalize(value));
+        return bitmap == null ? new RoaringBitmap() : bitmap;
+    }
+
+    public Long getSizeInBytes() {
+        Long size = 0L;
+        for (RoaringBitmap bitmap : index.values()) {
+            size += bitmap.getLongSizeInBytes();
+        }
+        return size;
+    }
+
+    /// Accept the natural Java value for the column, e.g. an Integer for an INTEGER column
+    private Object normalize(Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        switch (columnType) {
+            case INTEGER:
+            case TIMESTAMP:
+                return ((Number) value).longValue();
+            case DOUBLE:
+                return ((Number) value).doubleValue();
+            default:
+                return value.toString();
+        }
+    }
+
+    public static FilterIndex build(Client voltClient, String tableName, Integer tableParts, String columnName, ColumnType columnType) throws InterruptedException {
+        List<Map<Object, RoaringBitmap>> indices = PagingIndex.scanPartitions(
+                voltClient, tableName, tableParts, Collections.singletonList(columnName),
+                table -> readValue(table, columnType), PagingIndex.DEFAULT_CHUNK_SIZE, PagingIndex.DEFAULT_MAX_IN_FLIGHT_CHUNKS);
+
+        Map<Object, RoaringBitmap> merged = PagingIndex.mergePartitions(indices, new HashMap<>());
+        return new FilterIndex(columnName, columnType, merged);
+    }
+
+    private static Object readValue(VoltTable table, ColumnType columnType) {
+        Object value;
+
+        switch (columnType) {
+            case INTEGER:
+                value = table.getLong(1);
+                break;
+            case DOUBLE:
+                value = table.getDouble(1);
+                break;
+            case TIMESTAMP:
+                value = table.getTimestampAsLong(1);
+                break;
+            default:
+                value = table.getString(1);
+                break;
+        }
+
+        return table.wasNull() ? null : value;
+    }
+}
@@ -0,0 +1,368 @@
+package com.mode;
+
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ProcCallException;
+import org.voltdb.types.TimestampType;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pages a continuous column such as fare_amount, where a PagingIndex with a bitmap per exact value
+ * would hold millions of tiny bitmaps. Rows are split into about bucketCount equi-depth buckets,
+ * each covering a range of the column's sort keys with a Roaring bitmap of its ids. A page seeks
+ * its first bucket by rank like PagingIndex does, so only the buckets it lands in are read.
+ *
+ * Within a bucket the order is by (key, id), which the bitmap alone doesn't know. The first page
+ * to touch a bucket loads the keys of its rows through the engine's BucketLoader and keeps the ids
+ * sorted, 4 bytes a row; other buckets never hold more than their bitmap. A value common enough
+ * to fill a bucket gets one of its own, as do nulls, and is paged straight from the bitmap since
+ * its rows tie and go by id. More buckets means smaller loads for a deep page but more bitmaps.
+ */
+public class HistogramIndex {
+    public static final Integer DEFAULT_BUCKET_COUNT = 1024;
+
+    /// Split points come from about this many keys sampled evenly over the table
+    public static final Integer SAMPLE_SIZE = 1 << 16;
+
+    public interface RowConsumer {
+        void accept(long id, long key);
+    }
+
+    public interface BucketLoader {
+        /**
+         * Hands over the id and sort key of at least every row of the bucket: the ids, whose values
+         * are between low and high inclusive in SQL order, where a null bound is open. Other rows
+         * are skipped.
+         */
+        void load(Object low, Object high, RoaringBitmap ids, RowConsumer consumer) throws Exception;
+    }
+
+    private final SortColumn sortColumn;
+    private final BucketLoader loader;
+
+    /// Non-empty buckets in key order, each covering keys lowKeys[i] to highKeys[i] inclusive, with
+    /// cumulative[i] the rank of the first id in bucket i
+    private final long[] lowKeys;
+    private final long[] highKeys;
+    private final RoaringBitmap[] buckets;
+    private final long[] cumulative;
+
+    private final AtomicReferenceArray<int[]> sortedIds;
+    private final Object[] loadLocks;
+
+    /**
+     * Bucket i of the map holds the ids with keys from splits[i - 1] up to but not including
+     * splits[i], the first and last buckets being open ended, see bucket().
+     */
+    public HistogramIndex(SortColumn sortColumn, long[] splits, Map<Integer, RoaringBitmap> bucketMap, BucketLoader loader) {
+        this.sortColumn = sortColumn;
+        this.loader = loader;
+
+        List<Integer> positions = new ArrayList<>();
+        for (int bucket = 0; bucket <= splits.length; bucket++) {
+            RoaringBitmap ids = bucketMap.get(bucket);
+            if (ids != null && !ids.isEmpty()) {
+                positions.add(bucket);
+            }
+        }
+
+        lowKeys = new long[positions.size()];
+        highKeys = new long[positions.size()];
+        buckets = new RoaringBitmap[positions.size()];
+        cumulative = new long[positions.size() + 1];
+
+        for (int position = 0; position < buckets.length; position++) {
+            int bucket = positions.get(position);
+            lowKeys[position] = bucket == 0 ? Long.MIN_VALUE : splits[bucket - 1];
+            highKeys[position] = bucket == splits.length ? Long.MAX_VALUE : splits[bucket] - 1;
+            buckets[position] = bucketMap.get(bucket);
+            buckets[position].runOptimize();
+            cumulative[position + 1] = cumulative[position] + buckets[position].getLongCardinality();
+        }
+
+        sortedIds = new AtomicReferenceArray<>(buckets.length);
+        loadLocks = new Object[buckets.length];
+        for (int position = 0; position < loadLocks.length; position++) {
+            loadLocks[position] = new Object();
+        }
+    }
+
+    /**
+     * Building
+     */
+
+    /**
+     * Equi-depth split points from a sample of keys. Nulls and any key on at least a bucket's share
+     * of the sample are split off into buckets of their own.
+     */
+    public static long[] splits(SortColumn sortColumn, long[] sampleKeys, Integer bucketCount) {
+        long[] sorted = sampleKeys.clone();
+        Arrays.sort(sorted);
+
+        List<Long> splits = new ArrayList<>();
+        addSingleKey(splits, sortColumn.encode((Object) null));
+
+        if (sorted.length > 0) {
+            double depth = (double) sorted.length / bucketCount;
+            for (int bucket = 1; bucket < bucketCount; bucket++) {
+                splits.add(sorted[(int) (bucket * depth)]);
+            }
+
+            for (int start = 0, end; start < sorted.length; start = end) {
+                for (end = start; end < sorted.length && sorted[end] == sorted[start]; end++) {
+                }
+                if (end - start >= depth) {
+                    addSingleKey(splits, sorted[start]);
+                }
+            }
+        }
+
+        return splits.stream().mapToLong(Long::longValue).sorted().distinct().toArray();
+    }
+
+    private static void addSingleKey(List<Long> splits, long key) {
+        splits.add(key);
+        if (key != Long.MAX_VALUE) {
+            splits.add(key + 1);
+        }
+    }
+
+    /// The bucket of a key: how many splits are at or below it
+    public static int bucket(long[] splits, long key) {
+        int low = 0;
+        int high = splits.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (splits[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /// How far apart rows are sampled to take about SAMPLE_SIZE keys
+    public static long sampleStride(long rowCount) {
+        return Math.max(1L, rowCount / SAMPLE_SIZE);
+    }
+
+    /**
+     * VoltDB
+     */
+
+    /// Samples every stride-th id, buckets the rows in the same chunked partition scans as PagingIndex and loads a bucket by range
+    public static HistogramIndex build(Client voltClient, String tableName, Integer tableParts, SortColumn sortColumn, Integer bucketCount)
+            throws IOException, ProcCallException, InterruptedException {
+        String columnName = sortColumn.getName();
+        long rowCount = voltClient.callProcedure("@AdHoc", "SELECT COUNT(*) FROM " + tableName).getResults()[0].asScalarLong();
+
+        VoltTable sample = voltClient.callProcedure("@AdHoc",
+                "SELECT " + columnName + " FROM " + tableName + " WHERE MOD(id, " + sampleStride(rowCount) + ") = 0").getResults()[0];
+        long[] sampleKeys = new long[sample.getRowCount()];
+        for (int i = 0; sample.advanceRow(); i++) {
+            sampleKeys[i] = sortColumn.encode(sample, 0);
+        }
+        long[] splits = splits(sortColumn, sampleKeys, bucketCount);
+
+        List<Map<Integer, RoaringBitmap>> indices = PagingIndex.scanPartitions(
+                voltClient, tableName, tableParts, Collections.singletonList(columnName),
+                table -> bucket(splits, sortColumn.encode(table, 1)), PagingIndex.DEFAULT_CHUNK_SIZE, PagingIndex.DEFAULT_MAX_IN_FLIGHT_CHUNKS);
+        Map<Integer, RoaringBitmap> buckets = PagingIndex.mergePartitions(indices, new HashMap<>());
+
+        return new HistogramIndex(sortColumn, splits, buckets, (low, high, ids, consumer) -> {
+            List<String> predicates = new ArrayList<>();
+            List<Object> params = new ArrayList<>();
+            if (low != null) {
+                predicates.add(columnName + " >= ?");
+                params.add(toParam(sortColumn, low));
+            }
+            if (high != null) {
+                predicates.add(columnName + " <= ?");
+                params.add(toParam(sortColumn, high));
+            }
+            params.add(0, "SELECT id, " + columnName + " FROM " + tableName +
+                    (predicates.isEmpty() ? "" : " WHERE " + String.join(" AND ", predicates)));
+
+            VoltTable rows = voltClient.callProcedure("@AdHoc", params.toArray()).getResults()[0];
+            while (rows.advanceRow()) {
+                consumer.accept(rows.getLong(0), sortColumn.encode(rows, 1));
+            }
+        });
+    }
+
+    private static Object toParam(SortColumn sortColumn, Object value) {
+        return sortColumn.getType() == ColumnType.TIMESTAMP ? new TimestampType((Long) value) : value;
+    }
+
+    /**
+     * Lookup
+     */
+
+    public long[] lookup(long limit, long offset) throws Exception {
+        return lookup(limit, offset, SortDirection.ASC);
+    }
+
+    /// The ids at positions [offset, offset + limit) in the same order as PagingIndex.lookup on the one column
+    public long[] lookup(long limit, long offset, SortDirection direction) throws Exception {
+        long cardinality = getCardinality();
+        if (limit <= 0 || offset < 0 || offset >= cardinality) {
+            return new long[0];
+        }
+
+        int count = PagingIndex.pageLength(limit, offset, cardinality);
+        long start = direction == SortDirection.ASC ? offset : cardinality - offset - count;
+
+        long[] result = new long[count];
+        int position = PagingIndex.seekBucket(start, cumulative);
+        long seek = start - cumulative[position];
+        int filled = 0;
+
+        while (filled < count) {
+            int take = (int) Math.min(count - filled, cumulative[position + 1] - cumulative[position] - seek);
+
+            if (lowKeys[position] == highKeys[position]) {
+                // One key, so the ids tie and the bitmap is already in order
+                PeekableIntIterator iterator = buckets[position].getIntIterator();
+                iterator.advanceIfNeeded(buckets[position].select((int) seek));
+                for (int i = 0; i < take; i++) {
+                    result[filled++] = PagingIndex.fromBitmapId(iterator.next());
+                }
+            } else {
+                int[] ids = sortedIds(position);
+                for (int i = 0; i < take; i++) {
+                    result[filled++] = PagingIndex.fromBitmapId(ids[(int) seek + i]);
+                }
+            }
+
+            position++;
+            seek = 0;
+        }
+
+        if (direction == SortDirection.DESC) {
+            for (int i = 0, j = result.length - 1; i < j; i++, j--) {
+                long swap = result[i];
+                result[i] = result[j];
+                result[j] = swap;
+            }
+        }
+
+        return result;
+    }
+
+    /// The bucket's ids in (key, id) order, loaded the first time they are needed
+    private int[] sortedIds(int position) throws Exception {
+        int[] ids = sortedIds.get(position);
+        if (ids != null) {
+            return ids;
+        }
+
+        synchronized (loadLocks[position]) {
+            ids = sortedIds.get(position);
+            if (ids != null) {
+                return ids;
+            }
+
+            RoaringBitmap bucket = buckets[position];
+            long lowKey = lowKeys[position];
+            long highKey = highKeys[position];
+            int size = bucket.getCardinality();
+            long[] keys = new long[size];
+            int[] loadedIds = new int[size];
+            int[] loaded = {0};
+
+            // Bounds next to the nulls' bucket are left open, nulls never match a range anyway and the
+            // key beside them may not bind, like a timestamp a microsecond off Long.MIN_VALUE
+            long nullKey = sortColumn.encode((Object) null);
+            Object lowValue = lowKey == Long.MIN_VALUE || lowKey - 1 == nullKey ? null : sortColumn.decode(lowKey);
+            Object highValue = highKey == Long.MAX_VALUE || highKey + 1 == nullKey ? null : sortColumn.decode(highKey);
+            boolean ascending = sortColumn.getDirection() == SortDirection.ASC;
+
+            loader.load(ascending ? lowValue : highValue, ascending ? highValue : lowValue, bucket, (id, key) -> {
+                int bitmapId = PagingIndex.toBitmapId(id);
+                if (key < lowKey || key > highKey || !bucket.contains(bitmapId)) {
+                    return;
+                }
+                if (loaded[0] == size) {
+                    throw new IllegalStateException("Bucket " + position + " of " + sortColumn + " loaded more than its " + size + " rows");
+                }
+
+                keys[loaded[0]] = key;
+                loadedIds[loaded[0]++] = bitmapId;
+            });
+
+            if (loaded[0] != size) {
+                throw new IllegalStateException("Bucket " + position + " of " + sortColumn + " holds " + size + " rows but loaded " + loaded[0]);
+            }
+
+            // Rank the bucket's distinct keys so (rank, id) packs into one long that sorts in page order
+            long[] distinctKeys = Arrays.stream(keys).sorted().distinct().toArray();
+            long[] packed = new long[size];
+            for (int i = 0; i < size; i++) {
+                long rank = Arrays.binarySearch(distinctKeys, keys[i]);
+                packed[i] = rank << 32 | Integer.toUnsignedLong(loadedIds[i]);
+            }
+            Arrays.sort(packed);
+
+            ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = (int) packed[i];
+            }
+
+            sortedIds.set(position, ids);
+            return ids;
+        }
+    }
+
+    /**
+     * Metrics
+     */
+
+    public SortColumn getSortColumn() {
+        return sortColumn;
+    }
+
+    public Long getCardinality() {
+        return cumulative[cumulative.length - 1];
+    }
+
+    public Integer getBucketCount() {
+        return buckets.length;
+    }
+
+    public Integer getLoadedBucketCount() {
+        int loaded = 0;
+        for (int position = 0; position < buckets.length; position++) {
+            if (sortedIds.get(position) != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /// Bitmaps, bucket bounds and whichever sorted ids have been loaded so far
+    public Long getSizeInBytes() {
+        long size = 3L * Long.BYTES * buckets.length;
+        for (int position = 0; position < buckets.length; position++) {
+            size += buckets[position].getLongSizeInBytes();
+            int[] ids = sortedIds.get(position);
+            if (ids != null) {
+                size += (long) Integer.BYTES * ids.length;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d buckets on %s, %d loaded, %d rows in %d bytes", getBucketCount(), sortColumn, getLoadedBucketCount(),
+                getCardinality(), getSizeInBytes());
+    }
+}
@@ -0,0 +1,720 @@
+package com.mode;
+
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HSQLDB over JDBC. Table writes lock the table, so ingest converts in parallel and writes through a
+ * single prepared statement; indexes are built by scanning the table.
+ *
+ * STRING columns hold INTEGER codes into per-column dictionaries, which are kept in memory and in
+ * a <table>_dictionary lookup table. Filters and the pivot's GROUP BY run on the codes, and strings
+ * are only decoded for the rows of a result.
+ */
+public class HsqldbEngine implements StorageEngine {
+    private final static Logger LOGGER = LoggerFactory.getLogger(HsqldbEngine.class);
+    /// Idle query connections kept open; more clients than this open connections of their own and close them after
+    private final static int MAX_IDLE_SESSIONS = 64;
+
+    private final String url;
+    private final AtomicLong rowId = new AtomicLong(0);
+    /// Upper-case table name to the dictionary of each STRING column, by upper-case column name
+    private final Map<String, Map<String, StringDictionary>> dictionaries = new ConcurrentHashMap<>();
+    /// Upper-case table name to its column types, by upper-case column name, for binding filter values
+    private final Map<String, Map<String, ColumnType>> columnTypes = new ConcurrentHashMap<>();
+    private final ThreadLocal<ResultDecoder> decoders = ThreadLocal.withInitial(ResultDecoder::new);
+    private final BlockingQueue<Connection> idleSessions = new ArrayBlockingQueue<>(MAX_IDLE_SESSIONS);
+    private Connection connection;
+
+    public HsqldbEngine(String url) {
+        this.url = url;
+    }
+
+    @Override
+    public String getName() {
+        return "hsqldb";
+    }
+
+    @Override
+    public void open() throws SQLException {
+        connection = DriverManager.getConnection(url, "SA", "");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            Connection session;
+            while ((session = idleSessions.poll()) != null) {
+                session.close();
+            }
+
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Couldn't close " + url, e);
+        }
+    }
+
+    /// Queries borrow a pooled connection, so concurrent clients don't queue behind one session and finished clients don't leave theirs open
+    private Session session() throws SQLException {
+        Connection connection = idleSessions.poll();
+        return new Session(connection != null ? connection : DriverManager.getConnection(url, "SA", ""));
+    }
+
+    /// A borrowed connection, handed back to the pool on close or closed when the pool is full
+    private class Session implements AutoCloseable {
+        private final Connection connection;
+
+        Session(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepareStatement(String sql) throws SQLException {
+            return connection.prepareStatement(sql);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (!idleSessions.offer(connection)) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Setup
+     */
+
+    @Override
+    public void createTable(String tableName, Map<String, ColumnType> schema) throws SQLException {
+        ArrayList<String> columnDefs = new ArrayList<String>();
+        columnDefs.add("id BIGINT PRIMARY KEY");
+        Map<String, StringDictionary> tableDictionaries = new HashMap<>();
+        Map<String, ColumnType> tableColumnTypes = new HashMap<>();
+
+        for (Map.Entry<String, ColumnType> column : schema.entrySet()) {
+            columnDefs.add(column.getKey() + " " + toSqlTypeName(column.getValue()));
+            tableColumnTypes.put(column.getKey().toUpperCase(Locale.ROOT), column.getValue());
+            if (column.getValue() == ColumnType.STRING) {
+                tableDictionaries.put(column.getKey().toUpperCase(Locale.ROOT), new StringDictionary());
+            }
+        }
+
+        execute("CREATE TABLE " + tableName + "(" + String.join(", ", columnDefs) + ")");
+        execute("CREATE TABLE " + tableName + "_dictionary(column_name VARCHAR(128), code INTEGER, value VARCHAR(1024), " +
+                "PRIMARY KEY (column_name, code))");
+        dictionaries.put(tableName.toUpperCase(Locale.ROOT), tableDictionaries);
+        columnTypes.put(tableName.toUpperCase(Locale.ROOT), tableColumnTypes);
+    }
+
+    @Override
+    public void clearTable(String tableName) throws SQLException {
+        execute("DELETE FROM " + tableName);
+        execute("DELETE FROM " + tableName + "_dictionary");
+        dictionaries(tableName).replaceAll((columnName, dictionary) -> new StringDictionary());
+        rowId.set(0);
+    }
+
+    @Override
+    public void createIndex(String tableName, List<String> columnNames) throws SQLException {
+        execute("CREATE INDEX " + tableName + "_" + String.join("_", columnNames) + " ON " + tableName + "(" + String.join(", ", columnNames) + ")");
+    }
+
+    private void execute(String sql) throws SQLException {
+        LOGGER.info(sql);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private Map<String, StringDictionary> dictionaries(String tableName) {
+        return dictionaries.getOrDefault(tableName.toUpperCase(Locale.ROOT), Collections.emptyMap());
+    }
+
+    /// STRING columns are stored as their dictionary codes
+    private static String toSqlTypeName(ColumnType columnType) {
+        switch (columnType) {
+            case INTEGER:
+                return "INTEGER";
+            case DOUBLE:
+                return "DOUBLE";
+            case TIMESTAMP:
+                return "TIMESTAMP";
+            default:
+                return "INTEGER";
+        }
+    }
+
+    private static int toSqlType(ColumnType columnType) {
+        switch (columnType) {
+            case INTEGER:
+                return Types.INTEGER;
+            case DOUBLE:
+                return Types.DOUBLE;
+            case TIMESTAMP:
+                return Types.TIMESTAMP;
+            default:
+                return Types.INTEGER;
+        }
+    }
+
+    /**
+     * Ingestion
+     */
+
+    @Override
+    public Long ingest(String tableName, Map<String, ColumnType> schema, List<String> csvPaths, MutablePagingIndex index,
+                       TableSketches sketches) throws SQLException, IOException, InterruptedException {
+        List<String> columnNames = new ArrayList<>(schema.keySet());
+        List<SortColumn> sortColumns = index.getSortColumns();
+        int[] indexColumns = new int[sortColumns.size()];
+        for (int i = 0; i < indexColumns.length; i++) {
+            indexColumns[i] = columnNames.indexOf(sortColumns.get(i).getName());
+        }
+
+        String paramSql = "INSERT INTO " + tableName + " VALUES(" + String.join(",", Collections.nCopies(schema.size() + 1, "?")) + ")";
+        LOGGER.info(paramSql);
+
+        final ColumnType[] columnTypes = schema.values().toArray(new ColumnType[0]);
+
+        // HSQLDB takes table write locks, so conversion fans out but a single writer owns the statement
+        IngestPipeline.Config config = new IngestPipeline.Config().write(1);
+        RowBatch.Pool pool = new RowBatch.Pool(columnTypes, config.getParseBatchRows(), config.getBatchesInFlight());
+
+        Long rowCount = 0L;
+        try (IngestMetrics metrics = IngestMetrics.start(tableName);
+             CodeWriter codes = new CodeWriter(tableName, columnNames, dictionaries(tableName))) {
+            for (String csvPath : csvPaths) {
+                PreparedStatement statement = connection.prepareStatement(paramSql);
+
+                try (IngestMetrics fileMetrics = metrics.file(csvPath)) {
+                    IngestPipeline<RowBatch> pipeline = new IngestPipeline<>(
+                            config,
+                            () -> new RowConverter(columnTypes, pool, sketches),
+                            () -> new IngestPipeline.Writer<RowBatch>() {
+                                @Override
+                                public void write(RowBatch batch) throws SQLException {
+                                    writeRows(statement, codes, batch, index, indexColumns, fileMetrics);
+                                    pool.release(batch);
+                                }
+
+                                @Override
+                                public void close() throws SQLException {
+                                    statement.close();
+                                }
+                            });
+
+                    LOGGER.info("Loading " + csvPath + " ...");
+                    rowCount += pipeline.run(csvPath, fileMetrics);
+                }
+            }
+        }
+
+        return rowCount;
+    }
+
+    /// Hands out the codes of a load's STRING columns, adding new ones to the lookup table ahead of the rows using them
+    private final class CodeWriter implements AutoCloseable {
+        private final String[] columnNames;
+        private final StringDictionary[] columnDictionaries;
+        private final int[] persisted;
+        private final PreparedStatement statement;
+
+        CodeWriter(String tableName, List<String> columnNames, Map<String, StringDictionary> tableDictionaries) throws SQLException {
+            this.columnNames = new String[columnNames.size()];
+            this.columnDictionaries = new StringDictionary[columnNames.size()];
+            this.persisted = new int[columnNames.size()];
+
+            for (int column = 0; column < this.columnNames.length; column++) {
+                this.columnNames[column] = columnNames.get(column).toUpperCase(Locale.ROOT);
+                columnDictionaries[column] = tableDictionaries.get(this.columnNames[column]);
+                persisted[column] = columnDictionaries[column] == null ? 0 : columnDictionaries[column].size();
+            }
+
+            this.statement = connection.prepareStatement("INSERT INTO " + tableName + "_dictionary VALUES(?, ?, ?)");
+        }
+
+        int encode(int column, String value) {
+            return columnDictionaries[column].encode(value);
+        }
+
+        void flush() throws SQLException {
+            boolean added = false;
+
+            for (int column = 0; column < columnNames.length; column++) {
+                StringDictionary dictionary = columnDictionaries[column];
+                for (; dictionary != null && persisted[column] < dictionary.size(); persisted[column]++) {
+                    statement.setString(1, columnNames[column]);
+                    statement.setInt(2, persisted[column]);
+                    statement.setString(3, dictionary.decode(persisted[column]));
+                    statement.addBatch();
+                    added = true;
+                }
+            }
+
+            if (added) {
+                statement.executeBatch();
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            statement.close();
+        }
+    }
+
+    private void writeRows(PreparedStatement statement, CodeWriter codes, RowBatch batch, MutablePagingIndex index, int[] indexColumns,
+                           IngestMetrics metrics) throws SQLException {
+        ColumnType[] columnTypes = batch.getColumnTypes();
+        long firstId = rowId.get() + 1;
+
+        for (int row = 0; row < batch.size(); row++) {
+            statement.setLong(1, firstId + row);
+
+            for (int colNum = 0; colNum < columnTypes.length; colNum++) {
+                if (batch.isNull(row, colNum)) {
+                    statement.setNull(colNum + 2, toSqlType(columnTypes[colNum]));
+                    continue;
+                }
+
+                switch (columnTypes[colNum]) {
+                    case STRING:
+                        statement.setInt(colNum + 2, codes.encode(colNum, batch.getString(row, colNum)));
+                        break;
+                    case INTEGER:
+                        statement.setInt(colNum + 2, (int) batch.getLong(row, colNum));
+                        break;
+                    case DOUBLE:
+                        statement.setDouble(colNum + 2, batch.getDouble(row, colNum));
+                        break;
+                    case TIMESTAMP:
+                        statement.setTimestamp(colNum + 2, new Timestamp(batch.getLong(row, colNum)));
+                        break;
+                }
+            }
+
+            statement.addBatch();
+        }
+
+        metrics.submitted(batch.size());
+        long startNanos = System.nanoTime();
+        try {
+            codes.flush();
+            statement.executeBatch();
+        } catch (SQLException batchException) {
+            metrics.failed(String.valueOf(batchException.getSQLState()), batch.size());
+            throw batchException;
+        } finally {
+            metrics.blocked(IngestMetrics.Stage.WRITE, System.nanoTime() - startNanos);
+        }
+        metrics.acknowledged(batch.size());
+
+        // Only index rows once they are in the table
+        for (int row = 0; row < batch.size(); row++) {
+            index.add(firstId + row, SortColumn.encode(index.getSortColumns(), batch, row, indexColumns));
+        }
+        rowId.addAndGet(batch.size());
+    }
+
+    /**
+     * Indexing
+     */
+
+    @Override
+    public Long countRows(String tableName) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + tableName)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    @Override
+    public PagingIndex buildIndex(String tableName, List<SortColumn> sortColumns) throws SQLException {
+        List<String> columnNames = new ArrayList<>();
+        for (SortColumn sortColumn : sortColumns) {
+            columnNames.add(sortColumn.getName());
+        }
+
+        TreeMap<SortKey, RoaringBitmap> index = new TreeMap<>();
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT id, " + String.join(", ", columnNames) + " FROM " + tableName)) {
+            while (resultSet.next()) {
+                long[] values = new long[sortColumns.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = sortColumns.get(i).encode(readValue(resultSet, i + 2, sortColumns.get(i).getType()));
+                }
+
+                index.computeIfAbsent(new SortKey(values), absentKey -> new RoaringBitmap())
+                        .add(PagingIndex.toBitmapId(resultSet.getLong(1)));
+            }
+        }
+
+        for (RoaringBitmap bitmap : index.values()) {
+            bitmap.runOptimize();
+        }
+
+        return new PagingIndex(sortColumns, index);
+    }
+
+    /// HSQLDB has no partitions, so the index is split a part per core to exercise the scatter-gather
+    @Override
+    public ShardedPagingIndex buildShardedIndex(String tableName, List<SortColumn> sortColumns) throws SQLException {
+        return ShardedPagingIndex.split(buildIndex(tableName, sortColumns), Partitioner.hash(Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Override
+    public FilterIndex buildFilterIndex(String tableName, String columnName, ColumnType columnType) throws SQLException {
+        StringDictionary dictionary = dictionaries(tableName).get(columnName.toUpperCase(Locale.ROOT));
+        Map<Object, RoaringBitmap> index = new HashMap<>();
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT id, " + columnName + " FROM " + tableName)) {
+            while (resultSet.next()) {
+                Object value = dictionary == null ? readValue(resultSet, 2, columnType) : readCode(resultSet, 2);
+                index.computeIfAbsent(value, absentKey -> new RoaringBitmap())
+                        .add(PagingIndex.toBitmapId(resultSet.getLong(1)));
+            }
+        }
+
+        for (RoaringBitmap bitmap : index.values()) {
+            bitmap.runOptimize();
+        }
+
+        // Bitmaps were gathered per code, so only the distinct values are decoded
+        if (dictionary != null) {
+            Map<Object, RoaringBitmap> decoded = new HashMap<>();
+            for (Map.Entry<Object, RoaringBitmap> entry : index.entrySet()) {
+                decoded.put(entry.getKey() == null ? null : dictionary.decode((Integer) entry.getKey()), entry.getValue());
+            }
+            index = decoded;
+        }
+
+        return new FilterIndex(columnName, columnType, index);
+    }
+
+    @Override
+    public HistogramIndex buildHistogramIndex(String tableName, SortColumn sortColumn, Integer bucketCount) throws SQLException {
+        String columnName = sortColumn.getName();
+        List<Long> sampleKeys = new ArrayList<>();
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT " + columnName + " FROM " + tableName +
+                     " WHERE MOD(id, " + HistogramIndex.sampleStride(countRows(tableName)) + ") = 0")) {
+            while (resultSet.next()) {
+                sampleKeys.add(sortColumn.encode(readValue(resultSet, 1, sortColumn.getType())));
+            }
+        }
+
+        long[] splits = HistogramIndex.splits(sortColumn, sampleKeys.stream().mapToLong(Long::longValue).toArray(), bucketCount);
+        Map<Integer, RoaringBitmap> buckets = new HashMap<>();
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT id, " + columnName + " FROM " + tableName)) {
+            while (resultSet.next()) {
+                long key = sortColumn.encode(readValue(resultSet, 2, sortColumn.getType()));
+                buckets.computeIfAbsent(HistogramIndex.bucket(splits, key), absentKey -> new RoaringBitmap())
+                        .add(PagingIndex.toBitmapId(resultSet.getLong(1)));
+            }
+        }
+
+        return new HistogramIndex(sortColumn, splits, buckets, (low, high, ids, consumer) -> selectRange(tableName, sortColumn, low, high, consumer));
+    }
+
+    /// Rows with the column between low and high inclusive, a null bound being open
+    private void selectRange(String tableName, SortColumn sortColumn, Object low, Object high, HistogramIndex.RowConsumer consumer) throws SQLException {
+        List<String> predicates = new ArrayList<>();
+        if (low != null) {
+            predicates.add(sortColumn.getName() + " >= ?");
+        }
+        if (high != null) {
+            predicates.add(sortColumn.getName() + " <= ?");
+        }
+
+        String selectSql = "SELECT id, " + sortColumn.getName() + " FROM " + tableName +
+                (predicates.isEmpty() ? "" : " WHERE " + String.join(" AND ", predicates));
+
+        try (Session session = session(); PreparedStatement statement = session.prepareStatement(selectSql)) {
+            int param = 1;
+            if (low != null) {
+                bind(statement, param++, low, sortColumn.getType());
+            }
+            if (high != null) {
+                bind(statement, param, high, sortColumn.getType());
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getLong(1), sortColumn.encode(readValue(resultSet, 2, sortColumn.getType())));
+                }
+            }
+        }
+    }
+
+    private static Integer readCode(ResultSet resultSet, int column) throws SQLException {
+        int code = resultSet.getInt(column);
+        return resultSet.wasNull() ? null : code;
+    }
+
+    /// Read a value the way FilterIndex and SortColumn expect it, with timestamps in microseconds
+    private static Object readValue(ResultSet resultSet, int column, ColumnType columnType) throws SQLException {
+        Object value;
+
+        switch (columnType) {
+            case INTEGER:
+                value = resultSet.getLong(column);
+                break;
+            case DOUBLE:
+                value = resultSet.getDouble(column);
+                break;
+            case TIMESTAMP:
+                Timestamp timestamp = resultSet.getTimestamp(column);
+                value = timestamp == null ? null : timestamp.getTime() * 1000L;
+                break;
+            default:
+                value = resultSet.getString(column);
+                break;
+        }
+
+        return resultSet.wasNull() ? null : value;
+    }
+
+    /**
+     * Selection
+     */
+
+    @Override
+    public ResultStats selectPage(String tableName, List<String> columns, List<SortColumn> orderBy, long limit, long offset,
+                                  ResultDecoder.BatchConsumer consumer) throws SQLException {
+        String selectSql = "SELECT " + selectList(columns) + " FROM " + tableName + orderByClause(orderBy) + " LIMIT ? OFFSET ?";
+        LOGGER.debug(selectSql);
+
+        try (Session session = session(); PreparedStatement statement = session.prepareStatement(selectSql)) {
+            statement.setLong(1, limit);
+            statement.setLong(2, offset);
+            return drain(statement, dictionaries(tableName), consumer);
+        }
+    }
+
+    @Override
+    public KeysetPage selectPageAfter(String tableName, List<SortColumn> orderBy, long limit, PageToken after) throws SQLException {
+        long startNanos = System.nanoTime();
+        ResultStats stats = ResultStats.EMPTY;
+        PageToken[] last = {null};
+
+        for (KeysetQuery.Segment segment : KeysetQuery.segments(orderBy, after)) {
+            if (stats.getRows() >= limit) {
+                break;
+            }
+
+            // HSQLDB sorts nulls first either way, so spell out where they go
+            String selectSql = "SELECT * FROM " + tableName +
+                    (segment.where.isEmpty() ? "" : " WHERE " + segment.where) +
+                    KeysetQuery.orderBy(orderBy, true) + " LIMIT ?";
+
+            try (Session session = session(); PreparedStatement statement = session.prepareStatement(selectSql)) {
+                int param = 1;
+                for (int i = 0; i < segment.params.size(); i++) {
+                    bind(statement, param++, segment.params.get(i), segment.paramTypes.get(i));
+                }
+                statement.setLong(param, limit - stats.getRows());
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    int[] tokenColumns = new int[orderBy.size() + 1];
+                    for (int i = 0; i < orderBy.size(); i++) {
+                        tokenColumns[i] = resultSet.findColumn(orderBy.get(i).getName()) - 1;
+                    }
+                    tokenColumns[orderBy.size()] = resultSet.findColumn("id") - 1;
+
+                    stats = stats.plus(decoders.get().drain(resultSet, dictionaries(tableName), startNanos,
+                            batch -> last[0] = tokenAt(batch, batch.size() - 1, orderBy, tokenColumns)));
+                }
+            }
+        }
+
+        return new KeysetPage(stats, stats.getRows() < limit ? null : last[0]);
+    }
+
+    /// The batch holds timestamps as millis where tokens take micros
+    private static PageToken tokenAt(RowBatch batch, int row, List<SortColumn> orderBy, int[] columns) {
+        Object[] values = new Object[orderBy.size()];
+        for (int i = 0; i < values.length; i++) {
+            if (batch.isNull(row, columns[i])) {
+                continue;
+            }
+
+            switch (orderBy.get(i).getType()) {
+                case INTEGER:
+                    values[i] = batch.getLong(row, columns[i]);
+                    break;
+                case DOUBLE:
+                    values[i] = batch.getDouble(row, columns[i]);
+                    break;
+                default:
+                    values[i] = batch.getLong(row, columns[i]) * 1000L;
+                    break;
+            }
+        }
+        return new PageToken(values, batch.getLong(row, columns[values.length]));
+    }
+
+    private static void bind(PreparedStatement statement, int param, Object value, ColumnType columnType) throws SQLException {
+        switch (columnType) {
+            case INTEGER:
+                statement.setLong(param, ((Number) value).longValue());
+                break;
+            case DOUBLE:
+                statement.setDouble(param, ((Number) value).doubleValue());
+                break;
+            case TIMESTAMP:
+                // Token timestamps are microseconds
+                statement.setTimestamp(param, new Timestamp(((Number) value).longValue() / 1000L));
+                break;
+            default:
+                statement.setString(param, value.toString());
+        }
+    }
+
+    @Override
+    public ResultStats selectIds(String tableName, List<SortColumn> orderBy, long[] ids, ResultDecoder.BatchConsumer consumer) throws SQLException {
+        if (ids.length == 0) {
+            return ResultStats.EMPTY;
+        }
+
+        // Rows come back in any order and are put back in the index's, which already breaks ties by id
+        String selectSql = "SELECT * FROM " + tableName +
+                " WHERE id IN (" + String.join(", ", Collections.nCopies(ids.length, "?")) + ")";
+        LOGGER.debug("Selecting {} rows...", ids.length);
+
+        try (Session session = session(); PreparedStatement statement = session.prepareStatement(selectSql)) {
+            for (int i = 0; i < ids.length; i++) {
+                statement.setLong(i + 1, ids[i]);
+            }
+
+            long startNanos = System.nanoTime();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return decoders.get().drain(resultSet, dictionaries(tableName), ids, startNanos, consumer);
+            }
+        }
+    }
+
+    @Override
+    public ResultStats pivot(String tableName, List<String> dimensions, Map<String, Object[]> filter, String sumColumn,
+                             ResultDecoder.BatchConsumer consumer) throws SQLException {
+        Map<String, StringDictionary> tableDictionaries = dictionaries(tableName);
+        if (sumColumn != null && tableDictionaries.containsKey(sumColumn.toUpperCase(Locale.ROOT))) {
+            throw new IllegalArgumentException("Cannot sum STRING column " + sumColumn);
+        }
+        List<String> values = new ArrayList<>();
+        StringBuilder joins = new StringBuilder();
+        List<String> positions = new ArrayList<>();
+
+        for (int i = 0; i < dimensions.size(); i++) {
+            String dimension = dimensions.get(i);
+            String upperName = dimension.toUpperCase(Locale.ROOT);
+            positions.add(String.valueOf(i + 1));
+
+            if (!tableDictionaries.containsKey(upperName)) {
+                values.add("g." + dimension);
+                continue;
+            }
+
+            values.add("d" + i + ".value AS " + dimension);
+            joins.append(" LEFT JOIN ").append(tableName).append("_dictionary d").append(i)
+                    .append(" ON d").append(i).append(".column_name = '").append(upperName).append("'")
+                    .append(" AND d").append(i).append(".code = g.").append(dimension);
+        }
+
+        List<Object> params = new ArrayList<>();
+        List<ColumnType> paramTypes = new ArrayList<>();
+        String where = whereClause(tableName, filter, params, paramTypes);
+
+        // Grouped on the codes; only the groups are joined to their strings, and sorted by them
+        String columns = String.join(", ", dimensions);
+        String selectSql =
+                "SELECT " + String.join(", ", values) + ", g.row_count" + (sumColumn == null ? "" : ", g.row_sum") + " " +
+                        "FROM (SELECT " + columns + ", COUNT(1) AS row_count" + (sumColumn == null ? "" : ", SUM(" + sumColumn + ") AS row_sum") +
+                        " FROM " + tableName + where + " GROUP BY " + columns + ") g" +
+                        joins + " " +
+                        "ORDER BY " + String.join(", ", positions);
+        LOGGER.debug(selectSql);
+
+        try (Session session = session(); PreparedStatement statement = session.prepareStatement(selectSql)) {
+            for (int i = 0; i < params.size(); i++) {
+                bind(statement, i + 1, params.get(i), paramTypes.get(i));
+            }
+            return drain(statement, Collections.emptyMap(), consumer);
+        }
+    }
+
+    /// Filters run on the codes as well; a string no row holds has no code and matches nothing
+    private String whereClause(String tableName, Map<String, Object[]> filter, List<Object> params, List<ColumnType> paramTypes) {
+        Map<String, StringDictionary> tableDictionaries = dictionaries(tableName);
+        Map<String, ColumnType> tableColumnTypes = columnTypes.getOrDefault(tableName.toUpperCase(Locale.ROOT), Collections.emptyMap());
+        List<String> predicates = new ArrayList<>();
+
+        for (Map.Entry<String, Object[]> predicate : filter.entrySet()) {
+            String columnName = predicate.getKey();
+            String upperName = columnName.toUpperCase(Locale.ROOT);
+            ColumnType columnType = tableColumnTypes.get(upperName);
+            if (columnType == null) {
+                throw new IllegalArgumentException("No column " + columnName + " in " + tableName);
+            }
+
+            List<String> terms = new ArrayList<>();
+            List<String> marks = new ArrayList<>();
+            for (Object value : predicate.getValue()) {
+                if (value == null) {
+                    terms.add(columnName + " IS NULL");
+                } else if (columnType == ColumnType.STRING) {
+                    int code = tableDictionaries.get(upperName).find(value.toString());
+                    if (code >= 0) {
+                        marks.add("?");
+                        params.add(code);
+                        paramTypes.add(ColumnType.INTEGER);
+                    }
+                } else {
+                    marks.add("?");
+                    params.add(value);
+                    paramTypes.add(columnType);
+                }
+            }
+
+            if (!marks.isEmpty()) {
+                terms.add(columnName + " IN (" + String.join(", ", marks) + ")");
+            }
+            predicates.add(terms.isEmpty() ? "1 = 0" : "(" + String.join(" OR ", terms) + ")");
+        }
+
+        return predicates.isEmpty() ? "" : " WHERE " + String.join(" AND ", predicates);
+    }
+
+    private static String selectList(List<String> columns) {
+        return columns.isEmpty() ? "*" : String.join(", ", columns);
+    }
+
+    private static String orderByClause(List<SortColumn> orderBy) {
+        return orderBy.isEmpty() ? "" : " ORDER BY " + SortColumn.describe(orderBy);
+    }
+
+    private ResultStats drain(PreparedStatement statement, Map<String, StringDictionary> columnDictionaries,
+                              ResultDecoder.BatchConsumer consumer) throws SQLException {
+        long startNanos = System.nanoTime();
+
+        try (ResultSet resultSet = statement.executeQuery()) {
+            return decoders.get().drain(resultSet, columnDictionaries, startNanos, consumer);
+        }
+    }
+}
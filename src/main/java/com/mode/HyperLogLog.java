@@ -0,0 +1,78 @@
+package com.mode;
+
+/**
+ * Distinct count estimate over 64-bit hashes in 2^precision one-byte registers. The relative
+ * standard error is 1.04 / sqrt(2^precision), about 1.6% at the default precision of 12 in 4KB.
+ * Sketches of the same precision merge by taking the larger register, so per-thread sketches of
+ * disjoint or overlapping rows combine into the sketch of all of them.
+ */
+public class HyperLogLog {
+    public static final Integer DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(Integer precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("Precision " + precision + " is not between 4 and 18");
+        }
+
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /// The hash must be well mixed in all 64 bits, see TableSketches.hash
+    public void add(long hash) {
+        int register = (int) (hash >>> (64 - precision));
+        // The sentinel bit caps the rank when the remaining bits are all zero
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+        if (rank > registers[register]) {
+            registers[register] = rank;
+        }
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Can't merge precision " + other.precision + " into " + precision);
+        }
+
+        for (int register = 0; register < registers.length; register++) {
+            if (other.registers[register] > registers[register]) {
+                registers[register] = other.registers[register];
+            }
+        }
+    }
+
+    public double estimate() {
+        int m = registers.length;
+        double sum = 0.0;
+        int zeros = 0;
+
+        for (byte rank : registers) {
+            sum += Double.longBitsToDouble((1023L - rank) << 52);
+            if (rank == 0) {
+                zeros++;
+            }
+        }
+
+        double estimate = 0.7213 / (1.0 + 1.079 / m) * m * m / sum;
+
+        // Linear counting is the better estimate while many registers are still empty
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return estimate;
+    }
+
+    public double getStandardError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    public int getSizeInBytes() {
+        return registers.length;
+    }
+}
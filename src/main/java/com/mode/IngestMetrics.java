@@ -0,0 +1,314 @@
+package com.mode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters for one ingest, kept for the whole table and for each file being loaded. Every
+ * pipeline stage records what it moved and how long it sat blocked on a full queue, and writers
+ * record what they submitted to the database, what it acknowledged and what failed by status.
+ *
+ * A stage that spends its time blocked is waiting on the stage after it, so the first stage that
+ * isn't blocked is the bottleneck: decompression, parsing, conversion or, when even the writer is
+ * blocked on the database, the server. The table's metrics are sampled to the log and registered
+ * over JMX as com.mode:type=IngestMetrics,table=..., with one more bean per file in flight.
+ */
+public class IngestMetrics implements IngestMetricsMXBean, AutoCloseable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(IngestMetrics.class);
+
+    public enum Stage {
+        DECOMPRESS, PARSE, CONVERT, WRITE
+    }
+
+    private final String name;
+    private final IngestMetrics parent;
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder bytesDecompressed = new LongAdder();
+    private final LongAdder rowsParsed = new LongAdder();
+    private final LongAdder rowsConverted = new LongAdder();
+    private final LongAdder rowsSubmitted = new LongAdder();
+    private final LongAdder rowsAcknowledged = new LongAdder();
+    private final LongAdder rowsFailed = new LongAdder();
+    private final AtomicLong queuedBatches = new AtomicLong();
+    private final LongAdder[] blockedNanos = new LongAdder[Stage.values().length];
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+    private final Map<String, IngestMetrics> files = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sampler = null;
+    private ObjectName objectName = null;
+
+    /// Counters as of the last sample, for the per-second rates in the log
+    private long[] lastSample = new long[6];
+    private long lastSampleNanos = startNanos;
+
+    private IngestMetrics(String name, IngestMetrics parent) {
+        this.name = name;
+        this.parent = parent;
+
+        for (int i = 0; i < blockedNanos.length; i++) {
+            blockedNanos[i] = new LongAdder();
+        }
+    }
+
+    public static IngestMetrics start(String tableName) {
+        return start(tableName, 10);
+    }
+
+    /// Metrics for loading a table, logged every period until closed
+    public static IngestMetrics start(String tableName, Integer samplePeriodSeconds) {
+        IngestMetrics metrics = new IngestMetrics(tableName, null);
+        metrics.register("com.mode:type=IngestMetrics,table=" + ObjectName.quote(tableName));
+
+        metrics.sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ingest-metrics-" + tableName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.sampler.scheduleAtFixedRate(metrics::sample, samplePeriodSeconds, samplePeriodSeconds, TimeUnit.SECONDS);
+        return metrics;
+    }
+
+    /// Metrics for one file of the load; everything recorded on it counts toward the table too
+    public IngestMetrics file(String csvPath) {
+        String fileName = new File(csvPath).getName();
+        IngestMetrics metrics = new IngestMetrics(fileName, this);
+        files.put(fileName, metrics);
+        metrics.register(objectName == null ? null : objectName + ",file=" + ObjectName.quote(fileName));
+        return metrics;
+    }
+
+    private void register(String name) {
+        if (name == null) {
+            return;
+        }
+
+        try {
+            objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            LOGGER.warn("Could not register " + name + " over JMX: " + e);
+            objectName = null;
+        }
+    }
+
+    /// Logs the final numbers and unregisters; closing the table's metrics also stops the sampler
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+
+        if (parent != null) {
+            parent.files.remove(name);
+        }
+
+        LOGGER.info(name + " done in " + (System.nanoTime() - startNanos) / 1_000_000 + "ms: " + totals());
+
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOGGER.warn("Could not unregister " + objectName + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Recording
+     */
+
+    public void decompressed(long bytes) {
+        bytesDecompressed.add(bytes);
+        if (parent != null) {
+            parent.decompressed(bytes);
+        }
+    }
+
+    public void parsed(long rows) {
+        rowsParsed.add(rows);
+        if (parent != null) {
+            parent.parsed(rows);
+        }
+    }
+
+    public void converted(long rows) {
+        rowsConverted.add(rows);
+        if (parent != null) {
+            parent.converted(rows);
+        }
+    }
+
+    /// A batch was read from the input and is on its way to the writers
+    public void queued() {
+        queuedBatches.incrementAndGet();
+        if (parent != null) {
+            parent.queued();
+        }
+    }
+
+    /// A writer is done with a batch, whether or not the database has acknowledged its rows yet
+    public void written() {
+        queuedBatches.decrementAndGet();
+        if (parent != null) {
+            parent.written();
+        }
+    }
+
+    /// Queued batches that will never reach a writer because the pipeline failed
+    public void dropped(long batches) {
+        queuedBatches.addAndGet(-batches);
+        if (parent != null) {
+            parent.dropped(batches);
+        }
+    }
+
+    public void submitted(long rows) {
+        rowsSubmitted.add(rows);
+        if (parent != null) {
+            parent.submitted(rows);
+        }
+    }
+
+    public void acknowledged(long rows) {
+        rowsAcknowledged.add(rows);
+        if (parent != null) {
+            parent.acknowledged(rows);
+        }
+    }
+
+    public void failed(String status, long rows) {
+        rowsFailed.add(rows);
+        failures.computeIfAbsent(status, key -> new LongAdder()).add(rows);
+        if (parent != null) {
+            parent.failed(status, rows);
+        }
+    }
+
+    public void blocked(Stage stage, long nanos) {
+        blockedNanos[stage.ordinal()].add(nanos);
+        if (parent != null) {
+            parent.blocked(stage, nanos);
+        }
+    }
+
+    /**
+     * JMX
+     */
+
+    @Override
+    public long getBytesDecompressed() {
+        return bytesDecompressed.sum();
+    }
+
+    @Override
+    public long getRowsParsed() {
+        return rowsParsed.sum();
+    }
+
+    @Override
+    public long getRowsConverted() {
+        return rowsConverted.sum();
+    }
+
+    @Override
+    public long getRowsSubmitted() {
+        return rowsSubmitted.sum();
+    }
+
+    @Override
+    public long getRowsAcknowledged() {
+        return rowsAcknowledged.sum();
+    }
+
+    @Override
+    public long getRowsFailed() {
+        return rowsFailed.sum();
+    }
+
+    @Override
+    public long getQueuedBatches() {
+        return queuedBatches.get();
+    }
+
+    @Override
+    public long getInFlightRows() {
+        return getRowsSubmitted() - getRowsAcknowledged() - getRowsFailed();
+    }
+
+    @Override
+    public Map<String, Long> getBlockedMillis() {
+        Map<String, Long> blockedMillis = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            blockedMillis.put(stage.name(), blockedNanos[stage.ordinal()].sum() / 1_000_000);
+        }
+        return blockedMillis;
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByStatus() {
+        Map<String, Long> failuresByStatus = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> failure : failures.entrySet()) {
+            failuresByStatus.put(failure.getKey(), failure.getValue().sum());
+        }
+        return failuresByStatus;
+    }
+
+    @Override
+    public double getRowsAcknowledgedPerSecond() {
+        return getRowsAcknowledged() / Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    }
+
+    /**
+     * Logging
+     */
+
+    private void sample() {
+        try {
+            LOGGER.info(name + ": " + rates());
+            for (IngestMetrics file : files.values()) {
+                LOGGER.info("  " + file.name + ": " + file.rates());
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule, and losing the log isn't worth failing the load
+            LOGGER.warn("Could not sample ingest metrics: " + e);
+        }
+    }
+
+    /// Per second since the last sample
+    private synchronized String rates() {
+        long[] sample = {getBytesDecompressed(), getRowsParsed(), getRowsConverted(), getRowsSubmitted(), getRowsAcknowledged(), getRowsFailed()};
+        long sampleNanos = System.nanoTime();
+        double seconds = Math.max(1e-9, (sampleNanos - lastSampleNanos) / 1e9);
+
+        double[] rates = new double[sample.length];
+        for (int i = 0; i < sample.length; i++) {
+            rates[i] = (sample[i] - lastSample[i]) / seconds;
+        }
+        lastSample = sample;
+        lastSampleNanos = sampleNanos;
+
+        return String.format("%.1f MB/s decompressed, rows/s parsed %.0f converted %.0f submitted %.0f acked %.0f failed %.0f, " +
+                        "queued %d batches, in flight %d rows, blocked ms %s, failures %s",
+                rates[0] / (1 << 20), rates[1], rates[2], rates[3], rates[4], rates[5],
+                getQueuedBatches(), getInFlightRows(), getBlockedMillis(), getFailuresByStatus());
+    }
+
+    private String totals() {
+        return String.format("%.1f MB decompressed, rows parsed %d converted %d submitted %d acked %d failed %d, " +
+                        "blocked ms %s, failures %s",
+                getBytesDecompressed() / (double) (1 << 20), getRowsParsed(), getRowsConverted(), getRowsSubmitted(),
+                getRowsAcknowledged(), getRowsFailed(), getBlockedMillis(), getFailuresByStatus());
+    }
+}
@@ -0,0 +1,30 @@
+package com.mode;
+
+import java.util.Map;
+
+/// What IngestMetrics exposes over JMX
+public interface IngestMetricsMXBean {
+    long getBytesDecompressed();
+
+    long getRowsParsed();
+
+    long getRowsConverted();
+
+    long getRowsSubmitted();
+
+    long getRowsAcknowledged();
+
+    long getRowsFailed();
+
+    /// Batches read from the input and not yet through a writer, i.e. queued inside the pipeline
+    long getQueuedBatches();
+
+    /// Rows submitted to the database and not yet acknowledged or failed
+    long getInFlightRows();
+
+    Map<String, Long> getBlockedMillis();
+
+    Map<String, Long> getFailuresByStatus();
+
+    double getRowsAcknowledgedPerSecond();
+}
@@ -0,0 +1,487 @@
+package com.mode;
+
+import com.univocity.parsers.csv.CsvParser;
+import com.univocity.parsers.csv.CsvParserSettings;
+
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads one gzipped CSV file through a chain of stages connected by bounded queues:
+ * decompress -> parse -> N convert workers -> M writers. A full queue blocks the stage feeding
+ * it, so a slow writer throttles parsing instead of buffering the whole file. Converters and
+ * writers are created once per worker thread, so they may keep per-thread state. Each stage
+ * records its progress and the time it spends blocked on the next stage's queue in IngestMetrics.
+ *
+ * A ColumnarSnapshot has no text to inflate or parse, so it skips straight to the converters, which
+ * decode its blocks out of the mapped file: snapshot -> N convert workers -> M writers.
+ *
+ * Batches are numbered in file order as they are parsed. Converters finish them in any order, and
+ * writers see them that way unless the Config asks for them in order.
+ */
+public class IngestPipeline<T> {
+    private static final Object END = new Object();
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    public interface Converter<T> {
+        T convert(List<String[]> csvRows) throws Exception;
+
+        /// One block of a columnar snapshot
+        T convert(ColumnarSnapshot snapshot, int block) throws Exception;
+
+        /// Called once the converter's thread is done, e.g. to release native buffers
+        void close() throws Exception;
+    }
+
+    public interface Writer<T> {
+        void write(T batch) throws Exception;
+
+        void close() throws Exception;
+    }
+
+    public static class Config {
+        private Integer decompressChunkBytes = 1 << 20;
+        private Integer decompressQueueDepth = 8;
+        private Integer parseBatchRows = 1024;
+        private Integer parseQueueDepth = 16;
+        private Integer converterThreads = Runtime.getRuntime().availableProcessors();
+        private Integer convertQueueDepth = 16;
+        private Integer writerThreads = 1;
+        private boolean inOrder = false;
+
+        public Config decompress(Integer chunkBytes, Integer queueDepth) {
+            this.decompressChunkBytes = chunkBytes;
+            this.decompressQueueDepth = queueDepth;
+            return this;
+        }
+
+        public Config parse(Integer batchRows, Integer queueDepth) {
+            this.parseBatchRows = batchRows;
+            this.parseQueueDepth = queueDepth;
+            return this;
+        }
+
+        public Config convert(Integer threads, Integer queueDepth) {
+            this.converterThreads = threads;
+            this.convertQueueDepth = queueDepth;
+            return this;
+        }
+
+        public Config write(Integer threads) {
+            this.writerThreads = threads;
+            return this;
+        }
+
+        /**
+         * Hand the one writer its batches in file order, so what it writes, and any ids it assigns,
+         * come out the same on every run. Converters that get a whole getBatchesInFlight() ahead of
+         * the writer wait for it to catch up.
+         */
+        public Config inOrder() {
+            this.inOrder = true;
+            return this;
+        }
+
+        public Integer getParseBatchRows() {
+            return parseBatchRows;
+        }
+
+        /// Most batches that can be between the parser and the writers at once
+        public Integer getBatchesInFlight() {
+            return convertQueueDepth + converterThreads + writerThreads;
+        }
+    }
+
+    private final Config config;
+    private final Supplier<Converter<T>> converters;
+    private final Supplier<Writer<T>> writers;
+
+    public IngestPipeline(Config config, Supplier<Converter<T>> converters, Supplier<Writer<T>> writers) {
+        if (config.inOrder && config.writerThreads != 1) {
+            throw new IllegalArgumentException("Batches can only be written in order by one writer, not " + config.writerThreads);
+        }
+
+        this.config = config;
+        this.converters = converters;
+        this.writers = writers;
+    }
+
+    /**
+     * Runs the file through every stage and returns the number of rows written. The first stage
+     * to fail cancels the others and its exception is rethrown. Paths ending in
+     * ColumnarSnapshot.EXTENSION are loaded as snapshots.
+     */
+    public Long run(String csvFilePath, IngestMetrics metrics) throws IOException, InterruptedException {
+        if (ColumnarSnapshot.isSnapshot(csvFilePath)) {
+            return runSnapshot(ColumnarSnapshot.open(Paths.get(csvFilePath)), metrics);
+        }
+
+        BlockingQueue<byte[]> decompressed = new ArrayBlockingQueue<>(config.decompressQueueDepth);
+        BlockingQueue<Object> parsed = new ArrayBlockingQueue<>(config.parseQueueDepth);
+        BlockingQueue<Object> converted = new ArrayBlockingQueue<>(config.convertQueueDepth);
+
+        AtomicInteger convertersLeft = new AtomicInteger(config.converterThreads);
+        AtomicLong rowsConverted = new AtomicLong();
+        AtomicLong batchesQueued = new AtomicLong();
+        Sequencer sequencer = new Sequencer();
+
+        ExecutorService stageExecutor = Executors.newFixedThreadPool(2 + config.converterThreads + config.writerThreads);
+        CompletionService<Void> stages = new ExecutorCompletionService<>(stageExecutor);
+        int stageCount = 0;
+
+        try {
+            stages.submit(() -> decompress(csvFilePath, decompressed, metrics));
+            stages.submit(() -> parse(decompressed, parsed, batchesQueued, metrics));
+            stageCount += 2;
+
+            for (int i = 0; i < config.converterThreads; i++) {
+                stages.submit(() -> convert(parsed, converted, convertersLeft, rowsConverted, sequencer, metrics));
+                stageCount += 1;
+            }
+
+            for (int i = 0; i < config.writerThreads; i++) {
+                stages.submit(() -> write(converted, sequencer, batchesQueued, metrics));
+                stageCount += 1;
+            }
+
+            await(stages, stageCount, csvFilePath);
+        } finally {
+            stageExecutor.shutdownNow();
+            metrics.dropped(batchesQueued.getAndSet(0));
+        }
+
+        // Every stage finished cleanly, so every converted row has been written
+        return rowsConverted.get();
+    }
+
+    private Long runSnapshot(ColumnarSnapshot snapshot, IngestMetrics metrics) throws IOException, InterruptedException {
+        BlockingQueue<Object> converted = new ArrayBlockingQueue<>(config.convertQueueDepth);
+
+        AtomicInteger nextBlock = new AtomicInteger();
+        AtomicInteger convertersLeft = new AtomicInteger(config.converterThreads);
+        AtomicLong rowsConverted = new AtomicLong();
+        AtomicLong batchesQueued = new AtomicLong();
+        Sequencer sequencer = new Sequencer();
+
+        ExecutorService stageExecutor = Executors.newFixedThreadPool(config.converterThreads + config.writerThreads);
+        CompletionService<Void> stages = new ExecutorCompletionService<>(stageExecutor);
+
+        try {
+            for (int i = 0; i < config.converterThreads; i++) {
+                stages.submit(() -> decode(snapshot, nextBlock, converted, convertersLeft, rowsConverted, batchesQueued, sequencer, metrics));
+            }
+
+            for (int i = 0; i < config.writerThreads; i++) {
+                stages.submit(() -> write(converted, sequencer, batchesQueued, metrics));
+            }
+
+            await(stages, config.converterThreads + config.writerThreads, snapshot.getPath().toString());
+        } finally {
+            stageExecutor.shutdownNow();
+            metrics.dropped(batchesQueued.getAndSet(0));
+        }
+
+        return rowsConverted.get();
+    }
+
+    private static void await(CompletionService<Void> stages, int stageCount, String path) throws IOException, InterruptedException {
+        for (int i = 0; i < stageCount; i++) {
+            try {
+                stages.take().get();
+            } catch (ExecutionException stageException) {
+                Throwable cause = stageException.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new RuntimeException("Ingest pipeline failed for " + path, cause);
+            }
+        }
+    }
+
+    /// Stage 1: inflate the file into fixed size chunks
+    private Void decompress(String csvFilePath, BlockingQueue<byte[]> decompressed, IngestMetrics metrics) throws IOException, InterruptedException {
+        try (InputStream gzipInputStream = new GZIPInputStream(new FileInputStream(csvFilePath), 1 << 16)) {
+            while (true) {
+                byte[] chunk = new byte[config.decompressChunkBytes];
+                int length = readFully(gzipInputStream, chunk);
+
+                if (length > 0) {
+                    metrics.decompressed(length);
+                    put(decompressed, length == chunk.length ? chunk : Arrays.copyOf(chunk, length), metrics, IngestMetrics.Stage.DECOMPRESS);
+                }
+
+                if (length < chunk.length) {
+                    break;
+                }
+            }
+        }
+
+        decompressed.put(END_OF_STREAM);
+        return null;
+    }
+
+    /// Stage 2: parse rows and hand them on in batches
+    private Void parse(BlockingQueue<byte[]> decompressed, BlockingQueue<Object> parsed, AtomicLong batchesQueued,
+                       IngestMetrics metrics) throws InterruptedException {
+        final CsvParserSettings settings = new CsvParserSettings();
+        settings.setHeaderExtractionEnabled(true);
+        settings.setMaxCharsPerColumn(-1);
+
+        final CsvParser inputParser = new CsvParser(settings);
+        inputParser.beginParsing(new BufferedReader(new InputStreamReader(new QueueInputStream(decompressed))));
+
+        List<String[]> batch = new ArrayList<>(config.parseBatchRows);
+        long sequence = 0;
+        String[] csvRow;
+
+        while ((csvRow = inputParser.parseNext()) != null) {
+            batch.add(csvRow);
+
+            if (batch.size() == config.parseBatchRows) {
+                metrics.parsed(batch.size());
+                queued(batchesQueued, metrics);
+                put(parsed, new Numbered(sequence++, batch), metrics, IngestMetrics.Stage.PARSE);
+                batch = new ArrayList<>(config.parseBatchRows);
+            }
+        }
+
+        inputParser.stopParsing();
+
+        if (!batch.isEmpty()) {
+            metrics.parsed(batch.size());
+            queued(batchesQueued, metrics);
+            put(parsed, new Numbered(sequence, batch), metrics, IngestMetrics.Stage.PARSE);
+        }
+
+        for (int i = 0; i < config.converterThreads; i++) {
+            parsed.put(END);
+        }
+
+        return null;
+    }
+
+    /// Stage 3: convert batches to the writer's row format
+    @SuppressWarnings("unchecked")
+    private Void convert(BlockingQueue<Object> parsed, BlockingQueue<Object> converted, AtomicInteger convertersLeft,
+                         AtomicLong rowsConverted, Sequencer sequencer, IngestMetrics metrics) throws Exception {
+        Converter<T> converter = converters.get();
+
+        try {
+            Object batch;
+            while ((batch = parsed.take()) != END) {
+                Numbered numbered = (Numbered) batch;
+                List<String[]> csvRows = (List<String[]>) numbered.batch;
+                T rows = converter.convert(csvRows);
+                metrics.converted(csvRows.size());
+                handOn(converted, new Numbered(numbered.sequence, rows), sequencer, metrics);
+                rowsConverted.addAndGet(csvRows.size());
+            }
+        } finally {
+            converter.close();
+        }
+
+        // The last converter out tells every writer to finish
+        if (convertersLeft.decrementAndGet() == 0) {
+            for (int i = 0; i < config.writerThreads; i++) {
+                converted.put(END);
+            }
+        }
+
+        return null;
+    }
+
+    /// Snapshot stage: converters take the next block until there are none left and decode it
+    private Void decode(ColumnarSnapshot snapshot, AtomicInteger nextBlock, BlockingQueue<Object> converted, AtomicInteger convertersLeft,
+                        AtomicLong rowsConverted, AtomicLong batchesQueued, Sequencer sequencer, IngestMetrics metrics) throws Exception {
+        Converter<T> converter = converters.get();
+
+        try {
+            int block;
+            while ((block = nextBlock.getAndIncrement()) < snapshot.getBlockCount()) {
+                int rows = snapshot.getBlockRows(block);
+                metrics.decompressed(snapshot.getBlockBytes(block));
+                metrics.parsed(rows);
+                queued(batchesQueued, metrics);
+
+                T batch = converter.convert(snapshot, block);
+                metrics.converted(rows);
+                handOn(converted, new Numbered(block, batch), sequencer, metrics);
+                rowsConverted.addAndGet(rows);
+            }
+        } finally {
+            converter.close();
+        }
+
+        if (convertersLeft.decrementAndGet() == 0) {
+            for (int i = 0; i < config.writerThreads; i++) {
+                converted.put(END);
+            }
+        }
+
+        return null;
+    }
+
+    /// In order, a converter waits until its batch is within the window the writer will hold
+    private void handOn(BlockingQueue<Object> converted, Numbered batch, Sequencer sequencer, IngestMetrics metrics) throws InterruptedException {
+        if (config.inOrder) {
+            sequencer.awaitTurn(batch.sequence, config.getBatchesInFlight());
+        }
+        put(converted, batch, metrics, IngestMetrics.Stage.CONVERT);
+    }
+
+    /// Stage 4: hand converted batches to the database, holding back any that arrive early when in order
+    @SuppressWarnings("unchecked")
+    private Void write(BlockingQueue<Object> converted, Sequencer sequencer, AtomicLong batchesQueued, IngestMetrics metrics) throws Exception {
+        Writer<T> writer = writers.get();
+        Map<Long, Object> early = new HashMap<>();
+
+        try {
+            Object batch;
+            while ((batch = converted.take()) != END) {
+                Numbered numbered = (Numbered) batch;
+                if (!config.inOrder) {
+                    writer.write((T) numbered.batch);
+                    written(batchesQueued, metrics);
+                    continue;
+                }
+
+                early.put(numbered.sequence, numbered.batch);
+                Object next;
+                while ((next = early.remove(sequencer.next())) != null) {
+                    writer.write((T) next);
+                    written(batchesQueued, metrics);
+                    sequencer.advance();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        return null;
+    }
+
+    /// The run counts its own queued batches, so if it fails it can drop what never got written
+    private static void queued(AtomicLong batchesQueued, IngestMetrics metrics) {
+        batchesQueued.incrementAndGet();
+        metrics.queued();
+    }
+
+    private static void written(AtomicLong batchesQueued, IngestMetrics metrics) {
+        batchesQueued.decrementAndGet();
+        metrics.written();
+    }
+
+    /// A batch and its place in the file: the parse batch or snapshot block number
+    private static final class Numbered {
+        private final long sequence;
+        private final Object batch;
+
+        Numbered(long sequence, Object batch) {
+            this.sequence = sequence;
+            this.batch = batch;
+        }
+    }
+
+    /// The next batch the writer needs, which converters further ahead than the window wait on
+    private static final class Sequencer {
+        private long next = 0;
+
+        synchronized long next() {
+            return next;
+        }
+
+        synchronized void advance() {
+            next++;
+            notifyAll();
+        }
+
+        synchronized void awaitTurn(long sequence, int window) throws InterruptedException {
+            while (sequence >= next + window) {
+                wait();
+            }
+        }
+    }
+
+    /// Only a put that finds the queue full is timed
+    private static <E> void put(BlockingQueue<E> queue, E item, IngestMetrics metrics, IngestMetrics.Stage stage) throws InterruptedException {
+        if (queue.offer(item)) {
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        queue.put(item);
+        metrics.blocked(stage, System.nanoTime() - startNanos);
+    }
+
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int count = input.read(buffer, length, buffer.length - length);
+            if (count < 0) {
+                break;
+            }
+            length += count;
+        }
+        return length;
+    }
+
+    /// Presents the decompressed chunks as one stream to the parser
+    private static class QueueInputStream extends InputStream {
+        private final BlockingQueue<byte[]> chunks;
+        private byte[] chunk = new byte[0];
+        private int position = 0;
+
+        QueueInputStream(BlockingQueue<byte[]> chunks) {
+            this.chunks = chunks;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (chunk == END_OF_STREAM) {
+                return false;
+            }
+
+            try {
+                chunk = chunks.take();
+                position = 0;
+                return chunk != END_OF_STREAM;
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for decompressed data");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (position == chunk.length) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            return chunk[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (position == chunk.length) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+
+            int count = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.mode;
+
+/**
+ * One page of a keyset walk: what reading it cost and the token to continue from, null once a page
+ * comes back short of its limit.
+ */
+public class KeysetPage {
+    private final ResultStats stats;
+    private final PageToken next;
+
+    public KeysetPage(ResultStats stats, PageToken next) {
+        this.stats = stats;
+        this.next = next;
+    }
+
+    public ResultStats getStats() {
+        return stats;
+    }
+
+    public Long getRows() {
+        return stats.getRows();
+    }
+
+    public PageToken getNext() {
+        return next;
+    }
+}
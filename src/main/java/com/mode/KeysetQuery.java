@@ -0,0 +1,140 @@
+package com.mode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SQL for keyset pages. Rows are ordered by the sort columns, nulls as the smallest value as VoltDB
+ * and PagingIndex order them, then by id in the last column's direction so a single-column order
+ * is one direction throughout and can be read straight off an index on (columns, id).
+ *
+ * Rows after a token are expanded into ORs of equalities, behind a range bound on the leading column
+ * that keeps the query a seek. The bound can't admit nulls, so when they come after the token a
+ * second segment reads them; a page runs the segments in order until it is full.
+ */
+final class KeysetQuery {
+    static class Segment {
+        String where = "";
+        final List<Object> params = new ArrayList<>();
+        final List<ColumnType> paramTypes = new ArrayList<>();
+
+        void addParam(Object value, ColumnType type) {
+            params.add(value);
+            paramTypes.add(type);
+        }
+    }
+
+    private KeysetQuery() {
+    }
+
+    static SortDirection idDirection(List<SortColumn> sortColumns) {
+        return sortColumns.isEmpty() ? SortDirection.ASC : sortColumns.get(sortColumns.size() - 1).getDirection();
+    }
+
+    /// explicitNulls spells out NULLS FIRST/LAST for engines that don't already sort nulls lowest
+    static String orderBy(List<SortColumn> sortColumns, boolean explicitNulls) {
+        List<String> terms = new ArrayList<>();
+        for (SortColumn sortColumn : sortColumns) {
+            String nulls = !explicitNulls ? "" : sortColumn.getDirection() == SortDirection.ASC ? " NULLS FIRST" : " NULLS LAST";
+            terms.add(sortColumn + nulls);
+        }
+        terms.add("id " + idDirection(sortColumns));
+        return " ORDER BY " + String.join(", ", terms);
+    }
+
+    /// WHERE clauses, without the keyword, of the segments after the token; one empty clause when there is no token
+    static List<Segment> segments(List<SortColumn> sortColumns, PageToken after) {
+        Segment segment = new Segment();
+
+        if (after == null) {
+            return Collections.singletonList(segment);
+        }
+
+        if (sortColumns.isEmpty()) {
+            segment.where = expand(sortColumns, after, false, segment);
+            return Collections.singletonList(segment);
+        }
+
+        SortColumn leading = sortColumns.get(0);
+        Object leadingValue = after.getValue(0);
+        String leadingName = leading.getName();
+
+        if (leadingValue == null) {
+            // Inside the null run: DESC has only nulls left, ASC every non-null row too
+            String expanded = "(" + expand(sortColumns, after, false, segment) + ")";
+            segment.where = leading.getDirection() == SortDirection.DESC ? leadingName + " IS NULL AND " + expanded : expanded;
+            return Collections.singletonList(segment);
+        }
+
+        segment.addParam(leadingValue, leading.getType());
+        segment.where = leadingName + (leading.getDirection() == SortDirection.ASC ? " >= ?" : " <= ?") +
+                " AND (" + expand(sortColumns, after, true, segment) + ")";
+
+        if (leading.getDirection() == SortDirection.ASC) {
+            return Collections.singletonList(segment);
+        }
+
+        // DESC puts nulls last, past everything the bound admits
+        Segment nulls = new Segment();
+        nulls.where = leadingName + " IS NULL";
+        return Arrays.asList(segment, nulls);
+    }
+
+    /**
+     * (c1 after v1) OR (c1 = v1 AND c2 after v2) OR ... OR (c1 = v1 AND ... AND id after), adding the
+     * parameters to the segment. boundedLeading leaves out the nulls the leading bound excludes anyway.
+     */
+    private static String expand(List<SortColumn> sortColumns, PageToken after, boolean boundedLeading, Segment segment) {
+        List<String> terms = new ArrayList<>();
+
+        for (int i = 0; i <= sortColumns.size(); i++) {
+            boolean idTerm = i == sortColumns.size();
+            String next = idTerm ? idAfter(sortColumns) : columnAfter(sortColumns.get(i), after.getValue(i), boundedLeading && i == 0);
+            if (next == null) {
+                continue;
+            }
+
+            List<String> conjuncts = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                Object value = after.getValue(j);
+                if (value == null) {
+                    conjuncts.add(sortColumns.get(j).getName() + " IS NULL");
+                } else {
+                    conjuncts.add(sortColumns.get(j).getName() + " = ?");
+                    segment.addParam(value, sortColumns.get(j).getType());
+                }
+            }
+
+            conjuncts.add(next);
+            if (idTerm) {
+                segment.addParam(after.getId(), ColumnType.INTEGER);
+            } else if (after.getValue(i) != null) {
+                segment.addParam(after.getValue(i), sortColumns.get(i).getType());
+            }
+
+            terms.add("(" + String.join(" AND ", conjuncts) + ")");
+        }
+
+        return String.join(" OR ", terms);
+    }
+
+    /// Rows after the value in the column alone; null when there are none
+    private static String columnAfter(SortColumn sortColumn, Object value, boolean excludeNulls) {
+        String name = sortColumn.getName();
+
+        if (sortColumn.getDirection() == SortDirection.ASC) {
+            return value == null ? name + " IS NOT NULL" : name + " > ?";
+        }
+
+        if (value == null) {
+            return null;
+        }
+        return excludeNulls ? name + " < ?" : "(" + name + " < ? OR " + name + " IS NULL)";
+    }
+
+    private static String idAfter(List<SortColumn> sortColumns) {
+        return idDirection(sortColumns) == SortDirection.ASC ? "id > ?" : "id < ?";
+    }
+}
@@ -0,0 +1,93 @@
+package com.mode;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds. Every power of two is split into 256 linear
+ * buckets, so a reported percentile is within 0.4% of the latency recorded; values past an hour
+ * are clamped. Each client records into its own histogram and they are merged for the report.
+ */
+public class LatencyHistogram {
+    private static final int PRECISION_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+    private static final long MAX_VALUE = 3_600_000_000_000L;
+
+    private final long[] counts = new long[index(MAX_VALUE) + 1];
+    private long totalCount = 0;
+    private long maxValue = 0;
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /// Largest value that lands in the bucket
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index - shift * SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0L), MAX_VALUE);
+        counts[index(value)]++;
+        totalCount++;
+        maxValue = Math.max(maxValue, value);
+    }
+
+    /**
+     * Coordinated omission correction for closed-loop clients: a request that took longer than the
+     * client's usual cycle stalled the requests it would have sent meanwhile, so those are recorded
+     * too, each waiting one interval less than the one before.
+     */
+    public void record(long nanos, long expectedIntervalNanos) {
+        record(nanos);
+
+        if (expectedIntervalNanos <= 0) {
+            return;
+        }
+
+        for (long missed = nanos - expectedIntervalNanos; missed >= expectedIntervalNanos; missed -= expectedIntervalNanos) {
+            record(missed);
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    /// The latency that the given percent of recorded values are at or below
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0L;
+        }
+
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+}
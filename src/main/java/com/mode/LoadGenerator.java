@@ -0,0 +1,325 @@
+package com.mode;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Concurrent clients running a weighted mix of the workload's table, indexed and pivot queries
+ * against a loaded engine. Closed loop, a client sends its next query as soon as the last one is
+ * back; open loop, the clients send on fixed schedules adding up to the target rate whether or not
+ * earlier queries are back, and latency counts from when a query was due rather than when it went
+ * out. Both ways the histograms are corrected for coordinated omission. Closed loop, a stall is
+ * measured against a fixed interval per query type: the one configured, or else the client's mean
+ * time for that type over the warmup, so the interval doesn't drift up with the stalls it measures.
+ */
+public class LoadGenerator {
+    public enum QueryType {
+        TABLE, INDEXED, PIVOT
+    }
+
+    public static class Config {
+        private Integer clients = 8;
+        private Double ratePerSecond = null;
+        private Integer warmupSeconds = 5;
+        private Integer durationSeconds = 30;
+        private final Map<QueryType, Integer> weights = new EnumMap<>(QueryType.class);
+        private final Map<QueryType, Double> expectedMillis = new EnumMap<>(QueryType.class);
+
+        public Config() {
+            weights.put(QueryType.TABLE, 6);
+            weights.put(QueryType.INDEXED, 3);
+            weights.put(QueryType.PIVOT, 1);
+        }
+
+        public Config clients(Integer clients) {
+            this.clients = clients;
+            return this;
+        }
+
+        public Config closedLoop() {
+            this.ratePerSecond = null;
+            return this;
+        }
+
+        /// Queries per second across all clients
+        public Config openLoop(Double ratePerSecond) {
+            this.ratePerSecond = ratePerSecond;
+            return this;
+        }
+
+        public Config duration(Integer warmupSeconds, Integer durationSeconds) {
+            this.warmupSeconds = warmupSeconds;
+            this.durationSeconds = durationSeconds;
+            return this;
+        }
+
+        public Config weight(QueryType queryType, Integer weight) {
+            this.weights.put(queryType, weight);
+            return this;
+        }
+
+        /// Closed loop: how long a query of this type should take, instead of the warmup's mean
+        public Config expectedInterval(QueryType queryType, Double millis) {
+            this.expectedMillis.put(queryType, millis);
+            return this;
+        }
+
+        public Integer getClients() {
+            return clients;
+        }
+
+        public boolean isOpenLoop() {
+            return ratePerSecond != null;
+        }
+
+        public Integer getDurationSeconds() {
+            return durationSeconds;
+        }
+    }
+
+    /// One query type's latencies over the measured window
+    public static class Report {
+        private final QueryType queryType;
+        private final LatencyHistogram histogram;
+        private final Long count;
+        private final Long errors;
+        private final Integer seconds;
+
+        Report(QueryType queryType, LatencyHistogram histogram, Long count, Long errors, Integer seconds) {
+            this.queryType = queryType;
+            this.histogram = histogram;
+            this.count = count;
+            this.errors = errors;
+            this.seconds = seconds;
+        }
+
+        public QueryType getQueryType() {
+            return queryType;
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+
+        /// Queries actually completed; the histogram also holds the ones corrected for
+        public Long getCount() {
+            return count;
+        }
+
+        public Long getErrors() {
+            return errors;
+        }
+
+        public Double getThroughput() {
+            return (double) count / seconds;
+        }
+
+        public Double getPercentileMillis(double percentile) {
+            return histogram.getValueAtPercentile(percentile) / 1e6;
+        }
+
+        public Double getMaxMillis() {
+            return histogram.getMaxValue() / 1e6;
+        }
+    }
+
+    private final StorageEngine engine;
+    private final Workload workload;
+    private final PagingIndex index;
+    private final Config config;
+
+    public LoadGenerator(StorageEngine engine, Workload workload, PagingIndex index, Config config) {
+        this.engine = engine;
+        this.workload = workload;
+        this.index = index;
+        this.config = config;
+    }
+
+    public List<Report> run() throws Exception {
+        long startNanos = System.nanoTime();
+        long measureNanos = startNanos + config.warmupSeconds * 1_000_000_000L;
+        long endNanos = measureNanos + config.durationSeconds * 1_000_000_000L;
+
+        ExecutorService executor = Executors.newFixedThreadPool(config.clients);
+        List<Future<Client>> clients = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < config.clients; i++) {
+                Client client = new Client(i, startNanos, measureNanos, endNanos);
+                clients.add(executor.submit(() -> {
+                    client.run();
+                    return client;
+                }));
+            }
+
+            Map<QueryType, LatencyHistogram> histograms = new EnumMap<>(QueryType.class);
+            long[] counts = new long[QueryType.values().length];
+            long[] errors = new long[QueryType.values().length];
+            for (QueryType queryType : QueryType.values()) {
+                histograms.put(queryType, new LatencyHistogram());
+            }
+
+            for (Future<Client> future : clients) {
+                Client client = future.get();
+                for (QueryType queryType : QueryType.values()) {
+                    histograms.get(queryType).add(client.histograms.get(queryType));
+                    counts[queryType.ordinal()] += client.counts[queryType.ordinal()];
+                    errors[queryType.ordinal()] += client.errors[queryType.ordinal()];
+                }
+            }
+
+            List<Report> reports = new ArrayList<>();
+            for (QueryType queryType : QueryType.values()) {
+                if (config.weights.getOrDefault(queryType, 0) > 0) {
+                    reports.add(new Report(queryType, histograms.get(queryType), counts[queryType.ordinal()], errors[queryType.ordinal()],
+                            config.durationSeconds));
+                }
+            }
+            return reports;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ResultStats execute(QueryType queryType, SplittableRandom random) throws Exception {
+        String tableName = workload.getTableName();
+        long limit = workload.getPageLimit();
+
+        switch (queryType) {
+            case TABLE: {
+                long offset = random.nextLong(workload.getPageOffset() / limit + 1) * limit;
+                return engine.selectPage(tableName, workload.getPageColumns(), workload.getPageOrder(), limit, offset);
+            }
+            case INDEXED: {
+                long offset = random.nextLong(Math.max(1L, index.getCardinality() / limit)) * limit;
+                return engine.selectIds(tableName, workload.getIndexSort(), index.lookup(limit, offset, SortDirection.ASC));
+            }
+            default:
+                return engine.pivot(tableName, workload.getPivotDimensions());
+        }
+    }
+
+    /// Each client keeps its own histograms and random source, seeded by its number so runs repeat
+    private class Client {
+        private final int number;
+        private final long startNanos;
+        private final long measureNanos;
+        private final long endNanos;
+        private final SplittableRandom random;
+        private final QueryType[] queryTypes;
+        private final int[] cumulativeWeights;
+        private final Map<QueryType, LatencyHistogram> histograms = new EnumMap<>(QueryType.class);
+        private final long[] counts = new long[QueryType.values().length];
+        private final long[] errors = new long[QueryType.values().length];
+
+        /// Closed loop only: queries run and time spent per type during the warmup, whose mean is the
+        /// interval a stall is measured against unless the config sets one
+        private final long[] warmupCycles = new long[QueryType.values().length];
+        private final long[] warmupNanos = new long[QueryType.values().length];
+
+        Client(int number, long startNanos, long measureNanos, long endNanos) {
+            this.number = number;
+            this.startNanos = startNanos;
+            this.measureNanos = measureNanos;
+            this.endNanos = endNanos;
+            this.random = new SplittableRandom(number);
+
+            List<QueryType> weighted = new ArrayList<>();
+            for (QueryType queryType : QueryType.values()) {
+                histograms.put(queryType, new LatencyHistogram());
+                if (config.weights.getOrDefault(queryType, 0) > 0) {
+                    weighted.add(queryType);
+                }
+            }
+
+            queryTypes = weighted.toArray(new QueryType[0]);
+            cumulativeWeights = new int[queryTypes.length];
+            int total = 0;
+            for (int i = 0; i < queryTypes.length; i++) {
+                total += config.weights.get(queryTypes[i]);
+                cumulativeWeights[i] = total;
+            }
+        }
+
+        private QueryType nextQueryType() {
+            int draw = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            int i = 0;
+            while (draw >= cumulativeWeights[i]) {
+                i++;
+            }
+            return queryTypes[i];
+        }
+
+        void run() {
+            boolean openLoop = config.isOpenLoop();
+
+            // Open loop clients are staggered across one interval so the arrivals interleave evenly
+            long intervalNanos = openLoop ? (long) (config.clients * 1e9 / config.ratePerSecond) : 0L;
+            long dueNanos = startNanos + intervalNanos * number / config.clients;
+
+            boolean reported = false;
+
+            while (true) {
+                long nowNanos = System.nanoTime();
+                if (openLoop) {
+                    if (dueNanos >= endNanos) {
+                        break;
+                    }
+                    while (nowNanos < dueNanos) {
+                        LockSupport.parkNanos(dueNanos - nowNanos);
+                        nowNanos = System.nanoTime();
+                    }
+                } else if (nowNanos >= endNanos) {
+                    break;
+                }
+
+                long sentNanos = openLoop ? dueNanos : nowNanos;
+                QueryType queryType = nextQueryType();
+                boolean failed = false;
+
+                try {
+                    execute(queryType, random);
+                } catch (Exception e) {
+                    failed = true;
+                    if (!reported) {
+                        System.out.println("Client " + number + " " + queryType + " failed: " + e);
+                        reported = true;
+                    }
+                }
+
+                long doneNanos = System.nanoTime();
+                int type = queryType.ordinal();
+
+                if (sentNanos >= measureNanos) {
+                    if (failed) {
+                        errors[type]++;
+                    } else {
+                        // Open loop latency already includes any wait behind a late query
+                        long expectedNanos = openLoop ? 0L : expectedNanos(queryType);
+                        histograms.get(queryType).record(doneNanos - sentNanos, expectedNanos);
+                        counts[type]++;
+                    }
+                } else if (!failed) {
+                    warmupCycles[type]++;
+                    warmupNanos[type] += doneNanos - nowNanos;
+                }
+
+                dueNanos += intervalNanos;
+            }
+        }
+
+        /// Zero, meaning no correction, if the type was neither configured nor run during the warmup
+        private long expectedNanos(QueryType queryType) {
+            Double millis = config.expectedMillis.get(queryType);
+            if (millis != null) {
+                return (long) (millis * 1e6);
+            }
+
+            int type = queryType.ordinal();
+            return warmupCycles[type] == 0 ? 0L : warmupNanos[type] / warmupCycles[type];
+        }
+    }
+}
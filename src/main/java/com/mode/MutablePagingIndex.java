@@ -0,0 +1,161 @@
+package com.mode;
+
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.MappeableContainerPointer;
+import org.roaringbitmap.buffer.MutableRoaringArray;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A PagingIndex that can be maintained while rows are being loaded. Engines add a row once the
+ * write is acknowledged. Writers lock only the stripe that owns their key and note which 2^16-id
+ * chunk of the key they changed. Lookups are served from an immutable PagingIndex snapshot, rebuilt
+ * lazily after the index has changed. A changed key's bitmap shares every untouched chunk with the
+ * last snapshot and copies only the dirty ones, so a lookup during ingest costs what changed since
+ * the last one and holds up one stripe at a time.
+ */
+public class MutablePagingIndex {
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final Stripe[] stripes;
+
+    private final List<SortColumn> sortColumns;
+    /// Every bucket as of the last snapshot, never written once published; later snapshots share their chunks
+    private final TreeMap<SortKey, MutableRoaringBitmap> published = new TreeMap<>();
+    private PagingIndex snapshot;
+
+    public MutablePagingIndex(List<SortColumn> sortColumns) {
+        this(sortColumns, DEFAULT_STRIPES);
+    }
+
+    public MutablePagingIndex(List<SortColumn> sortColumns, Integer stripeCount) {
+        if (Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two, got " + stripeCount);
+        }
+
+        this.sortColumns = sortColumns;
+        this.snapshot = new PagingIndex(sortColumns, new TreeMap<>());
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public void add(long id, SortKey key) {
+        int value = PagingIndex.toBitmapId(id);
+        Stripe stripe = stripeFor(key);
+
+        synchronized (stripe) {
+            stripe.buckets.computeIfAbsent(key, absentKey -> new MutableRoaringBitmap()).add(value);
+            stripe.dirty(key, value);
+        }
+    }
+
+    public void remove(long id, SortKey key) {
+        int value = PagingIndex.toBitmapId(id);
+        Stripe stripe = stripeFor(key);
+
+        synchronized (stripe) {
+            MutableRoaringBitmap bucket = stripe.buckets.get(key);
+            if (bucket != null) {
+                bucket.remove(value);
+                if (bucket.isEmpty()) {
+                    stripe.buckets.remove(key);
+                }
+                stripe.dirty(key, value);
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                // Any chunk a key has by the next snapshot was written since, so marking the key is enough
+                for (SortKey key : stripe.buckets.keySet()) {
+                    stripe.dirtyChunks.computeIfAbsent(key, absentKey -> new RoaringBitmap());
+                }
+                stripe.buckets.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns an immutable view of the index, cached until the next write. Each stripe is seen as
+     * of one moment, so rows added while the snapshot is taken may or may not be in it.
+     */
+    public synchronized PagingIndex snapshot() {
+        boolean changed = false;
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<SortKey, RoaringBitmap> dirty : stripe.dirtyChunks.entrySet()) {
+                    SortKey key = dirty.getKey();
+                    MutableRoaringBitmap bucket = stripe.buckets.get(key);
+                    if (bucket == null) {
+                        published.remove(key);
+                    } else {
+                        published.put(key, publish(bucket, published.get(key), dirty.getValue()));
+                    }
+                }
+                changed |= !stripe.dirtyChunks.isEmpty();
+                stripe.dirtyChunks.clear();
+            }
+        }
+
+        if (changed) {
+            snapshot = new PagingIndex(sortColumns, published);
+        }
+        return snapshot;
+    }
+
+    /// A copy of the bucket that copies only the dirty chunks and shares the rest with the last published copy
+    private static MutableRoaringBitmap publish(MutableRoaringBitmap bucket, MutableRoaringBitmap last, RoaringBitmap dirtyChunks) {
+        MutableRoaringArray lastChunks = last == null ? null : last.getMappeableRoaringArray();
+        MutableRoaringArray chunks = new MutableRoaringArray(bucket.getMappeableRoaringArray().size());
+
+        MappeableContainerPointer chunk = bucket.getMappeableRoaringArray().getContainerPointer();
+        while (chunk.hasContainer()) {
+            short high = chunk.key();
+            int lastIndex = lastChunks == null || dirtyChunks.contains(Short.toUnsignedInt(high)) ? -1 : lastChunks.getIndex(high);
+            chunks.append(high, lastIndex < 0 ? chunk.getContainer().clone() : lastChunks.getContainerAtIndex(lastIndex));
+            chunk.advance();
+        }
+        return new MutableRoaringBitmap(chunks);
+    }
+
+    public long[] lookup(long limit, long offset, SortDirection direction) {
+        return snapshot().lookup(limit, offset, direction);
+    }
+
+    public long[] lookup(long limit, long offset, SortDirection direction, BitmapFilter filter) {
+        return snapshot().lookup(limit, offset, direction, filter);
+    }
+
+    public Long getCardinality() {
+        return snapshot().getCardinality();
+    }
+
+    public List<SortColumn> getSortColumns() {
+        return sortColumns;
+    }
+
+    private Stripe stripeFor(SortKey key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    private static class Stripe {
+        private final Map<SortKey, MutableRoaringBitmap> buckets = new HashMap<>();
+        /// Keys written since the last snapshot, with the high 16 bits of the ids written
+        private final Map<SortKey, RoaringBitmap> dirtyChunks = new HashMap<>();
+
+        void dirty(SortKey key, int value) {
+            dirtyChunks.computeIfAbsent(key, absentKey -> new RoaringBitmap()).add(value >>> 16);
+        }
+    }
+}
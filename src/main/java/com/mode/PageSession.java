@@ -0,0 +1,196 @@
+package com.mode;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * One user paging through an indexed view. Once two requests in a row are a page apart the session
+ * knows which way the user is going, and while the current page is being read it resolves and
+ * fetches up to depth pages further that way in the background. A jump cancels whatever read-ahead
+ * is no longer ahead of the user, and a page that was read ahead is served from memory.
+ *
+ * A session belongs to a single user and is not thread safe.
+ */
+public class PageSession implements AutoCloseable {
+    private static final class Page {
+        private final List<RowBatch> batches;
+        private final ResultStats stats;
+
+        Page(List<RowBatch> batches, ResultStats stats) {
+            this.batches = batches;
+            this.stats = stats;
+        }
+    }
+
+    private final StorageEngine engine;
+    private final String tableName;
+    private final PagingIndex index;
+    private final SortDirection direction;
+    private final BitmapFilter filter;
+    private final Long limit;
+    private final Integer depth;
+    private final Long cardinality;
+    private final ExecutorService executor;
+
+    private final Map<Long, Future<Page>> readAhead = new LinkedHashMap<>();
+    private long lastOffset = -1;
+
+    private long pages = 0;
+    private long fromMemory = 0;
+    private long waited = 0;
+    private long cancelled = 0;
+    private long pageNanos = 0;
+
+    public PageSession(StorageEngine engine, String tableName, PagingIndex index, SortDirection direction, BitmapFilter filter,
+                       Long limit, Integer depth) {
+        this.engine = engine;
+        this.tableName = tableName;
+        this.index = index;
+        this.direction = direction;
+        this.filter = filter;
+        this.limit = limit;
+        this.depth = depth;
+        this.cardinality = filter == null ? index.getCardinality() : index.getCardinality(filter);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, depth), runnable -> {
+            Thread thread = new Thread(runnable, "read-ahead-" + tableName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public ResultStats page(long offset) throws Exception {
+        return page(offset, null);
+    }
+
+    public ResultStats page(long offset, ResultDecoder.BatchConsumer consumer) throws Exception {
+        long startNanos = System.nanoTime();
+        int step = lastOffset < 0 ? 0 : offset == lastOffset + limit ? 1 : offset == lastOffset - limit ? -1 : 0;
+        lastOffset = offset;
+
+        ResultStats stats = null;
+        Future<Page> ahead = readAhead.remove(offset);
+
+        if (ahead != null) {
+            if (!ahead.isDone()) {
+                waited++;
+            }
+
+            try {
+                stats = replay(ahead.get(), consumer, startNanos);
+                fromMemory++;
+            } catch (ExecutionException readAheadException) {
+                // Fetched again below, where a real failure reaches the caller
+            }
+        }
+
+        if (stats == null) {
+            stats = engine.selectIds(tableName, index.getSortColumns(), lookup(offset), consumer);
+        }
+
+        pages++;
+        pageNanos += System.nanoTime() - startNanos;
+
+        readAhead(offset, step);
+        return stats;
+    }
+
+    private long[] lookup(long offset) {
+        return filter == null ? index.lookup(limit, offset, direction) : index.lookup(limit, offset, direction, filter);
+    }
+
+    private static ResultStats replay(Page page, ResultDecoder.BatchConsumer consumer, long startNanos) {
+        long firstRowNanos = -1;
+        for (RowBatch batch : page.batches) {
+            if (firstRowNanos < 0) {
+                firstRowNanos = System.nanoTime() - startNanos;
+            }
+            if (consumer != null) {
+                consumer.accept(batch);
+            }
+        }
+
+        long lastRowNanos = System.nanoTime() - startNanos;
+        return new ResultStats(page.stats.getRows(), page.stats.getBytes(), firstRowNanos < 0 ? lastRowNanos : firstRowNanos, lastRowNanos);
+    }
+
+    /// Keeps the next depth pages in the user's direction in flight and cancels the rest
+    private void readAhead(long offset, int step) {
+        List<Long> ahead = new ArrayList<>();
+        for (int i = 1; step != 0 && i <= depth; i++) {
+            long next = offset + step * i * limit;
+            if (next < 0 || next >= cardinality) {
+                break;
+            }
+            ahead.add(next);
+        }
+
+        Iterator<Map.Entry<Long, Future<Page>>> pending = readAhead.entrySet().iterator();
+        while (pending.hasNext()) {
+            Map.Entry<Long, Future<Page>> entry = pending.next();
+            if (!ahead.contains(entry.getKey())) {
+                if (entry.getValue().cancel(true)) {
+                    cancelled++;
+                }
+                pending.remove();
+            }
+        }
+
+        for (Long next : ahead) {
+            if (!readAhead.containsKey(next)) {
+                readAhead.put(next, executor.submit(() -> fetch(next)));
+            }
+        }
+    }
+
+    /// Both the id resolution and the row fetch, keeping copies of the rows to serve later
+    private Page fetch(long offset) throws Exception {
+        List<RowBatch> batches = new ArrayList<>();
+        ResultStats stats = engine.selectIds(tableName, index.getSortColumns(), lookup(offset), batch -> batches.add(batch.copy()));
+        return new Page(batches, stats);
+    }
+
+    @Override
+    public void close() {
+        for (Future<Page> pending : readAhead.values()) {
+            if (pending.cancel(true)) {
+                cancelled++;
+            }
+        }
+        readAhead.clear();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Metrics
+     */
+
+    public long getPages() {
+        return pages;
+    }
+
+    public long getFromMemory() {
+        return fromMemory;
+    }
+
+    /// Pages that were read ahead but still in flight when asked for
+    public long getWaited() {
+        return waited;
+    }
+
+    public long getCancelled() {
+        return cancelled;
+    }
+
+    public double getMeanPageMillis() {
+        return pages == 0 ? 0.0 : pageNanos / 1e6 / pages;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d pages, %d read ahead (%d still in flight), %d read-aheads cancelled, %.3f ms mean page",
+                pages, fromMemory, waited, cancelled, getMeanPageMillis());
+    }
+}
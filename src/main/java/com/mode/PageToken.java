@@ -0,0 +1,103 @@
+package com.mode;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Where a keyset page left off: the sort column values and id of its last row. Values are Long for
+ * INTEGER, Double for DOUBLE and Long microseconds for TIMESTAMP, null for SQL nulls. serialize()
+ * gives the opaque string handed to clients and parse() reads it back.
+ */
+public final class PageToken {
+    private static final byte NULL_VALUE = 0;
+    private static final byte LONG_VALUE = 1;
+    private static final byte DOUBLE_VALUE = 2;
+
+    private final Object[] values;
+    private final long id;
+
+    public PageToken(Object[] values, long id) {
+        this.values = values;
+        this.id = id;
+    }
+
+    public Integer width() {
+        return values.length;
+    }
+
+    public Object getValue(int position) {
+        return values[position];
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /// The token's sort values as a PagingIndex key
+    public SortKey encode(List<SortColumn> sortColumns) {
+        if (sortColumns.size() != values.length) {
+            throw new IllegalArgumentException("Token has " + values.length + " values for " + sortColumns.size() + " sort columns");
+        }
+
+        long[] encoded = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            encoded[i] = sortColumns.get(i).encode(values[i]);
+        }
+        return new SortKey(encoded);
+    }
+
+    public String serialize() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(values.length);
+            for (Object value : values) {
+                if (value == null) {
+                    out.writeByte(NULL_VALUE);
+                } else if (value instanceof Double) {
+                    out.writeByte(DOUBLE_VALUE);
+                    out.writeDouble((Double) value);
+                } else {
+                    out.writeByte(LONG_VALUE);
+                    out.writeLong(((Number) value).longValue());
+                }
+            }
+            out.writeLong(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    public static PageToken parse(String token) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            Object[] values = new Object[in.readUnsignedByte()];
+            for (int i = 0; i < values.length; i++) {
+                byte tag = in.readByte();
+                switch (tag) {
+                    case NULL_VALUE:
+                        break;
+                    case LONG_VALUE:
+                        values[i] = in.readLong();
+                        break;
+                    case DOUBLE_VALUE:
+                        values[i] = in.readDouble();
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Malformed page token " + token);
+                }
+            }
+            return new PageToken(values, in.readLong());
+        } catch (IOException|IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed page token " + token, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values) + "#" + id;
+    }
+}
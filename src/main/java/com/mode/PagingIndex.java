@@ -1,203 +1,667 @@
 package com.mode;
 
-import org.roaringbitmap.longlong.Roaring64NavigableMap;
+import org.roaringbitmap.BatchIterator;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.ImmutableBitmapDataProvider;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
 import org.voltdb.VoltTable;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientResponse;
 import org.voltdb.client.ProcCallException;
+import org.voltdb.client.ProcedureCallback;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 
 public class PagingIndex {
-    private final TreeMap<Long, Roaring64NavigableMap> index;
+    private static final int BATCH_SIZE = 256;
 
-    public PagingIndex(TreeMap<Long, Roaring64NavigableMap> index) {
-        this.index = index;
+    /// Build scans read at most this many ids per query, with a bounded number of queries outstanding
+    public static final Long DEFAULT_CHUNK_SIZE = 1_000_000L;
+    public static final Integer DEFAULT_MAX_IN_FLIGHT_CHUNKS = 16;
+
+    /// On-disk layout: header, key directory, then 8-byte aligned portable Roaring bitmaps
+    private static final int FILE_MAGIC = 0x50494458; // "PIDX"
+    private static final int FILE_VERSION = 2;
+    private static final int FILE_CHECKSUM_OFFSET = 16;
+
+    private final List<SortColumn> sortColumns;
+
+    /// Keys and buckets in ascending key order, with a running total of cardinalities so
+    /// that cumulative[i] is the rank of the first id in bucket i
+    private final SortKey[] sortedKeys;
+    private final ImmutableBitmapDataProvider[] sortedBuckets;
+    private final long[] cumulative;
+
+    public PagingIndex(List<SortColumn> sortColumns, TreeMap<SortKey, ? extends ImmutableBitmapDataProvider> index) {
+        this(sortColumns, index.keySet().toArray(new SortKey[0]),
+                index.values().toArray(new ImmutableBitmapDataProvider[0]));
+    }
+
+    private PagingIndex(List<SortColumn> sortColumns, SortKey[] sortedKeys, ImmutableBitmapDataProvider[] sortedBuckets) {
+        this.sortColumns = sortColumns;
+        this.sortedKeys = sortedKeys;
+        this.sortedBuckets = sortedBuckets;
+        this.cumulative = new long[sortedBuckets.length + 1];
+
+        for (int position = 0; position < sortedBuckets.length; position++) {
+            cumulative[position + 1] = cumulative[position] + sortedBuckets[position].getLongCardinality();
+        }
     }
 
     public Integer size() {
-        return index.size();
+        return sortedKeys.length;
+    }
+
+    public List<SortColumn> getSortColumns() {
+        return sortColumns;
     }
 
-    public Set<Long> keys() {
-        return index.keySet();
+    public List<SortKey> keys() {
+        return Collections.unmodifiableList(Arrays.asList(sortedKeys));
     }
 
-    public Roaring64NavigableMap get(Long key) {
-        return index.get(key);
+    ImmutableBitmapDataProvider bucketAt(int position) {
+        return sortedBuckets[position];
+    }
+
+    public ImmutableBitmapDataProvider get(SortKey key) {
+        int position = Arrays.binarySearch(sortedKeys, key);
+        return position < 0 ? null : sortedBuckets[position];
     }
 
     public Long getCardinality() {
-        Long cardinality =  0L;
-        for (Map.Entry<Long, Roaring64NavigableMap> entry : index.entrySet()) {
-            cardinality += entry.getValue().getLongCardinality();
-        }
-        return cardinality;
+        return cumulative[cumulative.length - 1];
     }
 
     public Long getSizeInBytes() {
-        Long size = (long)index.size() * Long.BYTES;
-        for (Map.Entry<Long, Roaring64NavigableMap> entry : index.entrySet()) {
-            size += entry.getValue().getLongSizeInBytes();
+        Long size = (long)sortedKeys.length * Long.BYTES * (sortColumns.size() + 1);
+        for (ImmutableBitmapDataProvider bucket : sortedBuckets) {
+            size += bucket.getLongSizeInBytes();
         }
         return size;
     }
 
-    public Set<Long> lookup(Long limit, Long offset) {
-        Long seen = 0L;
-        LinkedHashSet<Long> result = new LinkedHashSet<>();
+    /**
+     * Persistence
+     */
+
+    public void save(Path path, String tableName) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CountingOutputStream counter = new CountingOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            DataOutputStream header = new DataOutputStream(counter);
+
+            header.writeInt(FILE_MAGIC);
+            header.writeInt(FILE_VERSION);
+            header.writeLong(getCardinality());
+            header.writeLong(0L); // Checksum, patched once the payload is written
+            header.writeInt(sortedKeys.length);
+            header.writeInt(sortColumns.size());
+            header.writeUTF(tableName);
+            header.writeUTF(SortColumn.describe(sortColumns));
+
+            long offset = align(counter.count + (long) sortedKeys.length * directoryEntrySize(sortColumns.size()));
+            long payloadStart = offset;
+            for (int position = 0; position < sortedKeys.length; position++) {
+                int length = sortedBuckets[position].serializedSizeInBytes();
+                for (int column = 0; column < sortColumns.size(); column++) {
+                    header.writeLong(sortedKeys[position].get(column));
+                }
+                header.writeLong(cumulative[position + 1] - cumulative[position]);
+                header.writeLong(offset);
+                header.writeInt(length);
+                offset = align(offset + length);
+            }
+            pad(header, payloadStart - counter.count);
+
+            CRC32 checksum = new CRC32();
+            DataOutputStream payload = new DataOutputStream(new CheckedOutputStream(counter, checksum));
+            for (ImmutableBitmapDataProvider bucket : sortedBuckets) {
+                bucket.serialize(payload);
+                pad(header, align(counter.count) - counter.count);
+            }
+            payload.flush();
 
-        for (Map.Entry<Long, Roaring64NavigableMap> entry : index.entrySet()) {
-            Long need = limit - result.size();
+            ByteBuffer checksumBuffer = ByteBuffer.allocate(Long.BYTES).putLong(0, checksum.getValue());
+            channel.write(checksumBuffer, FILE_CHECKSUM_OFFSET);
+        }
+    }
 
-            if (need <= 0) {
-                break;
+    /**
+     * Memory-maps an index written by save(). The bitmaps are served straight from the mapping, so
+     * nothing but the key directory lands on the heap. Throws if the file was built from another
+     * table or sort order, if the table row count has moved on since, or if the payload is corrupt.
+     */
+    public static PagingIndex open(Path path, String tableName, List<SortColumn> sortColumns, long expectedRowCount) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Index file " + path + " is too large to map");
             }
 
-            Roaring64NavigableMap values = entry.getValue();
-            Long cardinality = values.getLongCardinality();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream header = new DataInputStream(new ByteBufferInputStream(mapped.duplicate()));
 
-            if (offset - seen >= cardinality) {
-                // Skip over this entry
-                System.out.println("IndexSkip[" +
-                        "Offset=" + offset +
-                        ", Seen=" + seen +
-                        ", Cardinality=" + cardinality + "]");
+            if (header.readInt() != FILE_MAGIC || header.readInt() != FILE_VERSION) {
+                throw new IOException("Index file " + path + " is not a paging index");
+            }
 
-                seen += cardinality;
+            long rowCount = header.readLong();
+            long expectedChecksum = header.readLong();
+            int keyCount = header.readInt();
+            int keyWidth = header.readInt();
+            String fileTableName = header.readUTF();
+            String fileSortOrder = header.readUTF();
+            String sortOrder = SortColumn.describe(sortColumns);
+
+            if (keyWidth != sortColumns.size() || !fileTableName.equals(tableName) || !fileSortOrder.equals(sortOrder)) {
+                throw new IOException("Index file " + path + " indexes " + fileTableName + " by " + fileSortOrder +
+                        ", not " + tableName + " by " + sortOrder);
+            }
 
-                continue;
+            if (rowCount != expectedRowCount) {
+                throw new IOException("Index file " + path + " is stale: indexed " + rowCount +
+                        " rows, table has " + expectedRowCount);
             }
 
-            Long seekStart = 0L;
-            Long seekLength = 0L;
-            Long seekFinish = 0L;
+            SortKey[] keys = new SortKey[keyCount];
+            long[] cardinalities = new long[keyCount];
+            long[] offsets = new long[keyCount];
+            int[] lengths = new int[keyCount];
+            for (int position = 0; position < keyCount; position++) {
+                long[] values = new long[keyWidth];
+                for (int column = 0; column < keyWidth; column++) {
+                    values[column] = header.readLong();
+                }
+                keys[position] = new SortKey(values);
+                cardinalities[position] = header.readLong();
+                offsets[position] = header.readLong();
+                lengths[position] = header.readInt();
+            }
+
+            CRC32 checksum = new CRC32();
+            ByteBuffer[] slices = new ByteBuffer[keyCount];
+            for (int position = 0; position < keyCount; position++) {
+                if (offsets[position] < 0 || lengths[position] < 0 || offsets[position] + lengths[position] > mapped.capacity()) {
+                    throw new IOException("Index file " + path + " is corrupt at key " + keys[position]);
+                }
+
+                ByteBuffer slice = mapped.duplicate();
+                slice.limit((int) (offsets[position] + lengths[position]));
+                slice.position((int) offsets[position]);
+                slices[position] = slice.slice();
+                checksum.update(slice);
+            }
 
-            if (offset > seen) {
-                seekStart = offset - seen;
+            // Check before reading any bitmap, since a corrupt one fails with anything from an index to a size error
+            if (checksum.getValue() != expectedChecksum) {
+                throw new IOException("Index file " + path + " failed its checksum");
             }
 
-            if (seekStart == 0 && seekStart + need >= cardinality) {
-                // Entire buffer
-                seekLength = cardinality;
-                seekFinish = cardinality;
+            ImmutableBitmapDataProvider[] buckets = new ImmutableBitmapDataProvider[keyCount];
+            for (int position = 0; position < keyCount; position++) {
+                buckets[position] = new ImmutableRoaringBitmap(slices[position]);
+
+                if (buckets[position].getLongCardinality() != cardinalities[position]) {
+                    throw new IOException("Index file " + path + " is corrupt at key " + keys[position]);
+                }
+            }
 
-                System.out.println("IndexSeekCopy[" +
-                        "Offset=" + offset +
-                        ", Seen=" + seen +
-                        ", Need=" + need +
-                        ", Cardinality=" + cardinality +
-                        ", SeekStart=" + seekStart +
-                        ", SeekLength=" + seekLength +
-                        ", SeekFinish=" + seekFinish + "]");
+            return new PagingIndex(sortColumns, keys, buckets);
+        }
+    }
+
+    private static int directoryEntrySize(int keyWidth) {
+        return Long.BYTES * (keyWidth + 2) + Integer.BYTES;
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static void pad(DataOutputStream output, long count) throws IOException {
+        for (long i = 0; i < count; i++) {
+            output.writeByte(0);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+    }
+
+    /**
+     * Lookup
+     */
+
+    public long[] lookup(long limit, long offset) {
+        return lookup(limit, offset, SortDirection.ASC);
+    }
+
+    public long[] lookup(long limit, long offset, BitmapFilter filter) {
+        return lookup(limit, offset, SortDirection.ASC, filter);
+    }
+
+    /**
+     * Returns the ids at positions [offset, offset + limit) of the index in the requested order.
+     * ASC follows the index's sort columns and breaks ties by id; DESC is the exact mirror of ASC.
+     */
+    public long[] lookup(long limit, long offset, SortDirection direction) {
+        return page(limit, offset, direction, cumulative, position -> sortedBuckets[position]);
+    }
+
+    /**
+     * Pages over only the ids matching the filter. Ranks come from AND-cardinalities of each bucket
+     * with the filter, and only the buckets the page lands in are actually intersected.
+     */
+    public long[] lookup(long limit, long offset, SortDirection direction, BitmapFilter filter) {
+        BitmapFilter.Matches matches = filter.matches();
+        return page(limit, offset, direction, filteredCumulative(matches),
+                position -> matches.and(sortedBuckets[position]));
+    }
+
+    public Long getCardinality(BitmapFilter filter) {
+        long[] filtered = filteredCumulative(filter.matches());
+        return filtered[filtered.length - 1];
+    }
+
+    private long[] filteredCumulative(BitmapFilter.Matches matches) {
+        long[] filtered = new long[sortedBuckets.length + 1];
+        for (int position = 0; position < sortedBuckets.length; position++) {
+            filtered[position + 1] = filtered[position] + matches.andCardinality(sortedBuckets[position]);
+        }
+        return filtered;
+    }
+
+    private static long[] page(long limit, long offset, SortDirection direction, long[] cumulative,
+                               IntFunction<ImmutableBitmapDataProvider> buckets) {
+        long cardinality = cumulative[cumulative.length - 1];
+
+        if (limit <= 0 || offset < 0 || offset >= cardinality) {
+            return new long[0];
+        }
+
+        int count = pageLength(limit, offset, cardinality);
+        long start = direction == SortDirection.ASC ? offset : cardinality - offset - count;
+
+        long[] result = new long[count];
+        fill(start, result, cumulative, buckets);
+
+        if (direction == SortDirection.DESC) {
+            reverse(result);
+        }
 
-                LongStream stream = LongStream.of(values.toArray());
-                result.addAll(stream.boxed().collect(Collectors.toList()));
-            } else if (seekStart + need >= cardinality) {
-                // Tail of the buffer
-                seekFinish = cardinality;
-                seekLength = cardinality - seekStart;
+        return result;
+    }
 
-                System.out.println("IndexSeekTail[" +
-                        "Offset=" + offset +
-                        ", Seen=" + seen +
-                        ", Need=" + need +
-                        ", Cardinality=" + cardinality +
-                        ", SeekStart=" + seekStart +
-                        ", SeekLength=" + seekLength +
-                        ", SeekFinish=" + seekFinish + "]");
+    /// Ids on the page at an offset below the cardinality, refusing a page too long for an array rather than truncating it
+    static int pageLength(long limit, long offset, long cardinality) {
+        long length = Math.min(limit, cardinality - offset);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Page of " + length + " ids at offset " + offset + " is too long for an array");
+        }
+        return (int) length;
+    }
 
-                for (Long position = seekStart; position < seekFinish; position++) {
-                    result.add(values.select(position));
+    /// Copy ascending ranks [start, start + result.length) into result
+    private static void fill(long start, long[] result, long[] cumulative, IntFunction<ImmutableBitmapDataProvider> buckets) {
+        int bucket = seekBucket(start, cumulative);
+        long seekStart = start - cumulative[bucket];
+        int filled = 0;
+        int[] batch = new int[BATCH_SIZE];
+
+        while (filled < result.length) {
+            ImmutableBitmapDataProvider values = buckets.apply(bucket);
+            long bucketCardinality = values.getLongCardinality();
+            int need = result.length - filled;
+
+            if (seekStart == 0 && need >= bucketCardinality) {
+                // Entire bucket
+                BatchIterator batchIterator = values.getBatchIterator();
+                while (batchIterator.hasNext()) {
+                    int batchSize = batchIterator.nextBatch(batch);
+                    for (int i = 0; i < batchSize; i++) {
+                        result[filled++] = fromBitmapId(batch[i]);
+                    }
                 }
             } else {
-                // Head of the buffer
-                seekLength = need;
-                seekFinish = seekStart + seekLength;
-
-                System.out.println("IndexSeekHead[" +
-                        "Offset=" + offset +
-                        ", Seen=" + seen +
-                        ", Need=" + need +
-                        ", Cardinality=" + cardinality +
-                        ", SeekStart=" + seekStart +
-                        ", SeekLength=" + seekLength +
-                        ", SeekFinish=" + seekFinish + "]");
-
-                for (Long position = seekStart; position < seekFinish; position++) {
-                    result.add(values.select(position));
+                // Head, tail or middle of the bucket
+                long seekFinish = Math.min(bucketCardinality, seekStart + need);
+                PeekableIntIterator iterator = values.getIntIterator();
+                iterator.advanceIfNeeded(values.select((int) seekStart));
+
+                for (long position = seekStart; position < seekFinish; position++) {
+                    result[filled++] = fromBitmapId(iterator.next());
                 }
             }
 
-            seen += seekStart + seekLength;
+            bucket++;
+            seekStart = 0;
         }
+    }
 
-        return result;
+    /// Binary search for the last bucket whose first rank is <= rank
+    static int seekBucket(long rank, long[] cumulative) {
+        int low = 0;
+        int high = cumulative.length - 2;
+
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (cumulative[mid] <= rank) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    private static void reverse(long[] values) {
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            long swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
     }
 
+    /// Row ids are handed out sequentially by the loader, so they fit a 32-bit bitmap as unsigned ints
+    static int toBitmapId(long id) {
+        if (id < 0 || id > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Row id " + id + " does not fit in a 32-bit bitmap");
+        }
+        return (int) id;
+    }
 
-    public static PagingIndex build(Client voltClient, String tableName, Integer tableParts, String tableColumnName) throws InterruptedException, ExecutionException {
-        return new PagingIndex(constructIndex(voltClient, tableName, tableParts, tableColumnName));
+    static long fromBitmapId(int value) {
+        return Integer.toUnsignedLong(value);
     }
 
-    private static TreeMap<Long, Roaring64NavigableMap> constructIndex(Client voltClient, String tableName, Integer tableParts, String tableColumnName) throws InterruptedException, ExecutionException {
-        ArrayList<Future<Map<Long, Roaring64NavigableMap>>> indices = new ArrayList<>();
-        ExecutorService indexExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
+    public static PagingIndex build(Client voltClient, String tableName, Integer tableParts, List<SortColumn> sortColumns) throws InterruptedException, ExecutionException {
+        return build(voltClient, tableName, tableParts, sortColumns, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_IN_FLIGHT_CHUNKS);
+    }
+
+    /**
+     * Scans every partition in id ranges of chunkSize, keeping at most maxInFlightChunks ranges
+     * requested or being folded at once, so client memory is bounded by the chunk size rather than
+     * by the table. Any failed chunk fails the whole build.
+     */
+    public static PagingIndex build(Client voltClient, String tableName, Integer tableParts, List<SortColumn> sortColumns,
+                                    Long chunkSize, Integer maxInFlightChunks) throws InterruptedException, ExecutionException {
+        if (chunkSize <= 0 || maxInFlightChunks <= 0) {
+            throw new IllegalArgumentException("Chunk size and in-flight chunks must be positive");
+        }
+
+        return new PagingIndex(sortColumns, constructIndex(voltClient, tableName, tableParts, sortColumns, chunkSize, maxInFlightChunks));
+    }
+
+    private static TreeMap<SortKey, RoaringBitmap> constructIndex(Client voltClient, String tableName, Integer tableParts, List<SortColumn> sortColumns,
+                                                                  Long chunkSize, Integer maxInFlightChunks) throws InterruptedException, ExecutionException {
+        List<String> columnNames = new ArrayList<>();
+        for (SortColumn sortColumn : sortColumns) {
+            columnNames.add(sortColumn.getName());
+        }
+
+        List<Map<SortKey, RoaringBitmap>> indices = scanPartitions(voltClient, tableName, tableParts, columnNames,
+                table -> SortColumn.encode(sortColumns, table, 1), chunkSize, maxInFlightChunks);
+
+        return mergePartitions(indices, new TreeMap<>());
+    }
+
+    /**
+     * Scans (id, columns...) out of every partition in chunks and folds each row into a per-partition
+     * map of key to id bitmap. keyReader sees the row with the indexed columns starting at 1.
+     */
+    static <K> List<Map<K, RoaringBitmap>> scanPartitions(Client voltClient, String tableName, Integer tableParts, List<String> columnNames,
+                                                          Function<VoltTable, K> keyReader, Long chunkSize, Integer maxInFlightChunks) throws InterruptedException {
+        List<Map<K, RoaringBitmap>> indices = new ArrayList<>();
         for (Integer i = 1; i <= tableParts; i++) {
-            final Integer partNum = i;
-            indices.add(indexExecutor.submit(() -> {
-                String selectSql =
-                        "SELECT id, " + tableColumnName +
-                        " FROM " + tableName +
-                        " WHERE part = " + partNum;
-
-                System.out.println(selectSql);
-
-                try {
-                    ClientResponse response = voltClient.callProcedure("@AdHoc", selectSql);
-
-                    if (response.getStatus() == ClientResponse.SUCCESS) {
-                        Map<Long, Roaring64NavigableMap> keyMap = new HashMap<>();
-
-                        for (VoltTable table : response.getResults()) {
-                            while(table.advanceRow()) {
-                                Long key = table.getLong(1);
-                                Long value = table.getLong(0);
-                                keyMap.computeIfAbsent(key, absentKey
-                                        -> new Roaring64NavigableMap()).add(value);
-                            }
+            indices.add(new HashMap<>());
+        }
+
+        long[] idRange = selectIdRange(voltClient, tableName);
+        if (idRange == null) {
+            return indices;
+        }
+
+        String selectSql =
+                "SELECT id, " + String.join(", ", columnNames) +
+                " FROM " + tableName +
+                " WHERE part = ? AND id >= ? AND id < ?";
+
+        System.out.println(selectSql);
+
+        long rangeCount = (idRange[1] - idRange[0]) / chunkSize + 1;
+        long chunkCount = rangeCount * tableParts;
+        long progressStep = Math.max(1L, chunkCount / 10);
+
+        ExecutorService foldExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        Semaphore inFlight = new Semaphore(maxInFlightChunks);
+        AtomicLong chunksDone = new AtomicLong();
+        AtomicLong rowsDone = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try {
+            for (long rangeStart = idRange[0]; rangeStart <= idRange[1] && failure.get() == null; rangeStart += chunkSize) {
+                for (Integer partNum = 1; partNum <= tableParts && failure.get() == null; partNum++) {
+                    final Map<K, RoaringBitmap> keyMap = indices.get(partNum - 1);
+
+                    inFlight.acquire();
+
+                    ProcedureCallback foldCallback = response -> {
+                        if (response.getStatus() != ClientResponse.SUCCESS) {
+                            failure.compareAndSet(null, new RuntimeException(response.getStatusString()));
+                            inFlight.release();
+                            return;
                         }
 
-                        return keyMap;
-                    } else {
-                        System.out.println(response.getStatusString());
-                        throw new RuntimeException(response.getStatusString());
+                        foldExecutor.execute(() -> {
+                            try {
+                                long rows = foldChunk(response, keyReader, keyMap);
+                                long done = chunksDone.incrementAndGet();
+                                long total = rowsDone.addAndGet(rows);
+
+                                if (done % progressStep == 0 || done == chunkCount) {
+                                    System.out.println("Indexed " + done + "/" + chunkCount + " chunks, " + total + " rows");
+                                }
+                            } catch (Throwable foldException) {
+                                failure.compareAndSet(null, foldException);
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                    };
+
+                    try {
+                        if (!voltClient.callProcedure(foldCallback, "@AdHoc", selectSql, partNum, rangeStart, rangeStart + chunkSize)) {
+                            inFlight.release();
+                            failure.compareAndSet(null, new RuntimeException("Couldn't queue index chunk"));
+                        }
+                    } catch (IOException indexException) {
+                        inFlight.release();
+                        failure.compareAndSet(null, indexException);
                     }
-                } catch (IOException| ProcCallException indexException) {
-                    System.out.println(indexException.toString());
-                    throw new RuntimeException("Couldn't build index", indexException);
                 }
-            }));
+            }
+
+            // Every permit comes back once the last outstanding chunk has been folded or failed
+            inFlight.acquire(maxInFlightChunks);
+        } finally {
+            foldExecutor.shutdown();
         }
 
-        indexExecutor.shutdown();
-        indexExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        if (failure.get() != null) {
+            System.out.println(failure.get().toString());
+            throw new RuntimeException("Couldn't build index", failure.get());
+        }
 
-        /// Merge all the maps into one
-        TreeMap<Long, Roaring64NavigableMap> merged = new TreeMap<>();
-        for (Future<Map<Long, Roaring64NavigableMap>> index : indices) {
-            for (Map.Entry<Long, Roaring64NavigableMap> entry : index.get().entrySet()) {
-                merged.computeIfAbsent(entry.getKey(), absentKey
-                        -> new Roaring64NavigableMap()).or(entry.getValue());
-            }
+        if (chunksDone.get() != chunkCount) {
+            throw new RuntimeException("Index build finished " + chunksDone.get() + " of " + chunkCount + " chunks");
         }
 
+        return indices;
+    }
+
+    /**
+     * ORs each key's bitmaps from every partition into the target map, run-optimized. Keys are split
+     * into ranges across the fork/join pool and each key's bitmaps are ORed in one pass, so the merge
+     * keeps up with wide tables instead of trailing the scans on one thread.
+     */
+    static <K, M extends Map<K, RoaringBitmap>> M mergePartitions(List<Map<K, RoaringBitmap>> indices, M merged) {
+        Set<K> keySet = new LinkedHashSet<>();
+        for (Map<K, RoaringBitmap> index : indices) {
+            keySet.addAll(index.keySet());
+        }
+
+        List<K> keys = new ArrayList<>(keySet);
+        RoaringBitmap[] bitmaps = new RoaringBitmap[keys.size()];
+        int rangeKeys = keys.size() / (ForkJoinPool.getCommonPoolParallelism() * 4) + 1;
+        ForkJoinPool.commonPool().invoke(new MergeTask<>(indices, keys, bitmaps, 0, keys.size(), rangeKeys));
+
+        for (int i = 0; i < bitmaps.length; i++) {
+            merged.put(keys.get(i), bitmaps[i]);
+        }
         return merged;
     }
+
+    private static class MergeTask<K> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Map<K, RoaringBitmap>> indices;
+        private final List<K> keys;
+        private final RoaringBitmap[] bitmaps;
+        private final int from;
+        private final int to;
+        private final int rangeKeys;
+
+        MergeTask(List<Map<K, RoaringBitmap>> indices, List<K> keys, RoaringBitmap[] bitmaps, int from, int to, int rangeKeys) {
+            this.indices = indices;
+            this.keys = keys;
+            this.bitmaps = bitmaps;
+            this.from = from;
+            this.to = to;
+            this.rangeKeys = rangeKeys;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > rangeKeys) {
+                int middle = from + (to - from) / 2;
+                invokeAll(new MergeTask<>(indices, keys, bitmaps, from, middle, rangeKeys),
+                        new MergeTask<>(indices, keys, bitmaps, middle, to, rangeKeys));
+                return;
+            }
+
+            List<RoaringBitmap> parts = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                parts.clear();
+                for (Map<K, RoaringBitmap> index : indices) {
+                    RoaringBitmap part = index.get(keys.get(i));
+                    if (part != null) {
+                        parts.add(part);
+                    }
+                }
+
+                // The partition maps are thrown away after the merge, so a lone bitmap can be kept as is
+                RoaringBitmap bitmap = parts.size() == 1 ? parts.get(0) : FastAggregation.or(parts.iterator());
+                bitmap.runOptimize();
+                bitmaps[i] = bitmap;
+            }
+        }
+    }
+
+    private static <K> long foldChunk(ClientResponse response, Function<VoltTable, K> keyReader, Map<K, RoaringBitmap> keyMap) {
+        long rows = 0;
+
+        synchronized (keyMap) {
+            for (VoltTable table : response.getResults()) {
+                while (table.advanceRow()) {
+                    K key = keyReader.apply(table);
+                    int value = toBitmapId(table.getLong(0));
+                    keyMap.computeIfAbsent(key, absentKey
+                            -> new RoaringBitmap()).add(value);
+                    rows++;
+                }
+            }
+        }
+
+        return rows;
+    }
+
+    /// Returns {min(id), max(id)}, or null when the table is empty
+    private static long[] selectIdRange(Client voltClient, String tableName) {
+        String rangeSql = "SELECT MIN(id), MAX(id) FROM " + tableName;
+        System.out.println(rangeSql);
+
+        try {
+            VoltTable table = voltClient.callProcedure("@AdHoc", rangeSql).getResults()[0];
+            table.advanceRow();
+
+            long minId = table.getLong(0);
+            if (table.wasNull()) {
+                return null;
+            }
+
+            return new long[] {minId, table.getLong(1)};
+        } catch (IOException| ProcCallException indexException) {
+            System.out.println(indexException.toString());
+            throw new RuntimeException("Couldn't build index", indexException);
+        }
+    }
 }
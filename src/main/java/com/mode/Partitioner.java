@@ -0,0 +1,64 @@
+package com.mode;
+
+/**
+ * Decides the part of a row from its id, so the same id always lands in the same part and a
+ * reader can tell where an id lives without asking. Parts are numbered from 1 like the part column.
+ *
+ * HASH spreads consecutive ids over every part. RANGE deals out blocks of rangeSize consecutive ids
+ * to the parts in turn, so ids loaded together stay together.
+ */
+public class Partitioner {
+    public enum Strategy {
+        HASH, RANGE
+    }
+
+    private final Strategy strategy;
+    private final Integer partCount;
+    private final Long rangeSize;
+
+    private Partitioner(Strategy strategy, Integer partCount, Long rangeSize) {
+        if (partCount <= 0 || rangeSize <= 0) {
+            throw new IllegalArgumentException("Part count and range size must be positive");
+        }
+
+        this.strategy = strategy;
+        this.partCount = partCount;
+        this.rangeSize = rangeSize;
+    }
+
+    public static Partitioner hash(Integer partCount) {
+        return new Partitioner(Strategy.HASH, partCount, 1L);
+    }
+
+    public static Partitioner range(Integer partCount, Long rangeSize) {
+        return new Partitioner(Strategy.RANGE, partCount, rangeSize);
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public Integer getPartCount() {
+        return partCount;
+    }
+
+    public int partFor(long id) {
+        if (strategy == Strategy.RANGE) {
+            return (int) Math.floorMod(Math.floorDiv(id, rangeSize), (long) partCount) + 1;
+        }
+
+        // murmur3's 64-bit finalizer, so sequential ids don't stripe across the parts
+        long hash = id;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) Long.remainderUnsigned(hash, partCount) + 1;
+    }
+
+    @Override
+    public String toString() {
+        return strategy == Strategy.RANGE ? "range(" + partCount + " parts, " + rangeSize + " ids)" : "hash(" + partCount + " parts)";
+    }
+}
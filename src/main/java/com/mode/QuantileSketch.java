@@ -0,0 +1,161 @@
+package com.mode;
+
+/**
+ * Quantiles with a relative error guarantee: every quantile it returns is within relativeAccuracy
+ * of the true value's magnitude, 1% by default. Values are counted in logarithmic buckets whose
+ * bounds grow by gamma = (1 + a) / (1 - a), so the sketch size depends on the range of magnitudes
+ * and not the row count, a few KB for money and distances. Sketches of the same accuracy merge
+ * exactly by adding their bucket counts.
+ */
+public class QuantileSketch {
+    public static final Double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    /// Magnitudes below this count as zero, which keeps the bucket range bounded
+    private static final double MIN_MAGNITUDE = 1e-9;
+
+    /// Bucket counts for a contiguous run of bucket indexes, grown on either side as needed
+    private static final class Buckets {
+        private long[] counts = new long[0];
+        private int offset = 0;
+
+        void add(int index, long count) {
+            if (counts.length == 0) {
+                counts = new long[64];
+                offset = index - 32;
+            } else if (index < offset || index >= offset + counts.length) {
+                int low = Math.min(offset, index);
+                int high = Math.max(offset + counts.length, index + 1);
+                int length = Math.max(high - low, counts.length * 2);
+                long[] grown = new long[length];
+                int newOffset = index < offset ? high - length : low;
+                System.arraycopy(counts, 0, grown, offset - newOffset, counts.length);
+                counts = grown;
+                offset = newOffset;
+            }
+            counts[index - offset] += count;
+        }
+
+        void merge(Buckets other) {
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+    }
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+    private final Buckets positive = new Buckets();
+    private final Buckets negative = new Buckets();
+    private long zeros = 0;
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    public QuantileSketch(Double relativeAccuracy) {
+        if (relativeAccuracy <= 0.0 || relativeAccuracy >= 1.0) {
+            throw new IllegalArgumentException("Relative accuracy " + relativeAccuracy + " is not between 0 and 1");
+        }
+
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1.0 + relativeAccuracy) / (1.0 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        if (value > MIN_MAGNITUDE) {
+            positive.add(index(value), 1);
+        } else if (value < -MIN_MAGNITUDE) {
+            negative.add(index(-value), 1);
+        } else {
+            zeros++;
+        }
+
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    private int index(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+
+    /// The value every magnitude in the bucket is within relativeAccuracy of
+    private double value(int index) {
+        return 2.0 * Math.pow(gamma, index) / (gamma + 1.0);
+    }
+
+    public void merge(QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Can't merge relative accuracy " + other.relativeAccuracy + " into " + relativeAccuracy);
+        }
+
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeros += other.zeros;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /// The value at rank q of the values added, for q from 0 to 1, or NaN when there are none
+    public double quantile(double q) {
+        if (q < 0.0 || q > 1.0) {
+            throw new IllegalArgumentException("Quantile " + q + " is not between 0 and 1");
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        long rank = (long) (q * (count - 1));
+        long seen = 0;
+
+        // Most negative first: the largest negative magnitudes come before the smaller ones
+        for (int i = negative.counts.length - 1; i >= 0; i--) {
+            seen += negative.counts[i];
+            if (seen > rank) {
+                return clamp(-value(negative.offset + i));
+            }
+        }
+
+        seen += zeros;
+        if (seen > rank) {
+            return 0.0;
+        }
+
+        for (int i = 0; i < positive.counts.length; i++) {
+            seen += positive.counts[i];
+            if (seen > rank) {
+                return clamp(value(positive.offset + i));
+            }
+        }
+
+        return max;
+    }
+
+    private double clamp(double value) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    public int getSizeInBytes() {
+        return 8 * (positive.counts.length + negative.counts.length);
+    }
+}
@@ -0,0 +1,294 @@
+package com.mode;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client-side cache of decoded query results, keyed by table, normalized query and page
+ * coordinates. Entries are evicted least recently used first once their estimated size passes the
+ * memory budget.
+ *
+ * Every table has a version that is bumped when a load or clear starts and again when it ends. An
+ * entry is only served while its table is at the version it was read at, and nothing is cached or
+ * served for a table while a change to it is running, so a repeat view never sees rows from before
+ * a load.
+ */
+public class ResultCache {
+    /// Rough object overheads, so the budget tracks the heap actually held
+    private static final long ENTRY_OVERHEAD = 256;
+    private static final long STRING_OVERHEAD = 40;
+
+    public static final class Key {
+        private final String tableName;
+        private final String query;
+        private final long[] params;
+
+        private Key(String tableName, String query, long[] params) {
+            this.tableName = tableName;
+            this.query = query;
+            this.params = params;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) other;
+            return tableName.equals(key.tableName) && query.equals(key.query) && Arrays.equals(params, key.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tableName, query) * 31 + Arrays.hashCode(params);
+        }
+
+        @Override
+        public String toString() {
+            return tableName + " " + query + " " + Arrays.toString(params);
+        }
+    }
+
+    private static final class Entry {
+        private final Long version;
+        private final List<RowBatch> batches;
+        private final ResultStats stats;
+        private final Long sizeBytes;
+
+        Entry(Long version, List<RowBatch> batches, ResultStats stats, Long sizeBytes) {
+            this.version = version;
+            this.batches = batches;
+            this.stats = stats;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private static final class TableState {
+        private final AtomicLong version = new AtomicLong();
+        private final AtomicInteger changing = new AtomicInteger();
+    }
+
+    private final Long budgetBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes = 0;
+    private final Map<String, TableState> tables = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public ResultCache(Long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /// Table names are case insensitive in every engine, so they are keyed upper case
+    public static Key key(String tableName, String query, long... params) {
+        return new Key(tableName.toUpperCase(Locale.ROOT), query, params);
+    }
+
+    private TableState table(String tableName) {
+        return tables.computeIfAbsent(tableName.toUpperCase(Locale.ROOT), absentTable -> new TableState());
+    }
+
+    /**
+     * Lookup
+     */
+
+    /// Replays the cached rows to the consumer and returns their stats, or null when the query has to run
+    public ResultStats replay(Key key, ResultDecoder.BatchConsumer consumer) {
+        long startNanos = System.nanoTime();
+        TableState table = table(key.tableName);
+        long version = table.version.get();
+
+        Entry entry = table.changing.get() == 0 ? lookup(key, version) : null;
+        if (entry != null) {
+            hits.increment();
+
+            long firstRowNanos = -1;
+            for (RowBatch batch : entry.batches) {
+                if (firstRowNanos < 0) {
+                    firstRowNanos = System.nanoTime() - startNanos;
+                }
+                if (consumer != null) {
+                    consumer.accept(batch);
+                }
+            }
+
+            long lastRowNanos = System.nanoTime() - startNanos;
+            return new ResultStats(entry.stats.getRows(), entry.stats.getBytes(), firstRowNanos < 0 ? lastRowNanos : firstRowNanos, lastRowNanos);
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    /// Consumes a missed query's rows on their way to the consumer; call before running the query
+    public Recording record(Key key, ResultDecoder.BatchConsumer consumer) {
+        TableState table = table(key.tableName);
+        return new Recording(key, table.version.get(), table.changing.get() == 0, consumer);
+    }
+
+    public final class Recording implements ResultDecoder.BatchConsumer {
+        private final Key key;
+        private final long version;
+        private final boolean cacheable;
+        private final ResultDecoder.BatchConsumer consumer;
+        private final List<RowBatch> batches = new ArrayList<>();
+
+        private Recording(Key key, long version, boolean cacheable, ResultDecoder.BatchConsumer consumer) {
+            this.key = key;
+            this.version = version;
+            this.cacheable = cacheable;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void accept(RowBatch batch) {
+            batches.add(batch.copy());
+            if (consumer != null) {
+                consumer.accept(batch);
+            }
+        }
+
+        /// Keeps the rows if the table didn't change while the query ran, and returns the query's stats
+        public ResultStats finish(ResultStats stats) {
+            if (cacheable) {
+                long entryBytes = ENTRY_OVERHEAD;
+                for (RowBatch batch : batches) {
+                    entryBytes += sizeOf(batch);
+                }
+                put(key, new Entry(version, batches, stats, entryBytes));
+            }
+            return stats;
+        }
+    }
+
+    private synchronized Entry lookup(Key key, long version) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.version != version) {
+            remove(key);
+            invalidations.increment();
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(Key key, Entry entry) {
+        TableState table = table(key.tableName);
+
+        // A load that started after the read may have changed the rows it returned
+        if (table.version.get() != entry.version || table.changing.get() != 0 || entry.sizeBytes > budgetBytes) {
+            return;
+        }
+
+        remove(key);
+        entries.put(key, entry);
+        sizeBytes += entry.sizeBytes;
+
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (sizeBytes > budgetBytes && eldest.hasNext()) {
+            sizeBytes -= eldest.next().getValue().sizeBytes;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            sizeBytes -= removed.sizeBytes;
+        }
+    }
+
+    private static long sizeOf(RowBatch batch) {
+        ColumnType[] columnTypes = batch.getColumnTypes();
+        long bytes = (long) batch.size() * columnTypes.length;
+
+        for (int column = 0; column < columnTypes.length; column++) {
+            if (columnTypes[column] != ColumnType.STRING) {
+                bytes += 8L * batch.size();
+                continue;
+            }
+
+            for (int row = 0; row < batch.size(); row++) {
+                String value = batch.getString(row, column);
+                bytes += 8 + (value == null ? 0 : STRING_OVERHEAD + 2L * value.length());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Invalidation
+     */
+
+    /// A load or clear of the table is starting; nothing for it is served or cached until it ends
+    public void beginChange(String tableName) {
+        TableState table = table(tableName);
+        table.changing.incrementAndGet();
+        table.version.incrementAndGet();
+        drop(tableName);
+    }
+
+    public void endChange(String tableName) {
+        TableState table = table(tableName);
+        table.version.incrementAndGet();
+        table.changing.decrementAndGet();
+        drop(tableName);
+    }
+
+    private synchronized void drop(String tableName) {
+        String key = tableName.toUpperCase(Locale.ROOT);
+
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            if (entry.getKey().tableName.equals(key)) {
+                sizeBytes -= entry.getValue().sizeBytes;
+                iterator.remove();
+                invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * Metrics
+     */
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    @Override
+    public String toString() {
+        long lookups = getHits() + getMisses();
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations, %d entries in %d of %d bytes",
+                getHits(), getMisses(), lookups == 0 ? 0.0 : 100.0 * getHits() / lookups, getEvictions(), getInvalidations(),
+                getEntryCount(), getSizeBytes(), budgetBytes);
+    }
+}
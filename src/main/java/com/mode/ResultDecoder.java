@@ -0,0 +1,395 @@
+package com.mode;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltTableRow;
+import org.voltdb.VoltType;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Drains a query result into a reusable RowBatch, reading each column with its primitive getter
+ * instead of boxing it, and times the result as it goes. Full batches are handed to the consumer
+ * and then overwritten, so a consumer must copy anything it keeps. After a drain the batch still
+ * holds the result's last rows.
+ *
+ * A decoder keeps one batch and is not thread safe; engines keep one per thread.
+ */
+public class ResultDecoder {
+    private static final Integer BATCH_SIZE = 1024;
+
+    public interface BatchConsumer {
+        void accept(RowBatch batch);
+    }
+
+    private RowBatch batch;
+
+    private RowBatch batchFor(ColumnType[] columnTypes) {
+        if (batch == null || !Arrays.equals(batch.getColumnTypes(), columnTypes)) {
+            batch = new RowBatch(columnTypes, BATCH_SIZE);
+        }
+        batch.setSize(0);
+        return batch;
+    }
+
+    /**
+     * JDBC
+     */
+
+    /// Bytes are the decoded size, see decodedBytes; TIMESTAMP is the one column JDBC can only hand over as an object
+    public ResultStats drain(ResultSet resultSet, long startNanos, BatchConsumer consumer) throws SQLException {
+        return drain(resultSet, Collections.emptyMap(), startNanos, consumer);
+    }
+
+    /// Columns labelled with a dictionary's upper-case column name hold its codes and come out as the decoded strings
+    public ResultStats drain(ResultSet resultSet, Map<String, StringDictionary> dictionaries, long startNanos, BatchConsumer consumer) throws SQLException {
+        ColumnType[] columnTypes = columnTypes(resultSet.getMetaData(), dictionaries);
+        StringDictionary[] columnDictionaries = columnDictionaries(resultSet.getMetaData(), dictionaries);
+
+        RowBatch batch = batchFor(columnTypes);
+        long rows = 0;
+        long bytes = 0;
+        long firstRowNanos = -1;
+        int row = 0;
+
+        while (resultSet.next()) {
+            if (firstRowNanos < 0) {
+                firstRowNanos = System.nanoTime() - startNanos;
+            }
+
+            readRow(resultSet, columnDictionaries, batch, row);
+
+            rows++;
+            if (++row == BATCH_SIZE) {
+                flush(batch, row, consumer);
+                bytes += decodedBytes(batch);
+                row = 0;
+            }
+        }
+
+        flush(batch, row, consumer);
+        bytes += decodedBytes(batch);
+        return stats(rows, bytes, firstRowNanos, startNanos);
+    }
+
+    /**
+     * The rows of an indexed page put back in the order of ids, as the VoltDB drain does, so ties on
+     * the sort columns come out as the index ordered them. The id must be the first column; ids not
+     * in the result are skipped.
+     */
+    public ResultStats drain(ResultSet resultSet, Map<String, StringDictionary> dictionaries, long[] ids, long startNanos,
+                             BatchConsumer consumer) throws SQLException {
+        ColumnType[] columnTypes = columnTypes(resultSet.getMetaData(), dictionaries);
+        StringDictionary[] columnDictionaries = columnDictionaries(resultSet.getMetaData(), dictionaries);
+
+        // A page is small, so it is read whole before being reordered
+        RowBatch fetched = new RowBatch(columnTypes, ids.length);
+        Map<Long, Integer> rowsById = new HashMap<>();
+        long firstRowNanos = -1;
+
+        while (resultSet.next() && rowsById.size() < ids.length) {
+            if (firstRowNanos < 0) {
+                firstRowNanos = System.nanoTime() - startNanos;
+            }
+
+            int fetchedRow = rowsById.size();
+            readRow(resultSet, columnDictionaries, fetched, fetchedRow);
+            rowsById.put(fetched.getLong(fetchedRow, 0), fetchedRow);
+        }
+
+        RowBatch batch = batchFor(columnTypes);
+        long rows = 0;
+        long bytes = 0;
+        int row = 0;
+
+        for (long id : ids) {
+            Integer fetchedRow = rowsById.get(id);
+            if (fetchedRow == null) {
+                continue;
+            }
+
+            fetched.copyRow(fetchedRow, batch, row);
+
+            rows++;
+            if (++row == BATCH_SIZE) {
+                flush(batch, row, consumer);
+                bytes += decodedBytes(batch);
+                row = 0;
+            }
+        }
+
+        flush(batch, row, consumer);
+        bytes += decodedBytes(batch);
+        return stats(rows, bytes, firstRowNanos, startNanos);
+    }
+
+    private static StringDictionary[] columnDictionaries(ResultSetMetaData metaData, Map<String, StringDictionary> dictionaries) throws SQLException {
+        StringDictionary[] columnDictionaries = new StringDictionary[metaData.getColumnCount()];
+        for (int column = 0; column < columnDictionaries.length; column++) {
+            columnDictionaries[column] = dictionaries.get(metaData.getColumnLabel(column + 1).toUpperCase(Locale.ROOT));
+        }
+        return columnDictionaries;
+    }
+
+    private static ColumnType[] columnTypes(ResultSetMetaData metaData, Map<String, StringDictionary> dictionaries) throws SQLException {
+        ColumnType[] columnTypes = new ColumnType[metaData.getColumnCount()];
+        for (int column = 0; column < columnTypes.length; column++) {
+            columnTypes[column] = dictionaries.containsKey(metaData.getColumnLabel(column + 1).toUpperCase(Locale.ROOT)) ?
+                    ColumnType.STRING : columnType(metaData.getColumnType(column + 1));
+        }
+        return columnTypes;
+    }
+
+    private static void readRow(ResultSet resultSet, StringDictionary[] columnDictionaries, RowBatch batch, int row) throws SQLException {
+        ColumnType[] columnTypes = batch.getColumnTypes();
+
+        for (int column = 0; column < columnTypes.length; column++) {
+            switch (columnTypes[column]) {
+                case INTEGER:
+                    batch.setLong(row, column, resultSet.getLong(column + 1));
+                    break;
+                case DOUBLE:
+                    batch.setDouble(row, column, resultSet.getDouble(column + 1));
+                    break;
+                case TIMESTAMP:
+                    Timestamp timestamp = resultSet.getTimestamp(column + 1);
+                    batch.setLong(row, column, timestamp == null ? 0L : timestamp.getTime());
+                    break;
+                default:
+                    if (columnDictionaries[column] == null) {
+                        batch.setString(row, column, resultSet.getString(column + 1));
+                        break;
+                    }
+
+                    int code = resultSet.getInt(column + 1);
+                    batch.setString(row, column, resultSet.wasNull() ? null : columnDictionaries[column].decode(code));
+                    break;
+            }
+            batch.setNull(row, column, resultSet.wasNull());
+        }
+    }
+
+    static ColumnType columnType(int sqlType) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.BOOLEAN:
+                return ColumnType.INTEGER;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return ColumnType.DOUBLE;
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                return ColumnType.TIMESTAMP;
+            default:
+                return ColumnType.STRING;
+        }
+    }
+
+    /**
+     * VoltDB
+     */
+
+    /// Bytes are the table's serialized size, what actually crossed the wire. Timestamps land in the batch as millis.
+    public ResultStats drain(VoltTable table, long startNanos, BatchConsumer consumer) {
+        ColumnType[] columnTypes = new ColumnType[table.getColumnCount()];
+        for (int column = 0; column < columnTypes.length; column++) {
+            columnTypes[column] = columnType(table.getColumnType(column));
+        }
+
+        RowBatch batch = batchFor(columnTypes);
+        long rows = 0;
+        long firstRowNanos = -1;
+        int row = 0;
+
+        table.resetRowPosition();
+        while (table.advanceRow()) {
+            if (firstRowNanos < 0) {
+                firstRowNanos = System.nanoTime() - startNanos;
+            }
+
+            readRow(table, batch, row);
+
+            rows++;
+            if (++row == BATCH_SIZE) {
+                flush(batch, row, consumer);
+                row = 0;
+            }
+        }
+
+        flush(batch, row, consumer);
+        return stats(rows, table.getSerializedSize(), firstRowNanos, startNanos);
+    }
+
+    /**
+     * Rows from several tables, e.g. one per partition, put back in the order of ids. The tables
+     * must share a schema with the id first; ids in none of them are skipped.
+     */
+    public ResultStats drain(VoltTable[] tables, long[] ids, long startNanos, BatchConsumer consumer) {
+        Map<Long, VoltTableRow> rowsById = new HashMap<>();
+        long serializedBytes = 0;
+
+        for (VoltTable table : tables) {
+            serializedBytes += table.getSerializedSize();
+            table.resetRowPosition();
+            while (table.advanceRow()) {
+                rowsById.put(table.getLong(0), table.cloneRow());
+            }
+        }
+
+        if (tables.length == 0) {
+            return stats(0, serializedBytes, -1, startNanos);
+        }
+
+        ColumnType[] columnTypes = new ColumnType[tables[0].getColumnCount()];
+        for (int column = 0; column < columnTypes.length; column++) {
+            columnTypes[column] = columnType(tables[0].getColumnType(column));
+        }
+
+        RowBatch batch = batchFor(columnTypes);
+        long rows = 0;
+        long firstRowNanos = -1;
+        int row = 0;
+
+        for (long id : ids) {
+            VoltTableRow tableRow = rowsById.get(id);
+            if (tableRow == null) {
+                continue;
+            }
+
+            if (firstRowNanos < 0) {
+                firstRowNanos = System.nanoTime() - startNanos;
+            }
+
+            readRow(tableRow, batch, row);
+
+            rows++;
+            if (++row == BATCH_SIZE) {
+                flush(batch, row, consumer);
+                row = 0;
+            }
+        }
+
+        flush(batch, row, consumer);
+        return stats(rows, serializedBytes, firstRowNanos, startNanos);
+    }
+
+    private static void readRow(VoltTableRow tableRow, RowBatch batch, int row) {
+        ColumnType[] columnTypes = batch.getColumnTypes();
+
+        for (int column = 0; column < columnTypes.length; column++) {
+            switch (columnTypes[column]) {
+                case INTEGER:
+                    batch.setLong(row, column, tableRow.getLong(column));
+                    break;
+                case DOUBLE:
+                    batch.setDouble(row, column, tableRow.getDouble(column));
+                    break;
+                case TIMESTAMP:
+                    batch.setLong(row, column, tableRow.getTimestampAsLong(column) / 1000L);
+                    break;
+                default:
+                    batch.setString(row, column, tableRow.getString(column));
+                    break;
+            }
+            batch.setNull(row, column, tableRow.wasNull());
+        }
+    }
+
+    static ColumnType columnType(VoltType voltType) {
+        switch (voltType) {
+            case TINYINT:
+            case SMALLINT:
+            case INTEGER:
+            case BIGINT:
+                return ColumnType.INTEGER;
+            case FLOAT:
+            case DECIMAL:
+                return ColumnType.DOUBLE;
+            case TIMESTAMP:
+                return ColumnType.TIMESTAMP;
+            default:
+                return ColumnType.STRING;
+        }
+    }
+
+    /**
+     * Columnar
+     */
+
+    public ResultStats drain(ColumnarTable table, int[] rowNumbers, long startNanos, BatchConsumer consumer) {
+        return drain(table, table.columnPositions(Collections.emptyList()), rowNumbers, startNanos, consumer);
+    }
+
+    /// The rows' columns at the positions are copied straight out of the column arrays; bytes are the decoded size
+    public ResultStats drain(ColumnarTable table, int[] positions, int[] rowNumbers, long startNanos, BatchConsumer consumer) {
+        RowBatch batch = batchFor(table.getColumnTypes(positions));
+        long bytes = 0;
+        long firstRowNanos = -1;
+        int row = 0;
+
+        for (int rowNumber : rowNumbers) {
+            if (firstRowNanos < 0) {
+                firstRowNanos = System.nanoTime() - startNanos;
+            }
+
+            table.copyRow(rowNumber, positions, batch, row);
+
+            if (++row == BATCH_SIZE) {
+                flush(batch, row, consumer);
+                bytes += decodedBytes(batch);
+                row = 0;
+            }
+        }
+
+        flush(batch, row, consumer);
+        bytes += decodedBytes(batch);
+        return stats(rowNumbers.length, bytes, firstRowNanos, startNanos);
+    }
+
+    /**
+     * Accounting
+     */
+
+    private static void flush(RowBatch batch, int size, BatchConsumer consumer) {
+        batch.setSize(size);
+        if (size > 0 && consumer != null) {
+            consumer.accept(batch);
+        }
+    }
+
+    /// Eight bytes per non-null number or timestamp and one per string character
+    static long decodedBytes(RowBatch batch) {
+        ColumnType[] columnTypes = batch.getColumnTypes();
+        long bytes = 0;
+
+        for (int column = 0; column < columnTypes.length; column++) {
+            for (int row = 0; row < batch.size(); row++) {
+                if (batch.isNull(row, column)) {
+                    continue;
+                }
+                bytes += columnTypes[column] == ColumnType.STRING ? batch.getString(row, column).length() : 8;
+            }
+        }
+
+        return bytes;
+    }
+
+    private static ResultStats stats(long rows, long bytes, long firstRowNanos, long startNanos) {
+        long lastRowNanos = System.nanoTime() - startNanos;
+        return new ResultStats(rows, bytes, firstRowNanos < 0 ? lastRowNanos : firstRowNanos, lastRowNanos);
+    }
+}
@@ -0,0 +1,52 @@
+package com.mode;
+
+/**
+ * What it cost to read one result all the way through: rows and bytes received, and the time from
+ * issuing the query to its first row and to its last. An empty result's first row time is the time
+ * it took to find out there were none.
+ */
+public class ResultStats {
+    public static final ResultStats EMPTY = new ResultStats(0L, 0L, 0L, 0L);
+
+    private final Long rows;
+    private final Long bytes;
+    private final Long firstRowNanos;
+    private final Long lastRowNanos;
+
+    public ResultStats(Long rows, Long bytes, Long firstRowNanos, Long lastRowNanos) {
+        this.rows = rows;
+        this.bytes = bytes;
+        this.firstRowNanos = firstRowNanos;
+        this.lastRowNanos = lastRowNanos;
+    }
+
+    public Long getRows() {
+        return rows;
+    }
+
+    public Long getBytes() {
+        return bytes;
+    }
+
+    public Long getFirstRowNanos() {
+        return firstRowNanos;
+    }
+
+    public Long getLastRowNanos() {
+        return lastRowNanos;
+    }
+
+    /// Two reads timed from the same start, e.g. the segments of one keyset page
+    public ResultStats plus(ResultStats other) {
+        return new ResultStats(
+                rows + other.rows,
+                bytes + other.bytes,
+                rows > 0 ? firstRowNanos : other.firstRowNanos,
+                Math.max(lastRowNanos, other.lastRowNanos));
+    }
+
+    @Override
+    public String toString() {
+        return rows + " rows, " + bytes + " bytes, first row " + firstRowNanos / 1000 + "us, last row " + lastRowNanos / 1000 + "us";
+    }
+}
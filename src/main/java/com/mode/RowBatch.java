@@ -0,0 +1,148 @@
+package com.mode;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A reusable, column-major batch of converted rows. INTEGER and TIMESTAMP columns are held in
+ * long[] (timestamps as epoch millis), DOUBLE columns in double[] and STRING columns in String[],
+ * with a null flag per cell. Batches are recycled through a Pool so steady-state ingest allocates
+ * no new buffers.
+ */
+public class RowBatch {
+    private final ColumnType[] columnTypes;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final String[][] strings;
+    private final boolean[][] nulls;
+    private int size = 0;
+
+    public RowBatch(ColumnType[] columnTypes, Integer capacity) {
+        this.columnTypes = columnTypes;
+        this.longs = new long[columnTypes.length][];
+        this.doubles = new double[columnTypes.length][];
+        this.strings = new String[columnTypes.length][];
+        this.nulls = new boolean[columnTypes.length][capacity];
+
+        for (int column = 0; column < columnTypes.length; column++) {
+            switch (columnTypes[column]) {
+                case INTEGER:
+                case TIMESTAMP:
+                    longs[column] = new long[capacity];
+                    break;
+                case DOUBLE:
+                    doubles[column] = new double[capacity];
+                    break;
+                case STRING:
+                    strings[column] = new String[capacity];
+                    break;
+            }
+        }
+    }
+
+    public ColumnType[] getColumnTypes() {
+        return columnTypes;
+    }
+
+    public Integer capacity() {
+        return nulls.length == 0 ? 0 : nulls[0].length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isNull(int row, int column) {
+        return nulls[column][row];
+    }
+
+    public long getLong(int row, int column) {
+        return longs[column][row];
+    }
+
+    public double getDouble(int row, int column) {
+        return doubles[column][row];
+    }
+
+    public String getString(int row, int column) {
+        return strings[column][row];
+    }
+
+    /// A batch of exactly this one's rows, untouched when this one is reused
+    public RowBatch copy() {
+        RowBatch copy = new RowBatch(columnTypes, size);
+        for (int column = 0; column < columnTypes.length; column++) {
+            System.arraycopy(nulls[column], 0, copy.nulls[column], 0, size);
+            if (longs[column] != null) {
+                System.arraycopy(longs[column], 0, copy.longs[column], 0, size);
+            } else if (doubles[column] != null) {
+                System.arraycopy(doubles[column], 0, copy.doubles[column], 0, size);
+            } else {
+                System.arraycopy(strings[column], 0, copy.strings[column], 0, size);
+            }
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    /// Copy one row into a row of a batch with the same column types
+    void copyRow(int row, RowBatch target, int targetRow) {
+        for (int column = 0; column < columnTypes.length; column++) {
+            target.nulls[column][targetRow] = nulls[column][row];
+            if (longs[column] != null) {
+                target.longs[column][targetRow] = longs[column][row];
+            } else if (doubles[column] != null) {
+                target.doubles[column][targetRow] = doubles[column][row];
+            } else {
+                target.strings[column][targetRow] = strings[column][row];
+            }
+        }
+    }
+
+    /**
+     * Writers, used by the column converters
+     */
+
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    void setNull(int row, int column, boolean isNull) {
+        nulls[column][row] = isNull;
+    }
+
+    void setLong(int row, int column, long value) {
+        longs[column][row] = value;
+    }
+
+    void setDouble(int row, int column, double value) {
+        doubles[column][row] = value;
+    }
+
+    void setString(int row, int column, String value) {
+        strings[column][row] = value;
+    }
+
+    /// Free list of batches shared by the converters that fill them and the writers that drain them
+    public static class Pool {
+        private final ColumnType[] columnTypes;
+        private final Integer capacity;
+        private final BlockingQueue<RowBatch> free;
+
+        public Pool(ColumnType[] columnTypes, Integer capacity, Integer maxPooled) {
+            this.columnTypes = columnTypes;
+            this.capacity = capacity;
+            this.free = new ArrayBlockingQueue<>(maxPooled);
+        }
+
+        public RowBatch acquire() {
+            RowBatch batch = free.poll();
+            return batch == null ? new RowBatch(columnTypes, capacity) : batch;
+        }
+
+        public void release(RowBatch batch) {
+            batch.setSize(0);
+            free.offer(batch);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.mode;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The ingest conversion stage for a schema compiled once into per-column converters. Fills pooled
+ * RowBatches, so the only per-row garbage left is the parser's own cell strings. Given the table's
+ * sketches, it also adds every batch to a partial of its own, so sketching runs on the converters,
+ * and folds the partial into the table's sketches on close.
+ * Snapshot blocks are inflated through a decoder of the converter's own, released on close.
+ */
+public class RowConverter implements IngestPipeline.Converter<RowBatch> {
+    private final ColumnType[] columnTypes;
+    private final ColumnConverter[] converters;
+    private final RowBatch.Pool pool;
+    private final TableSketches.Partial sketches;
+    private ColumnarSnapshot.BlockDecoder decoder = null;
+
+    public RowConverter(ColumnType[] columnTypes, RowBatch.Pool pool) {
+        this(columnTypes, pool, null);
+    }
+
+    public RowConverter(ColumnType[] columnTypes, RowBatch.Pool pool, TableSketches sketches) {
+        this.columnTypes = columnTypes;
+        this.converters = ColumnConverter.compile(columnTypes);
+        this.pool = pool;
+        this.sketches = sketches == null ? null : sketches.partial();
+    }
+
+    @Override
+    public RowBatch convert(List<String[]> csvRows) {
+        RowBatch batch = pool.acquire();
+
+        if (batch.capacity() < csvRows.size()) {
+            throw new IllegalArgumentException("Batch of " + csvRows.size() + " rows exceeds pooled capacity " + batch.capacity());
+        }
+
+        for (int row = 0; row < csvRows.size(); row++) {
+            String[] csvRow = csvRows.get(row);
+            for (int column = 0; column < converters.length; column++) {
+                converters[column].convert(csvRow[column], batch, row, column);
+            }
+        }
+
+        batch.setSize(csvRows.size());
+        sketch(batch);
+        return batch;
+    }
+
+    /// Snapshot blocks are already typed, so they decode straight into the pooled batch
+    @Override
+    public RowBatch convert(ColumnarSnapshot snapshot, int block) throws IOException {
+        if (!Arrays.equals(snapshot.getColumnTypes(), columnTypes)) {
+            throw new IllegalArgumentException("Snapshot " + snapshot.getPath() + " has columns " + Arrays.toString(snapshot.getColumnTypes()) +
+                    ", not " + Arrays.toString(columnTypes));
+        }
+
+        if (decoder == null) {
+            decoder = new ColumnarSnapshot.BlockDecoder();
+        }
+
+        RowBatch batch = pool.acquire();
+        snapshot.read(block, batch, decoder);
+        sketch(batch);
+        return batch;
+    }
+
+    @Override
+    public void close() {
+        if (sketches != null) {
+            sketches.finish();
+        }
+        if (decoder != null) {
+            decoder.close();
+            decoder = null;
+        }
+    }
+
+    private void sketch(RowBatch batch) {
+        if (sketches != null) {
+            sketches.add(batch);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.mode;
+
+import org.roaringbitmap.ImmutableBitmapDataProvider;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.voltdb.client.Client;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A PagingIndex kept as one shard per partition instead of one merged set of buckets. The shards
+ * share a key directory with running totals across all of them, so a page's starting key comes
+ * from one binary search, and its starting id within that key from a binary search over the sum of
+ * the shards' ranks. Each shard then reads its next ids in parallel and the slices are merged in
+ * (key, id) order, giving exactly the ids PagingIndex.lookup would.
+ */
+public class ShardedPagingIndex {
+    private interface Buckets {
+        ImmutableBitmapDataProvider get(int shard, int position);
+    }
+
+    private final List<SortColumn> sortColumns;
+    private final SortKey[] sortedKeys;
+
+    /// shardBuckets[shard][position] holds the shard's ids for sortedKeys[position], null when it has none
+    private final ImmutableBitmapDataProvider[][] shardBuckets;
+    private final long[] cumulative;
+
+    private ShardedPagingIndex(List<SortColumn> sortColumns, SortKey[] sortedKeys, ImmutableBitmapDataProvider[][] shardBuckets) {
+        this.sortColumns = sortColumns;
+        this.sortedKeys = sortedKeys;
+        this.shardBuckets = shardBuckets;
+        this.cumulative = cumulative(sortedKeys.length, shardBuckets.length,
+                (shard, position) -> shardBuckets[shard][position], ImmutableBitmapDataProvider::getLongCardinality);
+    }
+
+    /// One shard per partition's key to ids map, as PagingIndex.scanPartitions folds them
+    public static ShardedPagingIndex of(List<SortColumn> sortColumns, List<? extends Map<SortKey, RoaringBitmap>> parts) {
+        Set<SortKey> keys = new HashSet<>();
+        for (Map<SortKey, RoaringBitmap> part : parts) {
+            keys.addAll(part.keySet());
+        }
+
+        SortKey[] sortedKeys = keys.toArray(new SortKey[0]);
+        Arrays.parallelSort(sortedKeys);
+
+        ImmutableBitmapDataProvider[][] shardBuckets = new ImmutableBitmapDataProvider[parts.size()][];
+        IntStream.range(0, parts.size()).parallel().forEach(shard -> {
+            Map<SortKey, RoaringBitmap> part = parts.get(shard);
+            ImmutableBitmapDataProvider[] buckets = new ImmutableBitmapDataProvider[sortedKeys.length];
+
+            for (int position = 0; position < sortedKeys.length; position++) {
+                RoaringBitmap bucket = part.get(sortedKeys[position]);
+                if (bucket != null && !bucket.isEmpty()) {
+                    bucket.runOptimize();
+                    buckets[position] = bucket;
+                }
+            }
+            shardBuckets[shard] = buckets;
+        });
+
+        return new ShardedPagingIndex(sortColumns, sortedKeys, shardBuckets);
+    }
+
+    /// Splits a global index into one shard per part, each id going to the part the partitioner gives it
+    public static ShardedPagingIndex split(PagingIndex index, Partitioner partitioner) {
+        int shardCount = partitioner.getPartCount();
+        ImmutableBitmapDataProvider[][] shardBuckets = new ImmutableBitmapDataProvider[shardCount][index.size()];
+
+        IntStream.range(0, index.size()).parallel().forEach(position -> {
+            RoaringBitmap[] split = new RoaringBitmap[shardCount];
+            int[][] pending = new int[shardCount][256];
+            int[] pendingCount = new int[shardCount];
+
+            PeekableIntIterator values = index.bucketAt(position).getIntIterator();
+            while (values.hasNext()) {
+                int value = values.next();
+                int shard = partitioner.partFor(PagingIndex.fromBitmapId(value)) - 1;
+
+                pending[shard][pendingCount[shard]++] = value;
+                if (pendingCount[shard] == pending[shard].length) {
+                    split[shard] = addPending(split[shard], pending[shard], pendingCount[shard]);
+                    pendingCount[shard] = 0;
+                }
+            }
+
+            for (int shard = 0; shard < shardCount; shard++) {
+                split[shard] = addPending(split[shard], pending[shard], pendingCount[shard]);
+                if (split[shard] != null) {
+                    split[shard].runOptimize();
+                    shardBuckets[shard][position] = split[shard];
+                }
+            }
+        });
+
+        return new ShardedPagingIndex(index.getSortColumns(), index.keys().toArray(new SortKey[0]), shardBuckets);
+    }
+
+    private static RoaringBitmap addPending(RoaringBitmap bitmap, int[] values, int count) {
+        if (count == 0) {
+            return bitmap;
+        }
+
+        RoaringBitmap target = bitmap == null ? new RoaringBitmap() : bitmap;
+        target.addN(values, 0, count);
+        return target;
+    }
+
+    /// Scans every partition into its own shard, without merging them
+    public static ShardedPagingIndex build(Client voltClient, String tableName, Integer tableParts, List<SortColumn> sortColumns) throws InterruptedException {
+        List<String> columnNames = new ArrayList<>();
+        for (SortColumn sortColumn : sortColumns) {
+            columnNames.add(sortColumn.getName());
+        }
+
+        return of(sortColumns, PagingIndex.scanPartitions(voltClient, tableName, tableParts, columnNames,
+                table -> SortColumn.encode(sortColumns, table, 1),
+                PagingIndex.DEFAULT_CHUNK_SIZE, PagingIndex.DEFAULT_MAX_IN_FLIGHT_CHUNKS));
+    }
+
+    public Integer size() {
+        return sortedKeys.length;
+    }
+
+    public Integer getShardCount() {
+        return shardBuckets.length;
+    }
+
+    public List<SortColumn> getSortColumns() {
+        return sortColumns;
+    }
+
+    public Long getCardinality() {
+        return cumulative[cumulative.length - 1];
+    }
+
+    public Long getCardinality(BitmapFilter filter) {
+        long[] filtered = filteredCumulative(filter.matches());
+        return filtered[filtered.length - 1];
+    }
+
+    public Long getSizeInBytes() {
+        Long size = (long) sortedKeys.length * Long.BYTES * (sortColumns.size() + 1);
+        for (ImmutableBitmapDataProvider[] buckets : shardBuckets) {
+            for (ImmutableBitmapDataProvider bucket : buckets) {
+                size += bucket == null ? 0 : bucket.getLongSizeInBytes();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Lookup
+     */
+
+    public long[] lookup(long limit, long offset) {
+        return lookup(limit, offset, SortDirection.ASC);
+    }
+
+    /// The same ids at the same positions as PagingIndex.lookup over all the shards merged
+    public long[] lookup(long limit, long offset, SortDirection direction) {
+        return page(limit, offset, direction, cumulative, (shard, position) -> shardBuckets[shard][position]);
+    }
+
+    public long[] lookup(long limit, long offset, SortDirection direction, BitmapFilter filter) {
+        BitmapFilter.Matches matches = filter.matches();
+        return page(limit, offset, direction, filteredCumulative(matches), (shard, position) -> {
+            ImmutableBitmapDataProvider bucket = shardBuckets[shard][position];
+            return bucket == null ? null : matches.and(bucket);
+        });
+    }
+
+    private long[] filteredCumulative(BitmapFilter.Matches matches) {
+        return cumulative(sortedKeys.length, shardBuckets.length, (shard, position) -> shardBuckets[shard][position], matches::andCardinality);
+    }
+
+    /// Running totals over the keys, each shard counting its own buckets in parallel
+    private static long[] cumulative(int keyCount, int shardCount, Buckets buckets, ToLongFunction<ImmutableBitmapDataProvider> cardinality) {
+        long[][] shardCounts = new long[shardCount][];
+        IntStream.range(0, shardCount).parallel().forEach(shard -> {
+            long[] counts = new long[keyCount];
+            for (int position = 0; position < keyCount; position++) {
+                ImmutableBitmapDataProvider bucket = buckets.get(shard, position);
+                counts[position] = bucket == null ? 0 : cardinality.applyAsLong(bucket);
+            }
+            shardCounts[shard] = counts;
+        });
+
+        long[] cumulative = new long[keyCount + 1];
+        for (int position = 0; position < keyCount; position++) {
+            long count = 0;
+            for (long[] counts : shardCounts) {
+                count += counts[position];
+            }
+            cumulative[position + 1] = cumulative[position] + count;
+        }
+        return cumulative;
+    }
+
+    private long[] page(long limit, long offset, SortDirection direction, long[] cumulative, Buckets buckets) {
+        long cardinality = cumulative[cumulative.length - 1];
+
+        if (limit <= 0 || offset < 0 || offset >= cardinality) {
+            return new long[0];
+        }
+
+        int count = PagingIndex.pageLength(limit, offset, cardinality);
+        long start = direction == SortDirection.ASC ? offset : cardinality - offset - count;
+
+        long[] result = gather(start, count, cumulative, buckets);
+
+        if (direction == SortDirection.DESC) {
+            for (int i = 0, j = result.length - 1; i < j; i++, j--) {
+                long swap = result[i];
+                result[i] = result[j];
+                result[j] = swap;
+            }
+        }
+
+        return result;
+    }
+
+    /// Ascending ranks [start, start + count): every shard reads up to count ids from the start in parallel, then a k-way merge
+    private long[] gather(long start, int count, long[] cumulative, Buckets buckets) {
+        int startPosition = PagingIndex.seekBucket(start, cumulative);
+        long skip = start - cumulative[startPosition];
+        int startValue = skip == 0 ? 0 : selectAcrossShards(startPosition, skip, buckets);
+
+        List<Callable<Slice>> reads = new ArrayList<>();
+        for (int shard = 0; shard < shardBuckets.length; shard++) {
+            int readShard = shard;
+            reads.add(() -> read(readShard, startPosition, startValue, count, buckets));
+        }
+
+        Slice[] slices = new Slice[reads.size()];
+        try {
+            List<Future<Slice>> futures = ForkJoinPool.commonPool().invokeAll(reads);
+            for (int shard = 0; shard < slices.length; shard++) {
+                slices[shard] = futures.get(shard).get();
+            }
+        } catch (InterruptedException | ExecutionException readException) {
+            throw new RuntimeException("Couldn't read index shards", readException);
+        }
+
+        PriorityQueue<Slice> heads = new PriorityQueue<>(slices.length);
+        for (Slice slice : slices) {
+            if (slice.size > 0) {
+                heads.add(slice);
+            }
+        }
+
+        long[] result = new long[count];
+        for (int filled = 0; filled < count; filled++) {
+            Slice head = heads.poll();
+            result[filled] = PagingIndex.fromBitmapId(head.values[head.next++]);
+            if (head.next < head.size) {
+                heads.add(head);
+            }
+        }
+        return result;
+    }
+
+    /// The skip-th smallest id (unsigned) under the key across all shards, found by bisecting on the summed ranks
+    private int selectAcrossShards(int position, long skip, Buckets buckets) {
+        List<ImmutableBitmapDataProvider> keyBuckets = new ArrayList<>();
+        for (int shard = 0; shard < shardBuckets.length; shard++) {
+            ImmutableBitmapDataProvider bucket = buckets.get(shard, position);
+            if (bucket != null) {
+                keyBuckets.add(bucket);
+            }
+        }
+
+        long low = 0;
+        long high = 0xFFFFFFFFL;
+
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long rank = 0;
+            for (ImmutableBitmapDataProvider bucket : keyBuckets) {
+                rank += bucket.rankLong((int) mid);
+            }
+
+            if (rank > skip) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        return (int) low;
+    }
+
+    /// Up to count of the shard's ids from (position, startValue) on, in key then id order
+    private Slice read(int shard, int startPosition, int startValue, int count, Buckets buckets) {
+        Slice slice = new Slice(count);
+
+        for (int position = startPosition; position < sortedKeys.length && slice.size < count; position++) {
+            ImmutableBitmapDataProvider bucket = buckets.get(shard, position);
+            if (bucket == null) {
+                continue;
+            }
+
+            PeekableIntIterator iterator = bucket.getIntIterator();
+            if (position == startPosition) {
+                iterator.advanceIfNeeded(startValue);
+            }
+
+            while (iterator.hasNext() && slice.size < count) {
+                slice.positions[slice.size] = position;
+                slice.values[slice.size] = iterator.next();
+                slice.size++;
+            }
+        }
+
+        return slice;
+    }
+
+    private static class Slice implements Comparable<Slice> {
+        private final int[] positions;
+        private final int[] values;
+        private int size = 0;
+        private int next = 0;
+
+        Slice(int capacity) {
+            positions = new int[capacity];
+            values = new int[capacity];
+        }
+
+        @Override
+        public int compareTo(Slice other) {
+            int compare = Integer.compare(positions[next], other.positions[other.next]);
+            return compare != 0 ? compare : Integer.compareUnsigned(values[next], other.values[other.next]);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.mode;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A column of a PagingIndex sort order. Values are encoded as longs whose signed order matches
+ * the column's SQL order, with DESC columns inverted, so keys compare as plain long tuples.
+ */
+public class SortColumn {
+    private final String name;
+    private final ColumnType type;
+    private final SortDirection direction;
+
+    public SortColumn(String name, ColumnType type, SortDirection direction) {
+        if (type == ColumnType.STRING) {
+            throw new IllegalArgumentException("Cannot sort index on string column " + name);
+        }
+
+        this.name = name;
+        this.type = type;
+        this.direction = direction;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ColumnType getType() {
+        return type;
+    }
+
+    public SortDirection getDirection() {
+        return direction;
+    }
+
+    /// Encode the value at a result column, nulls read back as VoltDB's per-type null values
+    public long encode(VoltTable table, int column) {
+        switch (type) {
+            case INTEGER:
+                return directed(table.getLong(column));
+            case DOUBLE:
+                return directed(encodeDouble(table.getDouble(column)));
+            case TIMESTAMP:
+                return directed(table.getTimestampAsLong(column));
+            default:
+                throw new IllegalStateException("Cannot encode " + type);
+        }
+    }
+
+    /// Encode a value as passed to the bulk loader, mapping nulls the same way VoltTable reads them
+    public long encode(Object value) {
+        switch (type) {
+            case INTEGER:
+                return directed(value == null ? VoltType.NULL_INTEGER : ((Number) value).longValue());
+            case DOUBLE:
+                return directed(encodeDouble(value == null ? VoltType.NULL_FLOAT : ((Number) value).doubleValue()));
+            case TIMESTAMP:
+                return directed(value == null ? VoltType.NULL_BIGINT : ((Number) value).longValue());
+            default:
+                throw new IllegalStateException("Cannot encode " + type);
+        }
+    }
+
+    /// The value a key encodes, in the form encode takes; VoltDB's null values decode to null
+    public Object decode(long key) {
+        long encoded = directed(key);
+
+        switch (type) {
+            case INTEGER:
+                return encoded == VoltType.NULL_INTEGER ? null : (Object) encoded;
+            case DOUBLE:
+                double value = decodeDouble(encoded);
+                return value == VoltType.NULL_FLOAT ? null : (Object) value;
+            case TIMESTAMP:
+                return encoded == VoltType.NULL_BIGINT ? null : (Object) encoded;
+            default:
+                throw new IllegalStateException("Cannot decode " + type);
+        }
+    }
+
+    /// Flip the magnitude bits of negative doubles so their raw bits sort as signed longs; -0.0 folds into 0.0
+    static long encodeDouble(double value) {
+        long bits = Double.doubleToLongBits(value == 0.0 ? 0.0 : value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    static double decodeDouble(long encoded) {
+        return Double.longBitsToDouble(encoded ^ ((encoded >> 63) & Long.MAX_VALUE));
+    }
+
+    private long directed(long encoded) {
+        return direction == SortDirection.ASC ? encoded : ~encoded;
+    }
+
+    public static SortKey encode(List<SortColumn> sortColumns, VoltTable table, int firstColumn) {
+        long[] values = new long[sortColumns.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = sortColumns.get(i).encode(table, firstColumn + i);
+        }
+        return new SortKey(values);
+    }
+
+    /// Encode a converted row; RowBatch timestamps are milliseconds, keys use VoltDB's microseconds
+    public static SortKey encode(List<SortColumn> sortColumns, RowBatch batch, int row, int[] columns) {
+        long[] values = new long[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            int column = columns[i];
+            Object value = null;
+
+            if (!batch.isNull(row, column)) {
+                switch (batch.getColumnTypes()[column]) {
+                    case DOUBLE:
+                        value = batch.getDouble(row, column);
+                        break;
+                    case TIMESTAMP:
+                        value = batch.getLong(row, column) * 1000L;
+                        break;
+                    default:
+                        value = batch.getLong(row, column);
+                }
+            }
+
+            values[i] = sortColumns.get(i).encode(value);
+        }
+        return new SortKey(values);
+    }
+
+    public static String describe(List<SortColumn> sortColumns) {
+        return sortColumns.stream().map(SortColumn::toString).collect(Collectors.joining(", "));
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + direction;
+    }
+}
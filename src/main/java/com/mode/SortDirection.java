@@ -0,0 +1,5 @@
+package com.mode;
+
+public enum SortDirection {
+    ASC, DESC
+}
@@ -0,0 +1,50 @@
+package com.mode;
+
+import java.util.Arrays;
+
+/**
+ * One entry of a PagingIndex key: the encoded values of each sort column, compared left to right.
+ * Encodings come from SortColumn and already account for the column's direction.
+ */
+public final class SortKey implements Comparable<SortKey> {
+    private final long[] values;
+
+    public SortKey(long... values) {
+        this.values = values;
+    }
+
+    public Integer width() {
+        return values.length;
+    }
+
+    public long get(int position) {
+        return values[position];
+    }
+
+    @Override
+    public int compareTo(SortKey other) {
+        int width = Math.min(values.length, other.values.length);
+        for (int i = 0; i < width; i++) {
+            int compare = Long.compare(values[i], other.values[i]);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(values.length, other.values.length);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof SortKey && Arrays.equals(values, ((SortKey) other).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
@@ -0,0 +1,99 @@
+package com.mode;
+
+import org.voltdb.client.ProcCallException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A candidate database behind the benchmark workload. Tables hold an engine-assigned BIGINT id ahead
+ * of the csv columns so a PagingIndex can page them; everything else about storage is the engine's.
+ * Queries drain every row through a ResultDecoder and return its ResultStats, so engines are timed
+ * on the same work a client would do.
+ *
+ * Each method throws what some engine's implementation does: SQLException from JDBC, IOException
+ * and ProcCallException from the VoltDB client, and InterruptedException or ExecutionException
+ * where work fans out to other threads.
+ */
+public interface StorageEngine extends Closeable {
+    String getName();
+
+    void open() throws SQLException, IOException;
+
+    void createTable(String tableName, Map<String, ColumnType> schema) throws SQLException, IOException, ProcCallException;
+
+    void clearTable(String tableName) throws SQLException, IOException, ProcCallException;
+
+    /// Secondary index on the columns, e.g. the (sort columns, id) that keyset pages seek on
+    void createIndex(String tableName, List<String> columnNames) throws SQLException, IOException, ProcCallException;
+
+    /// Load the csv files, adding every row to the live index as it goes, and return the rows loaded
+    default Long ingest(String tableName, Map<String, ColumnType> schema, List<String> csvPaths, MutablePagingIndex index)
+            throws SQLException, IOException, InterruptedException, ExecutionException {
+        return ingest(tableName, schema, csvPaths, index, null);
+    }
+
+    /// As above, adding every row to the sketches as well when there are any
+    Long ingest(String tableName, Map<String, ColumnType> schema, List<String> csvPaths, MutablePagingIndex index,
+                TableSketches sketches) throws SQLException, IOException, InterruptedException, ExecutionException;
+
+    Long countRows(String tableName) throws SQLException, IOException, ProcCallException;
+
+    PagingIndex buildIndex(String tableName, List<SortColumn> sortColumns) throws SQLException, InterruptedException, ExecutionException;
+
+    /// The same index kept per partition, for lookups that scatter to each part and gather the page
+    ShardedPagingIndex buildShardedIndex(String tableName, List<SortColumn> sortColumns) throws SQLException, InterruptedException;
+
+    FilterIndex buildFilterIndex(String tableName, String columnName, ColumnType columnType) throws SQLException, InterruptedException;
+
+    /// Equi-depth buckets over a continuous column, whose rows the engine loads when a page first needs a bucket's order
+    HistogramIndex buildHistogramIndex(String tableName, SortColumn sortColumn, Integer bucketCount)
+            throws SQLException, IOException, ProcCallException, InterruptedException;
+
+    /// LIMIT/OFFSET page of the columns, every column when there are none, ordered by the sort columns when there are any
+    default ResultStats selectPage(String tableName, List<String> columns, List<SortColumn> orderBy, long limit, long offset)
+            throws SQLException, IOException, ProcCallException {
+        return selectPage(tableName, columns, orderBy, limit, offset, null);
+    }
+
+    /// As above, handing the decoded rows to the consumer as well when there is one
+    ResultStats selectPage(String tableName, List<String> columns, List<SortColumn> orderBy, long limit, long offset,
+                           ResultDecoder.BatchConsumer consumer) throws SQLException, IOException, ProcCallException;
+
+    /// Keyset page: the first rows after the token in KeysetQuery's order, from the top when the token is null
+    KeysetPage selectPageAfter(String tableName, List<SortColumn> orderBy, long limit, PageToken after)
+            throws SQLException, IOException, ProcCallException;
+
+    /// Fetch the rows of an indexed page
+    default ResultStats selectIds(String tableName, List<SortColumn> orderBy, long[] ids)
+            throws SQLException, IOException, ProcCallException, InterruptedException, ExecutionException {
+        return selectIds(tableName, orderBy, ids, null);
+    }
+
+    ResultStats selectIds(String tableName, List<SortColumn> orderBy, long[] ids, ResultDecoder.BatchConsumer consumer)
+            throws SQLException, IOException, ProcCallException, InterruptedException, ExecutionException;
+
+    /// GROUP BY/COUNT over the dimensions
+    default ResultStats pivot(String tableName, List<String> dimensions) throws SQLException, IOException, ProcCallException {
+        return pivot(tableName, dimensions, Collections.emptyMap(), null, null);
+    }
+
+    /// Rows are the dimension values followed by the count
+    default ResultStats pivot(String tableName, List<String> dimensions, ResultDecoder.BatchConsumer consumer)
+            throws SQLException, IOException, ProcCallException {
+        return pivot(tableName, dimensions, Collections.emptyMap(), null, consumer);
+    }
+
+    /**
+     * As above over the rows matching every filter predicate, each a column IN (values) where a null
+     * value matches SQL nulls and timestamps are in microseconds, with SUM(sumColumn) after the count
+     * when sumColumn isn't null.
+     */
+    ResultStats pivot(String tableName, List<String> dimensions, Map<String, Object[]> filter, String sumColumn,
+                      ResultDecoder.BatchConsumer consumer) throws SQLException, IOException, ProcCallException;
+}
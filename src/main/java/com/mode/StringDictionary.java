@@ -0,0 +1,49 @@
+package com.mode;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dense int codes for the distinct values of a string column, handed out from 0 in the order the
+ * values are first seen. Low-cardinality columns then store, group and filter on the codes and only
+ * decode the strings that end up in a result.
+ *
+ * One thread encodes at a time while any number of threads find and decode; a code is readable
+ * from the moment encode returns it.
+ */
+public class StringDictionary {
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    private volatile int size = 0;
+
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = size;
+            if (code == values.length) {
+                values = Arrays.copyOf(values, code * 2);
+            }
+            values[code] = value;
+            codes.put(value, code);
+            size = code + 1;
+        }
+        return code;
+    }
+
+    /// The value's code, or -1 when it was never encoded
+    public int find(String value) {
+        return codes.getOrDefault(value, -1);
+    }
+
+    public String decode(int code) {
+        if (code >= size) {
+            throw new IllegalArgumentException("Unknown dictionary code " + code);
+        }
+        return values[code];
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,534 @@
+package com.mode;
+
+import java.util.*;
+
+/**
+ * Approximate statistics kept while a table loads, for the tiles that can do with an estimate:
+ * row counts, distinct counts, quantiles and heavy hitters per group of the chosen dimensions.
+ * Each Spec names the dimensions to group by and the columns to sketch within each group.
+ *
+ * Every ingest converter thread fills a Partial of its own, so rows are sketched in parallel as
+ * they stream past, each partial locked only by its own converter and by a merge. A converter's
+ * partial is folded into the table's sketches and dropped when the converter finishes. A question
+ * asked while partials are still live merges them over the folded sketches whenever rows were
+ * added since the last merge, so answers during a load cover the rows sketched so far.
+ *
+ * Answers are Estimates that state their bounds: row counts are exact, quantiles are within the
+ * sketch's relative accuracy, distinct counts are within two standard errors and heavy hitter
+ * counts within the count-min error at its confidence.
+ */
+public class TableSketches {
+    /// SQL orders nulls first
+    private static final Comparator<Object> VALUE_ORDER = Comparator.nullsFirst(TableSketches::compareValues);
+    private static final Comparator<List<Object>> GROUP_ORDER = (left, right) -> {
+        for (int i = 0; i < left.size(); i++) {
+            int order = VALUE_ORDER.compare(left.get(i), right.get(i));
+            if (order != 0) {
+                return order;
+            }
+        }
+        return 0;
+    };
+
+    /// Distinct count bounds are this many standard errors, about 95% of the time
+    private static final double DISTINCT_BOUND_ERRORS = 2.0;
+    private static final double DISTINCT_CONFIDENCE = 0.95;
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object left, Object right) {
+        return ((Comparable<Object>) left).compareTo(right);
+    }
+
+    /// What to sketch per group of the dimensions, set up with chained setters
+    public static class Spec {
+        private final List<String> groupBy;
+        private final List<String> distinct = new ArrayList<>();
+        private final List<String> quantiles = new ArrayList<>();
+        private final List<String> heavyHitters = new ArrayList<>();
+
+        public Spec(String... groupBy) {
+            this.groupBy = Arrays.asList(groupBy);
+        }
+
+        /// HyperLogLog distinct counts of the columns
+        public Spec distinct(String... columnNames) {
+            this.distinct.addAll(Arrays.asList(columnNames));
+            return this;
+        }
+
+        /// Relative-error quantiles of the numeric columns
+        public Spec quantiles(String... columnNames) {
+            this.quantiles.addAll(Arrays.asList(columnNames));
+            return this;
+        }
+
+        /// Count-min frequencies of the columns' values
+        public Spec heavyHitters(String... columnNames) {
+            this.heavyHitters.addAll(Arrays.asList(columnNames));
+            return this;
+        }
+
+        public List<String> getGroupBy() {
+            return groupBy;
+        }
+
+        public List<String> getDistinct() {
+            return distinct;
+        }
+
+        public List<String> getQuantiles() {
+            return quantiles;
+        }
+
+        public List<String> getHeavyHitters() {
+            return heavyHitters;
+        }
+
+        @Override
+        public String toString() {
+            return "GROUP BY " + String.join(", ", groupBy) + ": distinct " + distinct + ", quantiles " + quantiles +
+                    ", heavy hitters " + heavyHitters;
+        }
+    }
+
+    /// An approximate answer, with bounds the true value is within at the stated confidence
+    public static class Estimate {
+        private final Double value;
+        private final Double low;
+        private final Double high;
+        private final Double confidence;
+
+        Estimate(Double value, Double low, Double high, Double confidence) {
+            this.value = value;
+            this.low = low;
+            this.high = high;
+            this.confidence = confidence;
+        }
+
+        public Double getValue() {
+            return value;
+        }
+
+        public Double getLow() {
+            return low;
+        }
+
+        public Double getHigh() {
+            return high;
+        }
+
+        public Double getConfidence() {
+            return confidence;
+        }
+
+        @Override
+        public String toString() {
+            return low.equals(high) ? String.format("%d", value.longValue()) :
+                    String.format("%.6g [%.6g, %.6g] @%.0f%%", value, low, high, 100.0 * confidence);
+        }
+    }
+
+    /// A spec compiled against the schema's column positions
+    private static final class Grouping {
+        private final Spec spec;
+        private final int[] groupColumns;
+        private final int[] distinctColumns;
+        private final int[] quantileColumns;
+        private final int[] heavyHitterColumns;
+
+        Grouping(Spec spec, List<String> columnNames, ColumnType[] columnTypes) {
+            this.spec = spec;
+            this.groupColumns = positions(spec.groupBy, columnNames);
+            this.distinctColumns = positions(spec.distinct, columnNames);
+            this.quantileColumns = positions(spec.quantiles, columnNames);
+            this.heavyHitterColumns = positions(spec.heavyHitters, columnNames);
+
+            for (int column : quantileColumns) {
+                if (columnTypes[column] == ColumnType.STRING) {
+                    throw new IllegalArgumentException("Cannot take quantiles of string column " + columnNames.get(column));
+                }
+            }
+        }
+
+        private static int[] positions(List<String> names, List<String> columnNames) {
+            int[] positions = new int[names.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = columnNames.indexOf(names.get(i).toLowerCase(Locale.ROOT));
+                if (positions[i] < 0) {
+                    throw new IllegalArgumentException("No column " + names.get(i) + " to sketch");
+                }
+            }
+            return positions;
+        }
+
+        boolean groupsBy(List<String> groupBy) {
+            if (groupBy.size() != spec.groupBy.size()) {
+                return false;
+            }
+            for (int i = 0; i < groupBy.size(); i++) {
+                if (!groupBy.get(i).equalsIgnoreCase(spec.groupBy.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /// The sketches of one group
+    private static final class Group {
+        private long rows = 0;
+        private final HyperLogLog[] distinct;
+        private final QuantileSketch[] quantiles;
+        private final CountMinSketch[] heavyHitters;
+
+        Group(Grouping grouping) {
+            distinct = new HyperLogLog[grouping.distinctColumns.length];
+            for (int i = 0; i < distinct.length; i++) {
+                distinct[i] = new HyperLogLog();
+            }
+            quantiles = new QuantileSketch[grouping.quantileColumns.length];
+            for (int i = 0; i < quantiles.length; i++) {
+                quantiles[i] = new QuantileSketch();
+            }
+            heavyHitters = new CountMinSketch[grouping.heavyHitterColumns.length];
+            for (int i = 0; i < heavyHitters.length; i++) {
+                heavyHitters[i] = new CountMinSketch();
+            }
+        }
+
+        void merge(Group other) {
+            rows += other.rows;
+            for (int i = 0; i < distinct.length; i++) {
+                distinct[i].merge(other.distinct[i]);
+            }
+            for (int i = 0; i < quantiles.length; i++) {
+                quantiles[i].merge(other.quantiles[i]);
+            }
+            for (int i = 0; i < heavyHitters.length; i++) {
+                heavyHitters[i].merge(other.heavyHitters[i]);
+            }
+        }
+
+        long getSizeInBytes() {
+            long bytes = 0;
+            for (HyperLogLog sketch : distinct) {
+                bytes += sketch.getSizeInBytes();
+            }
+            for (QuantileSketch sketch : quantiles) {
+                bytes += sketch.getSizeInBytes();
+            }
+            for (CountMinSketch sketch : heavyHitters) {
+                bytes += sketch.getSizeInBytes();
+            }
+            return bytes;
+        }
+    }
+
+    /// One converter thread's sketches, locked while a batch is added or the partial is merged or folded
+    public final class Partial {
+        private final List<Map<List<Object>, Group>> groups = new ArrayList<>();
+        /// Batches added, so a merge can tell whether anything changed
+        private long version = 0;
+
+        private Partial() {
+            for (int i = 0; i < groupings.size(); i++) {
+                groups.add(new HashMap<>());
+            }
+        }
+
+        public synchronized void add(RowBatch batch) {
+            version++;
+            for (int g = 0; g < groupings.size(); g++) {
+                Grouping grouping = groupings.get(g);
+                Map<List<Object>, Group> groupMap = groups.get(g);
+
+                for (int row = 0; row < batch.size(); row++) {
+                    Object[] key = new Object[grouping.groupColumns.length];
+                    for (int i = 0; i < key.length; i++) {
+                        key[i] = value(batch, row, grouping.groupColumns[i]);
+                    }
+
+                    Group group = groupMap.computeIfAbsent(Arrays.asList(key), absentKey -> new Group(grouping));
+                    group.rows++;
+
+                    for (int i = 0; i < grouping.distinctColumns.length; i++) {
+                        int column = grouping.distinctColumns[i];
+                        if (!batch.isNull(row, column)) {
+                            group.distinct[i].add(hash(batch, row, column));
+                        }
+                    }
+
+                    for (int i = 0; i < grouping.quantileColumns.length; i++) {
+                        int column = grouping.quantileColumns[i];
+                        if (!batch.isNull(row, column)) {
+                            group.quantiles[i].add(batch.getColumnTypes()[column] == ColumnType.DOUBLE ?
+                                    batch.getDouble(row, column) : (double) batch.getLong(row, column));
+                        }
+                    }
+
+                    for (int i = 0; i < grouping.heavyHitterColumns.length; i++) {
+                        Object value = value(batch, row, grouping.heavyHitterColumns[i]);
+                        if (value != null) {
+                            group.heavyHitters[i].add(value, hash(value));
+                        }
+                    }
+                }
+            }
+        }
+
+        /// Fold the sketches into the table's and drop them, once the converter has added its last batch
+        public void finish() {
+            synchronized (TableSketches.this) {
+                synchronized (this) {
+                    if (partials.remove(this)) {
+                        mergeInto(folded, groups);
+                        foldedVersion += version;
+                        groups.clear();
+                    }
+                }
+            }
+        }
+    }
+
+    private final List<String> columnNames;
+    private final List<Grouping> groupings = new ArrayList<>();
+    /// Converters still adding batches
+    private final List<Partial> partials = new ArrayList<>();
+    /// The finished converters' sketches, and the batches they added
+    private final List<Map<List<Object>, Group>> folded = new ArrayList<>();
+    private long foldedVersion = 0;
+    /// What answers read: the folded sketches, or a copy with the live partials merged in
+    private List<Map<List<Object>, Group>> merged = folded;
+    private long mergedVersion = 0;
+
+    public TableSketches(Map<String, ColumnType> schema, List<Spec> specs) {
+        this.columnNames = new ArrayList<>();
+        for (String columnName : schema.keySet()) {
+            columnNames.add(columnName.toLowerCase(Locale.ROOT));
+        }
+
+        ColumnType[] columnTypes = schema.values().toArray(new ColumnType[0]);
+        for (Spec spec : specs) {
+            groupings.add(new Grouping(spec, columnNames, columnTypes));
+            folded.add(new HashMap<>());
+        }
+    }
+
+    /// Sketches for one converter, merged into every answer until it finishes and is folded in
+    public synchronized Partial partial() {
+        Partial partial = new Partial();
+        partials.add(partial);
+        return partial;
+    }
+
+    /// Merge the live partials over the folded sketches if any has added a batch since the last merge
+    private void merge() {
+        if (partials.isEmpty()) {
+            merged = folded;
+            mergedVersion = foldedVersion;
+            return;
+        }
+
+        long version = foldedVersion;
+        for (Partial partial : partials) {
+            synchronized (partial) {
+                version += partial.version;
+            }
+        }
+        if (version == mergedVersion && merged != folded) {
+            return;
+        }
+
+        List<Map<List<Object>, Group>> fresh = new ArrayList<>();
+        for (int g = 0; g < groupings.size(); g++) {
+            fresh.add(new HashMap<>());
+        }
+        mergeInto(fresh, folded);
+
+        version = foldedVersion;
+        for (Partial partial : partials) {
+            synchronized (partial) {
+                version += partial.version;
+                mergeInto(fresh, partial.groups);
+            }
+        }
+
+        merged = fresh;
+        mergedVersion = version;
+    }
+
+    private void mergeInto(List<Map<List<Object>, Group>> target, List<Map<List<Object>, Group>> source) {
+        for (int g = 0; g < groupings.size(); g++) {
+            Grouping grouping = groupings.get(g);
+            for (Map.Entry<List<Object>, Group> group : source.get(g).entrySet()) {
+                target.get(g).computeIfAbsent(group.getKey(), absentKey -> new Group(grouping)).merge(group.getValue());
+            }
+        }
+    }
+
+    private Map<List<Object>, Group> groups(List<String> groupBy) {
+        merge();
+
+        for (int g = 0; g < groupings.size(); g++) {
+            if (groupings.get(g).groupsBy(groupBy)) {
+                return merged.get(g);
+            }
+        }
+        throw new IllegalArgumentException("Nothing is sketched by " + groupBy);
+    }
+
+    private int column(List<String> groupBy, String columnName, List<String> sketched) {
+        for (int i = 0; i < sketched.size(); i++) {
+            if (sketched.get(i).equalsIgnoreCase(columnName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Column " + columnName + " is not sketched by " + groupBy);
+    }
+
+    private Grouping grouping(List<String> groupBy) {
+        for (Grouping grouping : groupings) {
+            if (grouping.groupsBy(groupBy)) {
+                return grouping;
+            }
+        }
+        throw new IllegalArgumentException("Nothing is sketched by " + groupBy);
+    }
+
+    /**
+     * Answers, per group in SQL order
+     */
+
+    /// Exact: rows are counted, not sketched
+    public synchronized Map<List<Object>, Estimate> count(List<String> groupBy) {
+        Map<List<Object>, Estimate> counts = new TreeMap<>(GROUP_ORDER);
+        for (Map.Entry<List<Object>, Group> group : groups(groupBy).entrySet()) {
+            double rows = group.getValue().rows;
+            counts.put(group.getKey(), new Estimate(rows, rows, rows, 1.0));
+        }
+        return counts;
+    }
+
+    public synchronized Map<List<Object>, Estimate> distinct(List<String> groupBy, String columnName) {
+        Map<List<Object>, Group> groups = groups(groupBy);
+        int sketch = column(groupBy, columnName, grouping(groupBy).spec.distinct);
+
+        Map<List<Object>, Estimate> distinct = new TreeMap<>(GROUP_ORDER);
+        for (Map.Entry<List<Object>, Group> group : groups.entrySet()) {
+            HyperLogLog hyperLogLog = group.getValue().distinct[sketch];
+            double estimate = hyperLogLog.estimate();
+            double bound = DISTINCT_BOUND_ERRORS * hyperLogLog.getStandardError() * estimate;
+            distinct.put(group.getKey(), new Estimate(estimate, Math.max(0.0, estimate - bound), estimate + bound, DISTINCT_CONFIDENCE));
+        }
+        return distinct;
+    }
+
+    /// The q quantile; the true value is always within the relative accuracy, so the confidence is 1
+    public synchronized Map<List<Object>, Estimate> quantile(List<String> groupBy, String columnName, double q) {
+        Map<List<Object>, Group> groups = groups(groupBy);
+        int sketch = column(groupBy, columnName, grouping(groupBy).spec.quantiles);
+
+        Map<List<Object>, Estimate> quantiles = new TreeMap<>(GROUP_ORDER);
+        for (Map.Entry<List<Object>, Group> group : groups.entrySet()) {
+            QuantileSketch quantileSketch = group.getValue().quantiles[sketch];
+            double value = quantileSketch.quantile(q);
+            double accuracy = quantileSketch.getRelativeAccuracy();
+            double low = value >= 0 ? value / (1.0 + accuracy) : value / (1.0 - accuracy);
+            double high = value >= 0 ? value / (1.0 - accuracy) : value / (1.0 + accuracy);
+            quantiles.put(group.getKey(), new Estimate(value, low, high, 1.0));
+        }
+        return quantiles;
+    }
+
+    /// Values with at least fraction of the group's rows, most frequent first; counts never undercount
+    public synchronized Map<List<Object>, Map<Object, Estimate>> heavyHitters(List<String> groupBy, String columnName, double fraction) {
+        Map<List<Object>, Group> groups = groups(groupBy);
+        int sketch = column(groupBy, columnName, grouping(groupBy).spec.heavyHitters);
+
+        Map<List<Object>, Map<Object, Estimate>> heavyHitters = new TreeMap<>(GROUP_ORDER);
+        for (Map.Entry<List<Object>, Group> group : groups.entrySet()) {
+            CountMinSketch countMin = group.getValue().heavyHitters[sketch];
+            Map<Object, Estimate> counts = new LinkedHashMap<>();
+            for (Map.Entry<Object, Long> heavyHitter : countMin.heavyHitters(fraction).entrySet()) {
+                double count = heavyHitter.getValue();
+                counts.put(heavyHitter.getKey(), new Estimate(count, Math.max(0.0, count - countMin.getErrorBound()), count,
+                        countMin.getConfidence()));
+            }
+            heavyHitters.put(group.getKey(), counts);
+        }
+        return heavyHitters;
+    }
+
+    public synchronized long getSizeInBytes() {
+        merge();
+
+        long bytes = 0;
+        for (Map<List<Object>, Group> groups : merged) {
+            for (Group group : groups.values()) {
+                bytes += group.getSizeInBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Hashing
+     */
+
+    /// Boxed the way hash(Object) expects it: Long for INTEGER and TIMESTAMP, Double or String
+    private static Object value(RowBatch batch, int row, int column) {
+        if (batch.isNull(row, column)) {
+            return null;
+        }
+
+        switch (batch.getColumnTypes()[column]) {
+            case DOUBLE:
+                return batch.getDouble(row, column);
+            case STRING:
+                return batch.getString(row, column);
+            default:
+                return batch.getLong(row, column);
+        }
+    }
+
+    private static long hash(RowBatch batch, int row, int column) {
+        switch (batch.getColumnTypes()[column]) {
+            case DOUBLE:
+                return mix(Double.doubleToLongBits(batch.getDouble(row, column)));
+            case STRING:
+                return hash(batch.getString(row, column));
+            default:
+                return mix(batch.getLong(row, column));
+        }
+    }
+
+    /// A 64-bit hash mixed in every bit, which the sketches take their register and counter positions from
+    static long hash(Object value) {
+        if (value instanceof Double) {
+            return mix(Double.doubleToLongBits((Double) value));
+        }
+        if (value instanceof Number) {
+            return mix(((Number) value).longValue());
+        }
+        return hash(value.toString());
+    }
+
+    /// FNV-1a over the chars, then mixed; String.hashCode has too few bits for large distinct counts
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /// MurmurHash3's 64-bit finalizer
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
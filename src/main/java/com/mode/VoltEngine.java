@@ -0,0 +1,598 @@
+package com.mode;
+
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+import org.voltdb.client.*;
+import org.voltdb.client.VoltBulkLoader.BulkLoaderFailureCallBack;
+import org.voltdb.client.VoltBulkLoader.BulkLoaderSuccessCallback;
+import org.voltdb.client.VoltBulkLoader.VoltBulkLoader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * VoltDB through the native client. Tables are partitioned on a part column the Partitioner fills
+ * from the row id during ingest, files load concurrently through per-writer bulk loaders, and
+ * indexes are built by chunked scans of each partition.
+ */
+public class VoltEngine implements StorageEngine {
+    private final static Integer ingestFileThreads = 24;
+    private final static Integer ingestConverterThreads = 2;
+    private final static Integer ingestWriterThreads = 1;
+
+    private final List<String> hosts;
+    private final Integer partCount;
+    private final Partitioner partitioner;
+    private final AtomicLong rowId = new AtomicLong(0);
+    private final ThreadLocal<ResultDecoder> decoders = ThreadLocal.withInitial(ResultDecoder::new);
+    private final Set<String> fetchProcedures = ConcurrentHashMap.newKeySet();
+    private Client voltClient;
+
+    public VoltEngine(List<String> hosts, Integer partCount) {
+        this.hosts = hosts;
+        this.partCount = partCount;
+        this.partitioner = Partitioner.hash(partCount);
+    }
+
+    @Override
+    public String getName() {
+        return "voltdb";
+    }
+
+    @Override
+    public void open() throws IOException {
+        ClientConfig config = new ClientConfig();
+
+        config.setTopologyChangeAware(true);
+        config.setReconnectOnConnectionLoss(true);
+        voltClient = ClientFactory.createClient(config);
+
+        for (String host : hosts) {
+            voltClient.createConnection(host, 21212);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (voltClient == null) {
+            return;
+        }
+
+        try {
+            voltClient.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing the VoltDB client");
+        }
+    }
+
+    /**
+     * Setup
+     */
+
+    @Override
+    public void createTable(String tableName, Map<String, ColumnType> schema) throws IOException, ProcCallException {
+        VoltTable tables = voltClient.callProcedure("@SystemCatalog", "TABLES").getResults()[0];
+        while (tables.advanceRow()) {
+            if (tables.getString("TABLE_NAME").equalsIgnoreCase(tableName)) {
+                return;
+            }
+        }
+
+        ArrayList<String> columnDefs = new ArrayList<>();
+        columnDefs.add("id BIGINT NOT NULL");
+        columnDefs.add("part INTEGER NOT NULL");
+
+        for (Map.Entry<String, ColumnType> column : schema.entrySet()) {
+            columnDefs.add(column.getKey() + " " + toSqlTypeName(column.getValue()));
+        }
+
+        columnDefs.add("PRIMARY KEY (id, part)");
+
+        String createSql = "CREATE TABLE " + tableName + " (" + String.join(", ", columnDefs) + ");" +
+                " PARTITION TABLE " + tableName + " ON COLUMN part;";
+        System.out.println(createSql);
+        voltClient.callProcedure("@AdHoc", createSql);
+    }
+
+    @Override
+    public void clearTable(String tableName) throws IOException, ProcCallException {
+        String deletetSql = "DELETE FROM " + tableName;
+        System.out.println(deletetSql);
+        voltClient.callProcedure("@AdHoc", deletetSql);
+        rowId.set(0);
+    }
+
+    @Override
+    public void createIndex(String tableName, List<String> columnNames) throws IOException, ProcCallException {
+        String indexName = tableName + "_" + String.join("_", columnNames);
+
+        VoltTable indexes = voltClient.callProcedure("@SystemCatalog", "INDEXINFO").getResults()[0];
+        while (indexes.advanceRow()) {
+            if (indexes.getString("INDEX_NAME").equalsIgnoreCase(indexName)) {
+                return;
+            }
+        }
+
+        String createSql = "CREATE INDEX " + indexName + " ON " + tableName + " (" + String.join(", ", columnNames) + ");";
+        System.out.println(createSql);
+        voltClient.callProcedure("@AdHoc", createSql);
+    }
+
+    private static String toSqlTypeName(ColumnType columnType) {
+        switch (columnType) {
+            case INTEGER:
+                return "INTEGER";
+            case DOUBLE:
+                return "FLOAT";
+            case TIMESTAMP:
+                return "TIMESTAMP";
+            default:
+                return "VARCHAR(1024)";
+        }
+    }
+
+    /**
+     * Ingestion
+     */
+
+    @Override
+    public Long ingest(String tableName, Map<String, ColumnType> schema, List<String> csvPaths, MutablePagingIndex index,
+                       TableSketches sketches) throws InterruptedException, ExecutionException {
+        ExecutorService ingestExecutor = Executors.newFixedThreadPool(ingestFileThreads);
+        List<Future<Long>> loads = new ArrayList<>();
+        IngestMetrics metrics = IngestMetrics.start(tableName);
+
+        for (String csvFilePath : csvPaths) {
+            loads.add(ingestExecutor.submit(() -> {
+                try (IngestMetrics fileMetrics = metrics.file(csvFilePath)) {
+                    System.out.println("Loading " + csvFilePath + " ...");
+                    return ingestCsvFile(schema, tableName, csvFilePath, index, sketches, fileMetrics);
+                } catch (IOException|InterruptedException ioException) {
+                    throw new RuntimeException("Cannot ingest csv file " + csvFilePath, ioException);
+                }
+            }));
+        }
+
+        ingestExecutor.shutdown();
+
+        Long rowCount = 0L;
+        try {
+            for (Future<Long> load : loads) {
+                rowCount += load.get();
+            }
+        } finally {
+            ingestExecutor.shutdownNow();
+            metrics.close();
+        }
+
+        return rowCount;
+    }
+
+    private static class LoadFailureCallback implements BulkLoaderFailureCallBack {
+        private final IngestMetrics metrics;
+
+        LoadFailureCallback(IngestMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void failureCallback(Object rowHandle, Object[] fieldList, ClientResponse response) {
+            System.out.println("Failed to insert row " + fieldList[0] + " " + response.getStatusString());
+            metrics.failed(statusName(response.getStatus()), 1);
+        }
+    }
+
+    /// Rows are indexed once the server has them, so lookups never return an id that isn't in the table
+    private static class LoadSuccessCallback implements BulkLoaderSuccessCallback {
+        private final MutablePagingIndex index;
+        private final int[] indexColumnPositions;
+        private final IngestMetrics metrics;
+
+        LoadSuccessCallback(MutablePagingIndex index, int[] indexColumnPositions, IngestMetrics metrics) {
+            this.index = index;
+            this.indexColumnPositions = indexColumnPositions;
+            this.metrics = metrics;
+        }
+
+        /// The row handle is the row itself
+        @Override
+        public void success(Object rowHandle, ClientResponse response) {
+            Object[] voltRow = (Object[]) rowHandle;
+            index.add((Long) voltRow[0], toIndexKey(index.getSortColumns(), indexColumnPositions, voltRow));
+            metrics.acknowledged(1);
+        }
+    }
+
+    private static String statusName(byte status) {
+        switch (status) {
+            case ClientResponse.USER_ABORT:
+                return "USER_ABORT";
+            case ClientResponse.GRACEFUL_FAILURE:
+                return "GRACEFUL_FAILURE";
+            case ClientResponse.UNEXPECTED_FAILURE:
+                return "UNEXPECTED_FAILURE";
+            case ClientResponse.CONNECTION_LOST:
+                return "CONNECTION_LOST";
+            case ClientResponse.SERVER_UNAVAILABLE:
+                return "SERVER_UNAVAILABLE";
+            case ClientResponse.CONNECTION_TIMEOUT:
+                return "CONNECTION_TIMEOUT";
+            case ClientResponse.RESPONSE_UNKNOWN:
+                return "RESPONSE_UNKNOWN";
+            case ClientResponse.TXN_RESTART:
+                return "TXN_RESTART";
+            case ClientResponse.OPERATIONAL_FAILURE:
+                return "OPERATIONAL_FAILURE";
+            default:
+                return "STATUS_" + status;
+        }
+    }
+
+    private static SortKey toIndexKey(List<SortColumn> sortColumns, int[] positions, Object[] voltRow) {
+        long[] values = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            values[i] = sortColumns.get(i).encode(voltRow[positions[i]]);
+        }
+        return new SortKey(values);
+    }
+
+    private Long ingestCsvFile(Map<String, ColumnType> schema, String tableName, String csvFilePath,
+                               MutablePagingIndex index, TableSketches sketches, IngestMetrics metrics) throws IOException, InterruptedException {
+        // Volt rows lead with id and part ahead of the csv columns
+        List<String> columnNames = new ArrayList<>(schema.keySet());
+        List<SortColumn> sortColumns = index.getSortColumns();
+        int[] indexColumnPositions = new int[sortColumns.size()];
+        for (int i = 0; i < indexColumnPositions.length; i++) {
+            indexColumnPositions[i] = 2 + columnNames.indexOf(sortColumns.get(i).getName());
+        }
+
+        final ColumnType[] columnTypes = schema.values().toArray(new ColumnType[0]);
+
+        IngestPipeline.Config config = new IngestPipeline.Config().convert(ingestConverterThreads, 16).write(ingestWriterThreads);
+        RowBatch.Pool pool = new RowBatch.Pool(columnTypes, config.getParseBatchRows(), config.getBatchesInFlight());
+
+        IngestPipeline<RowBatch> pipeline = new IngestPipeline<>(
+                config,
+                () -> new RowConverter(columnTypes, pool, sketches),
+                () -> new VoltRowWriter(tableName, pool, index, indexColumnPositions, metrics));
+
+        return pipeline.run(csvFilePath, metrics);
+    }
+
+    private class VoltRowWriter implements IngestPipeline.Writer<RowBatch> {
+        private final VoltBulkLoader loader;
+        private final RowBatch.Pool pool;
+        private final IngestMetrics metrics;
+
+        /// Each batch's rows grouped by part, so they reach the loader one partition at a time
+        private final List<List<Object[]>> partRows = new ArrayList<>();
+
+        VoltRowWriter(String tableName, RowBatch.Pool pool, MutablePagingIndex index, int[] indexColumnPositions, IngestMetrics metrics) {
+            this.pool = pool;
+            this.metrics = metrics;
+            for (int part = 0; part < partCount; part++) {
+                partRows.add(new ArrayList<>());
+            }
+
+            try {
+                Integer batchSize = 1024;
+                this.loader = voltClient.getNewBulkLoader(tableName, batchSize, false, new LoadFailureCallback(metrics),
+                        new LoadSuccessCallback(index, indexColumnPositions, metrics));
+            } catch (Exception e) {
+                throw new RuntimeException("Could not create new bulk loader", e);
+            }
+        }
+
+        @Override
+        public void write(RowBatch batch) throws InterruptedException {
+            ColumnType[] columnTypes = batch.getColumnTypes();
+            long insertNanos = 0;
+
+            for (int row = 0; row < batch.size(); row++) {
+                // The bulk loader holds on to each row until its batch is sent, so these can't be reused
+                Object[] voltRow = new Object[columnTypes.length + 2];
+                Long id = rowId.incrementAndGet();
+
+                // The part follows from the id, so readers can find a row's partition without asking
+                int part = partitioner.partFor(id);
+                voltRow[0] = id;
+                voltRow[1] = part;
+
+                for (int colNum = 0; colNum < columnTypes.length; colNum++) {
+                    voltRow[colNum + 2] = batch.isNull(row, colNum) ? null : toVoltValue(batch, row, colNum, columnTypes[colNum]);
+                }
+
+                partRows.get(part - 1).add(voltRow);
+            }
+
+            try {
+                for (List<Object[]> rows : partRows) {
+                    while (!rows.isEmpty()) {
+                        Object[] voltRow = rows.get(rows.size() - 1);
+
+                        // insertRow blocks while the client is backpressured
+                        long startNanos = System.nanoTime();
+                        loader.insertRow(voltRow, voltRow);
+                        insertNanos += System.nanoTime() - startNanos;
+                        rows.remove(rows.size() - 1);
+                    }
+                }
+            } catch (InterruptedException|RuntimeException insertException) {
+                // Nothing left over will be inserted
+                for (List<Object[]> rows : partRows) {
+                    rows.clear();
+                }
+                throw insertException;
+            }
+
+            metrics.submitted(batch.size());
+            metrics.blocked(IngestMetrics.Stage.WRITE, insertNanos);
+            pool.release(batch);
+        }
+
+        private Object toVoltValue(RowBatch batch, int row, int colNum, ColumnType columnType) {
+            switch(columnType) {
+                case INTEGER:
+                    return (int) batch.getLong(row, colNum);
+                case DOUBLE:
+                    return batch.getDouble(row, colNum);
+                case TIMESTAMP:
+                    // VoltDB timestamps are microseconds
+                    return batch.getLong(row, colNum) * 1000L;
+                default:
+                    return batch.getString(row, colNum);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                loader.drain();
+                loader.close();
+            } catch (Exception e) {
+                throw new RuntimeException("Couldn't close bulk loader", e);
+            }
+        }
+    }
+
+    /**
+     * Indexing
+     */
+
+    @Override
+    public Long countRows(String tableName) throws IOException, ProcCallException {
+        String countSql = "SELECT COUNT(*) FROM " + tableName;
+        System.out.println(countSql);
+        return voltClient.callProcedure("@AdHoc", countSql).getResults()[0].asScalarLong();
+    }
+
+    @Override
+    public PagingIndex buildIndex(String tableName, List<SortColumn> sortColumns) throws InterruptedException, ExecutionException {
+        return PagingIndex.build(voltClient, tableName, partCount, sortColumns);
+    }
+
+    @Override
+    public ShardedPagingIndex buildShardedIndex(String tableName, List<SortColumn> sortColumns) throws InterruptedException {
+        return ShardedPagingIndex.build(voltClient, tableName, partCount, sortColumns);
+    }
+
+    @Override
+    public FilterIndex buildFilterIndex(String tableName, String columnName, ColumnType columnType) throws InterruptedException {
+        return FilterIndex.build(voltClient, tableName, partCount, columnName, columnType);
+    }
+
+    @Override
+    public HistogramIndex buildHistogramIndex(String tableName, SortColumn sortColumn, Integer bucketCount) throws IOException, ProcCallException, InterruptedException {
+        return HistogramIndex.build(voltClient, tableName, partCount, sortColumn, bucketCount);
+    }
+
+    /**
+     * Selection
+     */
+
+    @Override
+    public ResultStats selectPage(String tableName, List<String> columns, List<SortColumn> orderBy, long limit, long offset,
+                                  ResultDecoder.BatchConsumer consumer) throws IOException, ProcCallException {
+        String selectSql = "SELECT " + (columns.isEmpty() ? "*" : String.join(", ", columns)) + " FROM " + tableName +
+                orderByClause(orderBy) + " LIMIT " + limit + " OFFSET " + offset;
+        return drain(consumer, "@AdHoc", selectSql);
+    }
+
+    @Override
+    public KeysetPage selectPageAfter(String tableName, List<SortColumn> orderBy, long limit, PageToken after) throws IOException, ProcCallException {
+        long startNanos = System.nanoTime();
+        ResultStats stats = ResultStats.EMPTY;
+        PageToken last = null;
+
+        for (KeysetQuery.Segment segment : KeysetQuery.segments(orderBy, after)) {
+            if (stats.getRows() >= limit) {
+                break;
+            }
+
+            // VoltDB already sorts nulls lowest
+            String selectSql = "SELECT * FROM " + tableName +
+                    (segment.where.isEmpty() ? "" : " WHERE " + segment.where) +
+                    KeysetQuery.orderBy(orderBy, false) + " LIMIT " + (limit - stats.getRows());
+
+            Object[] params = new Object[segment.params.size() + 1];
+            params[0] = selectSql;
+            for (int i = 0; i < segment.params.size(); i++) {
+                Object value = segment.params.get(i);
+                params[i + 1] = segment.paramTypes.get(i) == ColumnType.TIMESTAMP ? new TimestampType((Long) value) : value;
+            }
+
+            VoltTable page = voltClient.callProcedure("@AdHoc", params).getResults()[0];
+            stats = stats.plus(decoders.get().drain(page, startNanos, null));
+
+            // Read the token off the table itself, the decoded batch only keeps timestamps to the milli
+            if (page.getRowCount() > 0) {
+                page.resetRowPosition();
+                page.advanceToRow(page.getRowCount() - 1);
+
+                Object[] values = new Object[orderBy.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = readValue(page, orderBy.get(i));
+                }
+                last = new PageToken(values, page.getLong("id"));
+            }
+        }
+
+        return new KeysetPage(stats, stats.getRows() < limit ? null : last);
+    }
+
+    private static Object readValue(VoltTable table, SortColumn sortColumn) {
+        Object value;
+
+        switch (sortColumn.getType()) {
+            case INTEGER:
+                value = table.getLong(sortColumn.getName());
+                break;
+            case DOUBLE:
+                value = table.getDouble(sortColumn.getName());
+                break;
+            default:
+                value = table.getTimestampAsLong(sortColumn.getName());
+                break;
+        }
+
+        return table.wasNull() ? null : value;
+    }
+
+    /**
+     * Groups the ids by the part the Partitioner gave them at ingest and fetches every group at once
+     * through the table's single-partition procedure, so a page costs one planned round trip per
+     * part it touches. The rows come back per part and are put back in the ids' order here.
+     */
+    @Override
+    public ResultStats selectIds(String tableName, List<SortColumn> orderBy, long[] ids, ResultDecoder.BatchConsumer consumer) throws IOException, ProcCallException, InterruptedException, ExecutionException {
+        if (ids.length == 0) {
+            return ResultStats.EMPTY;
+        }
+
+        String procedureName = fetchProcedure(tableName);
+
+        Map<Integer, List<Long>> partIds = new TreeMap<>();
+        for (long id : ids) {
+            partIds.computeIfAbsent(partitioner.partFor(id), absentPart -> new ArrayList<>()).add(id);
+        }
+
+        long startNanos = System.nanoTime();
+        List<CompletableFuture<VoltTable>> fetches = new ArrayList<>();
+
+        for (Map.Entry<Integer, List<Long>> part : partIds.entrySet()) {
+            long[] partIdArray = new long[part.getValue().size()];
+            for (int i = 0; i < partIdArray.length; i++) {
+                partIdArray[i] = part.getValue().get(i);
+            }
+
+            CompletableFuture<VoltTable> fetch = new CompletableFuture<>();
+            ProcedureCallback fetchCallback = response -> {
+                if (response.getStatus() == ClientResponse.SUCCESS) {
+                    fetch.complete(response.getResults()[0]);
+                } else {
+                    fetch.completeExceptionally(new RuntimeException(response.getStatusString()));
+                }
+            };
+
+            if (!voltClient.callProcedure(fetchCallback, procedureName, part.getKey(), partIdArray)) {
+                throw new RuntimeException("Couldn't queue fetch from part " + part.getKey());
+            }
+            fetches.add(fetch);
+        }
+
+        VoltTable[] tables = new VoltTable[fetches.size()];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = fetches.get(i).get();
+        }
+
+        return decoders.get().drain(tables, ids, startNanos, consumer);
+    }
+
+    /// Created on first use so tables loaded before it existed get one too
+    private String fetchProcedure(String tableName) throws IOException, ProcCallException {
+        String procedureName = tableName + "_select_ids";
+        if (fetchProcedures.contains(procedureName)) {
+            return procedureName;
+        }
+
+        synchronized (fetchProcedures) {
+            if (fetchProcedures.contains(procedureName)) {
+                return procedureName;
+            }
+
+            boolean exists = false;
+            VoltTable procedures = voltClient.callProcedure("@SystemCatalog", "PROCEDURES").getResults()[0];
+            while (procedures.advanceRow()) {
+                if (procedures.getString("PROCEDURE_NAME").equalsIgnoreCase(procedureName)) {
+                    exists = true;
+                }
+            }
+
+            if (!exists) {
+                String createSql = "CREATE PROCEDURE " + procedureName +
+                        " PARTITION ON TABLE " + tableName + " COLUMN part PARAMETER 0" +
+                        " AS SELECT * FROM " + tableName + " WHERE part = ? AND id IN ?;";
+                System.out.println(createSql);
+                voltClient.callProcedure("@AdHoc", createSql);
+            }
+
+            fetchProcedures.add(procedureName);
+        }
+        return procedureName;
+    }
+
+    @Override
+    public ResultStats pivot(String tableName, List<String> dimensions, Map<String, Object[]> filter, String sumColumn,
+                             ResultDecoder.BatchConsumer consumer) throws IOException, ProcCallException {
+        List<Object> params = new ArrayList<>();
+        List<String> predicates = new ArrayList<>();
+
+        // Timestamp parameters are microseconds, as filter values already are
+        for (Map.Entry<String, Object[]> predicate : filter.entrySet()) {
+            List<String> terms = new ArrayList<>();
+            List<String> marks = new ArrayList<>();
+            for (Object value : predicate.getValue()) {
+                if (value == null) {
+                    terms.add(predicate.getKey() + " IS NULL");
+                } else {
+                    marks.add("?");
+                    params.add(value);
+                }
+            }
+
+            if (!marks.isEmpty()) {
+                terms.add(predicate.getKey() + " IN (" + String.join(", ", marks) + ")");
+            }
+            predicates.add(terms.isEmpty() ? "1 = 0" : "(" + String.join(" OR ", terms) + ")");
+        }
+
+        String columns = String.join(", ", dimensions);
+        String selectSql =
+                "SELECT " + columns + ", COUNT(1)" + (sumColumn == null ? "" : ", SUM(" + sumColumn + ")") + " " +
+                "FROM " + tableName + " " +
+                (predicates.isEmpty() ? "" : "WHERE " + String.join(" AND ", predicates) + " ") +
+                "GROUP BY " + columns + " " +
+                "ORDER BY " + columns;
+
+        params.add(0, selectSql);
+        return drain(consumer, "@AdHoc", params.toArray());
+    }
+
+    private static String orderByClause(List<SortColumn> orderBy) {
+        return orderBy.isEmpty() ? "" : " ORDER BY " + SortColumn.describe(orderBy);
+    }
+
+    private ResultStats drain(ResultDecoder.BatchConsumer consumer, String procedure, Object... params) throws IOException, ProcCallException {
+        long startNanos = System.nanoTime();
+        return decoders.get().drain(voltClient.callProcedure(procedure, params).getResults()[0], startNanos, consumer);
+    }
+}
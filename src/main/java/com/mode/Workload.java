@@ -0,0 +1,286 @@
+package com.mode;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * What the driver runs against every engine: the table and its csv files, the OFFSET page, the
+ * indexed and filtered indexed pages, the plain and filtered pivots, the sketches kept during the
+ * load and the histogram index pages. Set up with chained setters; orders() and trips() are the
+ * two data sets under data/.
+ */
+public class Workload {
+    private final String tableName;
+    private final Map<String, ColumnType> schema;
+    private String csvGlob;
+    private List<String> pageColumns = Collections.emptyList();
+    private List<SortColumn> pageOrder = Collections.emptyList();
+    private Long pageLimit = 100L;
+    private Long pageOffset = 0L;
+    private List<SortColumn> indexSort = Collections.emptyList();
+    private Path indexPath = null;
+    private Long indexedOffset = 0L;
+    private Long filteredOffset = 0L;
+    private final Map<String, Object[]> filter = new LinkedHashMap<>();
+    private List<String> pivotDimensions = Collections.emptyList();
+    private String pivotSum = null;
+    private final List<TableSketches.Spec> sketchSpecs = new ArrayList<>();
+    private SortColumn histogramColumn = null;
+    private List<Integer> histogramBucketCounts = Collections.emptyList();
+
+    public Workload(String tableName, Map<String, ColumnType> schema) {
+        this.tableName = tableName;
+        this.schema = schema;
+    }
+
+    /// Files under data/ to load, e.g. "glob:**/orders.csv.gz"
+    public Workload load(String csvGlob) {
+        this.csvGlob = csvGlob;
+        return this;
+    }
+
+    public Workload page(Long limit, Long offset, List<SortColumn> orderBy) {
+        this.pageLimit = limit;
+        this.pageOffset = offset;
+        this.pageOrder = orderBy;
+        return this;
+    }
+
+    /// What the OFFSET page selects, every column unless set; "id" is the engine-assigned id
+    public Workload pageColumns(String... columnNames) {
+        this.pageColumns = Arrays.asList(columnNames);
+        return this;
+    }
+
+    /// Indexed pages are read from a PagingIndex in this order, persisted at the path when there is one
+    public Workload index(List<SortColumn> sortColumns, Path path, Long indexedOffset, Long filteredOffset) {
+        this.indexSort = sortColumns;
+        this.indexPath = path;
+        this.indexedOffset = indexedOffset;
+        this.filteredOffset = filteredOffset;
+        return this;
+    }
+
+    /// One predicate of the filtered page and pivot: the column is any of the values
+    public Workload filter(String columnName, Object... values) {
+        this.filter.put(columnName, values);
+        return this;
+    }
+
+    public Workload pivot(String... dimensions) {
+        this.pivotDimensions = Arrays.asList(dimensions);
+        return this;
+    }
+
+    /// A numeric column the filtered pivot sums per group
+    public Workload pivotSum(String columnName) {
+        this.pivotSum = columnName;
+        return this;
+    }
+
+    /// Approximate statistics to sketch during the load, one group-by per spec
+    public Workload sketch(TableSketches.Spec spec) {
+        this.sketchSpecs.add(spec);
+        return this;
+    }
+
+    /// A continuous column to page through a HistogramIndex at the indexed offset, built once per bucket count
+    public Workload histogram(SortColumn sortColumn, Integer... bucketCounts) {
+        this.histogramColumn = sortColumn;
+        this.histogramBucketCounts = Arrays.asList(bucketCounts);
+        return this;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public Map<String, ColumnType> getSchema() {
+        return schema;
+    }
+
+    public List<String> getPageColumns() {
+        return pageColumns;
+    }
+
+    public List<SortColumn> getPageOrder() {
+        return pageOrder;
+    }
+
+    public Long getPageLimit() {
+        return pageLimit;
+    }
+
+    public Long getPageOffset() {
+        return pageOffset;
+    }
+
+    public List<SortColumn> getIndexSort() {
+        return indexSort;
+    }
+
+    public Path getIndexPath() {
+        return indexPath;
+    }
+
+    public Long getIndexedOffset() {
+        return indexedOffset;
+    }
+
+    public Long getFilteredOffset() {
+        return filteredOffset;
+    }
+
+    public Map<String, Object[]> getFilter() {
+        return filter;
+    }
+
+    public List<String> getPivotDimensions() {
+        return pivotDimensions;
+    }
+
+    public String getPivotSum() {
+        return pivotSum;
+    }
+
+    public List<TableSketches.Spec> getSketchSpecs() {
+        return sketchSpecs;
+    }
+
+    public SortColumn getHistogramColumn() {
+        return histogramColumn;
+    }
+
+    public List<Integer> getHistogramBucketCounts() {
+        return histogramBucketCounts;
+    }
+
+    /// Columns that need a FilterIndex: the filter's and the pivot's
+    public Set<String> getFilterColumns() {
+        Set<String> columns = new LinkedHashSet<>(filter.keySet());
+        columns.addAll(pivotDimensions);
+        return columns;
+    }
+
+    public List<String> getCsvPaths() throws IOException {
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(csvGlob);
+
+        ArrayList<String> filePaths = new ArrayList<>();
+        Files.walkFileTree(Paths.get("data/"), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (matcher.matches(file)) {
+                    filePaths.add(file.toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        Collections.sort(filePaths);
+        return filePaths;
+    }
+
+    public static Workload orders() {
+        Map<String, ColumnType> schema = new LinkedHashMap<String, ColumnType>() {{
+            put("row_number", ColumnType.INTEGER);
+            put("order_id", ColumnType.INTEGER);
+            put("order_gloss_qty", ColumnType.INTEGER);
+            put("order_gloss_amt_usd", ColumnType.DOUBLE);
+            put("order_poster_qty", ColumnType.INTEGER);
+            put("order_poster_amt_usd", ColumnType.DOUBLE);
+            put("order_standard_qty", ColumnType.INTEGER);
+            put("order_standard_amt_usd", ColumnType.DOUBLE);
+            put("order_total_qty", ColumnType.INTEGER);
+            put("order_total_amt_usd", ColumnType.DOUBLE);
+            put("order_created_date", ColumnType.TIMESTAMP);
+            put("order_created_year", ColumnType.INTEGER);
+            put("order_created_quarter", ColumnType.INTEGER);
+            put("order_created_month", ColumnType.INTEGER);
+            put("order_created_month_name", ColumnType.STRING);
+            put("order_created_week", ColumnType.INTEGER);
+            put("order_created_day", ColumnType.INTEGER);
+            put("order_created_do_w", ColumnType.INTEGER);
+            put("order_created_do_w_name", ColumnType.STRING);
+            put("order_created_hour", ColumnType.INTEGER);
+            put("account_id", ColumnType.INTEGER);
+            put("account_lat", ColumnType.DOUBLE);
+            put("account_lon", ColumnType.DOUBLE);
+            put("account_name", ColumnType.STRING);
+            put("account_website", ColumnType.STRING);
+            put("account_primary_contact", ColumnType.STRING);
+            put("web_event_id", ColumnType.INTEGER);
+            put("web_event_channel", ColumnType.STRING);
+            put("web_event_occurred_date", ColumnType.TIMESTAMP);
+            put("web_event_occurred_year", ColumnType.INTEGER);
+            put("web_event_occurred_quarter", ColumnType.INTEGER);
+            put("web_event_occurred_month", ColumnType.INTEGER);
+            put("web_event_created_occurred_name", ColumnType.STRING);
+            put("web_event_occurred_week", ColumnType.INTEGER);
+            put("web_event_occurred_day", ColumnType.INTEGER);
+            put("web_event_occurred_do_w", ColumnType.INTEGER);
+            put("web_event_occurred_do_w_name", ColumnType.STRING);
+            put("web_event_occurred_hour", ColumnType.INTEGER);
+            put("sales_rep_id", ColumnType.INTEGER);
+            put("sales_rep_name", ColumnType.STRING);
+            put("region_id", ColumnType.INTEGER);
+            put("region_name", ColumnType.STRING);
+        }};
+
+        return new Workload("orders", schema)
+                .load("glob:**/orders.csv.gz")
+                .page(100L, 320000L, Collections.emptyList())
+                .index(Collections.singletonList(new SortColumn("order_total_amt_usd", ColumnType.DOUBLE, SortDirection.DESC)),
+                        null, 320000L, 32000L)
+                .filter("web_event_channel", "direct")
+                .filter("region_name", "Northeast", "West")
+                .pivot("region_name", "sales_rep_name")
+                .pivotSum("order_total_amt_usd")
+                .sketch(new TableSketches.Spec("region_name").distinct("account_id").quantiles("order_total_amt_usd")
+                        .heavyHitters("sales_rep_name"))
+                .histogram(new SortColumn("order_total_amt_usd", ColumnType.DOUBLE, SortDirection.DESC), 64, 1024, 16384);
+    }
+
+    public static Workload trips() {
+        Map<String, ColumnType> schema = new LinkedHashMap<String, ColumnType>() {{
+            put("vendor_id", ColumnType.INTEGER);
+            put("pickup_datetime", ColumnType.TIMESTAMP);
+            put("dropoff_datetime", ColumnType.TIMESTAMP);
+            put("passenger_count", ColumnType.INTEGER);
+            put("trip_distance", ColumnType.DOUBLE);
+            put("rate_code_id", ColumnType.INTEGER);
+            put("store_and_fwd_flag", ColumnType.STRING);
+            put("dropoff_longitude", ColumnType.DOUBLE);
+            put("dropoff_latitude", ColumnType.DOUBLE);
+            put("payment_type", ColumnType.INTEGER);
+            put("fare_amount", ColumnType.DOUBLE);
+            put("extra", ColumnType.DOUBLE);
+            put("mta_tax", ColumnType.DOUBLE);
+            put("tip_amount", ColumnType.DOUBLE);
+            put("tolls_amount", ColumnType.DOUBLE);
+            put("improvement_surcharge", ColumnType.DOUBLE);
+            put("total_amount", ColumnType.DOUBLE);
+        }};
+
+        List<SortColumn> byRateCode = Collections.singletonList(new SortColumn("rate_code_id", ColumnType.INTEGER, SortDirection.DESC));
+
+        return new Workload("trips", schema)
+                .load("glob:**/yellow*{2017,2018}*.csv.gz")
+                .page(100L, 320000L, byRateCode)
+                .pageColumns("id")
+                .index(byRateCode, Paths.get("data/trips.rate_code_id.idx"), 16000000L, 320000L)
+                .filter("vendor_id", 2)
+                .filter("payment_type", 1, 2)
+                .pivot("vendor_id", "rate_code_id")
+                .pivotSum("total_amount")
+                .sketch(new TableSketches.Spec("rate_code_id").quantiles("fare_amount", "trip_distance"))
+                .sketch(new TableSketches.Spec("vendor_id").distinct("passenger_count").heavyHitters("payment_type"))
+                .histogram(new SortColumn("fare_amount", ColumnType.DOUBLE, SortDirection.DESC), 64, 1024, 16384);
+    }
+}
@@ -0,0 +1,111 @@
+package com.mode;
+
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class ColumnConverterTest {
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+
+    @Test
+    public void parsesIntegersLikeRoundingTheDouble() {
+        String[] values = {"0", "-0", "+0", "7", "-7", "+7", "007", "2.", ".5", "-.5", "2.4", "2.5", "-2.5", "-2.500", "-2.51",
+                "-0.5000001", "0.49999999999999994", "1e3", "-1.5e2", "9223372036854775807"};
+
+        for (String value : values) {
+            assertEquals(value, Math.round(Double.parseDouble(value)), ColumnConverter.parseInteger(value));
+        }
+    }
+
+    @Test
+    public void parsesLongIntegersExactly() {
+        assertEquals(123456789012345678L, ColumnConverter.parseInteger("123456789012345678"));
+        assertEquals(-123456789012345678L, ColumnConverter.parseInteger("-123456789012345678"));
+        assertEquals(999999999999999999L, ColumnConverter.parseInteger("999999999999999999"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsEmptyIntegers() {
+        ColumnConverter.parseInteger("");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsBareSigns() {
+        ColumnConverter.parseInteger("-");
+    }
+
+    /// Bit for bit, so the fast path can't be off by an ulp or lose the sign of zero
+    @Test
+    public void parsesDoublesExactly() {
+        String[] values = {"0", "-0", "0.0", "-0.0", "1", "-1.5", "+2.25", "0.1", "0.3", "3.14159", "123.456", "1.", ".5",
+                "9007199254740991", "9007199254740993", "0.0000000000000000000001", "0.00000000000000000000001",
+                "1e10", "-2.5E-3", "NaN", "Infinity", "-Infinity", "0x1p3"};
+
+        for (String value : values) {
+            assertDoubleBits(value);
+        }
+    }
+
+    @Test
+    public void parsesRandomDecimalsExactly() {
+        SplittableRandom random = new SplittableRandom(42);
+
+        for (int i = 0; i < 100_000; i++) {
+            long mantissa = random.nextLong(1L << 54);
+            String digits = Long.toString(mantissa);
+            int point = random.nextInt(digits.length() + 1);
+            assertDoubleBits((random.nextBoolean() ? "-" : "") + digits.substring(0, point) + "." + digits.substring(point));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsEmptyDoubles() {
+        ColumnConverter.parseDouble("");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsBareDecimalPoints() {
+        ColumnConverter.parseDouble(".");
+    }
+
+    @Test
+    public void convertsNullFieldsToNulls() {
+        ColumnType[] columnTypes = {ColumnType.INTEGER, ColumnType.DOUBLE, ColumnType.TIMESTAMP, ColumnType.STRING};
+        ColumnConverter[] converters = ColumnConverter.compile(columnTypes);
+        RowBatch batch = new RowBatch(columnTypes, 1);
+
+        // A pooled batch is reused, so a null has to clear what the last row left
+        String[] values = {"5", "1.5", "2019-01-01 00:00:00", "text"};
+        for (int column = 0; column < columnTypes.length; column++) {
+            converters[column].convert(values[column], batch, 0, column);
+            assertFalse(batch.isNull(0, column));
+            converters[column].convert(null, batch, 0, column);
+            assertTrue(batch.isNull(0, column));
+        }
+        assertNull(batch.getString(0, 3));
+    }
+
+    /// Every value after the first runs against the hour the one before it cached
+    @Test
+    public void convertsTimestampsAcrossCachedHours() {
+        String[] values = {"2019-01-01 00:30:15", "2019-01-01 00:59:59", "2019-01-01 01:00:00", "2019-01-01 00:00:00",
+                "2018-12-31 23:59:59", "2019-12-01 00:30:15", "2020-02-29 12:34:56",
+                "2019-11-03 01:30:00", "2019-1-1 00:00:00"};
+
+        ColumnConverter converter = ColumnConverter.forType(ColumnType.TIMESTAMP);
+        RowBatch batch = new RowBatch(new ColumnType[]{ColumnType.TIMESTAMP}, 1);
+
+        for (String value : values) {
+            converter.convert(value, batch, 0, 0);
+            assertEquals(value, DATE_TIME.parseDateTime(value).getMillis(), batch.getLong(0, 0));
+        }
+    }
+
+    private static void assertDoubleBits(String value) {
+        assertEquals(value, Double.doubleToRawLongBits(Double.parseDouble(value)), Double.doubleToRawLongBits(ColumnConverter.parseDouble(value)));
+    }
+}
@@ -0,0 +1,189 @@
+package com.mode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ColumnarSnapshotTest {
+    private static final String[] NAMES = {"plain", "with, comma", "with \"quotes\"", "line\nbreak"};
+
+    private Path directory;
+    private Map<String, ColumnType> schema;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snapshot-test");
+
+        schema = new LinkedHashMap<>();
+        schema.put("id", ColumnType.INTEGER);
+        schema.put("amount", ColumnType.DOUBLE);
+        schema.put("created", ColumnType.TIMESTAMP);
+        schema.put("name", ColumnType.STRING);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /// Two full blocks and a short one, every type with nulls, read back row for row in file order
+    @Test
+    public void readsBackWhatWasConverted() throws Exception {
+        int blockRows = new IngestPipeline.Config().getParseBatchRows();
+        List<String[]> csvRows = csvRows(2 * blockRows + 100);
+        String csvPath = writeCsv("rows.csv.gz", csvRows);
+
+        ColumnarSnapshot snapshot = ColumnarSnapshot.open(ColumnarSnapshot.convert(csvPath, schema));
+
+        assertEquals(new ArrayList<>(schema.keySet()), snapshot.getColumnNames());
+        assertArrayEquals(schema.values().toArray(new ColumnType[0]), snapshot.getColumnTypes());
+        assertEquals(csvRows.size(), snapshot.getRowCount());
+        assertEquals(3, snapshot.getBlockCount());
+        assertEquals(blockRows, snapshot.getBlockRows(0));
+        assertEquals(100, snapshot.getBlockRows(2));
+
+        ColumnType[] columnTypes = snapshot.getColumnTypes();
+        ColumnConverter[] converters = ColumnConverter.compile(columnTypes);
+        RowBatch expected = new RowBatch(columnTypes, 1);
+        RowBatch batch = new RowBatch(columnTypes, blockRows);
+        int csvRow = 0;
+
+        try (ColumnarSnapshot.BlockDecoder decoder = new ColumnarSnapshot.BlockDecoder()) {
+            for (int block = 0; block < snapshot.getBlockCount(); block++) {
+                snapshot.read(block, batch, decoder);
+
+                for (int row = 0; row < batch.size(); row++, csvRow++) {
+                    for (int column = 0; column < columnTypes.length; column++) {
+                        converters[column].convert(csvRows.get(csvRow)[column], expected, 0, column);
+                        assertValue(expected, batch, row, column, "row " + csvRow + " column " + column);
+                    }
+                }
+            }
+        }
+        assertEquals(csvRows.size(), csvRow);
+    }
+
+    @Test
+    public void convertsTheSameCsvToTheSameFile() throws Exception {
+        String csvPath = writeCsv("repeat.csv.gz", csvRows(20_000));
+
+        Path snapshotPath = ColumnarSnapshot.convert(csvPath, schema);
+        byte[] first = Files.readAllBytes(snapshotPath);
+        Files.delete(snapshotPath);
+
+        assertArrayEquals(first, Files.readAllBytes(ColumnarSnapshot.convert(csvPath, schema)));
+    }
+
+    @Test
+    public void convertsAHeaderOnlyCsv() throws Exception {
+        String csvPath = writeCsv("empty.csv.gz", Collections.emptyList());
+
+        ColumnarSnapshot snapshot = ColumnarSnapshot.open(ColumnarSnapshot.convert(csvPath, schema));
+        assertEquals(0, snapshot.getRowCount());
+        assertEquals(0, snapshot.getBlockCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesATruncatedSnapshot() throws Exception {
+        Path snapshotPath = ColumnarSnapshot.convert(writeCsv("truncated.csv.gz", csvRows(10)), schema);
+        byte[] bytes = Files.readAllBytes(snapshotPath);
+        Files.write(snapshotPath, Arrays.copyOf(bytes, bytes.length - 1));
+
+        ColumnarSnapshot.open(snapshotPath);
+    }
+
+    @Test
+    public void convertsAgainWhenTheSchemaChanges() throws Exception {
+        String csvPath = writeCsv("schema.csv.gz", csvRows(10));
+        Path snapshotPath = ColumnarSnapshot.convert(csvPath, schema);
+        assertEquals(snapshotPath, ColumnarSnapshot.convert(csvPath, schema));
+
+        schema.put("amount", ColumnType.STRING);
+        ColumnarSnapshot snapshot = ColumnarSnapshot.open(ColumnarSnapshot.convert(csvPath, schema));
+        assertArrayEquals(schema.values().toArray(new ColumnType[0]), snapshot.getColumnTypes());
+
+        Map<String, ColumnType> renamed = new LinkedHashMap<>();
+        schema.forEach((columnName, columnType) -> renamed.put(columnName.equals("name") ? "label" : columnName, columnType));
+        snapshot = ColumnarSnapshot.open(ColumnarSnapshot.convert(csvPath, renamed));
+        assertEquals(new ArrayList<>(renamed.keySet()), snapshot.getColumnNames());
+    }
+
+    @Test
+    public void deletesThePartialFileWhenConversionFails() throws Exception {
+        List<String[]> csvRows = csvRows(10);
+        csvRows.get(5)[0] = "not a number";
+        String csvPath = writeCsv("bad.csv.gz", csvRows);
+
+        try {
+            ColumnarSnapshot.convert(csvPath, schema);
+            fail("converted " + csvPath);
+        } catch (Exception expected) {
+            Path snapshotPath = ColumnarSnapshot.snapshotPath(csvPath);
+            assertFalse(Files.exists(snapshotPath));
+            assertFalse(Files.exists(snapshotPath.resolveSibling(snapshotPath.getFileName() + ".partial")));
+        }
+    }
+
+    /// Each column is null at its own period, so every block mixes nulls and values
+    private static List<String[]> csvRows(int count) {
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(new String[]{
+                    i % 13 == 0 ? null : Integer.toString(i % 2 == 0 ? i : -i),
+                    i % 7 == 0 ? null : (i % 2 == 0 ? "-" : "") + i + ".25",
+                    i % 11 == 0 ? null : String.format("2019-%02d-%02d %02d:%02d:%02d", i % 12 + 1, i % 28 + 1, i % 24, i % 60, (i * 7) % 60),
+                    i % 5 == 0 ? null : NAMES[i % NAMES.length]
+            });
+        }
+        return rows;
+    }
+
+    private String writeCsv(String fileName, List<String[]> rows) throws IOException {
+        Path path = directory.resolve(fileName);
+
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(path)), StandardCharsets.UTF_8)) {
+            writer.write(String.join(",", schema.keySet()) + "\n");
+            for (String[] row : rows) {
+                StringJoiner line = new StringJoiner(",", "", "\n");
+                for (String value : row) {
+                    line.add(value == null ? "" : "\"" + value.replace("\"", "\"\"") + "\"");
+                }
+                writer.write(line.toString());
+            }
+        }
+        return path.toString();
+    }
+
+    private static void assertValue(RowBatch expected, RowBatch actual, int row, int column, String message) {
+        assertEquals(message, expected.isNull(0, column), actual.isNull(row, column));
+        if (expected.isNull(0, column)) {
+            return;
+        }
+
+        switch (expected.getColumnTypes()[column]) {
+            case DOUBLE:
+                assertEquals(message, Double.doubleToLongBits(expected.getDouble(0, column)), Double.doubleToLongBits(actual.getDouble(row, column)));
+                break;
+            case STRING:
+                assertEquals(message, expected.getString(0, column), actual.getString(row, column));
+                break;
+            default:
+                assertEquals(message, expected.getLong(0, column), actual.getLong(row, column));
+                break;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.mode;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ColumnarTableTest {
+    private static final int BATCH_ROWS = 1000;
+
+    /// Every batch brings a new INTEGER value and a new string, so a group-by racing the appends sees keys past any range read before its rows
+    @Test
+    public void groupsWhileAppendingNewValues() throws Exception {
+        ColumnarTable table = new ColumnarTable(schema());
+        int batches = 300;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread writer = new Thread(() -> {
+            try {
+                for (int batch = 0; batch < batches; batch++) {
+                    table.append(batch(batch));
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        writer.start();
+
+        int checks = 0;
+        while (writer.isAlive() || checks == 0) {
+            assertWholeBatches(table.groupBy(Arrays.asList("bucket", "label"), "amount", null));
+            checks++;
+        }
+        writer.join();
+
+        assertNull(failure.get());
+        List<ColumnarTable.Group> groups = table.groupBy(Arrays.asList("bucket", "label"), "amount", null);
+        assertEquals(batches + 1, groups.size());
+        assertWholeBatches(groups);
+    }
+
+    @Test
+    public void groupsNullsFirstAndSumsSkippingNulls() {
+        ColumnarTable table = new ColumnarTable(schema());
+        table.append(batch(0));
+        table.append(batch(1));
+
+        List<ColumnarTable.Group> groups = table.groupBy(Collections.singletonList("bucket"), "amount", null);
+        assertEquals(3, groups.size());
+        assertNull(groups.get(0).getValues().get(0));
+        assertEquals(Arrays.asList(0L, 1L), Arrays.asList(groups.get(1).getValues().get(0), groups.get(2).getValues().get(0)));
+        assertEquals(Long.valueOf(BATCH_ROWS - nullRows()), groups.get(2).getCount());
+        assertEquals(Double.valueOf(BATCH_ROWS - nullRows()), groups.get(2).getSum());
+    }
+
+    @Test
+    public void pagesPastTheEndWithoutOverflowing() {
+        ColumnarTable table = new ColumnarTable(schema());
+        table.append(batch(0));
+
+        assertEquals(BATCH_ROWS, table.page(Long.MAX_VALUE, 0).length);
+        assertEquals(10, table.page(Long.MAX_VALUE, BATCH_ROWS - 10).length);
+        assertEquals(0, table.page(Long.MAX_VALUE, Long.MAX_VALUE).length);
+        assertEquals(5, table.page(5, 3)[2]);
+    }
+
+    @Test
+    public void rejectsIntegersOutsideTheIntRange() {
+        ColumnarTable table = new ColumnarTable(schema());
+        RowBatch batch = batch(0);
+        batch.setLong(7, 0, Integer.MAX_VALUE + 1L);
+
+        try {
+            table.append(batch);
+            fail("appended " + (Integer.MAX_VALUE + 1L));
+        } catch (IllegalArgumentException expected) {
+            assertEquals(0, table.size());
+        }
+
+        table.append(batch(1));
+        assertEquals(Long.valueOf(BATCH_ROWS - nullRows()), table.groupBy(Collections.singletonList("bucket"), null, null).get(1).getCount());
+    }
+
+    private static Map<String, ColumnType> schema() {
+        Map<String, ColumnType> schema = new LinkedHashMap<>();
+        schema.put("bucket", ColumnType.INTEGER);
+        schema.put("label", ColumnType.STRING);
+        schema.put("amount", ColumnType.DOUBLE);
+        return schema;
+    }
+
+    /// Batch n is bucket n and label "label n", with the same rows null in every column
+    private static RowBatch batch(int n) {
+        RowBatch batch = new RowBatch(schema().values().toArray(new ColumnType[0]), BATCH_ROWS);
+        for (int row = 0; row < BATCH_ROWS; row++) {
+            boolean isNull = row % 10 == 0;
+            batch.setNull(row, 0, isNull);
+            batch.setNull(row, 1, isNull);
+            batch.setNull(row, 2, isNull);
+            batch.setLong(row, 0, n);
+            batch.setString(row, 1, isNull ? null : "label " + n);
+            batch.setDouble(row, 2, 1.0);
+        }
+        batch.setSize(BATCH_ROWS);
+        return batch;
+    }
+
+    private static int nullRows() {
+        return BATCH_ROWS / 10;
+    }
+
+    private static void assertWholeBatches(List<ColumnarTable.Group> groups) {
+        long nulls = 0;
+        for (ColumnarTable.Group group : groups) {
+            List<Object> values = group.getValues();
+            if (values.get(0) == null) {
+                assertNull(values.get(1));
+                nulls = group.getCount();
+                continue;
+            }
+
+            assertEquals("label " + values.get(0), values.get(1));
+            assertEquals(values.toString(), Long.valueOf(BATCH_ROWS - nullRows()), group.getCount());
+            assertEquals(values.toString(), Double.valueOf(BATCH_ROWS - nullRows()), group.getSum());
+        }
+        assertEquals(nullRows() * (groups.size() - (nulls > 0 ? 1 : 0)), nulls);
+    }
+}
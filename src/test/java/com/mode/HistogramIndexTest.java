@@ -0,0 +1,103 @@
+package com.mode;
+
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/// Pages of a HistogramIndex against the exact PagingIndex over the same keys
+public class HistogramIndexTest {
+    private static final int ROWS = 20_000;
+
+    @Test
+    public void pagesLikeTheExactIndex() throws Exception {
+        for (SortDirection columnDirection : SortDirection.values()) {
+            SortColumn sortColumn = new SortColumn("amount", ColumnType.DOUBLE, columnDirection);
+            Double[] values = values();
+            PagingIndex exact = exactIndex(sortColumn, values);
+
+            for (int bucketCount : new int[]{1, 16, 1024}) {
+                HistogramIndex histogram = histogramIndex(sortColumn, values, bucketCount);
+                assertEquals(exact.getCardinality(), histogram.getCardinality());
+
+                for (SortDirection direction : SortDirection.values()) {
+                    for (long offset = 0; offset < ROWS; offset += 997) {
+                        String page = sortColumn + " in " + bucketCount + " buckets, " + direction + " at " + offset;
+                        assertArrayEquals(page, exact.lookup(250, offset, direction), histogram.lookup(250, offset, direction));
+                    }
+                    assertArrayEquals(exact.lookup(ROWS, 0, direction), histogram.lookup(ROWS, 0, direction));
+                }
+            }
+        }
+    }
+
+    /// A common value and the nulls each fill buckets of their own, which page without loading
+    @Test
+    public void splitsOffNullsAndCommonValues() throws Exception {
+        SortColumn sortColumn = new SortColumn("amount", ColumnType.DOUBLE, SortDirection.ASC);
+        Double[] values = values();
+        HistogramIndex histogram = histogramIndex(sortColumn, values, 64);
+
+        long[] splits = HistogramIndex.splits(sortColumn, keys(sortColumn, values), 64);
+        int nullBucket = HistogramIndex.bucket(splits, sortColumn.encode((Object) null));
+        int commonBucket = HistogramIndex.bucket(splits, sortColumn.encode(5.0));
+        assertEquals(sortColumn.encode((Object) null), splits[nullBucket - 1]);
+        assertEquals(sortColumn.encode(5.0), splits[commonBucket - 1]);
+        assertEquals(sortColumn.encode(5.0) + 1, splits[commonBucket]);
+
+        // Nulls sort first, the fives come after every smaller value, and both page straight from their bitmaps
+        long nulls = Arrays.stream(values).filter(Objects::isNull).count();
+        long fives = Arrays.stream(values).filter(value -> value != null && value == 5.0).count();
+        long smaller = Arrays.stream(keys(sortColumn, values)).filter(key -> key < sortColumn.encode(5.0)).count();
+        assertEquals(nulls, histogram.lookup(nulls, 0).length);
+        assertEquals(fives, histogram.lookup(fives, smaller).length);
+        assertEquals(Integer.valueOf(0), histogram.getLoadedBucketCount());
+        histogram.lookup(1, ROWS - 1);
+        assertEquals(Integer.valueOf(1), histogram.getLoadedBucketCount());
+    }
+
+    /// Every tenth row null and every other fourth row 5.0; the rest take a few hundred values, so buckets mix ties
+    private static Double[] values() {
+        SplittableRandom random = new SplittableRandom(7);
+        Double[] values = new Double[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            values[i] = i % 10 == 0 ? null : i % 4 == 0 ? 5.0 : random.nextInt(-300, 300) / 4.0;
+        }
+        return values;
+    }
+
+    private static long[] keys(SortColumn sortColumn, Double[] values) {
+        long[] keys = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            keys[i] = sortColumn.encode(values[i]);
+        }
+        return keys;
+    }
+
+    private static PagingIndex exactIndex(SortColumn sortColumn, Double[] values) {
+        TreeMap<SortKey, RoaringBitmap> buckets = new TreeMap<>();
+        for (int i = 0; i < values.length; i++) {
+            buckets.computeIfAbsent(new SortKey(sortColumn.encode(values[i])), absentKey -> new RoaringBitmap()).add(i + 1);
+        }
+        return new PagingIndex(Collections.singletonList(sortColumn), buckets);
+    }
+
+    /// Every key is sampled, and a bucket loads by handing over every row, which the index filters to its own
+    private static HistogramIndex histogramIndex(SortColumn sortColumn, Double[] values, int bucketCount) {
+        long[] keys = keys(sortColumn, values);
+        long[] splits = HistogramIndex.splits(sortColumn, keys, bucketCount);
+
+        Map<Integer, RoaringBitmap> buckets = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            buckets.computeIfAbsent(HistogramIndex.bucket(splits, keys[i]), absentKey -> new RoaringBitmap()).add(i + 1);
+        }
+
+        return new HistogramIndex(sortColumn, splits, buckets, (low, high, ids, consumer) -> {
+            for (int i = 0; i < keys.length; i++) {
+                consumer.accept(i + 1, keys[i]);
+            }
+        });
+    }
+}
@@ -0,0 +1,184 @@
+package com.mode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/// Keyset pages run on an in-memory HSQLDB table, against every row sorted the way the pages promise
+public class KeysetQueryTest {
+    private static final int ROWS = 600;
+
+    private Connection connection;
+    private List<Object[]> rows;
+
+    @Before
+    public void createTable() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:hsqldb:mem:keyset", "SA", "");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE items (id BIGINT PRIMARY KEY, a BIGINT, b DOUBLE)");
+        }
+
+        // A handful of values each, a fifth of them null, so pages end inside ties and null runs
+        SplittableRandom random = new SplittableRandom(7);
+        rows = new ArrayList<>();
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO items VALUES (?, ?, ?)")) {
+            for (long id = 1; id <= ROWS; id++) {
+                Long a = random.nextInt(5) == 0 ? null : (long) random.nextInt(-3, 4);
+                Double b = random.nextInt(5) == 0 ? null : random.nextInt(6) / 2.0;
+                rows.add(new Object[]{id, a, b});
+
+                insert.setLong(1, id);
+                insert.setObject(2, a);
+                insert.setObject(3, b);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    @After
+    public void dropTable() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        connection.close();
+    }
+
+    @Test
+    public void pagesEveryRowOnceInOrder() throws SQLException {
+        List<List<SortColumn>> orders = Arrays.asList(
+                Collections.emptyList(),
+                sort(a(SortDirection.ASC)),
+                sort(a(SortDirection.DESC)),
+                sort(a(SortDirection.ASC), b(SortDirection.DESC)),
+                sort(a(SortDirection.DESC), b(SortDirection.ASC)),
+                sort(b(SortDirection.DESC), a(SortDirection.DESC)));
+
+        for (List<SortColumn> orderBy : orders) {
+            for (int limit : new int[]{1, 17, ROWS}) {
+                assertEquals(SortColumn.describe(orderBy) + " by " + limit, expected(orderBy), paged(orderBy, limit));
+            }
+        }
+    }
+
+    /// A DESC bound can't admit the nulls that come after it, so they get a segment of their own
+    @Test
+    public void readsNullsAfterADescendingBound() {
+        assertEquals(2, KeysetQuery.segments(sort(a(SortDirection.DESC)), new PageToken(new Object[]{1L}, 5)).size());
+        assertEquals(1, KeysetQuery.segments(sort(a(SortDirection.ASC)), new PageToken(new Object[]{1L}, 5)).size());
+
+        List<KeysetQuery.Segment> insideNulls = KeysetQuery.segments(sort(a(SortDirection.DESC)), new PageToken(new Object[]{null}, 5));
+        assertEquals(1, insideNulls.size());
+        assertTrue(insideNulls.get(0).where, insideNulls.get(0).where.startsWith("a IS NULL AND "));
+        assertEquals(Collections.singletonList((Object) 5L), insideNulls.get(0).params);
+    }
+
+    @Test
+    public void roundTripsTokens() {
+        PageToken token = new PageToken(new Object[]{null, -42L, 2.5, Long.MIN_VALUE}, 1L << 40);
+        PageToken parsed = PageToken.parse(token.serialize());
+
+        assertEquals(token.width(), parsed.width());
+        for (int i = 0; i < token.width(); i++) {
+            assertEquals(token.getValue(i), parsed.getValue(i));
+        }
+        assertEquals(token.getId(), parsed.getId());
+        assertEquals(token.toString(), parsed.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesMalformedTokens() {
+        String serialized = new PageToken(new Object[]{1L}, 5).serialize();
+        PageToken.parse(serialized.substring(0, serialized.length() - 2));
+    }
+
+    /// Page the way HsqldbEngine does, running the segments in order until the page is full, through serialized tokens
+    private List<Long> paged(List<SortColumn> orderBy, int limit) throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        String token = null;
+
+        do {
+            PageToken after = token == null ? null : PageToken.parse(token);
+            List<Object[]> page = new ArrayList<>();
+
+            for (KeysetQuery.Segment segment : KeysetQuery.segments(orderBy, after)) {
+                if (page.size() >= limit) {
+                    break;
+                }
+
+                String selectSql = "SELECT id, a, b FROM items" + (segment.where.isEmpty() ? "" : " WHERE " + segment.where) +
+                        KeysetQuery.orderBy(orderBy, true) + " LIMIT ?";
+                try (PreparedStatement statement = connection.prepareStatement(selectSql)) {
+                    for (int i = 0; i < segment.params.size(); i++) {
+                        statement.setObject(i + 1, segment.params.get(i));
+                    }
+                    statement.setLong(segment.params.size() + 1, limit - page.size());
+
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            page.add(new Object[]{resultSet.getLong(1), resultSet.getObject(2), resultSet.getObject(3)});
+                        }
+                    }
+                }
+            }
+
+            for (Object[] row : page) {
+                ids.add((Long) row[0]);
+            }
+            token = page.size() < limit ? null : tokenAt(page.get(page.size() - 1), orderBy).serialize();
+            assertTrue("no more than " + ROWS + " rows", ids.size() <= ROWS);
+        } while (token != null);
+
+        return ids;
+    }
+
+    private static PageToken tokenAt(Object[] row, List<SortColumn> orderBy) {
+        Object[] values = new Object[orderBy.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = row[column(orderBy.get(i))];
+        }
+        return new PageToken(values, (Long) row[0]);
+    }
+
+    /// Nulls lowest, then id in the last column's direction
+    private List<Long> expected(List<SortColumn> orderBy) {
+        Comparator<Object[]> order = (left, right) -> 0;
+        for (SortColumn sortColumn : orderBy) {
+            int column = column(sortColumn);
+            Comparator<Object[]> byColumn = Comparator.comparing(row -> row[column] == null ? null : ((Number) row[column]).doubleValue(),
+                    Comparator.nullsFirst(Comparator.<Double>naturalOrder()));
+            order = order.thenComparing(sortColumn.getDirection() == SortDirection.ASC ? byColumn : byColumn.reversed());
+        }
+        Comparator<Object[]> byId = Comparator.comparingLong(row -> (Long) row[0]);
+        order = order.thenComparing(KeysetQuery.idDirection(orderBy) == SortDirection.ASC ? byId : byId.reversed());
+
+        List<Object[]> sorted = new ArrayList<>(rows);
+        sorted.sort(order);
+        List<Long> ids = new ArrayList<>();
+        for (Object[] row : sorted) {
+            ids.add((Long) row[0]);
+        }
+        return ids;
+    }
+
+    private static int column(SortColumn sortColumn) {
+        return sortColumn.getName().equals("a") ? 1 : 2;
+    }
+
+    private static SortColumn a(SortDirection direction) {
+        return new SortColumn("a", ColumnType.INTEGER, direction);
+    }
+
+    private static SortColumn b(SortDirection direction) {
+        return new SortColumn("b", ColumnType.DOUBLE, direction);
+    }
+
+    private static List<SortColumn> sort(SortColumn... sortColumns) {
+        return Arrays.asList(sortColumns);
+    }
+}
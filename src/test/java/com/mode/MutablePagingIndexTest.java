@@ -0,0 +1,83 @@
+package com.mode;
+
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MutablePagingIndexTest {
+    private static final List<SortColumn> SORT = Collections.singletonList(new SortColumn("bucket", ColumnType.INTEGER, SortDirection.ASC));
+
+    /// Ids spread over several 2^16 chunks per key, snapshotted between writes, against an index built from scratch each time
+    @Test
+    public void snapshotsMatchAnIndexBuiltFromScratch() {
+        MutablePagingIndex index = new MutablePagingIndex(SORT, 4);
+        TreeMap<SortKey, RoaringBitmap> expected = new TreeMap<>();
+        SplittableRandom random = new SplittableRandom(7);
+
+        List<PagingIndex> snapshots = new ArrayList<>();
+        List<long[]> pages = new ArrayList<>();
+
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 5_000; i++) {
+                long id = random.nextLong(1L << 20);
+                SortKey key = key(random.nextInt(6));
+                if (random.nextInt(4) == 0) {
+                    index.remove(id, key);
+                    RoaringBitmap bucket = expected.get(key);
+                    if (bucket != null) {
+                        bucket.remove((int) id);
+                        if (bucket.isEmpty()) {
+                            expected.remove(key);
+                        }
+                    }
+                } else {
+                    index.add(id, key);
+                    expected.computeIfAbsent(key, absentKey -> new RoaringBitmap()).add((int) id);
+                }
+            }
+            if (round == 10) {
+                index.clear();
+                expected.clear();
+            }
+
+            PagingIndex snapshot = index.snapshot();
+            assertPagesMatch(new PagingIndex(SORT, expected), snapshot);
+            snapshots.add(snapshot);
+            pages.add(snapshot.lookup(Long.MAX_VALUE, 0));
+        }
+
+        // Later writes never show through an earlier snapshot's shared chunks
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertArrayEquals("snapshot " + i, pages.get(i), snapshots.get(i).lookup(Long.MAX_VALUE, 0));
+        }
+    }
+
+    @Test
+    public void reusesTheSnapshotUntilTheNextWrite() {
+        MutablePagingIndex index = new MutablePagingIndex(SORT);
+        index.add(1, key(1));
+        PagingIndex snapshot = index.snapshot();
+
+        assertSame(snapshot, index.snapshot());
+        index.add(2, key(1));
+        assertNotSame(snapshot, index.snapshot());
+        assertEquals(Long.valueOf(2), index.getCardinality());
+        assertArrayEquals(new long[]{2, 1}, index.lookup(10, 0, SortDirection.DESC));
+    }
+
+    private static SortKey key(int value) {
+        return new SortKey(new long[]{value});
+    }
+
+    private static void assertPagesMatch(PagingIndex expected, PagingIndex actual) {
+        assertEquals(expected.keys(), actual.keys());
+        assertEquals(expected.getCardinality(), actual.getCardinality());
+        for (SortDirection direction : SortDirection.values()) {
+            assertArrayEquals(expected.lookup(Long.MAX_VALUE, 0, direction), actual.lookup(Long.MAX_VALUE, 0, direction));
+            assertArrayEquals(expected.lookup(1000, 12345, direction), actual.lookup(1000, 12345, direction));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.mode;
+
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PagingIndexTest {
+    private static final List<SortColumn> SORT = Collections.singletonList(new SortColumn("bucket", ColumnType.INTEGER, SortDirection.ASC));
+
+    @Test
+    public void seeksTheLastBucketStartingAtOrBeforeTheRank() {
+        // Filtered ranks leave empty buckets, which a page never starts in
+        long[] cumulative = {0, 5, 5, 8, 8, 8, 20};
+
+        assertEquals(0, PagingIndex.seekBucket(0, cumulative));
+        assertEquals(0, PagingIndex.seekBucket(4, cumulative));
+        assertEquals(2, PagingIndex.seekBucket(5, cumulative));
+        assertEquals(2, PagingIndex.seekBucket(7, cumulative));
+        assertEquals(5, PagingIndex.seekBucket(8, cumulative));
+        assertEquals(5, PagingIndex.seekBucket(19, cumulative));
+    }
+
+    /// Every page of a few sizes, both ways, against the ids sorted by key and then id
+    @Test
+    public void pagesInKeyThenIdOrder() {
+        TreeMap<SortKey, RoaringBitmap> buckets = new TreeMap<>();
+        List<long[]> rows = new ArrayList<>();
+        SplittableRandom random = new SplittableRandom(7);
+
+        for (long id = 1; id <= 3_000; id++) {
+            // Mostly ties in a few keys, with some keys holding a single id
+            long key = id % 97 == 0 ? 1_000 + id : random.nextInt(5);
+            buckets.computeIfAbsent(new SortKey(key), absentKey -> new RoaringBitmap()).add((int) id);
+            rows.add(new long[]{key, id});
+        }
+        rows.sort(Comparator.<long[]>comparingLong(row -> row[0]).thenComparingLong(row -> row[1]));
+
+        PagingIndex index = new PagingIndex(SORT, buckets);
+        assertEquals(Long.valueOf(rows.size()), index.getCardinality());
+
+        for (int limit : new int[]{1, 7, 100, 5_000}) {
+            for (int offset = 0; offset < rows.size(); offset += 37) {
+                assertArrayEquals("ASC " + limit + " at " + offset, expected(rows, limit, offset, false),
+                        index.lookup(limit, offset, SortDirection.ASC));
+                assertArrayEquals("DESC " + limit + " at " + offset, expected(rows, limit, offset, true),
+                        index.lookup(limit, offset, SortDirection.DESC));
+            }
+        }
+
+        assertEquals(0, index.lookup(10, rows.size()).length);
+        assertEquals(0, index.lookup(0, 0).length);
+        assertEquals(0, index.lookup(10, -1).length);
+    }
+
+    @Test
+    public void pagesOnlyFilteredIds() {
+        TreeMap<SortKey, RoaringBitmap> buckets = new TreeMap<>();
+        Map<Object, RoaringBitmap> parities = new HashMap<>();
+        for (int id = 1; id <= 1_000; id++) {
+            buckets.computeIfAbsent(new SortKey(id % 10), absentKey -> new RoaringBitmap()).add(id);
+            parities.computeIfAbsent((long) (id % 2), absentKey -> new RoaringBitmap()).add(id);
+        }
+        PagingIndex index = new PagingIndex(SORT, buckets);
+        BitmapFilter odd = BitmapFilter.where(new FilterIndex("parity", ColumnType.INTEGER, parities), 1);
+
+        assertEquals(Long.valueOf(500), index.getCardinality(odd));
+        // Keys 1, 3, 5, 7 and 9 hold 100 odd ids each, so rank 150 is the 51st id of key 3
+        assertArrayEquals(new long[]{503, 513, 523}, index.lookup(3, 150, SortDirection.ASC, odd));
+        assertArrayEquals(new long[]{499, 489}, index.lookup(2, 50, SortDirection.DESC, odd));
+        assertEquals(0, index.lookup(3, 500, SortDirection.ASC, odd).length);
+    }
+
+    /// 2^32 ids are cheap as runs, and no long[] can hold them all
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesPagesTooLongForAnArray() {
+        RoaringBitmap everything = new RoaringBitmap();
+        everything.add(0L, 1L << 32);
+        everything.runOptimize();
+
+        TreeMap<SortKey, RoaringBitmap> buckets = new TreeMap<>();
+        buckets.put(new SortKey(0), everything);
+        new PagingIndex(SORT, buckets).lookup(Long.MAX_VALUE, 0);
+    }
+
+    /// Two-column keys over array, bitmap and run containers in several 2^16 chunks, paged from the mapping
+    @Test
+    public void opensTheIndexItSaved() throws IOException {
+        List<SortColumn> sortColumns = Arrays.asList(new SortColumn("bucket", ColumnType.INTEGER, SortDirection.ASC),
+                new SortColumn("amount", ColumnType.DOUBLE, SortDirection.DESC));
+        PagingIndex index = new PagingIndex(sortColumns, savedBuckets(sortColumns));
+        Path path = Files.createTempFile("paging-index", ".idx");
+
+        try {
+            index.save(path, "orders");
+            PagingIndex opened = PagingIndex.open(path, "orders", sortColumns, index.getCardinality());
+
+            assertEquals(index.keys(), opened.keys());
+            assertEquals(index.getCardinality(), opened.getCardinality());
+            for (SortDirection direction : SortDirection.values()) {
+                assertArrayEquals(index.lookup(Long.MAX_VALUE, 0, direction), opened.lookup(Long.MAX_VALUE, 0, direction));
+                for (long offset = 0; offset < index.getCardinality(); offset += 65_537) {
+                    assertArrayEquals(direction + " at " + offset, index.lookup(1_000, offset, direction), opened.lookup(1_000, offset, direction));
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /// Another table or sort order, a table that has grown since, or a flipped payload byte
+    @Test
+    public void refusesToOpenAnIndexThatDoesNotMatch() throws IOException {
+        List<SortColumn> sortColumns = Arrays.asList(new SortColumn("bucket", ColumnType.INTEGER, SortDirection.ASC),
+                new SortColumn("amount", ColumnType.DOUBLE, SortDirection.DESC));
+        PagingIndex index = new PagingIndex(sortColumns, savedBuckets(sortColumns));
+        long rows = index.getCardinality();
+        Path path = Files.createTempFile("paging-index", ".idx");
+
+        try {
+            index.save(path, "orders");
+            assertRefused(path, "trips", sortColumns, rows);
+            assertRefused(path, "orders", sortColumns.subList(0, 1), rows);
+            assertRefused(path, "orders", Arrays.asList(sortColumns.get(0), new SortColumn("amount", ColumnType.DOUBLE, SortDirection.ASC)), rows);
+            assertRefused(path, "orders", sortColumns, rows + 1);
+
+            // The last bucket holds a run of 100000 ids, so a byte 16 from the end is one of its runs, not padding
+            byte[] bytes = Files.readAllBytes(path);
+            bytes[bytes.length - 16] ^= 1;
+            Files.write(path, bytes);
+            assertRefused(path, "orders", sortColumns, rows);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static TreeMap<SortKey, RoaringBitmap> savedBuckets(List<SortColumn> sortColumns) {
+        TreeMap<SortKey, RoaringBitmap> buckets = new TreeMap<>();
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < 50_000; i++) {
+            long[] key = {sortColumns.get(0).encode((long) random.nextInt(4)), sortColumns.get(1).encode(random.nextInt(8) / 2.0)};
+            buckets.computeIfAbsent(new SortKey(key), absentKey -> new RoaringBitmap()).add(random.nextInt(1 << 20));
+        }
+
+        RoaringBitmap run = new RoaringBitmap();
+        run.add(2_000_000L, 2_100_000L);
+        run.runOptimize();
+        buckets.put(new SortKey(new long[]{Long.MAX_VALUE, Long.MAX_VALUE}), run);
+        return buckets;
+    }
+
+    private static void assertRefused(Path path, String tableName, List<SortColumn> sortColumns, long rows) {
+        try {
+            PagingIndex.open(path, tableName, sortColumns, rows);
+            fail("opened " + path + " as " + tableName + " by " + SortColumn.describe(sortColumns) + " with " + rows + " rows");
+        } catch (IOException e) {
+            // Refused as it should be
+        }
+    }
+
+    private static long[] expected(List<long[]> rows, int limit, int offset, boolean descending) {
+        int count = Math.max(0, Math.min(limit, rows.size() - offset));
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = rows.get(descending ? rows.size() - 1 - offset - i : offset + i)[1];
+        }
+        return ids;
+    }
+}
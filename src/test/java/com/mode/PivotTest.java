@@ -0,0 +1,176 @@
+package com.mode;
+
+import org.joda.time.format.DateTimeFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/// The filtered pivot with a sum, run on the columnar engine and on HSQLDB over the same csv
+public class PivotTest {
+    private static final String[] LABELS = {"north", "south", "east", "west"};
+    private static final int ROWS = 10_000;
+
+    private Path directory;
+    private Map<String, ColumnType> schema;
+    private List<StorageEngine> engines;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("pivot-test");
+
+        schema = new LinkedHashMap<>();
+        schema.put("bucket", ColumnType.INTEGER);
+        schema.put("label", ColumnType.STRING);
+        schema.put("amount", ColumnType.DOUBLE);
+        schema.put("day", ColumnType.TIMESTAMP);
+
+        List<String> csvPaths = Collections.singletonList(writeCsv());
+        engines = Arrays.asList(new ColumnarEngine(), new HsqldbEngine("jdbc:hsqldb:mem:pivot" + System.nanoTime()));
+        for (StorageEngine engine : engines) {
+            engine.open();
+            engine.createTable("facts", schema);
+            engine.ingest("facts", schema, csvPaths,
+                    new MutablePagingIndex(Collections.singletonList(new SortColumn("bucket", ColumnType.INTEGER, SortDirection.ASC))));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (StorageEngine engine : engines) {
+            engine.close();
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void pivotsEveryRow() throws Exception {
+        List<String> expected = expected(Collections.emptyMap(), false);
+        assertEquals(5 * 8, expected.size());
+
+        for (StorageEngine engine : engines) {
+            assertEquals(engine.getName(), expected, pivot(engine, Collections.emptyMap(), null));
+        }
+    }
+
+    @Test
+    public void filtersAndSums() throws Exception {
+        Map<String, Object[]> filter = new LinkedHashMap<>();
+        filter.put("label", new Object[]{"north", "west", null, "nowhere"});
+        filter.put("bucket", new Object[]{1, 2, 3});
+        filter.put("day", new Object[]{DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss").parseMillis("2019-01-02 00:00:00") * 1000L});
+
+        List<String> expected = expected(filter, true);
+        assertTrue(expected.size() > 3);
+
+        for (StorageEngine engine : engines) {
+            assertEquals(engine.getName(), expected, pivot(engine, filter, "amount"));
+        }
+    }
+
+    @Test
+    public void matchesNothingOnUnknownStrings() throws Exception {
+        Map<String, Object[]> filter = Collections.singletonMap("label", new Object[]{"nowhere"});
+
+        for (StorageEngine engine : engines) {
+            assertEquals(engine.getName(), Collections.emptyList(), pivot(engine, filter, "amount"));
+        }
+    }
+
+    private static List<String> pivot(StorageEngine engine, Map<String, Object[]> filter, String sumColumn) throws Exception {
+        List<String> rows = new ArrayList<>();
+        engine.pivot("facts", Arrays.asList("label", "bucket"), filter, sumColumn, batch -> {
+            for (int row = 0; row < batch.size(); row++) {
+                rows.add(format(batch.isNull(row, 0) ? null : batch.getString(row, 0),
+                        batch.isNull(row, 1) ? null : batch.getLong(row, 1),
+                        batch.getLong(row, 2),
+                        sumColumn == null ? null : batch.getDouble(row, 3)));
+            }
+        });
+        return rows;
+    }
+
+    /// Row i has bucket i % 7 (null when i % 9 == 0), label i % 4 (null when i % 5 == 0), amount i / 4 (null when i % 11 == 0)
+    private List<String> expected(Map<String, Object[]> filter, boolean summing) {
+        TreeMap<List<Object>, double[]> groups = new TreeMap<>((left, right) -> {
+            for (int i = 0; i < left.size(); i++) {
+                int compare = Comparator.nullsFirst(PivotTest::compare).compare(left.get(i), right.get(i));
+                if (compare != 0) {
+                    return compare;
+                }
+            }
+            return 0;
+        });
+
+        for (int i = 0; i < ROWS; i++) {
+            Long bucket = i % 9 == 0 ? null : (long) (i % 7);
+            String label = i % 5 == 0 ? null : LABELS[i % 4];
+            Long day = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss").parseMillis(day(i)) * 1000L;
+
+            if (!matches(filter, "bucket", bucket) || !matches(filter, "label", label) || !matches(filter, "day", day)) {
+                continue;
+            }
+
+            double[] totals = groups.computeIfAbsent(Arrays.asList(label, bucket), absentKey -> new double[2]);
+            totals[0]++;
+            totals[1] += i % 11 == 0 ? 0.0 : i / 4.0;
+        }
+
+        List<String> rows = new ArrayList<>();
+        groups.forEach((key, totals) -> rows.add(format((String) key.get(0), (Long) key.get(1), (long) totals[0], summing ? totals[1] : null)));
+        return rows;
+    }
+
+    private static boolean matches(Map<String, Object[]> filter, String columnName, Object value) {
+        if (!filter.containsKey(columnName)) {
+            return true;
+        }
+        for (Object wanted : filter.get(columnName)) {
+            if (wanted == null ? value == null : value != null && ((wanted instanceof Number ? ((Number) wanted).longValue() : wanted).equals(value))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object left, Object right) {
+        return ((Comparable<Object>) left).compareTo(right);
+    }
+
+    private static String format(String label, Long bucket, long count, Double sum) {
+        return label + "/" + bucket + "=" + count + (sum == null ? "" : String.format(Locale.ROOT, "/%.2f", sum));
+    }
+
+    private static String day(int i) {
+        return "2019-01-0" + (i % 3 + 1) + " 00:00:00";
+    }
+
+    private String writeCsv() throws IOException {
+        Path path = directory.resolve("facts.csv.gz");
+
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(path)), StandardCharsets.UTF_8)) {
+            writer.write(String.join(",", schema.keySet()) + "\n");
+            for (int i = 0; i < ROWS; i++) {
+                writer.write((i % 9 == 0 ? "" : Integer.toString(i % 7)) + "," +
+                        (i % 5 == 0 ? "" : LABELS[i % 4]) + "," +
+                        (i % 11 == 0 ? "" : Double.toString(i / 4.0)) + "," +
+                        day(i) + "\n");
+            }
+        }
+        return path.toString();
+    }
+}
@@ -0,0 +1,118 @@
+package com.mode;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+    private static final ColumnType[] COLUMNS = {ColumnType.INTEGER};
+
+    @Test
+    public void replaysACopyOfTheRecordedRows() {
+        ResultCache cache = new ResultCache(1L << 20);
+        ResultCache.Key key = ResultCache.key("orders", "page", 10, 0);
+        assertNull(cache.replay(key, null));
+
+        RowBatch batch = batch(1);
+        List<RowBatch> passedOn = new ArrayList<>();
+        ResultCache.Recording recording = cache.record(key, passedOn::add);
+        recording.accept(batch);
+        recording.finish(stats(10));
+        assertEquals(Collections.singletonList(batch), passedOn);
+
+        // The engine reuses its batches, which must not show through the entry
+        batch.setLong(0, 0, -1);
+
+        List<Long> firsts = new ArrayList<>();
+        ResultStats replayed = cache.replay(ResultCache.key("ORDERS", "page", 10, 0), replayedBatch -> firsts.add(replayedBatch.getLong(0, 0)));
+        assertEquals(Long.valueOf(10), replayed.getRows());
+        assertEquals(Collections.singletonList(1L), firsts);
+        assertNull(cache.replay(ResultCache.key("orders", "page", 10, 10), null));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedPastTheBudget() {
+        ResultCache sizing = new ResultCache(1L << 20);
+        put(sizing, ResultCache.key("orders", "page", 0), 1);
+        long entryBytes = sizing.getSizeBytes();
+
+        ResultCache cache = new ResultCache(3 * entryBytes);
+        for (int page = 0; page < 3; page++) {
+            put(cache, ResultCache.key("orders", "page", page), page);
+        }
+        assertNotNull(cache.replay(ResultCache.key("orders", "page", 0), null));
+        put(cache, ResultCache.key("orders", "page", 3), 3);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getEntryCount());
+        assertEquals(3 * entryBytes, cache.getSizeBytes());
+        assertNull(cache.replay(ResultCache.key("orders", "page", 1), null));
+        for (int page : new int[]{0, 2, 3}) {
+            assertNotNull("page " + page, cache.replay(ResultCache.key("orders", "page", page), null));
+        }
+
+        // An entry bigger than the whole budget isn't kept, and doesn't flush the rest out
+        ResultCache.Recording recording = cache.record(ResultCache.key("orders", "all"), null);
+        for (int i = 0; i < 16; i++) {
+            recording.accept(batch(i));
+        }
+        recording.finish(stats(160));
+        assertNull(cache.replay(ResultCache.key("orders", "all"), null));
+        assertEquals(3, cache.getEntryCount());
+    }
+
+    @Test
+    public void servesNothingFromBeforeOrDuringAChange() {
+        ResultCache cache = new ResultCache(1L << 20);
+        ResultCache.Key page = ResultCache.key("orders", "page", 0);
+        ResultCache.Key other = ResultCache.key("trips", "page", 0);
+        put(cache, page, 1);
+        put(cache, other, 1);
+
+        // Read before the load starts, finished after it ends
+        ResultCache.Recording stale = cache.record(ResultCache.key("orders", "page", 1), null);
+        stale.accept(batch(1));
+
+        cache.beginChange("ORDERS");
+        assertNull(cache.replay(page, null));
+        assertNotNull(cache.replay(other, null));
+
+        put(cache, page, 2);
+        assertEquals(1, cache.getEntryCount());
+        cache.endChange("ORDERS");
+
+        stale.finish(stats(10));
+        assertNull(cache.replay(ResultCache.key("orders", "page", 1), null));
+        assertNull(cache.replay(page, null));
+        assertEquals(1, cache.getInvalidations());
+
+        put(cache, page, 3);
+        List<Long> firsts = new ArrayList<>();
+        cache.replay(page, batch -> firsts.add(batch.getLong(0, 0)));
+        assertEquals(Collections.singletonList(3L), firsts);
+    }
+
+    private static void put(ResultCache cache, ResultCache.Key key, long first) {
+        ResultCache.Recording recording = cache.record(key, null);
+        recording.accept(batch(first));
+        recording.finish(stats(10));
+    }
+
+    private static ResultStats stats(long rows) {
+        return new ResultStats(rows, 8 * rows, 0L, 0L);
+    }
+
+    /// Ten rows counting up from first
+    private static RowBatch batch(long first) {
+        RowBatch batch = new RowBatch(COLUMNS, 10);
+        for (int row = 0; row < 10; row++) {
+            batch.setLong(row, 0, first + row);
+        }
+        batch.setSize(10);
+        return batch;
+    }
+}
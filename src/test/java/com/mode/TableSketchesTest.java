@@ -0,0 +1,177 @@
+package com.mode;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TableSketchesTest {
+    private static final int BATCH_ROWS = 1000;
+
+    @Test
+    public void foldsFinishedPartialsIntoLaterAnswers() {
+        TableSketches sketches = sketches();
+        TableSketches.Partial first = sketches.partial();
+        TableSketches.Partial second = sketches.partial();
+
+        first.add(batch(0));
+        second.add(batch(1));
+        assertEquals(Arrays.asList(1000.0, 1000.0), counts(sketches));
+
+        first.finish();
+        assertEquals(Arrays.asList(1000.0, 1000.0), counts(sketches));
+
+        second.add(batch(2));
+        second.finish();
+        second.finish();
+        assertEquals(Arrays.asList(1500.0, 1500.0), counts(sketches));
+
+        TableSketches.Partial third = sketches.partial();
+        third.add(batch(3));
+        assertEquals(Arrays.asList(2000.0, 2000.0), counts(sketches));
+        third.finish();
+        assertEquals(Arrays.asList(2000.0, 2000.0), counts(sketches));
+
+        double distinct = sketches.distinct(groupBy(), "item").get(Collections.singletonList(0L)).getValue();
+        assertEquals(2000.0, distinct, 2000.0 * 0.05);
+    }
+
+    @Test
+    public void printsExactCountsAsIntegers() {
+        TableSketches sketches = sketches();
+        TableSketches.Partial partial = sketches.partial();
+        partial.add(batch(0));
+        partial.finish();
+
+        assertEquals("500", sketches.count(groupBy()).get(Collections.singletonList(1L)).toString());
+        assertTrue(sketches.distinct(groupBy(), "item").get(Collections.singletonList(1L)).toString().contains("@95%"));
+    }
+
+    @Test
+    public void countsDistinctWithinTheStandardErrorAndMerges() {
+        int distinct = 200_000;
+        HyperLogLog all = new HyperLogLog();
+        HyperLogLog evens = new HyperLogLog();
+        HyperLogLog odds = new HyperLogLog();
+
+        // Every value twice, so duplicates don't count
+        for (int pass = 0; pass < 2; pass++) {
+            for (long value = 0; value < distinct; value++) {
+                long hash = TableSketches.hash(value);
+                all.add(hash);
+                (value % 2 == 0 ? evens : odds).add(hash);
+            }
+        }
+
+        assertEquals(distinct, all.estimate(), 3 * all.getStandardError() * distinct);
+        assertEquals(distinct / 2.0, evens.estimate(), 3 * evens.getStandardError() * distinct / 2.0);
+
+        evens.merge(odds);
+        assertEquals(all.estimate(), evens.estimate(), 0.0);
+        evens.merge(all);
+        assertEquals(all.estimate(), evens.estimate(), 0.0);
+    }
+
+    @Test
+    public void takesQuantilesWithinTheRelativeAccuracyAndMerges() {
+        SplittableRandom random = new SplittableRandom(7);
+        double[] values = new double[100_000];
+        QuantileSketch all = new QuantileSketch();
+        QuantileSketch low = new QuantileSketch();
+        QuantileSketch high = new QuantileSketch();
+
+        for (int i = 0; i < values.length; i++) {
+            // Spread over magnitudes on both sides of zero, with some exact zeros
+            values[i] = i % 50 == 0 ? 0.0 : (random.nextBoolean() ? 1 : -1) * Math.exp(random.nextDouble(-5.0, 10.0));
+            all.add(values[i]);
+            (i < values.length / 3 ? low : high).add(values[i]);
+        }
+        Arrays.sort(values);
+        low.merge(high);
+
+        for (double q : new double[]{0.0, 0.01, 0.25, 0.5, 0.75, 0.99, 1.0}) {
+            double exact = values[(int) (q * (values.length - 1))];
+            for (QuantileSketch sketch : Arrays.asList(all, low)) {
+                assertEquals("q " + q, exact, sketch.quantile(q), Math.abs(exact) * sketch.getRelativeAccuracy());
+            }
+        }
+        assertEquals(values.length, low.getCount());
+        assertTrue(Double.isNaN(new QuantileSketch().quantile(0.5)));
+    }
+
+    @Test
+    public void neverUndercountsHeavyHittersAndMerges() {
+        Map<Long, Long> exact = new HashMap<>();
+        CountMinSketch all = new CountMinSketch();
+        CountMinSketch first = new CountMinSketch();
+        CountMinSketch second = new CountMinSketch();
+
+        // Value v < 10 turns up (10 - v) * 1000 times, then a long tail of values once each
+        List<Long> stream = new ArrayList<>();
+        for (long value = 0; value < 10; value++) {
+            for (int i = 0; i < (10 - value) * 1000; i++) {
+                stream.add(value);
+            }
+        }
+        for (long value = 10; value < 100_000; value++) {
+            stream.add(value);
+        }
+        Collections.shuffle(stream, new Random(7));
+
+        for (int i = 0; i < stream.size(); i++) {
+            Long value = stream.get(i);
+            exact.merge(value, 1L, Long::sum);
+            all.add(value, TableSketches.hash(value));
+            (i % 2 == 0 ? first : second).add(value, TableSketches.hash(value));
+        }
+        first.merge(second);
+
+        for (CountMinSketch sketch : Arrays.asList(all, first)) {
+            assertEquals(stream.size(), sketch.getTotal());
+            for (Map.Entry<Long, Long> count : exact.entrySet()) {
+                long estimate = sketch.estimate(TableSketches.hash(count.getKey()));
+                assertTrue(count.toString(), estimate >= count.getValue());
+                assertTrue(count + " estimated " + estimate, estimate - count.getValue() <= sketch.getErrorBound());
+            }
+
+            // 5000 and up is 3.2% of the 155000 rows and more
+            assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L), new ArrayList<>(sketch.heavyHitters(0.03).keySet()));
+        }
+    }
+
+    private static List<String> groupBy() {
+        return Collections.singletonList("parity");
+    }
+
+    private static TableSketches sketches() {
+        return new TableSketches(schema(), Collections.singletonList(new TableSketches.Spec("parity").distinct("item")));
+    }
+
+    private static List<Double> counts(TableSketches sketches) {
+        List<Double> counts = new ArrayList<>();
+        for (TableSketches.Estimate estimate : sketches.count(groupBy()).values()) {
+            counts.add(estimate.getValue());
+        }
+        return counts;
+    }
+
+    private static Map<String, ColumnType> schema() {
+        Map<String, ColumnType> schema = new LinkedHashMap<>();
+        schema.put("parity", ColumnType.INTEGER);
+        schema.put("item", ColumnType.INTEGER);
+        return schema;
+    }
+
+    /// Batch n holds the BATCH_ROWS items from n * BATCH_ROWS, half of them in each parity
+    private static RowBatch batch(int n) {
+        RowBatch batch = new RowBatch(schema().values().toArray(new ColumnType[0]), BATCH_ROWS);
+        for (int row = 0; row < BATCH_ROWS; row++) {
+            long item = (long) n * BATCH_ROWS + row;
+            batch.setLong(row, 0, item % 2);
+            batch.setLong(row, 1, item);
+        }
+        batch.setSize(BATCH_ROWS);
+        return batch;
+    }
+}